@@ -0,0 +1,89 @@
+package com.omer.ostim.ai.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+/**
+ * Executors for the blocking and long running parts of the application.
+ * <p>
+ * When {@code spring.threads.virtual.enabled} is true, Spring Boot already runs Tomcat
+ * request handling and {@code @Scheduled} tasks on virtual threads; the executors below
+ * follow the same switch so that Ollama calls, server probes and Tika parsing do too.
+ * Otherwise they fall back to classic platform thread pools.
+ */
+@Configuration
+public class AsyncConfig {
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    /**
+     * Executor used for generation work: the async Ollama client runs its response
+     * handling here (parsing NDJSON chunks, pushing tokens to SSE emitters), so it
+     * never touches Tomcat worker threads. Tasks are short, hence the unbounded queue.
+     */
+    @Bean(name = "generationExecutor")
+    public AsyncTaskExecutor generationExecutor() {
+        return createExecutor("generation-", 16, 0);
+    }
+
+    /**
+     * Executor for Tika text extraction. Parsing is CPU heavy, so the number of
+     * parallel parses is capped at the number of cores in both modes.
+     */
+    @Bean(name = "fileExtractionExecutor")
+    public AsyncTaskExecutor fileExtractionExecutor() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return createExecutor("file-extraction-", cores, cores);
+    }
+
+    /**
+     * Executor for server reachability probes, so all servers are checked in parallel.
+     */
+    @Bean(name = "monitoringExecutor")
+    public AsyncTaskExecutor monitoringExecutor() {
+        return createExecutor("server-probe-", 4, 0);
+    }
+
+    /**
+     * Scheduler that fails generations whose deadline passed. The task of a generation is
+     * cancelled, and dropped from the queue, as soon as it completes, so finished
+     * generations are not kept until their deadline. Pending deadlines are dropped at
+     * shutdown. Not a default candidate, so {@code @Scheduled} tasks stay on the
+     * scheduler Spring Boot configures.
+     */
+    @Bean(name = "deadlineScheduler", defaultCandidate = false)
+    public ThreadPoolTaskScheduler deadlineScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("generation-deadline-");
+        scheduler.setRemoveOnCancelPolicy(true);
+        scheduler.setWaitForTasksToCompleteOnShutdown(false);
+        return scheduler;
+    }
+
+    private AsyncTaskExecutor createExecutor(String threadNamePrefix, int poolSize, int concurrencyLimit) {
+        if (virtualThreads) {
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(threadNamePrefix);
+            executor.setVirtualThreads(true);
+            executor.setTaskTerminationTimeout(30000);
+            if (concurrencyLimit > 0) {
+                executor.setConcurrencyLimit(concurrencyLimit);
+            }
+            return executor;
+        }
+
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(poolSize);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(30);
+        return executor;
+    }
+}
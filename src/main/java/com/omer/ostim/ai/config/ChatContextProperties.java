@@ -0,0 +1,97 @@
+package com.omer.ostim.ai.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How the prompt of a chat turn is fitted into the context window of its model
+ * ({@code chat.context.*}).
+ * <p>
+ * A turn gets the context window of its model minus the tokens kept free for the
+ * answer. The system prompt, the rolling summary of older turns and the question are
+ * always sent; document excerpts take at most {@code document-share} of what is left,
+ * and the remainder is filled with the most recent turns of the chat.
+ */
+@Data
+@ConfigurationProperties(prefix = "chat.context")
+public class ChatContextProperties {
+
+    /**
+     * Context window in tokens of models not listed under {@code models}, and the
+     * largest num_ctx their requests get.
+     */
+    private int defaultContextTokens = 4096;
+
+    /**
+     * Context window per model, e.g. {@code "[qwen2.5:7b]": 8192}.
+     */
+    private Map<String, Integer> models = new HashMap<>();
+
+    /**
+     * Tokens of the context window kept free for the answer.
+     */
+    private int answerTokens = 1024;
+
+    /**
+     * Largest share of the budget left after system prompt, summary and question that
+     * document excerpts may take.
+     */
+    private double documentShare = 0.6;
+
+    /**
+     * Sent as the first message of every chat turn; empty for none.
+     */
+    private String systemPrompt = "";
+
+    /**
+     * Recent turns kept in memory per active chat.
+     */
+    private int recentTurns = 32;
+
+    /**
+     * Chats without a request for this long are dropped from memory.
+     */
+    private Duration activeChatTtl = Duration.ofMinutes(30);
+
+    private long maxActiveChats = 10000;
+
+    /**
+     * Turns after the rolling summary at which older turns are compacted into it, even
+     * if they still fit into the budget.
+     */
+    private int summarizeAfterTurns = 16;
+
+    /**
+     * Most recent turns left out of a compaction, so they stay verbatim.
+     */
+    private int keepTurns = 6;
+
+    /**
+     * Most tokens the rolling summary of a chat may take.
+     */
+    private int summaryTokens = 512;
+
+    /**
+     * @param model the model of the request
+     * @return the context window of the model in tokens
+     */
+    public int contextTokens(String model) {
+        Integer tokens = models.get(model);
+        if (tokens == null && model != null && !model.contains(":")) {
+            tokens = models.get(model + ":latest");
+        }
+        return tokens != null ? tokens : defaultContextTokens;
+    }
+
+    /**
+     * @param model the model of the request
+     * @return the tokens a prompt for the model may take
+     */
+    public int promptBudget(String model) {
+        return Math.max(0, contextTokens(model) - answerTokens);
+    }
+}
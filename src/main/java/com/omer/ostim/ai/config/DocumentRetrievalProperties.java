@@ -0,0 +1,169 @@
+package com.omer.ostim.ai.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * How uploaded documents are split, embedded and searched, so that questions about
+ * them are answered from their most relevant parts ({@code rag.*}).
+ * <p>
+ * At upload the extracted text is split into chunks of about {@code chunk-tokens}
+ * tokens, which are embedded with {@code embedding-model} and kept in memory-mapped
+ * segment files under {@code store.dir}. A question about a document larger than
+ * {@code min-document-tokens} is then sent with its {@code top-k} nearest chunks
+ * instead of the whole text. Without an embedding model ({@code retrieval: lexical})
+ * the chunks are ranked with BM25 instead.
+ */
+@Data
+@ConfigurationProperties(prefix = "rag")
+public class DocumentRetrievalProperties {
+
+    /**
+     * Whether documents are indexed and questions answered from their chunks. When off,
+     * documents are cut to the context window as before.
+     */
+    private boolean enabled = true;
+
+    /**
+     * How chunks are found for a question. With vector, BM25 answers until a document
+     * is embedded or when embedding fails.
+     */
+    private Retrieval retrieval = Retrieval.VECTOR;
+
+    /**
+     * Ollama embedding model, e.g. nomic-embed-text or bge-m3. It has to be pulled on
+     * the Ollama servers. Changing it embeds the documents again on their next question.
+     */
+    private String embeddingModel = "nomic-embed-text";
+
+    /**
+     * Tokens per chunk. Should stay well below the context of the embedding model.
+     */
+    private int chunkTokens = 256;
+
+    /**
+     * Tokens each chunk repeats from the end of the chunk before it.
+     */
+    private int chunkOverlapTokens = 32;
+
+    /**
+     * Chunks sent with a question.
+     */
+    private int topK = 6;
+
+    /**
+     * Documents of up to this many tokens are sent whole and not indexed.
+     */
+    private int minDocumentTokens = 2048;
+
+    /**
+     * Chunks embedded per request to Ollama.
+     */
+    private int embedBatchSize = 32;
+
+    private Index index = new Index();
+
+    private Store store = new Store();
+
+    private Lexical lexical = new Lexical();
+
+    public enum Retrieval {
+        /**
+         * Nearest chunks by embedding; needs the embedding model on the Ollama servers.
+         */
+        VECTOR,
+        /**
+         * Best chunks by BM25 over their stemmed words; needs no model.
+         */
+        LEXICAL
+    }
+
+    public enum VectorEncoding {
+        /**
+         * Four bytes per dimension, exact.
+         */
+        FLOAT32,
+        /**
+         * One byte per dimension with a scale per vector; a quarter of the size, though
+         * chunks almost as near as the nearest ones are sometimes sent instead.
+         */
+        INT8
+    }
+
+    @Data
+    public static class Index {
+
+        /**
+         * Neighbours per node on the upper layers of the graph; twice as many on the
+         * bottom layer.
+         */
+        private int m = 16;
+
+        /**
+         * Candidates considered when a node is linked into the graph.
+         */
+        private int efConstruction = 100;
+
+        /**
+         * Candidates considered per search; at least top-k.
+         */
+        private int efSearch = 64;
+
+        /**
+         * Share of the graph's nodes that may belong to deleted or re-indexed documents
+         * before the graph is built again from the stored vectors.
+         */
+        private double maxRemovedShare = 0.3;
+    }
+
+    @Data
+    public static class Store {
+
+        /**
+         * Directory of the vector segment files, next to the uploads directory.
+         */
+        private String dir = "./vectors";
+
+        /**
+         * How vectors are written. Existing segments keep their encoding until they are
+         * merged.
+         */
+        private VectorEncoding encoding = VectorEncoding.INT8;
+
+        /**
+         * Segments kept before the smallest ones are merged into one.
+         */
+        private int maxSegments = 16;
+
+        /**
+         * Largest segment a merge may write; a single mapping cannot exceed 2 GB.
+         */
+        private DataSize maxSegmentSize = DataSize.ofMegabytes(512);
+
+        /**
+         * Milliseconds between checks whether segments should be merged.
+         */
+        private long mergeInterval = 600000;
+    }
+
+    @Data
+    public static class Lexical {
+
+        /**
+         * BM25 term frequency saturation; higher lets repeated words count longer.
+         */
+        private float k1 = 1.2f;
+
+        /**
+         * BM25 length normalization, from 0 (none) to 1 (full).
+         */
+        private float b = 0.75f;
+
+        /**
+         * Memory for the BM25 indexes of recently asked documents; others are built again
+         * on their next question.
+         */
+        private DataSize maxIndexSize = DataSize.ofMegabytes(256);
+    }
+}
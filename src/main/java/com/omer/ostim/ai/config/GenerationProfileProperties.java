@@ -0,0 +1,75 @@
+package com.omer.ostim.ai.config;
+
+import com.omer.ostim.ai.dto.GenerationProfile;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Ollama options of each {@link GenerationProfile} ({@code generation.profiles.*}).
+ * <p>
+ * Every request gets the {@code num_predict}, {@code temperature} and {@code keep_alive}
+ * of its profile unless it sets them itself. {@code num_ctx} is sized to the prompt plus
+ * {@code num_predict}: the smallest power of two from {@code min-context-tokens} that
+ * holds both, at most the context window of the model ({@code chat.context.*}). Ollama
+ * reserves the KV cache for num_ctx tokens per parallel request, so small prompts leave
+ * GPU memory for more of them; it also reloads a model to change its context size, which
+ * is why sizes come in powers of two and the size of a model only ever grows to the
+ * largest one needed. Setting {@code min-context-tokens} to the context window sends one
+ * fixed size.
+ */
+@Data
+@ConfigurationProperties(prefix = "generation")
+public class GenerationProfileProperties {
+
+    /**
+     * Options per profile. Unset values are left to Ollama, or for keep_alive to the
+     * traffic of the model.
+     */
+    private Map<GenerationProfile, Profile> profiles = defaultProfiles();
+
+    /**
+     * Smallest num_ctx sent to Ollama.
+     */
+    private int minContextTokens = 2048;
+
+    public Profile profile(GenerationProfile profile) {
+        Profile settings = profiles.get(profile);
+        return settings != null ? settings : defaultProfiles().get(profile);
+    }
+
+    private static Map<GenerationProfile, Profile> defaultProfiles() {
+        Map<GenerationProfile, Profile> profiles = new EnumMap<>(GenerationProfile.class);
+        profiles.put(GenerationProfile.CHAT, profile(1024, 0.7));
+        profiles.put(GenerationProfile.FILE_QA, profile(1024, 0.3));
+        profiles.put(GenerationProfile.SUMMARY, profile(2048, 0.2));
+        // Reasoning models think before they answer, even for a title
+        profiles.put(GenerationProfile.TITLE, profile(256, 0.5));
+        return profiles;
+    }
+
+    private static Profile profile(int numPredict, double temperature) {
+        Profile profile = new Profile();
+        profile.setNumPredict(numPredict);
+        profile.setTemperature(temperature);
+        return profile;
+    }
+
+    @Data
+    public static class Profile {
+
+        /**
+         * Most tokens of the answer, including the reasoning of thinking models.
+         */
+        private Integer numPredict;
+
+        private Double temperature;
+
+        /**
+         * How long the model stays loaded after the request, e.g. "10m".
+         */
+        private String keepAlive;
+    }
+}
@@ -0,0 +1,80 @@
+package com.omer.ostim.ai.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Creates pooled keep-alive HTTP clients for talking to Ollama servers.
+ * <p>
+ * Every pool is bound to Micrometer under {@code httpcomponents.httpclient.pool.*}
+ * with the pool name as the {@code httpclient} tag, so leased, available and
+ * pending connections are visible per server.
+ */
+@Component
+public class OllamaHttpClientFactory {
+
+    private final MeterRegistry meterRegistry;
+
+    public OllamaHttpClientFactory(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Creates a pooled client. Connect and read timeouts are applied at the socket,
+     * idle keep-alive connections are evicted in the background.
+     *
+     * @param name pool name used in the metrics
+     * @param settings connection limits and timeouts
+     * @return the client; the caller must close it
+     */
+    public CloseableHttpClient createPooledClient(String name, OllamaHttpProperties.ConnectionSettings settings) {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(settings.getMaxConnections())
+                .setMaxConnPerRoute(settings.getMaxConnections())
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(timeout(settings.getConnectTimeout()))
+                        .setSocketTimeout(timeout(settings.getReadTimeout()))
+                        .build())
+                .build();
+
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, name).bindTo(meterRegistry);
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(timeout(settings.getAcquireTimeout()))
+                        .setResponseTimeout(timeout(settings.getReadTimeout()))
+                        .build())
+                .evictIdleConnections(TimeValue.ofMilliseconds(settings.getIdleTimeout().toMillis()))
+                .evictExpiredConnections()
+                .build();
+    }
+
+    /**
+     * Removes the pool metrics of a client that has been closed.
+     *
+     * @param name pool name passed to {@link #createPooledClient}
+     */
+    public void removeMetrics(String name) {
+        meterRegistry.getMeters().stream()
+                .filter(meter -> meter.getId().getName().startsWith("httpcomponents.httpclient.pool"))
+                .filter(meter -> name.equals(meter.getId().getTag("httpclient")))
+                .toList()
+                .forEach(meterRegistry::remove);
+    }
+
+    private static Timeout timeout(Duration duration) {
+        return Timeout.ofMilliseconds(duration.toMillis());
+    }
+}
@@ -0,0 +1,90 @@
+package com.omer.ostim.ai.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HTTP connection settings for the Ollama servers ({@code ollama.http.*}).
+ * <p>
+ * {@code defaults} apply to every server; {@code servers.<serverId>} overrides single
+ * values for one {@code ChatServer}, e.g. a longer first byte timeout for a slow GPU box.
+ */
+@Data
+@ConfigurationProperties(prefix = "ollama.http")
+public class OllamaHttpProperties {
+
+    private ConnectionSettings defaults = ConnectionSettings.withDefaults();
+    private Map<Long, ConnectionSettings> servers = new HashMap<>();
+
+    /**
+     * Resolves the settings for a server, falling back to the defaults for every
+     * value the server does not override.
+     *
+     * @param serverId the server ID, or null for connections not bound to a server
+     * @return the effective settings
+     */
+    public ConnectionSettings forServer(Long serverId) {
+        ConnectionSettings overrides = serverId != null ? servers.get(serverId) : null;
+        if (overrides == null) {
+            return defaults;
+        }
+
+        ConnectionSettings settings = new ConnectionSettings();
+        settings.setMaxConnections(overrides.getMaxConnections() != null ? overrides.getMaxConnections() : defaults.getMaxConnections());
+        settings.setNumParallel(overrides.getNumParallel() != null ? overrides.getNumParallel() : defaults.getNumParallel());
+        settings.setConnectTimeout(overrides.getConnectTimeout() != null ? overrides.getConnectTimeout() : defaults.getConnectTimeout());
+        settings.setFirstByteTimeout(overrides.getFirstByteTimeout() != null ? overrides.getFirstByteTimeout() : defaults.getFirstByteTimeout());
+        settings.setReadTimeout(overrides.getReadTimeout() != null ? overrides.getReadTimeout() : defaults.getReadTimeout());
+        settings.setIdleTimeout(overrides.getIdleTimeout() != null ? overrides.getIdleTimeout() : defaults.getIdleTimeout());
+        settings.setAcquireTimeout(overrides.getAcquireTimeout() != null ? overrides.getAcquireTimeout() : defaults.getAcquireTimeout());
+        return settings;
+    }
+
+    @Data
+    public static class ConnectionSettings {
+
+        /** Maximum number of open connections (and so concurrent requests) to the server. */
+        private Integer maxConnections;
+
+        /**
+         * Generations the scheduler runs on the server at once; set it to the server's
+         * {@code OLLAMA_NUM_PARALLEL}, so requests queue here by priority instead of in
+         * Ollama's own first-come queue.
+         */
+        private Integer numParallel;
+
+        /** Time allowed to establish the TCP connection. */
+        private Duration connectTimeout;
+
+        /**
+         * Time allowed until a streamed response starts, i.e. model loading plus prompt
+         * evaluation. Non-streamed responses arrive in one piece and only use the read timeout.
+         */
+        private Duration firstByteTimeout;
+
+        /** Maximum silence on an open connection while reading a response. */
+        private Duration readTimeout;
+
+        /** Idle keep-alive connections are closed after this time. */
+        private Duration idleTimeout;
+
+        /** Time a request may wait for a free connection when the server is at its limit. */
+        private Duration acquireTimeout;
+
+        static ConnectionSettings withDefaults() {
+            ConnectionSettings settings = new ConnectionSettings();
+            settings.setMaxConnections(8);
+            settings.setNumParallel(4);
+            settings.setConnectTimeout(Duration.ofSeconds(10));
+            settings.setFirstByteTimeout(Duration.ofMinutes(2));
+            settings.setReadTimeout(Duration.ofMinutes(5));
+            settings.setIdleTimeout(Duration.ofSeconds(30));
+            settings.setAcquireTimeout(Duration.ofMinutes(1));
+            return settings;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.omer.ostim.ai.config;
+
+import com.omer.ostim.ai.dto.GenerationPriority;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Scheduling of generations on busy Ollama servers ({@code ollama.scheduler.*}).
+ * How many generations run at once on a server is set per server with
+ * {@code ollama.http.*.num-parallel}.
+ */
+@Data
+@ConfigurationProperties(prefix = "ollama.scheduler")
+public class OllamaSchedulerProperties {
+
+    /**
+     * How long a request of each priority class may wait for its turn on a server.
+     * Background work is expected to queue behind interactive traffic for a while.
+     */
+    private Map<GenerationPriority, Duration> queueTimeout = defaultQueueTimeouts();
+
+    public Duration queueTimeout(GenerationPriority priority) {
+        Duration timeout = queueTimeout.get(priority);
+        return timeout != null ? timeout : defaultQueueTimeouts().get(priority);
+    }
+
+    private static Map<GenerationPriority, Duration> defaultQueueTimeouts() {
+        Map<GenerationPriority, Duration> timeouts = new EnumMap<>(GenerationPriority.class);
+        timeouts.put(GenerationPriority.INTERACTIVE, Duration.ofMinutes(1));
+        timeouts.put(GenerationPriority.FILE_QA, Duration.ofMinutes(2));
+        timeouts.put(GenerationPriority.SUMMARY, Duration.ofMinutes(10));
+        timeouts.put(GenerationPriority.BACKGROUND, Duration.ofMinutes(30));
+        return timeouts;
+    }
+}
@@ -1,5 +1,8 @@
 package com.omer.ostim.ai.config;
 
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -13,6 +16,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 @Configuration
+@EnableConfigurationProperties({OllamaHttpProperties.class, OllamaSchedulerProperties.class, ChatContextProperties.class,
+        DocumentRetrievalProperties.class, GenerationProfileProperties.class})
 public class RestTemplateConfig {
 
     public List<HttpMessageConverter<?>> customConverters() {
@@ -36,10 +41,20 @@ public class RestTemplateConfig {
         return converters;
     }
 
+    /**
+     * Pooled client for calls that are not bound to a configured server
+     * (e.g. the spring.ai.ollama.base-url fallback), using the default settings.
+     */
     @Bean
-    public RestTemplate restTemplate() {
-        RestTemplate restTemplate = new RestTemplate();
+    public CloseableHttpClient ollamaHttpClient(OllamaHttpClientFactory ollamaHttpClientFactory,
+                                                OllamaHttpProperties ollamaHttpProperties) {
+        return ollamaHttpClientFactory.createPooledClient("ollama-default", ollamaHttpProperties.getDefaults());
+    }
+
+    @Bean
+    public RestTemplate restTemplate(CloseableHttpClient ollamaHttpClient) {
+        RestTemplate restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(ollamaHttpClient));
         restTemplate.setMessageConverters(customConverters());
         return restTemplate;
     }
-}
\ No newline at end of file
+}
@@ -1,24 +1,41 @@
 package com.omer.ostim.ai.controller;
 
 import com.omer.ostim.ai.model.Chat;
+import com.omer.ostim.ai.model.ChatFiles;
 import com.omer.ostim.ai.dto.ChatRequest;
+import com.omer.ostim.ai.dto.GenerationPriority;
 import com.omer.ostim.ai.service.ChatService;
 import com.omer.ostim.ai.service.ChatFileService;
+import com.omer.ostim.ai.service.ConversationService;
+import com.omer.ostim.ai.service.DeadlinePolicy;
+import com.omer.ostim.ai.service.DocumentIndexService;
+import com.omer.ostim.ai.service.GenerationRegistry;
 import com.omer.ostim.ai.model.User;
 import com.omer.ostim.ai.repository.UserRepository;
+import com.omer.ostim.ai.util.ThinkTagFilter;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.core.Authentication;
 import org.springframework.validation.FieldError;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-// import java.io.IOException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/api/chat")
@@ -27,8 +44,15 @@ public class ChatController {
 
     private final ChatService chatService;
     private final ChatFileService chatFileService;
+    private final ConversationService conversationService;
+    private final DocumentIndexService documentIndexService;
+    private final GenerationRegistry generationRegistry;
+    private final DeadlinePolicy deadlinePolicy;
     private final UserRepository userRepository;
 
+    @Value("${spring.ai.ollama.timeout:300000}")
+    private long streamTimeout;
+
     // Yeni Sohbet oluşturma
     @PostMapping
     public Chat createChat(@Valid @RequestBody ChatRequest chatRequest, Authentication authentication) {
@@ -243,10 +267,12 @@ public class ChatController {
                             !fileContent.startsWith("Text extraction failed") && 
                             !fileContent.contains("not supported")) {
                             
-                            // Create a new enhanced prompt with the file content
+                            // Create a new enhanced prompt with the parts of the file relevant to the question
+                            String relevantContent = relevantText(chatFileService.getFileById(attachment.getFileId()),
+                                                                  requestData.getPrompt(), model).join();
                             String enhancedPrompt = "Based on the following document content, please answer the user's question.\n\n" +
                                                    "Document: " + attachment.getFileName() + "\n" +
-                                                   "Content:\n" + fileContent + "\n\n" +
+                                                   "Content:\n" + conversationService.fitDocument(relevantContent, model, requestData.getPrompt()) + "\n\n" +
                                                    "User's question: " + requestData.getPrompt();
                             
                             System.out.println("Enhanced prompt with extracted file content (first 200 chars): " + 
@@ -347,10 +373,355 @@ public class ChatController {
         return chatService.generateResponse(prompt, model);
     }
 
+    // Asenkron yanit olusturma: Ollama cevap uretirken Tomcat thread'i serbest kalir
+    @PostMapping("/generate/async")
+    public CompletableFuture<String> generateResponseAsync(@RequestBody RequestData requestData,
+                                                           Authentication authentication,
+                                                           HttpServletResponse response) {
+        if (requestData.getPrompt() == null || requestData.getPrompt().isEmpty()) {
+            throw new IllegalArgumentException("Prompt is required");
+        }
+        
+        String model = requestData.getModel() != null ? requestData.getModel() : "deepseek-r1:1.5b";
+        Instant deadline = deadlineOf(requestData);
+        GenerationRegistry.Generation generation = startGeneration(requestData, model, authentication, response);
+        return stoppable(generation, afterStart(() -> buildPrompt(requestData, model))
+            .thenCompose(prompt -> generation.track(chatService.generateResponseAsync(prompt, model, deadline))));
+    }
+
+    // Yaniti token token akitmak icin (Server-Sent Events)
+    @PostMapping(value = "/generate/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamResponse(@RequestBody RequestData requestData, Authentication authentication) {
+        if (requestData.getPrompt() == null || requestData.getPrompt().isEmpty()) {
+            throw new IllegalArgumentException("Prompt is required");
+        }
+        
+        String model = requestData.getModel() != null ? requestData.getModel() : "deepseek-r1:1.5b";
+        Instant deadline = deadlineOf(requestData);
+        SseEmitter emitter = new SseEmitter(streamTimeout);
+        GenerationRegistry.Generation generation = startGeneration(emitter, requestData, model, authentication);
+        
+        ThinkTagFilter tokens = thinkTagFilter(emitter, requestData);
+        afterStart(() -> buildPrompt(requestData, model))
+            .thenCompose(prompt -> generation.track(chatService.streamResponse(prompt, model, deadline, tokens)))
+            .whenComplete((fullResponse, error) -> {
+                generation.close();
+                try {
+                    if (error == null) {
+                        tokens.finish();
+                        sendEvent(emitter, "done", Map.of("done", true));
+                    } else if (generation.getCancelReason() == GenerationRegistry.Reason.REQUEST) {
+                        sendEvent(emitter, "cancelled", Map.of("requestId", generation.getRequestId()));
+                    } else if (generation.getCancelReason() == null) {
+                        System.err.println("Error in streamResponse: " + error.getMessage());
+                        sendEvent(emitter, "error", Map.of("error", String.valueOf(error.getMessage())));
+                    }
+                    emitter.complete();
+                } catch (UncheckedIOException sendError) {
+                    // The client went away, there is nobody left to notify
+                    emitter.completeWithError(sendError.getCause());
+                }
+            });
+        
+        return emitter;
+    }
+    
+    // Sohbet gecmisiyle yanit olusturma: onceki mesajlar Ollama /api/chat'e baglam olarak gider
+    @PostMapping("/{chatId}/generate/async")
+    public CompletableFuture<String> generateConversationResponseAsync(@PathVariable Long chatId,
+                                                                       @RequestBody RequestData requestData,
+                                                                       Authentication authentication,
+                                                                       HttpServletResponse response) {
+        if (requestData.getPrompt() == null || requestData.getPrompt().isEmpty()) {
+            throw new IllegalArgumentException("Prompt is required");
+        }
+        checkChatAccess(chatId, authentication);
+        
+        String model = requestData.getModel() != null ? requestData.getModel() : "deepseek-r1:1.5b";
+        Instant deadline = deadlineOf(requestData);
+        GenerationRegistry.Generation generation = startGeneration(requestData, model, authentication, response);
+        return stoppable(generation, afterStart(() -> attachedDocuments(requestData, model))
+            .thenCompose(documents -> generation.track(
+                chatService.generateConversationResponseAsync(chatId, requestData.getPrompt(), model, documents, deadline))));
+    }
+
+    // Sohbet gecmisiyle yaniti token token akitmak icin (Server-Sent Events)
+    @PostMapping(value = "/{chatId}/generate/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamConversationResponse(@PathVariable Long chatId,
+                                                 @RequestBody RequestData requestData,
+                                                 Authentication authentication) {
+        if (requestData.getPrompt() == null || requestData.getPrompt().isEmpty()) {
+            throw new IllegalArgumentException("Prompt is required");
+        }
+        checkChatAccess(chatId, authentication);
+        
+        String model = requestData.getModel() != null ? requestData.getModel() : "deepseek-r1:1.5b";
+        Instant deadline = deadlineOf(requestData);
+        SseEmitter emitter = new SseEmitter(streamTimeout);
+        GenerationRegistry.Generation generation = startGeneration(emitter, requestData, model, authentication);
+        
+        ThinkTagFilter tokens = thinkTagFilter(emitter, requestData);
+        afterStart(() -> attachedDocuments(requestData, model))
+            .thenCompose(documents -> generation.track(
+                chatService.streamConversationResponse(chatId, requestData.getPrompt(), model, documents, deadline, tokens)))
+            .whenComplete((fullResponse, error) -> {
+                generation.close();
+                try {
+                    if (error == null) {
+                        tokens.finish();
+                        sendEvent(emitter, "done", Map.of("done", true));
+                    } else if (generation.getCancelReason() == GenerationRegistry.Reason.REQUEST) {
+                        sendEvent(emitter, "cancelled", Map.of("requestId", generation.getRequestId()));
+                    } else if (generation.getCancelReason() == null) {
+                        System.err.println("Error in streamConversationResponse: " + error.getMessage());
+                        sendEvent(emitter, "error", Map.of("error", String.valueOf(error.getMessage())));
+                    }
+                    emitter.complete();
+                } catch (UncheckedIOException sendError) {
+                    // The client went away, there is nobody left to notify
+                    emitter.completeWithError(sendError.getCause());
+                }
+            });
+        
+        return emitter;
+    }
+    
+    // Ilk sorudan sohbet basligi onermek icin; kaydetmek icin PUT /{chatId}/title kullanilir
+    @PostMapping("/generate/title")
+    public CompletableFuture<Map<String, String>> generateTitle(@RequestBody RequestData requestData) {
+        if (requestData.getPrompt() == null || requestData.getPrompt().isEmpty()) {
+            throw new IllegalArgumentException("Prompt is required");
+        }
+        
+        String model = requestData.getModel() != null ? requestData.getModel() : "deepseek-r1:1.5b";
+        return chatService.generateTitleAsync(requestData.getPrompt(), model)
+            .thenApply(title -> Map.of("title", title));
+    }
+    
+    // Calisan bir yaniti durdurmak icin: Ollama'daki uretim de iptal edilir
+    @DeleteMapping("/generate/{requestId}")
+    public ResponseEntity<?> cancelGeneration(@PathVariable String requestId, Authentication authentication) {
+        if (!generationRegistry.cancel(requestId, authentication.getName())) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                .body("No running generation with request ID: " + requestId);
+        }
+        return ResponseEntity.ok(Map.of("requestId", requestId, "cancelled", true));
+    }
+    
+    /**
+     * Registers a streamed generation under the request ID of the client, or a new one,
+     * which is sent as the first {@code request} event so that the client can stop it,
+     * together with the expected time to the full answer ({@code etaMillis}) once the
+     * model's latency is known. The generation is also stopped when the client
+     * disconnects or the stream times out.
+     */
+    private GenerationRegistry.Generation startGeneration(SseEmitter emitter, RequestData requestData, String model,
+                                                          Authentication authentication) {
+        GenerationRegistry.Generation generation = generationRegistry.register(requestData.getRequestId(),
+                authentication.getName());
+        try {
+            // Also runs after a normal end, when there is nothing left to stop
+            emitter.onCompletion(() -> generation.cancel(GenerationRegistry.Reason.DISCONNECT));
+            emitter.onTimeout(() -> generation.cancel(GenerationRegistry.Reason.DISCONNECT));
+            emitter.onError(error -> generation.cancel(GenerationRegistry.Reason.DISCONNECT));
+            Map<String, Object> request = new HashMap<>();
+            request.put("requestId", generation.getRequestId());
+            Duration eta = deadlinePolicy.eta(model, requestData.getPrompt());
+            if (eta != null) {
+                request.put("etaMillis", eta.toMillis());
+            }
+            sendEvent(emitter, "request", request);
+            return generation;
+        } catch (RuntimeException e) {
+            // Nothing that would close the generation runs yet
+            generation.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Registers a generation answered in one piece under the request ID of the client, or
+     * a new one, which is returned in the {@code X-Request-Id} header. The expected time to
+     * the answer in milliseconds goes in {@code X-Request-Eta} once the model's latency is known.
+     */
+    private GenerationRegistry.Generation startGeneration(RequestData requestData, String model,
+                                                          Authentication authentication, HttpServletResponse response) {
+        GenerationRegistry.Generation generation = generationRegistry.register(requestData.getRequestId(),
+                authentication.getName());
+        try {
+            response.setHeader("X-Request-Id", generation.getRequestId());
+            Duration eta = deadlinePolicy.eta(model, requestData.getPrompt());
+            if (eta != null) {
+                response.setHeader("X-Request-Eta", String.valueOf(eta.toMillis()));
+            }
+            return generation;
+        } catch (RuntimeException e) {
+            // Nothing that would close the generation runs yet
+            generation.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * The deadline the client set with {@code timeoutSeconds}, at most the stream timeout,
+     * or null for the learned default.
+     */
+    private Instant deadlineOf(RequestData requestData) {
+        Integer timeoutSeconds = requestData.getTimeoutSeconds();
+        if (timeoutSeconds == null) {
+            return null;
+        }
+        if (timeoutSeconds <= 0) {
+            throw new IllegalArgumentException("timeoutSeconds must be positive");
+        }
+        return Instant.now().plusMillis(Math.min(timeoutSeconds * 1000L, streamTimeout));
+    }
+    
+    /**
+     * Runs the first step of a registered generation so that a failure, also one thrown
+     * before the step returns its future, completes the chain and closes the generation.
+     */
+    private static <T> CompletableFuture<T> afterStart(Supplier<CompletableFuture<T>> step) {
+        return CompletableFuture.completedFuture(null).thenCompose(ignored -> step.get());
+    }
+    
+    /**
+     * The answer of a generation answered in one piece. Cancelling it, as Spring does when
+     * the async request times out or fails, stops the generation.
+     */
+    private CompletableFuture<String> stoppable(GenerationRegistry.Generation generation, CompletableFuture<String> answer) {
+        answer.whenComplete((text, error) -> {
+            if (answer.isCancelled()) {
+                generation.cancel(GenerationRegistry.Reason.DISCONNECT);
+            }
+            generation.close();
+        });
+        return answer;
+    }
+    
+    /**
+     * Makes sure the chat exists and belongs to the authenticated user.
+     */
+    private void checkChatAccess(Long chatId, Authentication authentication) {
+        User user = userRepository.findByUsername(authentication.getName())
+                .orElseThrow(() -> new RuntimeException("User not found"));
+        Chat chat = chatService.getChatById(chatId);
+        if (chat == null) {
+            throw new RuntimeException("Chat not found with ID: " + chatId);
+        }
+        if (!chat.getUserId().equals(user.getId())) {
+            throw new RuntimeException("Unauthorized access to chat");
+        }
+    }
+    
+    /**
+     * Builds the prompt for the async and streaming endpoints. When a file with
+     * extracted text is attached, the parts of the document relevant to the question
+     * are put in front of it, cut to what the context window of the model leaves.
+     */
+    private CompletableFuture<String> buildPrompt(RequestData requestData, String model) {
+        FileAttachment attachment = requestData.getFileAttachment();
+        if (attachment == null) {
+            return CompletableFuture.completedFuture(requestData.getPrompt());
+        }
+        
+        ChatFiles file = attachedFile(attachment);
+        if (file != null) {
+            return relevantText(file, requestData.getPrompt(), model)
+                .thenApply(content -> "Based on the following document content, please answer the user's question.\n\n" +
+                       "Document: " + attachment.getFileName() + "\n" +
+                       "Content:\n" + conversationService.fitDocument(content, model, requestData.getPrompt()) + "\n\n" +
+                       "User's question: " + requestData.getPrompt());
+        }
+        
+        return CompletableFuture.completedFuture("The user has uploaded a file named '" + attachment.getFileName() + 
+               "' of type '" + attachment.getContentType() + "'. " +
+               "Their request is: " + requestData.getPrompt());
+    }
+    
+    /**
+     * The attached document of a chat turn, for the conversation endpoints, which fit it
+     * into the context window together with the history.
+     */
+    private CompletableFuture<List<String>> attachedDocuments(RequestData requestData, String model) {
+        FileAttachment attachment = requestData.getFileAttachment();
+        if (attachment == null) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        ChatFiles file = attachedFile(attachment);
+        if (file == null) {
+            return CompletableFuture.completedFuture(List.of("The user has uploaded a file named '" + attachment.getFileName() +
+                           "' of type '" + attachment.getContentType() + "'."));
+        }
+        return relevantText(file, requestData.getPrompt(), model)
+            .thenApply(content -> List.of("Document: " + attachment.getFileName() + "\nContent:\n" + content));
+    }
+    
+    /**
+     * The parts of an attached file relevant to the question, or its whole text if it
+     * is small or not indexed yet.
+     */
+    private CompletableFuture<String> relevantText(ChatFiles file, String question, String model) {
+        return documentIndexService.relevantText(file, question, model,
+                conversationService.documentBudget(model, question), GenerationPriority.INTERACTIVE);
+    }
+    
+    /**
+     * The attached file if it has extracted text, or null if there is none.
+     */
+    private ChatFiles attachedFile(FileAttachment attachment) {
+        if (attachment.getFileId() == null) {
+            return null;
+        }
+        try {
+            ChatFiles file = chatFileService.getFileById(attachment.getFileId());
+            String fileContent = file.getExtractedText();
+            if (fileContent != null && !fileContent.trim().isEmpty() && 
+                !fileContent.startsWith("Text extraction failed") && 
+                !fileContent.contains("not supported")) {
+                return file;
+            }
+        } catch (Exception e) {
+            System.err.println("Error getting extracted text for file ID " + attachment.getFileId() + 
+                             ": " + e.getMessage());
+        }
+        return null;
+    }
+    
+    /**
+     * Splits the streamed response into {@code token} events with the answer and, if the
+     * client asked for {@code "thinking": "show"}, {@code thinking} events with the
+     * reasoning between the model's think tags. By default the reasoning is dropped.
+     */
+    private ThinkTagFilter thinkTagFilter(SseEmitter emitter, RequestData requestData) {
+        Consumer<String> thinking = "show".equalsIgnoreCase(requestData.getThinking())
+                ? text -> sendEvent(emitter, "thinking", Map.of("token", text))
+                : null;
+        return new ThinkTagFilter(token -> sendEvent(emitter, "token", Map.of("token", token)), thinking);
+    }
+    
+    /**
+     * Sends a single SSE event. Payloads are sent as JSON so that newlines inside
+     * tokens survive the event-stream framing.
+     */
+    private void sendEvent(SseEmitter emitter, String name, Object payload) {
+        try {
+            emitter.send(SseEmitter.event().name(name).data(payload, MediaType.APPLICATION_JSON));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     public static class RequestData {
         private String prompt;
         private String model;
         private FileAttachment fileAttachment;
+        // "show" to stream the model's reasoning as thinking events, otherwise it is dropped
+        private String thinking;
+        // Optional ID to stop the generation with DELETE /api/chat/generate/{requestId}; assigned if missing
+        private String requestId;
+        // Optional longest wait for the answer, at most the stream timeout; learned from the model's latency if missing
+        private Integer timeoutSeconds;
 
         public String getPrompt() {
             return prompt;
@@ -375,6 +746,30 @@ public class ChatController {
         public void setFileAttachment(FileAttachment fileAttachment) {
             this.fileAttachment = fileAttachment;
         }
+        
+        public String getThinking() {
+            return thinking;
+        }
+        
+        public void setThinking(String thinking) {
+            this.thinking = thinking;
+        }
+        
+        public String getRequestId() {
+            return requestId;
+        }
+        
+        public void setRequestId(String requestId) {
+            this.requestId = requestId;
+        }
+        
+        public Integer getTimeoutSeconds() {
+            return timeoutSeconds;
+        }
+        
+        public void setTimeoutSeconds(Integer timeoutSeconds) {
+            this.timeoutSeconds = timeoutSeconds;
+        }
     }
     
     public static class FileAttachment {
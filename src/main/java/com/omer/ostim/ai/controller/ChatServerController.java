@@ -3,6 +3,7 @@ package com.omer.ostim.ai.controller;
 import com.omer.ostim.ai.model.ChatServer;
 import com.omer.ostim.ai.service.ChatServerService;
 import com.omer.ostim.ai.service.OllamaConnectionService;
+import com.omer.ostim.ai.service.OllamaModelRegistry;
 import com.omer.ostim.ai.service.ServerMonitoringService;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
@@ -25,6 +26,7 @@ public class ChatServerController {
     private final ChatServerService chatServerService;
     private final OllamaConnectionService ollamaConnectionService;
     private final ServerMonitoringService serverMonitoringService;
+    private final OllamaModelRegistry ollamaModelRegistry;
 
     @PostMapping
     public ResponseEntity<?> createChatServer(@Valid @RequestBody ChatServer chatServer) {
@@ -56,6 +58,7 @@ public class ChatServerController {
     @DeleteMapping("/{serverId}")
     public ResponseEntity<Void> deleteChatServer(@PathVariable Long serverId) {
         chatServerService.deleteChatServer(serverId);
+        ollamaConnectionService.closeServerConnection(serverId);
         return ResponseEntity.noContent().build();
     }
 
@@ -70,6 +73,7 @@ public class ChatServerController {
     public ResponseEntity<?> updateServerToken(@PathVariable Long serverId, @RequestBody(required = false) String token) {
         String newToken = token != null ? token.replaceAll("[\\{\\}\\r\\n\\s\"']", "") : UUID.randomUUID().toString();
         chatServerService.updateServerToken(serverId, newToken);
+        ollamaConnectionService.closeServerConnection(serverId);
         return ResponseEntity.ok().body(new TokenResponse(newToken));
     }
 
@@ -77,6 +81,7 @@ public class ChatServerController {
     public ResponseEntity<?> regenerateToken(@PathVariable Long serverId) {
         String newToken = UUID.randomUUID().toString();
         chatServerService.updateServerToken(serverId, newToken);
+        ollamaConnectionService.closeServerConnection(serverId);
         return ResponseEntity.ok().body(new TokenResponse(newToken));
     }
     
@@ -170,6 +175,20 @@ public class ChatServerController {
         }
     }
 
+    /**
+     * Installed and loaded models per server, and the servers each model lives on.
+     */
+    @GetMapping("/models")
+    public Map<String, Object> getModelRegistry() {
+        return ollamaModelRegistry.snapshot();
+    }
+
+    @PostMapping("/models/refresh")
+    public Map<String, Object> refreshModelRegistry() {
+        ollamaConnectionService.refreshModelRegistry();
+        return ollamaModelRegistry.snapshot();
+    }
+
     @ResponseStatus(HttpStatus.BAD_REQUEST)
     @ExceptionHandler(MethodArgumentNotValidException.class)
     public Map<String, String> handleValidationExceptions(MethodArgumentNotValidException ex) {
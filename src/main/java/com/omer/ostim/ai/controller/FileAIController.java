@@ -3,6 +3,7 @@ package com.omer.ostim.ai.controller;
 import com.omer.ostim.ai.model.ChatFiles;
 import com.omer.ostim.ai.service.AIFileProcessingService;
 import com.omer.ostim.ai.service.ChatFileService;
+import com.omer.ostim.ai.service.DocumentSummaryService;
 import com.omer.ostim.ai.service.FileProcessingService;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
@@ -15,7 +16,9 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/api/files/ai")
@@ -27,6 +30,7 @@ public class FileAIController {
     private final AIFileProcessingService aiFileProcessingService;
     private final ChatFileService chatFileService;
     private final FileProcessingService fileProcessingService;
+    private final DocumentSummaryService documentSummaryService;
 
     /**
      * Analyze uploaded file and extract text content preview
@@ -73,7 +77,7 @@ public class FileAIController {
      * Ask questions about an uploaded file
      */
     @PostMapping("/question/{fileId}")
-    public ResponseEntity<?> askQuestionAboutFile(
+    public CompletableFuture<ResponseEntity<?>> askQuestionAboutFile(
             @PathVariable Long fileId,
             @RequestParam String question,
             @RequestParam(defaultValue = "deepseek-r1:1.5b") String model) {
@@ -88,22 +92,23 @@ public class FileAIController {
             // Verify file exists and user has access
             chatFileService.getFileById(fileId); // This will throw if file doesn't exist or user doesn't have access
             
-            // Generate AI response about the file
-            String aiResponse = aiFileProcessingService.generateResponseAboutFile(fileId, question, model);
-            
-            Map<String, Object> response = new HashMap<>();
-            response.put("fileId", fileId);
-            response.put("question", question);
-            response.put("model", model);
-            response.put("response", aiResponse);
-            response.put("timestamp", System.currentTimeMillis());
-            
-            return ResponseEntity.ok(response);
+            // Generate AI response about the file; the request thread is released while Ollama works
+            return aiFileProcessingService.generateResponseAboutFile(fileId, question, model)
+                    .thenApply(aiResponse -> {
+                        Map<String, Object> response = new HashMap<>();
+                        response.put("fileId", fileId);
+                        response.put("question", question);
+                        response.put("model", model);
+                        response.put("response", aiResponse);
+                        response.put("timestamp", System.currentTimeMillis());
+                        
+                        return ResponseEntity.ok(response);
+                    });
             
         } catch (Exception e) {
             log.error("Error processing question about file ID {}: {}", fileId, e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body("Error processing your question: " + e.getMessage());
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Error processing your question: " + e.getMessage()));
         }
     }
 
@@ -111,7 +116,7 @@ public class FileAIController {
      * Summarize an uploaded file
      */
     @PostMapping("/summarize/{fileId}")
-    public ResponseEntity<?> summarizeFile(
+    public CompletableFuture<ResponseEntity<?>> summarizeFile(
             @PathVariable Long fileId,
             @RequestParam(defaultValue = "deepseek-r1:1.5b") String model) {
         
@@ -125,20 +130,41 @@ public class FileAIController {
             chatFileService.getFileById(fileId);
             
             // Generate AI summary
-            String summary = aiFileProcessingService.summarizeFile(fileId, model);
+            return aiFileProcessingService.summarizeFile(fileId, model)
+                    .thenApply(summary -> {
+                        Map<String, Object> response = new HashMap<>();
+                        response.put("fileId", fileId);
+                        response.put("model", model);
+                        response.put("summary", summary);
+                        response.put("timestamp", System.currentTimeMillis());
+                        
+                        return ResponseEntity.ok(response);
+                    });
             
-            Map<String, Object> response = new HashMap<>();
-            response.put("fileId", fileId);
-            response.put("model", model);
-            response.put("summary", summary);
-            response.put("timestamp", System.currentTimeMillis());
+        } catch (Exception e) {
+            log.error("Error summarizing file ID {}: {}", fileId, e.getMessage());
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Error summarizing file: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Progress of the summaries and analyses of a large file, which are made from
+     * summaries of its parts
+     */
+    @GetMapping("/summarize/{fileId}/progress")
+    public ResponseEntity<?> getSummaryProgress(@PathVariable Long fileId) {
+        try {
+            // Verify file exists and user has access
+            chatFileService.getFileById(fileId);
             
-            return ResponseEntity.ok(response);
+            List<DocumentSummaryService.Progress> progress = documentSummaryService.progress(fileId);
+            return ResponseEntity.ok(progress);
             
         } catch (Exception e) {
-            log.error("Error summarizing file ID {}: {}", fileId, e.getMessage());
+            log.error("Error getting summary progress of file ID {}: {}", fileId, e.getMessage());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body("Error summarizing file: " + e.getMessage());
+                    .body("Error getting summary progress: " + e.getMessage());
         }
     }
 
@@ -146,7 +172,7 @@ public class FileAIController {
      * Perform detailed analysis of an uploaded file
      */
     @PostMapping("/detailed-analysis/{fileId}")
-    public ResponseEntity<?> performDetailedAnalysis(
+    public CompletableFuture<ResponseEntity<?>> performDetailedAnalysis(
             @PathVariable Long fileId,
             @RequestParam(defaultValue = "deepseek-r1:1.5b") String model) {
         
@@ -160,20 +186,21 @@ public class FileAIController {
             chatFileService.getFileById(fileId);
             
             // Generate AI analysis
-            String analysis = aiFileProcessingService.analyzeFile(fileId, model);
-            
-            Map<String, Object> response = new HashMap<>();
-            response.put("fileId", fileId);
-            response.put("model", model);
-            response.put("analysis", analysis);
-            response.put("timestamp", System.currentTimeMillis());
-            
-            return ResponseEntity.ok(response);
+            return aiFileProcessingService.analyzeFile(fileId, model)
+                    .thenApply(analysis -> {
+                        Map<String, Object> response = new HashMap<>();
+                        response.put("fileId", fileId);
+                        response.put("model", model);
+                        response.put("analysis", analysis);
+                        response.put("timestamp", System.currentTimeMillis());
+                        
+                        return ResponseEntity.ok(response);
+                    });
             
         } catch (Exception e) {
             log.error("Error analyzing file ID {}: {}", fileId, e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body("Error analyzing file: " + e.getMessage());
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Error analyzing file: " + e.getMessage()));
         }
     }
 
@@ -181,7 +208,7 @@ public class FileAIController {
      * Ask questions about a file with conversation context
      */
     @PostMapping("/question-with-context/{fileId}")
-    public ResponseEntity<?> askQuestionWithContext(
+    public CompletableFuture<ResponseEntity<?>> askQuestionWithContext(
             @PathVariable Long fileId,
             @RequestParam String question,
             @RequestParam(required = false) String context,
@@ -197,23 +224,23 @@ public class FileAIController {
             chatFileService.getFileById(fileId);
             
             // Generate AI response with context
-            String aiResponse = aiFileProcessingService.generateResponseAboutFileWithContext(
-                    fileId, question, context, model);
-            
-            Map<String, Object> response = new HashMap<>();
-            response.put("fileId", fileId);
-            response.put("question", question);
-            response.put("context", context);
-            response.put("model", model);
-            response.put("response", aiResponse);
-            response.put("timestamp", System.currentTimeMillis());
-            
-            return ResponseEntity.ok(response);
+            return aiFileProcessingService.generateResponseAboutFileWithContext(fileId, question, context, model)
+                    .thenApply(aiResponse -> {
+                        Map<String, Object> response = new HashMap<>();
+                        response.put("fileId", fileId);
+                        response.put("question", question);
+                        response.put("context", context);
+                        response.put("model", model);
+                        response.put("response", aiResponse);
+                        response.put("timestamp", System.currentTimeMillis());
+                        
+                        return ResponseEntity.ok(response);
+                    });
             
         } catch (Exception e) {
             log.error("Error processing contextual question about file ID {}: {}", fileId, e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body("Error processing your question: " + e.getMessage());
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Error processing your question: " + e.getMessage()));
         }
     }
 
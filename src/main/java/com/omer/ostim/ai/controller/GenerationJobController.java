@@ -0,0 +1,142 @@
+package com.omer.ostim.ai.controller;
+
+import com.omer.ostim.ai.dto.GenerationJobRequest;
+import com.omer.ostim.ai.model.GenerationJob;
+import com.omer.ostim.ai.model.User;
+import com.omer.ostim.ai.repository.UserRepository;
+import com.omer.ostim.ai.service.GenerationJobService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batch generation jobs: submit many prompts or file operations at once, then poll
+ * {@code GET /api/jobs/{jobId}} or subscribe to {@code GET /api/jobs/{jobId}/events}.
+ */
+@RestController
+@RequestMapping("/api/jobs")
+@RequiredArgsConstructor
+public class GenerationJobController {
+
+    private final GenerationJobService generationJobService;
+    private final UserRepository userRepository;
+
+    @Value("${generation.jobs.subscription-timeout:3600000}")
+    private long subscriptionTimeout;
+
+    @PostMapping
+    public ResponseEntity<?> submitJob(@RequestBody GenerationJobRequest request, Authentication authentication) {
+        User user = userRepository.findByUsername(authentication.getName())
+                .orElseThrow(() -> new RuntimeException("User not found"));
+        try {
+            GenerationJob job = generationJobService.submit(request, user);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(job);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @GetMapping
+    public List<GenerationJob> getJobs(Authentication authentication) {
+        User user = userRepository.findByUsername(authentication.getName())
+                .orElseThrow(() -> new RuntimeException("User not found"));
+        return generationJobService.getJobsByUserId(user.getId());
+    }
+
+    /**
+     * Returns the job with the status and results of all its items.
+     */
+    @GetMapping("/{jobId}")
+    public ResponseEntity<?> getJob(@PathVariable Long jobId, Authentication authentication) {
+        GenerationJob job = generationJobService.getJob(jobId);
+        ResponseEntity<?> denied = checkAccess(job, jobId, authentication);
+        if (denied != null) {
+            return denied;
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("job", job);
+        response.put("items", generationJobService.getItems(jobId));
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Streams a {@code progress} event with the job whenever one of its items finishes,
+     * and a final {@code done} event when the job is finished.
+     */
+    @GetMapping(value = "/{jobId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<?> subscribe(@PathVariable Long jobId, Authentication authentication) {
+        GenerationJob job = generationJobService.getJob(jobId);
+        ResponseEntity<?> denied = checkAccess(job, jobId, authentication);
+        if (denied != null) {
+            return denied;
+        }
+
+        SseEmitter emitter = new SseEmitter(subscriptionTimeout);
+        Runnable unsubscribe = generationJobService.subscribe(jobId, update -> {
+            if (!sendEvent(emitter, update)) {
+                return;
+            }
+            if (update.getStatus().isFinished()) {
+                emitter.complete();
+            }
+        });
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(unsubscribe);
+        emitter.onError(error -> unsubscribe.run());
+
+        // Re-read after subscribing so an update in between is not lost
+        GenerationJob current = generationJobService.getJob(jobId);
+        if (sendEvent(emitter, current) && current.getStatus().isFinished()) {
+            emitter.complete();
+        }
+        return ResponseEntity.ok(emitter);
+    }
+
+    @DeleteMapping("/{jobId}")
+    public ResponseEntity<?> cancelJob(@PathVariable Long jobId, Authentication authentication) {
+        GenerationJob job = generationJobService.getJob(jobId);
+        ResponseEntity<?> denied = checkAccess(job, jobId, authentication);
+        if (denied != null) {
+            return denied;
+        }
+        return ResponseEntity.ok(generationJobService.cancel(jobId));
+    }
+
+    private ResponseEntity<?> checkAccess(GenerationJob job, Long jobId, Authentication authentication) {
+        if (job == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Job not found with ID: " + jobId);
+        }
+        User user = userRepository.findByUsername(authentication.getName())
+                .orElseThrow(() -> new RuntimeException("User not found"));
+        if (!job.getUserId().equals(user.getId())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Unauthorized access to job");
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the client went away
+     */
+    private boolean sendEvent(SseEmitter emitter, GenerationJob job) {
+        try {
+            String name = job.getStatus().isFinished() ? "done" : "progress";
+            emitter.send(SseEmitter.event().name(name).data(job, MediaType.APPLICATION_JSON));
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            // IllegalStateException: the emitter was already completed by another update
+            emitter.completeWithError(e);
+            return false;
+        }
+    }
+}
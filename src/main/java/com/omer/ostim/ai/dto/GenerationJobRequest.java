@@ -0,0 +1,19 @@
+package com.omer.ostim.ai.dto;
+
+import com.omer.ostim.ai.model.GenerationJobItem;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class GenerationJobRequest {
+    private String model;
+    private List<Item> items;
+
+    @Data
+    public static class Item {
+        private GenerationJobItem.Operation operation;
+        private String prompt;
+        private Long fileId;
+    }
+}
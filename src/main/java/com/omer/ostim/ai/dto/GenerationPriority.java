@@ -0,0 +1,20 @@
+package com.omer.ostim.ai.dto;
+
+/**
+ * Scheduling class of a generation. When an Ollama server is busy, waiting requests
+ * of a higher class always go first.
+ */
+public enum GenerationPriority {
+
+    /** A user waiting in the chat for the answer. */
+    INTERACTIVE,
+
+    /** A question about an uploaded file. */
+    FILE_QA,
+
+    /** File summaries and analyses. */
+    SUMMARY,
+
+    /** Batch jobs that nobody is watching. */
+    BACKGROUND
+}
@@ -0,0 +1,20 @@
+package com.omer.ostim.ai.dto;
+
+/**
+ * Kind of a generation, which decides its Ollama options: answer length, temperature,
+ * keep_alive and how much room num_ctx leaves for the answer.
+ */
+public enum GenerationProfile {
+
+    /** An answer in the chat. */
+    CHAT,
+
+    /** An answer to a question about an uploaded file. */
+    FILE_QA,
+
+    /** Summaries and analyses of files and chats. */
+    SUMMARY,
+
+    /** A short title for a chat. */
+    TITLE
+}
@@ -1,10 +1,49 @@
 package com.omer.ostim.ai.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
 
 @Data
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
 public class OllamaRequest {
     private String model;
     private String prompt;
+    // Conversation for /api/chat; a request has either a prompt or messages
+    private List<Message> messages;
     private Boolean stream;
-}
\ No newline at end of file
+    private Map<String, Object> options;
+    // How long the model stays loaded after the request, e.g. "300s"
+    @JsonProperty("keep_alive")
+    private String keepAlive;
+
+    // Scheduling only, never sent to Ollama
+    @JsonIgnore
+    private GenerationPriority priority;
+    @JsonIgnore
+    private String user;
+    // Requests of one session go to the same server where possible, which still holds their context
+    @JsonIgnore
+    private String session;
+    // Latest time the answer is of use to the caller; the learned default budget if null
+    @JsonIgnore
+    private Instant deadline;
+    // Decides the options the request gets where it sets none; CHAT if null
+    @JsonIgnore
+    private GenerationProfile profile;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Message {
+        private String role;
+        private String content;
+    }
+}
@@ -0,0 +1,11 @@
+package com.omer.ostim.ai.exception;
+
+/**
+ * A generation did not finish before its deadline, or was rejected because it could not.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,18 @@
+package com.omer.ostim.ai.exception;
+
+/**
+ * An Ollama server answered a request with an HTTP error status.
+ */
+public class OllamaServerException extends RuntimeException {
+
+    private final int statusCode;
+
+    public OllamaServerException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,43 @@
+package com.omer.ostim.ai.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import lombok.Data;
+
+/**
+ * Token count of the extracted text of a {@link ChatFiles} for one tokenizer family,
+ * so that documents are not counted again for every prompt they go into.
+ */
+@Entity
+@Table(name = "chat_file_token_counts", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_chat_file_token_counts_file_family", columnNames = {"file_id", "tokenizer_family"})
+})
+@Data
+public class ChatFileTokenCount {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "count_id")
+    private Long countId;
+
+    @Column(name = "file_id", nullable = false)
+    private Long fileId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "tokenizer_family", nullable = false, length = 32)
+    private TokenizerFamily tokenizerFamily;
+
+    @Column(name = "token_count", nullable = false)
+    private int tokenCount;
+
+    // Length of the text that was counted, to notice a new extraction
+    @Column(name = "text_length", nullable = false)
+    private int textLength;
+}
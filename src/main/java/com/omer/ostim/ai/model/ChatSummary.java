@@ -0,0 +1,40 @@
+package com.omer.ostim.ai.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Data;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.time.LocalDateTime;
+
+/**
+ * Rolling summary of the older turns of a chat. Turns up to and including
+ * {@code lastMessageId} are sent to the model only through this summary.
+ */
+@Entity
+@Table(name = "chat_summaries")
+@Data
+public class ChatSummary {
+
+    @Id
+    @Column(name = "chat_id")
+    private Long chatId;
+
+    @Column(name = "summary", columnDefinition = "TEXT", nullable = false)
+    private String summary;
+
+    @Column(name = "last_message_id", nullable = false)
+    private Long lastMessageId;
+
+    @Column(name = "summarized_messages", nullable = false)
+    private Integer summarizedMessages;
+
+    @Column(name = "model")
+    private String model;
+
+    @UpdateTimestamp
+    @Column(name = "updated_time", nullable = false)
+    private LocalDateTime updatedTime;
+}
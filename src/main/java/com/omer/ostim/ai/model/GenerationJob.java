@@ -0,0 +1,65 @@
+package com.omer.ostim.ai.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import lombok.Data;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.LocalDateTime;
+
+/**
+ * A batch of generations submitted at once. The items themselves are stored as
+ * {@link GenerationJobItem}s; the counters here are kept up to date as they finish,
+ * so progress can be polled without loading the results.
+ */
+@Entity
+@Table(name = "generation_jobs")
+@Data
+public class GenerationJob {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "job_id")
+    private Long jobId;
+
+    @NotNull(message = "User ID is required")
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+
+    // Generations of the job are queued under this name on busy servers
+    @NotBlank(message = "Username is required")
+    @Column(name = "username", nullable = false)
+    private String username;
+
+    @NotBlank(message = "Model is required")
+    @Column(name = "model", nullable = false, length = 100)
+    private String model;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", nullable = false, length = 20)
+    private GenerationJobStatus status;
+
+    @Column(name = "total_items", nullable = false)
+    private int totalItems;
+
+    @Column(name = "completed_items", nullable = false)
+    private int completedItems;
+
+    @Column(name = "failed_items", nullable = false)
+    private int failedItems;
+
+    @CreationTimestamp
+    @Column(name = "created_time", nullable = false, updatable = false)
+    private LocalDateTime createdTime;
+
+    @Column(name = "finished_time")
+    private LocalDateTime finishedTime;
+}
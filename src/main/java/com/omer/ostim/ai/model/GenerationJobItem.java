@@ -0,0 +1,79 @@
+package com.omer.ostim.ai.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import jakarta.validation.constraints.NotNull;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * One generation of a {@link GenerationJob}: either a free prompt or a summary or
+ * analysis of an uploaded file.
+ */
+@Entity
+@Table(name = "generation_job_items", indexes = {
+        @Index(name = "idx_generation_job_items_job", columnList = "job_id"),
+        @Index(name = "idx_generation_job_items_status", columnList = "status, item_index")
+})
+@Data
+public class GenerationJobItem {
+
+    public enum Operation {
+        PROMPT,
+        SUMMARIZE_FILE,
+        ANALYZE_FILE
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "item_id")
+    private Long itemId;
+
+    @NotNull(message = "Job ID is required")
+    @Column(name = "job_id", nullable = false)
+    private Long jobId;
+
+    // Position within the job, as submitted
+    @Column(name = "item_index", nullable = false)
+    private int itemIndex;
+
+    @NotNull(message = "Operation is required")
+    @Enumerated(EnumType.STRING)
+    @Column(name = "operation", nullable = false, length = 20)
+    private Operation operation;
+
+    @JsonIgnore
+    @Column(name = "prompt", columnDefinition = "LONGTEXT")
+    private String prompt;
+
+    @Column(name = "file_id")
+    private Long fileId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", nullable = false, length = 20)
+    private GenerationJobStatus status;
+
+    @Column(name = "attempts", nullable = false)
+    private int attempts;
+
+    @Column(name = "result", columnDefinition = "LONGTEXT")
+    private String result;
+
+    @Column(name = "error", length = 1000)
+    private String error;
+
+    @Column(name = "started_time")
+    private LocalDateTime startedTime;
+
+    @Column(name = "finished_time")
+    private LocalDateTime finishedTime;
+}
@@ -0,0 +1,16 @@
+package com.omer.ostim.ai.model;
+
+/**
+ * Lifecycle of a batch generation job and of each of its items.
+ */
+public enum GenerationJobStatus {
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    FAILED,
+    CANCELLED;
+
+    public boolean isFinished() {
+        return this == COMPLETED || this == FAILED || this == CANCELLED;
+    }
+}
@@ -0,0 +1,94 @@
+package com.omer.ostim.ai.model;
+
+import java.util.Locale;
+
+/**
+ * Tokenizers of the model families served by Ollama, described by how their BPE
+ * vocabularies split text. The values are measured averages, used to approximate
+ * token counts without the vocabularies themselves.
+ * <p>
+ * A word of up to {@code wholeWordChars} ASCII letters is usually a single token,
+ * longer words split into pieces of about {@code subwordChars}. Words with letters
+ * outside ASCII, such as most Turkish words, are split on their UTF-8 bytes, about
+ * {@code nonAsciiBytesPerToken} bytes per token. Numbers are split into groups of
+ * {@code digitsPerToken} digits.
+ */
+public enum TokenizerFamily {
+
+    // Llama 3 (128k vocabulary, tiktoken based), also DeepSeek-R1 Llama distills and Phi-4
+    LLAMA3(8, 4.0, 3, 2.6),
+    // Qwen 2/2.5 (152k vocabulary), also the smaller DeepSeek-R1 distills
+    QWEN2(8, 4.0, 1, 2.8),
+    // Gemma (256k SentencePiece vocabulary)
+    GEMMA(9, 4.2, 1, 3.2),
+    // Llama 2, Mistral and Phi-3 (32k SentencePiece vocabulary)
+    SENTENCEPIECE_32K(6, 3.2, 1, 1.6);
+
+    private final int wholeWordChars;
+    private final double subwordChars;
+    private final int digitsPerToken;
+    private final double nonAsciiBytesPerToken;
+
+    TokenizerFamily(int wholeWordChars, double subwordChars, int digitsPerToken, double nonAsciiBytesPerToken) {
+        this.wholeWordChars = wholeWordChars;
+        this.subwordChars = subwordChars;
+        this.digitsPerToken = digitsPerToken;
+        this.nonAsciiBytesPerToken = nonAsciiBytesPerToken;
+    }
+
+    /**
+     * @param model an Ollama model name, e.g. "deepseek-r1:1.5b" or "llama3.2"
+     * @return the tokenizer family of the model; {@link #LLAMA3} for unknown models
+     */
+    public static TokenizerFamily of(String model) {
+        if (model == null) {
+            return LLAMA3;
+        }
+        String name = model.toLowerCase(Locale.ROOT);
+        if (name.startsWith("deepseek-r1")) {
+            // 1.5b, 7b, 14b and 32b are distilled into Qwen 2.5, 8b and 70b into Llama 3
+            return name.contains(":8b") || name.contains(":70b") ? LLAMA3 : QWEN2;
+        }
+        if (name.startsWith("qwen")) {
+            return QWEN2;
+        }
+        if (name.startsWith("gemma")) {
+            return GEMMA;
+        }
+        if (name.startsWith("llama2") || name.startsWith("mistral") || name.startsWith("mixtral") || name.startsWith("phi3")) {
+            return SENTENCEPIECE_32K;
+        }
+        return LLAMA3;
+    }
+
+    /**
+     * @param asciiLetters ASCII letters of the word
+     * @param nonAsciiBytes UTF-8 bytes of its other letters, 0 for a plain ASCII word
+     * @return tokens of the word
+     */
+    public int wordTokens(int asciiLetters, int nonAsciiBytes) {
+        if (nonAsciiBytes > 0) {
+            return Math.max(1, (int) Math.ceil((asciiLetters + nonAsciiBytes) / nonAsciiBytesPerToken));
+        }
+        if (asciiLetters <= wholeWordChars) {
+            return 1;
+        }
+        return 1 + (int) Math.ceil((asciiLetters - wholeWordChars) / subwordChars);
+    }
+
+    /**
+     * @param digits length of the number
+     * @return tokens of the number
+     */
+    public int numberTokens(int digits) {
+        return (digits + digitsPerToken - 1) / digitsPerToken;
+    }
+
+    /**
+     * @param bytes UTF-8 bytes of symbols outside ASCII, e.g. an emoji
+     * @return tokens of the symbols
+     */
+    public int symbolTokens(int bytes) {
+        return Math.max(1, (int) Math.ceil(bytes / nonAsciiBytesPerToken));
+    }
+}
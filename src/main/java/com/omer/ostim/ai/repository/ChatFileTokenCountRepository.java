@@ -0,0 +1,22 @@
+package com.omer.ostim.ai.repository;
+
+import com.omer.ostim.ai.model.ChatFileTokenCount;
+import com.omer.ostim.ai.model.TokenizerFamily;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Optional;
+
+@Repository
+public interface ChatFileTokenCountRepository extends JpaRepository<ChatFileTokenCount, Long> {
+    Optional<ChatFileTokenCount> findByFileIdAndTokenizerFamily(Long fileId, TokenizerFamily tokenizerFamily);
+
+    @Transactional
+    @Modifying
+    @Query("delete from ChatFileTokenCount c where c.fileId = :fileId")
+    int deleteByFileId(@Param("fileId") Long fileId);
+}
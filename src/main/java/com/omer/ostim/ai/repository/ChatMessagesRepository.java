@@ -1,6 +1,7 @@
 package com.omer.ostim.ai.repository;
 
 import com.omer.ostim.ai.model.ChatMessages;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
@@ -16,4 +17,8 @@ public interface ChatMessagesRepository extends JpaRepository<ChatMessages, Long
     boolean existsByMessageId(Long messageId);
     
     Optional<ChatMessages> findByChatIdAndMessageId(Long chatId, Long messageId);
+
+    List<ChatMessages> findByChatIdOrderByMessageIdDesc(Long chatId, Pageable pageable);
+
+    List<ChatMessages> findByChatIdAndMessageIdGreaterThanOrderByMessageId(Long chatId, Long messageId);
 }
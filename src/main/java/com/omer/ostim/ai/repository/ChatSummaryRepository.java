@@ -0,0 +1,9 @@
+package com.omer.ostim.ai.repository;
+
+import com.omer.ostim.ai.model.ChatSummary;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ChatSummaryRepository extends JpaRepository<ChatSummary, Long> {
+}
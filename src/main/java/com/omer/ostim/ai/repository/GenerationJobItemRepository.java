@@ -0,0 +1,47 @@
+package com.omer.ostim.ai.repository;
+
+import com.omer.ostim.ai.model.GenerationJobItem;
+import com.omer.ostim.ai.model.GenerationJobStatus;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface GenerationJobItemRepository extends JpaRepository<GenerationJobItem, Long> {
+
+    List<GenerationJobItem> findByJobIdOrderByItemIndex(Long jobId);
+
+    // Ordered by position first, so the first items of all waiting jobs run before the rest of any one job
+    List<GenerationJobItem> findByStatusOrderByItemIndexAscItemIdAsc(GenerationJobStatus status, Pageable pageable);
+
+    long countByJobIdAndStatus(Long jobId, GenerationJobStatus status);
+
+    /**
+     * Takes a queued item for running. Returns 0 if the item is no longer queued,
+     * e.g. because its job was cancelled in the meantime.
+     */
+    @Transactional
+    @Modifying
+    @Query("update GenerationJobItem i set i.status = com.omer.ostim.ai.model.GenerationJobStatus.RUNNING, "
+            + "i.attempts = i.attempts + 1, i.startedTime = :now "
+            + "where i.itemId = :itemId and i.status = com.omer.ostim.ai.model.GenerationJobStatus.QUEUED")
+    int claim(@Param("itemId") Long itemId, @Param("now") LocalDateTime now);
+
+    @Transactional
+    @Modifying
+    @Query("update GenerationJobItem i set i.status = :to where i.status = :from")
+    int updateStatus(@Param("from") GenerationJobStatus from, @Param("to") GenerationJobStatus to);
+
+    @Transactional
+    @Modifying
+    @Query("update GenerationJobItem i set i.status = :to, i.finishedTime = :now where i.jobId = :jobId and i.status = :from")
+    int updateStatusOfJob(@Param("jobId") Long jobId, @Param("from") GenerationJobStatus from,
+                          @Param("to") GenerationJobStatus to, @Param("now") LocalDateTime now);
+}
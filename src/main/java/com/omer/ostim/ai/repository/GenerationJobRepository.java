@@ -0,0 +1,13 @@
+package com.omer.ostim.ai.repository;
+
+import com.omer.ostim.ai.model.GenerationJob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface GenerationJobRepository extends JpaRepository<GenerationJob, Long> {
+
+    List<GenerationJob> findByUserIdOrderByCreatedTimeDesc(Long userId);
+}
@@ -1,28 +1,38 @@
 package com.omer.ostim.ai.service;
 
+import com.omer.ostim.ai.dto.GenerationPriority;
+import com.omer.ostim.ai.dto.GenerationProfile;
+import com.omer.ostim.ai.dto.OllamaRequest;
 import com.omer.ostim.ai.model.ChatFiles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.ai.chat.model.ChatResponse;
-import org.springframework.ai.chat.prompt.Prompt;
-import org.springframework.ai.ollama.OllamaChatModel;
-// import org.springframework.ai.ollama.api.OllamaModel;
-import org.springframework.ai.ollama.api.OllamaOptions;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.CompletableFuture;
+
 @Service
 public class AIFileProcessingService {
 
     private static final Logger log = LoggerFactory.getLogger(AIFileProcessingService.class);
     
-    private final OllamaChatModel chatModel;
+    private final GenerateService generateService;
     private final ChatFileService chatFileService;
+    private final ConversationService conversationService;
+    private final TokenCountingService tokenCountingService;
+    private final DocumentIndexService documentIndexService;
+    private final DocumentSummaryService documentSummaryService;
     
     @Autowired
-    public AIFileProcessingService(OllamaChatModel chatModel, ChatFileService chatFileService) {
-        this.chatModel = chatModel;
+    public AIFileProcessingService(GenerateService generateService, ChatFileService chatFileService,
+                                   ConversationService conversationService, TokenCountingService tokenCountingService,
+                                   DocumentIndexService documentIndexService, DocumentSummaryService documentSummaryService) {
+        this.generateService = generateService;
         this.chatFileService = chatFileService;
+        this.conversationService = conversationService;
+        this.tokenCountingService = tokenCountingService;
+        this.documentIndexService = documentIndexService;
+        this.documentSummaryService = documentSummaryService;
     }
     
     /**
@@ -30,9 +40,9 @@ public class AIFileProcessingService {
      * @param fileId The ID of the uploaded file
      * @param userQuestion The user's question about the file
      * @param modelName The AI model to use (optional, defaults to deepseek-r1:1.5b)
-     * @return AI-generated response about the file content
+     * @return future completed with the AI-generated response about the file content
      */
-    public String generateResponseAboutFile(Long fileId, String userQuestion, String modelName) {
+    public CompletableFuture<String> generateResponseAboutFile(Long fileId, String userQuestion, String modelName) {
         try {
             log.info("Generating response for file ID: {} with question: {}", fileId, userQuestion);
             
@@ -43,7 +53,7 @@ public class AIFileProcessingService {
             
             if (extractedText == null || extractedText.trim().isEmpty()) {
                 log.warn("No extracted text found for file ID: {}", fileId);
-                return "I couldn't extract any text content from this file. Please make sure the file contains readable text and is in a supported format (PDF, DOCX, TXT, etc.).";
+                return CompletableFuture.completedFuture("I couldn't extract any text content from this file. Please make sure the file contains readable text and is in a supported format (PDF, DOCX, TXT, etc.).");
             }
             
             // Check if text extraction was successful
@@ -53,7 +63,7 @@ public class AIFileProcessingService {
             
             if (!file.getTextExtractionSuccessful()) {
                 log.warn("Text extraction failed for file ID: {}, error: {}", fileId, extractedText);
-                return "There was an issue extracting text from this file: " + extractedText;
+                return CompletableFuture.completedFuture("There was an issue extracting text from this file: " + extractedText);
             }
             
             // Log a preview of the extracted text
@@ -61,18 +71,26 @@ public class AIFileProcessingService {
                 extractedText.substring(0, 200) + "..." : extractedText;
             log.info("Extracted text preview: {}", textPreview);
             
-            // Create a comprehensive prompt combining the file content and user question
-            String prompt = buildPromptWithFileContent(extractedText, userQuestion, file.getFileName());
-            
             // Determine which model to use
             String actualModelName = (modelName != null && !modelName.trim().isEmpty()) ? modelName : "deepseek-r1:1.5b";
             log.info("Using model: {} for file processing", actualModelName);
             
-            return generateAIResponse(prompt, actualModelName);
+            // Create a comprehensive prompt combining the relevant parts of the file and the user question
+            int documentBudget = conversationService.documentBudget(actualModelName, userQuestion);
+            return documentIndexService.relevantText(file, userQuestion, actualModelName, documentBudget, GenerationPriority.FILE_QA)
+                .thenCompose(content -> {
+                    String prompt = buildPromptWithFileContent(content, contentTokens(file, content, actualModelName),
+                            userQuestion, file.getFileName(), actualModelName);
+                    return generateAIResponse(prompt, actualModelName, GenerationPriority.FILE_QA, GenerationProfile.FILE_QA, null);
+                })
+                .exceptionally(e -> {
+                    log.error("Error generating AI response about file with ID: {}", fileId, e);
+                    return "I encountered an error while processing your request about this file. Please try again or contact support if the issue persists. Error: " + e.getMessage();
+                });
             
         } catch (Exception e) {
             log.error("Error generating AI response about file with ID: {}", fileId, e);
-            return "I encountered an error while processing your request about this file. Please try again or contact support if the issue persists. Error: " + e.getMessage();
+            return CompletableFuture.completedFuture("I encountered an error while processing your request about this file. Please try again or contact support if the issue persists. Error: " + e.getMessage());
         }
     }
     
@@ -82,32 +100,39 @@ public class AIFileProcessingService {
      * @param userQuestion The user's question about the file
      * @param conversationContext Previous conversation context
      * @param modelName The AI model to use
-     * @return AI-generated response
+     * @return future completed with the AI-generated response
      */
-    public String generateResponseAboutFileWithContext(Long fileId, String userQuestion, 
+    public CompletableFuture<String> generateResponseAboutFileWithContext(Long fileId, String userQuestion, 
                                                      String conversationContext, String modelName) {
         try {
             String extractedText = chatFileService.getExtractedText(fileId);
             
             if (extractedText == null || extractedText.trim().isEmpty()) {
-                return "I couldn't extract any text content from this file to analyze.";
+                return CompletableFuture.completedFuture("I couldn't extract any text content from this file to analyze.");
             }
             
             ChatFiles file = chatFileService.getFileById(fileId);
             if (!file.getTextExtractionSuccessful()) {
-                return "There was an issue extracting text from this file: " + extractedText;
+                return CompletableFuture.completedFuture("There was an issue extracting text from this file: " + extractedText);
             }
             
-            String prompt = buildPromptWithFileContentAndContext(extractedText, userQuestion, 
-                                                               conversationContext, file.getFileName());
-            
             String actualModelName = (modelName != null && !modelName.trim().isEmpty()) ? modelName : "deepseek-r1:1.5b";
             
-            return generateAIResponse(prompt, actualModelName);
+            int documentBudget = conversationService.documentBudget(actualModelName, userQuestion);
+            return documentIndexService.relevantText(file, userQuestion, actualModelName, documentBudget, GenerationPriority.FILE_QA)
+                .thenCompose(content -> {
+                    String prompt = buildPromptWithFileContentAndContext(content, contentTokens(file, content, actualModelName),
+                            userQuestion, conversationContext, file.getFileName(), actualModelName);
+                    return generateAIResponse(prompt, actualModelName, GenerationPriority.FILE_QA, GenerationProfile.FILE_QA, null);
+                })
+                .exceptionally(e -> {
+                    log.error("Error generating AI response about file with context. File ID: {}", fileId, e);
+                    return "I encountered an error while processing your request. Please try again.";
+                });
             
         } catch (Exception e) {
             log.error("Error generating AI response about file with context. File ID: {}", fileId, e);
-            return "I encountered an error while processing your request. Please try again.";
+            return CompletableFuture.completedFuture("I encountered an error while processing your request. Please try again.");
         }
     }
     
@@ -115,66 +140,155 @@ public class AIFileProcessingService {
      * Summarize the content of an uploaded file
      * @param fileId The ID of the uploaded file
      * @param modelName The AI model to use
-     * @return AI-generated summary
+     * @return future completed with the AI-generated summary
      */
-    public String summarizeFile(Long fileId, String modelName) {
+    public CompletableFuture<String> summarizeFile(Long fileId, String modelName) {
         try {
-            String extractedText = chatFileService.getExtractedText(fileId);
-            ChatFiles file = chatFileService.getFileById(fileId);
-            
-            if (extractedText == null || extractedText.trim().isEmpty() || !file.getTextExtractionSuccessful()) {
-                return "I couldn't extract readable text from this file to create a summary.";
+            CompletableFuture<String> summary = summaryOf(fileId, actualModelName(modelName), GenerationPriority.SUMMARY, null);
+            if (summary == null) {
+                return CompletableFuture.completedFuture("I couldn't extract readable text from this file to create a summary.");
             }
             
-            String prompt = buildSummaryPrompt(extractedText, file.getFileName());
-            String actualModelName = (modelName != null && !modelName.trim().isEmpty()) ? modelName : "deepseek-r1:1.5b";
-            
-            return generateAIResponse(prompt, actualModelName);
+            return summary
+                .exceptionally(e -> {
+                    log.error("Error summarizing file with ID: {}", fileId, e);
+                    return "I encountered an error while trying to summarize this file.";
+                });
             
         } catch (Exception e) {
             log.error("Error summarizing file with ID: {}", fileId, e);
-            return "I encountered an error while trying to summarize this file.";
+            return CompletableFuture.completedFuture("I encountered an error while trying to summarize this file.");
+        }
+    }
+    
+    /**
+     * Summarize an uploaded file on behalf of a batch job. Errors are not turned into
+     * a reply; the future fails so that the job can record or retry the item.
+     * @param fileId The ID of the uploaded file
+     * @param modelName The AI model to use
+     * @param priority The scheduling class of the request
+     * @param user The user the request is queued for
+     * @return future completed with the AI-generated summary
+     */
+    public CompletableFuture<String> summarizeFile(Long fileId, String modelName, GenerationPriority priority, String user) {
+        CompletableFuture<String> summary = summaryOf(fileId, actualModelName(modelName), priority, user);
+        if (summary == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No readable text was extracted from file " + fileId));
         }
+        return summary;
     }
     
     /**
      * Analyze the content and structure of an uploaded file
      * @param fileId The ID of the uploaded file
      * @param modelName The AI model to use
-     * @return AI-generated analysis
+     * @return future completed with the AI-generated analysis
      */
-    public String analyzeFile(Long fileId, String modelName) {
+    public CompletableFuture<String> analyzeFile(Long fileId, String modelName) {
         try {
-            String extractedText = chatFileService.getExtractedText(fileId);
-            ChatFiles file = chatFileService.getFileById(fileId);
-            
-            if (extractedText == null || extractedText.trim().isEmpty() || !file.getTextExtractionSuccessful()) {
-                return "I couldn't extract readable text from this file to perform an analysis.";
+            CompletableFuture<String> analysis = analysisOf(fileId, actualModelName(modelName), GenerationPriority.SUMMARY, null);
+            if (analysis == null) {
+                return CompletableFuture.completedFuture("I couldn't extract readable text from this file to perform an analysis.");
             }
             
-            String prompt = buildAnalysisPrompt(extractedText, file.getFileName(), file.getContentType());
-            String actualModelName = (modelName != null && !modelName.trim().isEmpty()) ? modelName : "deepseek-r1:1.5b";
-            
-            return generateAIResponse(prompt, actualModelName);
+            return analysis
+                .exceptionally(e -> {
+                    log.error("Error analyzing file with ID: {}", fileId, e);
+                    return "I encountered an error while trying to analyze this file.";
+                });
             
         } catch (Exception e) {
             log.error("Error analyzing file with ID: {}", fileId, e);
-            return "I encountered an error while trying to analyze this file.";
+            return CompletableFuture.completedFuture("I encountered an error while trying to analyze this file.");
+        }
+    }
+    
+    /**
+     * Analyze an uploaded file on behalf of a batch job. Errors are not turned into
+     * a reply; the future fails so that the job can record or retry the item.
+     * @param fileId The ID of the uploaded file
+     * @param modelName The AI model to use
+     * @param priority The scheduling class of the request
+     * @param user The user the request is queued for
+     * @return future completed with the AI-generated analysis
+     */
+    public CompletableFuture<String> analyzeFile(Long fileId, String modelName, GenerationPriority priority, String user) {
+        CompletableFuture<String> analysis = analysisOf(fileId, actualModelName(modelName), priority, user);
+        if (analysis == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No readable text was extracted from file " + fileId));
         }
+        return analysis;
+    }
+    
+    /**
+     * Summarize a file with one prompt when its text fits into the model, otherwise from
+     * summaries of its parts made in parallel. Null if no readable text was extracted from it
+     */
+    private CompletableFuture<String> summaryOf(Long fileId, String modelName, GenerationPriority priority, String user) {
+        String extractedText = chatFileService.getExtractedText(fileId);
+        ChatFiles file = chatFileService.getFileById(fileId);
+        
+        if (extractedText == null || extractedText.trim().isEmpty() || !file.getTextExtractionSuccessful()) {
+            return null;
+        }
+        int contentTokens = tokenCountingService.countFile(file, modelName);
+        if (contentTokens <= conversationService.documentBudget(modelName, "")) {
+            return generateAIResponse(buildSummaryPrompt(extractedText, contentTokens, file.getFileName(), modelName, false),
+                    modelName, priority, GenerationProfile.SUMMARY, user);
+        }
+        return documentSummaryService.summarize(file, extractedText, modelName, "summary",
+                (summaries, tokens) -> buildSummaryPrompt(summaries, tokens, file.getFileName(), modelName, true),
+                priority, user);
+    }
+    
+    /**
+     * Analyze a file with one prompt when its text fits into the model, otherwise from
+     * summaries of its parts made in parallel. Null if no readable text was extracted from it
+     */
+    private CompletableFuture<String> analysisOf(Long fileId, String modelName, GenerationPriority priority, String user) {
+        String extractedText = chatFileService.getExtractedText(fileId);
+        ChatFiles file = chatFileService.getFileById(fileId);
+        
+        if (extractedText == null || extractedText.trim().isEmpty() || !file.getTextExtractionSuccessful()) {
+            return null;
+        }
+        int contentTokens = tokenCountingService.countFile(file, modelName);
+        if (contentTokens <= conversationService.documentBudget(modelName, "")) {
+            return generateAIResponse(buildAnalysisPrompt(extractedText, contentTokens, file.getFileName(),
+                    file.getContentType(), modelName, false), modelName, priority, GenerationProfile.SUMMARY, user);
+        }
+        return documentSummaryService.summarize(file, extractedText, modelName, "analysis",
+                (summaries, tokens) -> buildAnalysisPrompt(summaries, tokens, file.getFileName(), file.getContentType(),
+                        modelName, true),
+                priority, user);
+    }
+    
+    /**
+     * Tokens of the file content going into a prompt: the stored count for the whole
+     * text, a fresh count for excerpts of it.
+     */
+    private int contentTokens(ChatFiles file, String content, String modelName) {
+        return content.equals(file.getExtractedText())
+                ? tokenCountingService.countFile(file, modelName)
+                : tokenCountingService.count(content, modelName);
+    }
+    
+    private static String actualModelName(String modelName) {
+        return (modelName != null && !modelName.trim().isEmpty()) ? modelName : "deepseek-r1:1.5b";
     }
     
     /**
      * Build a prompt that includes file content and user question
      */
-    private String buildPromptWithFileContent(String fileContent, String userQuestion, String fileName) {
+    private String buildPromptWithFileContent(String fileContent, int contentTokens, String userQuestion, String fileName,
+                                              String modelName) {
         StringBuilder promptBuilder = new StringBuilder();
         
         promptBuilder.append("I have uploaded a file named \"").append(fileName).append("\" with the following content:\n\n");
         promptBuilder.append("--- FILE CONTENT START ---\n");
         
-        // Truncate very long content to prevent token limits
-        String truncatedContent = fileContent.length() > 15000 ? 
-            fileContent.substring(0, 15000) + "\n\n[Content truncated due to length...]" : fileContent;
+        // Truncate very long content to what the context window of the model leaves
+        String truncatedContent = conversationService.fitDocument(fileContent, contentTokens, modelName, userQuestion);
         
         promptBuilder.append(truncatedContent);
         promptBuilder.append("\n--- FILE CONTENT END ---\n\n");
@@ -191,21 +305,20 @@ public class AIFileProcessingService {
     /**
      * Build a prompt with file content, user question, and conversation context
      */
-    private String buildPromptWithFileContentAndContext(String fileContent, String userQuestion, 
-                                                       String conversationContext, String fileName) {
+    private String buildPromptWithFileContentAndContext(String fileContent, int contentTokens, String userQuestion, 
+                                                       String conversationContext, String fileName, String modelName) {
         StringBuilder promptBuilder = new StringBuilder();
         
         if (conversationContext != null && !conversationContext.trim().isEmpty()) {
             promptBuilder.append("Previous conversation context:\n");
-            promptBuilder.append(conversationContext);
+            promptBuilder.append(conversationService.fitContext(conversationContext, modelName));
             promptBuilder.append("\n\n");
         }
         
         promptBuilder.append("I have uploaded a file named \"").append(fileName).append("\" with the following content:\n\n");
         promptBuilder.append("--- FILE CONTENT START ---\n");
         
-        String truncatedContent = fileContent.length() > 12000 ? 
-            fileContent.substring(0, 12000) + "\n\n[Content truncated due to length...]" : fileContent;
+        String truncatedContent = conversationService.fitDocument(fileContent, contentTokens, modelName, promptBuilder + userQuestion);
         
         promptBuilder.append(truncatedContent);
         promptBuilder.append("\n--- FILE CONTENT END ---\n\n");
@@ -217,19 +330,24 @@ public class AIFileProcessingService {
     }
     
     /**
-     * Build a prompt for summarizing file content
+     * Build a prompt for summarizing file content, or summaries of its parts
      */
-    private String buildSummaryPrompt(String fileContent, String fileName) {
+    private String buildSummaryPrompt(String fileContent, int contentTokens, String fileName, String modelName,
+                                      boolean partSummaries) {
         StringBuilder promptBuilder = new StringBuilder();
         
-        promptBuilder.append("Please provide a comprehensive summary of the following document \"").append(fileName).append("\":\n\n");
-        promptBuilder.append("--- DOCUMENT CONTENT ---\n");
+        if (partSummaries) {
+            promptBuilder.append("Please provide a comprehensive summary of the document \"").append(fileName)
+                        .append("\" from the following summaries of its consecutive parts:\n\n");
+        } else {
+            promptBuilder.append("Please provide a comprehensive summary of the following document \"").append(fileName).append("\":\n\n");
+        }
+        promptBuilder.append(partSummaries ? "--- PART SUMMARIES ---\n" : "--- DOCUMENT CONTENT ---\n");
         
-        String truncatedContent = fileContent.length() > 18000 ? 
-            fileContent.substring(0, 18000) + "\n\n[Content truncated due to length...]" : fileContent;
+        String truncatedContent = conversationService.fitDocument(fileContent, contentTokens, modelName, "");
         
         promptBuilder.append(truncatedContent);
-        promptBuilder.append("\n--- END DOCUMENT CONTENT ---\n\n");
+        promptBuilder.append(partSummaries ? "\n--- END PART SUMMARIES ---\n\n" : "\n--- END DOCUMENT CONTENT ---\n\n");
         
         promptBuilder.append("Please provide:\n");
         promptBuilder.append("1. A brief overview of the document\n");
@@ -242,20 +360,26 @@ public class AIFileProcessingService {
     }
     
     /**
-     * Build a prompt for analyzing file content and structure
+     * Build a prompt for analyzing file content and structure, or summaries of its parts
      */
-    private String buildAnalysisPrompt(String fileContent, String fileName, String contentType) {
+    private String buildAnalysisPrompt(String fileContent, int contentTokens, String fileName, String contentType,
+                                       String modelName, boolean partSummaries) {
         StringBuilder promptBuilder = new StringBuilder();
         
-        promptBuilder.append("Please perform a detailed analysis of the following document \"")
-                    .append(fileName).append("\" (").append(contentType).append("):\n\n");
-        promptBuilder.append("--- DOCUMENT CONTENT ---\n");
+        if (partSummaries) {
+            promptBuilder.append("Please perform a detailed analysis of the document \"")
+                        .append(fileName).append("\" (").append(contentType)
+                        .append(") from the following summaries of its consecutive parts:\n\n");
+        } else {
+            promptBuilder.append("Please perform a detailed analysis of the following document \"")
+                        .append(fileName).append("\" (").append(contentType).append("):\n\n");
+        }
+        promptBuilder.append(partSummaries ? "--- PART SUMMARIES ---\n" : "--- DOCUMENT CONTENT ---\n");
         
-        String truncatedContent = fileContent.length() > 18000 ? 
-            fileContent.substring(0, 18000) + "\n\n[Content truncated due to length...]" : fileContent;
+        String truncatedContent = conversationService.fitDocument(fileContent, contentTokens, modelName, "");
         
         promptBuilder.append(truncatedContent);
-        promptBuilder.append("\n--- END DOCUMENT CONTENT ---\n\n");
+        promptBuilder.append(partSummaries ? "\n--- END PART SUMMARIES ---\n\n" : "\n--- END DOCUMENT CONTENT ---\n\n");
         
         promptBuilder.append("Please provide an analysis including:\n");
         promptBuilder.append("1. Document type and purpose\n");
@@ -271,30 +395,25 @@ public class AIFileProcessingService {
     }
     
     /**
-     * Generate AI response using the specified model
+     * Generate AI response using the specified model.
+     * The call is non-blocking; the future completes when Ollama has answered.
+     * Repeated requests (e.g. summarizing the same file again) are answered from the cache,
+     * and identical requests in flight share one inference.
+     * The priority decides the request's place in the queue of a busy server, the profile
+     * its answer length and temperature; without a user the request is queued for the
+     * authenticated user of the calling thread.
      */
-    private String generateAIResponse(String prompt, String modelName) {
-        try {
-            log.info("Generating AI response using model: {} with prompt length: {}", modelName, prompt.length());
-            
-            // Build the prompt with the specified model
-            Prompt requestPrompt = new Prompt(
-                prompt,
-                OllamaOptions.builder()
-                    .model(modelName)
-                    .build()
-            );
-
-            // Call the chat model with the provided prompt
-            ChatResponse response = chatModel.call(requestPrompt);
-            String generatedText = response.getResult().getOutput().getText();
-            
-            log.info("Successfully generated AI response with length: {}", generatedText.length());
-            return generatedText;
-            
-        } catch (Exception e) {
-            log.error("Error generating AI response with model: {}", modelName, e);
-            throw new RuntimeException("Failed to generate AI response: " + e.getMessage(), e);
-        }
+    private CompletableFuture<String> generateAIResponse(String prompt, String modelName, GenerationPriority priority,
+                                                         GenerationProfile profile, String user) {
+        log.info("Generating AI response using model: {} with prompt length: {}", modelName, prompt.length());
+        
+        OllamaRequest request = GenerateService.createRequest(prompt, modelName, priority);
+        request.setUser(user);
+        request.setProfile(profile);
+        return generateService.generate(request)
+            .thenApply(generatedText -> {
+                log.info("Successfully generated AI response with length: {}", generatedText.length());
+                return generatedText;
+            });
     }
-} 
\ No newline at end of file
+}
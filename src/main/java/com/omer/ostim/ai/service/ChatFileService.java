@@ -26,6 +26,8 @@ public class ChatFileService {
     private final ChatFilesRepository chatFilesRepository;
     private final UserRepository userRepository;
     private final FileProcessingService fileProcessingService;
+    private final DocumentIndexService documentIndexService;
+    private final TokenCountingService tokenCountingService;
     
     @Value("${file.upload-dir:./uploads}")
     private String uploadDir;
@@ -33,10 +35,14 @@ public class ChatFileService {
     @Autowired
     public ChatFileService(ChatFilesRepository chatFileRepository, 
                           UserRepository userRepository,
-                          FileProcessingService fileProcessingService) {
+                          FileProcessingService fileProcessingService,
+                          DocumentIndexService documentIndexService,
+                          TokenCountingService tokenCountingService) {
         this.chatFilesRepository = chatFileRepository;
         this.userRepository = userRepository;
         this.fileProcessingService = fileProcessingService;
+        this.documentIndexService = documentIndexService;
+        this.tokenCountingService = tokenCountingService;
     }
 
     public ChatFiles uploadFile(MultipartFile file, Long chatId, Long messageId, String username) throws IOException {
@@ -110,6 +116,8 @@ public class ChatFileService {
             Optional<ChatFiles> retrievedFile = chatFilesRepository.findById(savedFile.getFileId());
             if (retrievedFile.isPresent()) {
                 System.out.println("Successfully verified file in database with ID: " + retrievedFile.get().getFileId());
+                // Chunked and embedded in the background, so questions get its relevant parts
+                documentIndexService.indexFile(savedFile);
                 return savedFile;
             } else {
                 System.err.println("WARNING: File was supposedly saved but cannot be retrieved from database by ID: " + savedFile.getFileId());
@@ -241,6 +249,8 @@ public class ChatFileService {
         
         // Delete from database
         chatFilesRepository.deleteById(fileId);
+        tokenCountingService.deleteFile(fileId);
+        documentIndexService.removeFile(fileId);
     }
     
     public List<ChatFiles> getAllFilesByUserId(Long userId) {
@@ -305,6 +315,12 @@ public class ChatFileService {
         file.setExtractedText(extractedText);
         file.setTextExtractionSuccessful(textExtractionSuccessful);
         
-        return chatFilesRepository.save(file);
+        ChatFiles savedFile = chatFilesRepository.save(file);
+        if (textExtractionSuccessful) {
+            documentIndexService.indexFile(savedFile);
+        } else {
+            documentIndexService.removeFile(fileId);
+        }
+        return savedFile;
     }
 }
@@ -0,0 +1,149 @@
+package com.omer.ostim.ai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.omer.ostim.ai.config.ChatContextProperties;
+import com.omer.ostim.ai.model.ChatMessages;
+import com.omer.ostim.ai.repository.ChatMessagesRepository;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the most recent turns of active chats in memory, so that assembling the prompt
+ * of a turn does not load the whole chat from the database.
+ * <p>
+ * A chat is loaded once, with only its last {@code chat.context.recent-turns} messages,
+ * and then kept up to date by {@link ChatMessagesService} as messages are saved. Chats
+ * without a request for {@code chat.context.active-chat-ttl} are dropped.
+ */
+@Service
+public class ChatHistoryCache {
+
+    private final ChatMessagesRepository messagesRepository;
+    private final int capacity;
+    private final Cache<Long, TurnBuffer> buffers;
+
+    public ChatHistoryCache(ChatMessagesRepository messagesRepository, ChatContextProperties contextProperties) {
+        this.messagesRepository = messagesRepository;
+        this.capacity = Math.max(1, contextProperties.getRecentTurns());
+        this.buffers = Caffeine.newBuilder()
+                .expireAfterAccess(contextProperties.getActiveChatTtl())
+                .maximumSize(contextProperties.getMaxActiveChats())
+                .build();
+    }
+
+    /**
+     * @param chatId the chat
+     * @return the most recent turns of the chat, oldest first
+     */
+    public List<Turn> recentTurns(Long chatId) {
+        return buffers.get(chatId, this::load).snapshot();
+    }
+
+    /**
+     * Adds a saved message to its chat, if the chat is in memory. Inside a transaction
+     * the message is added once it is committed, so that a chat loaded concurrently
+     * cannot miss it.
+     */
+    void append(ChatMessages message) {
+        Turn turn = new Turn(message.getMessageId(), message.getMessageType(), message.getMessageContent());
+        Long chatId = message.getChatId();
+        afterCommit(() -> {
+            TurnBuffer buffer = buffers.getIfPresent(chatId);
+            if (buffer != null) {
+                buffer.add(turn);
+            }
+        });
+    }
+
+    /**
+     * Drops a chat from memory, e.g. after one of its messages was deleted.
+     */
+    void invalidate(Long chatId) {
+        afterCommit(() -> buffers.invalidate(chatId));
+    }
+
+    private TurnBuffer load(Long chatId) {
+        List<ChatMessages> newest = messagesRepository.findByChatIdOrderByMessageIdDesc(chatId, PageRequest.of(0, capacity));
+        TurnBuffer buffer = new TurnBuffer(capacity);
+        for (int i = newest.size() - 1; i >= 0; i--) {
+            ChatMessages message = newest.get(i);
+            buffer.add(new Turn(message.getMessageId(), message.getMessageType(), message.getMessageContent()));
+        }
+        return buffer;
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * A stored message of a chat.
+     *
+     * @param messageType "user" or "bot"
+     */
+    public record Turn(Long messageId, String messageType, String content) {
+    }
+
+    /**
+     * Ring buffer of the last turns of one chat, in message ID order.
+     */
+    private static final class TurnBuffer {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Turn[] turns;
+        private int start;
+        private int size;
+
+        TurnBuffer(int capacity) {
+            this.turns = new Turn[capacity];
+        }
+
+        void add(Turn turn) {
+            lock.lock();
+            try {
+                // Already loaded from the database, or older than what is kept
+                if (size > 0 && turn.messageId() <= turns[(start + size - 1) % turns.length].messageId()) {
+                    return;
+                }
+                if (size < turns.length) {
+                    turns[(start + size) % turns.length] = turn;
+                    size++;
+                } else {
+                    turns[start] = turn;
+                    start = (start + 1) % turns.length;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<Turn> snapshot() {
+            lock.lock();
+            try {
+                List<Turn> copy = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    copy.add(turns[(start + i) % turns.length]);
+                }
+                return copy;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -15,10 +15,13 @@ public class ChatMessagesService {
 
     private final ChatMessagesRepository messagesRepository;
     private final ChatFileService chatFileService;
+    private final ChatHistoryCache chatHistoryCache;
 
-    public ChatMessagesService(ChatMessagesRepository messagesRepository, ChatFileService chatFileService) {
+    public ChatMessagesService(ChatMessagesRepository messagesRepository, ChatFileService chatFileService,
+                               ChatHistoryCache chatHistoryCache) {
         this.messagesRepository = messagesRepository;
         this.chatFileService = chatFileService;
+        this.chatHistoryCache = chatHistoryCache;
     }
 
     @Transactional
@@ -52,6 +55,7 @@ public class ChatMessagesService {
         
         // Save the message to get the generated messageId
         ChatMessages savedMessage = messagesRepository.save(message);
+        chatHistoryCache.append(savedMessage);
         
         // Link specific files if provided
         if (fileIds != null && !fileIds.isEmpty() && savedMessage.getMessageId() != null) {
@@ -86,10 +90,10 @@ public class ChatMessagesService {
 
     @Transactional
     public void deleteMessage(Long messageId) {
-        if (!messagesRepository.existsById(messageId)) {
-            throw new MessageNotFoundException("Message with ID " + messageId + " not found");
-        }
-        messagesRepository.deleteById(messageId);
+        ChatMessages message = messagesRepository.findById(messageId)
+                .orElseThrow(() -> new MessageNotFoundException("Message with ID " + messageId + " not found"));
+        messagesRepository.delete(message);
+        chatHistoryCache.invalidate(message.getChatId());
     }
 
     // Add method to check if a message exists
@@ -2,49 +2,44 @@ package com.omer.ostim.ai.service;
 
 import com.omer.ostim.ai.model.Chat;
 import com.omer.ostim.ai.repository.ChatRepository;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.omer.ostim.ai.dto.GenerationProfile;
 import com.omer.ostim.ai.dto.OllamaRequest;
+import com.omer.ostim.ai.util.ThinkTagFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.cache.annotation.Cacheable;
-import org.springframework.http.*;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
 @Service
 public class ChatService {
 
     private static final Logger log = LoggerFactory.getLogger(ChatService.class);
 
-    private final RestTemplate restTemplate;
     private final ChatRepository chatRepository;
-    private final ObjectMapper objectMapper;
     private final OllamaService ollamaService;
-    private final OllamaConnectionService ollamaConnectionService;
-
-    @Value("${spring.ai.ollama.base-url}")
-    private String baseUrl;
+    private final GenerateService generateService;
+    private final ConversationService conversationService;
 
     @Autowired
     public ChatService(
-        RestTemplate restTemplate, 
         ChatRepository chatRepository, 
         OllamaService ollamaService,
-        OllamaConnectionService ollamaConnectionService
+        GenerateService generateService,
+        ConversationService conversationService
     ) {
-        this.restTemplate = restTemplate;
         this.chatRepository = chatRepository;
-        this.objectMapper = new ObjectMapper();
         this.ollamaService = ollamaService;
-        this.ollamaConnectionService = ollamaConnectionService;
+        this.generateService = generateService;
+        this.conversationService = conversationService;
     }
 
     /**
@@ -188,46 +183,14 @@ public class ChatService {
     }
 
     /**
-     * Generates a response using the Ollama API, cached for efficiency.
-     * Now uses the default connection from OllamaConnectionService.
+     * Generates a response with the deepseek-coder model.
+     * Repeated prompts are answered from the GenerationCache.
      * 
      * @param prompt the input prompt for the Ollama API
      * @return the generated response
      */
-    @Cacheable(value = "responses", key = "#prompt")
     public String generateResponse(String prompt) {
-        try {
-            // Get API endpoint for default server
-            String url = ollamaConnectionService.getDefaultApiUrl("/api/generate");
-            
-            // Get a RestTemplate configured for the default server
-            RestTemplate serverTemplate = ollamaConnectionService.getDefaultServerConnection();
-            
-            // Create OllamaRequest object for the API
-            OllamaRequest request = new OllamaRequest();
-            request.setModel("deepseek-coder");
-            request.setPrompt(prompt);
-            request.setStream(false);
-
-            // Get headers for default server
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-
-            HttpEntity<OllamaRequest> entity = new HttpEntity<>(request, headers);
-
-            ResponseEntity<String> response = serverTemplate.exchange(
-                    url, HttpMethod.POST, entity, String.class);
-
-            if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
-                JsonNode jsonNode = objectMapper.readTree(response.getBody());
-                return jsonNode.get("response").asText();
-            }
-
-            return "No response generated";
-        } catch (Exception e) {
-            log.error("Error calling Ollama API", e);
-            throw new RuntimeException("Error generating response: " + e.getMessage());
-        }
+        return generateResponse(prompt, "deepseek-coder");
     }
 
     /**
@@ -239,7 +202,8 @@ public class ChatService {
 
     /**
      * Generates a response using the specified model.
-     * Now uses OllamaConnectionService for server connections.
+     * Repeated prompts are served from the GenerationCache and identical concurrent
+     * requests share a single inference.
      * 
      * @param prompt the input prompt
      * @param model the model to use for generating the response
@@ -247,76 +211,202 @@ public class ChatService {
      */
     public String generateResponse(String prompt, String model) {
         try {
-            // Get API endpoint for default server
-            String url = ollamaConnectionService.getDefaultApiUrl("/api/generate");
-            
-            // Get a RestTemplate configured for the default server
-            RestTemplate serverTemplate = ollamaConnectionService.getDefaultServerConnection();
+            return generateResponseAsync(prompt, model).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            log.error("Error calling Ollama API", cause);
+            throw new RuntimeException("Error generating response: " + cause.getMessage());
+        }
+    }
 
-            // Create headers and request
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
+    /**
+     * Generates a response asynchronously using the specified model.
+     * The returned future completes when Ollama has answered; no thread waits meanwhile.
+     * 
+     * @param prompt the input prompt
+     * @param model the model to use for generating the response
+     * @return a future completed with the generated response
+     */
+    public CompletableFuture<String> generateResponseAsync(String prompt, String model) {
+        return generateResponseAsync(prompt, model, null);
+    }
 
-            OllamaRequest request = new OllamaRequest();
-            request.setModel(model != null ? model : "deepseek-r1:1.5b");
-            request.setPrompt(prompt);
-            request.setStream(false);
+    /**
+     * Generates a response asynchronously using the specified model, failing with a
+     * DeadlineExceededException if it cannot be answered before the deadline.
+     * 
+     * @param prompt the input prompt
+     * @param model the model to use for generating the response
+     * @param deadline the latest time the answer is of use, or null for the learned default
+     * @return a future completed with the generated response
+     */
+    public CompletableFuture<String> generateResponseAsync(String prompt, String model, Instant deadline) {
+        OllamaRequest request = GenerateService.createRequest(prompt, model != null ? model : "deepseek-r1:1.5b");
+        request.setDeadline(deadline);
+        return generateService.generate(request);
+    }
 
-            HttpEntity<OllamaRequest> entity = new HttpEntity<>(request, headers);
+    /**
+     * Streams a response from the Ollama API using the specified model.
+     * Ollama answers with NDJSON when streaming is enabled, each line carrying the
+     * next piece of the response, so tokens are handed to the caller as they arrive.
+     * 
+     * @param prompt the input prompt
+     * @param model the model to use for generating the response
+     * @param onToken callback invoked for every response chunk
+     * @return a future completed with the full generated response once the stream is finished
+     */
+    public CompletableFuture<String> streamResponse(String prompt, String model, Consumer<String> onToken) {
+        return streamResponse(prompt, model, null, onToken);
+    }
 
-            ResponseEntity<String> response = serverTemplate.exchange(
-                    url, HttpMethod.POST, entity, String.class);
+    /**
+     * Streams a response from the Ollama API using the specified model, failing with a
+     * DeadlineExceededException if it cannot be answered before the deadline.
+     * 
+     * @param prompt the input prompt
+     * @param model the model to use for generating the response
+     * @param deadline the latest time the answer is of use, or null for the learned default
+     * @param onToken callback invoked for every response chunk
+     * @return a future completed with the full generated response once the stream is finished
+     */
+    public CompletableFuture<String> streamResponse(String prompt, String model, Instant deadline, Consumer<String> onToken) {
+        OllamaRequest request = GenerateService.createRequest(prompt, model != null ? model : "deepseek-r1:1.5b");
+        request.setDeadline(deadline);
+        return generateService.stream(request, onToken);
+    }
 
-            if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
-                JsonNode jsonNode = objectMapper.readTree(response.getBody());
-                return jsonNode.get("response").asText();
+    /**
+     * Suggests a short title for a chat from its first question.
+     * 
+     * @param question the first question of the chat
+     * @param model the model to use for generating the title
+     * @return a future completed with the title; the start of the question if the model gave none
+     */
+    public CompletableFuture<String> generateTitleAsync(String question, String model) {
+        OllamaRequest request = GenerateService.createRequest("Write a title of at most six words for a chat that "
+                + "starts with the question below, in the language of the question. Answer with the title only.\n\n"
+                + question, model != null ? model : "deepseek-r1:1.5b");
+        request.setProfile(GenerationProfile.TITLE);
+        return generateService.generate(request).thenApply(response -> {
+            String title = ThinkTagFilter.removeThinking(response).strip().lines().findFirst().orElse("")
+                    .replaceAll("[\"'*#]", "").strip();
+            if (title.isEmpty()) {
+                title = question.strip();
             }
-
-            return "No response generated";
-        } catch (Exception e) {
-            log.error("Error calling Ollama API", e);
-            throw new RuntimeException("Error generating response: " + e.getMessage());
-        }
+            return title.length() > 255 ? title.substring(0, 255) : title;
+        });
     }
 
     /**
-     * Generates a response using the specified model with a file attachment.
+     * Answers a new question in a chat with the earlier messages of the chat as context.
+     * Successive turns of the chat go to the same Ollama server, which can then reuse
+     * the context of the previous turn.
      * 
-     * @param prompt the input prompt
+     * @param chatId the chat the question belongs to
+     * @param prompt the new question
      * @param model the model to use for generating the response
-     * @param fileAttachment the file attachment information
-     * @return the generated response
+     * @return a future completed with the generated response
      */
-    public String generateResponseWithFile(String prompt, String model, Object fileAttachment) {
-        try {
-            String url = baseUrl + "/api/generate";
+    public CompletableFuture<String> generateConversationResponseAsync(Long chatId, String prompt, String model) {
+        return generateConversationResponseAsync(chatId, prompt, model, List.of());
+    }
 
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
+    /**
+     * Answers a new question about attached documents in a chat, with the earlier
+     * messages of the chat as context.
+     * 
+     * @param chatId the chat the question belongs to
+     * @param prompt the new question
+     * @param model the model to use for generating the response
+     * @param documents text of the attached documents, each with its name in front
+     * @return a future completed with the generated response
+     */
+    public CompletableFuture<String> generateConversationResponseAsync(Long chatId, String prompt, String model, List<String> documents) {
+        return generateConversationResponseAsync(chatId, prompt, model, documents, null);
+    }
 
-            // Enhance the prompt with file information
-            String enhancedPrompt = createPromptWithFileInfo(prompt, fileAttachment);
-            
-            OllamaRequest request = new OllamaRequest();
-            request.setModel(model != null ? model : "deepseek-r1:1.5b");
-            request.setPrompt(enhancedPrompt);
-            request.setStream(false);
+    /**
+     * Answers a new question about attached documents in a chat, with the earlier
+     * messages of the chat as context, failing with a DeadlineExceededException if it
+     * cannot be answered before the deadline.
+     * 
+     * @param chatId the chat the question belongs to
+     * @param prompt the new question
+     * @param model the model to use for generating the response
+     * @param documents text of the attached documents, each with its name in front
+     * @param deadline the latest time the answer is of use, or null for the learned default
+     * @return a future completed with the generated response
+     */
+    public CompletableFuture<String> generateConversationResponseAsync(Long chatId, String prompt, String model, List<String> documents,
+                                                                       Instant deadline) {
+        OllamaRequest request = conversationService.createRequest(chatId, prompt, model != null ? model : "deepseek-r1:1.5b", documents);
+        request.setDeadline(deadline);
+        return generateService.generate(request);
+    }
 
-            HttpEntity<OllamaRequest> entity = new HttpEntity<>(request, headers);
+    /**
+     * Streams the answer to a new question in a chat with the earlier messages of the
+     * chat as context.
+     * 
+     * @param chatId the chat the question belongs to
+     * @param prompt the new question
+     * @param model the model to use for generating the response
+     * @param onToken callback invoked for every response chunk
+     * @return a future completed with the full generated response once the stream is finished
+     */
+    public CompletableFuture<String> streamConversationResponse(Long chatId, String prompt, String model, Consumer<String> onToken) {
+        return streamConversationResponse(chatId, prompt, model, List.of(), onToken);
+    }
 
-            ResponseEntity<String> response = restTemplate.exchange(
-                    url, HttpMethod.POST, entity, String.class);
+    /**
+     * Streams the answer to a new question about attached documents in a chat, with the
+     * earlier messages of the chat as context.
+     * 
+     * @param chatId the chat the question belongs to
+     * @param prompt the new question
+     * @param model the model to use for generating the response
+     * @param documents text of the attached documents, each with its name in front
+     * @param onToken callback invoked for every response chunk
+     * @return a future completed with the full generated response once the stream is finished
+     */
+    public CompletableFuture<String> streamConversationResponse(Long chatId, String prompt, String model, List<String> documents,
+                                                                Consumer<String> onToken) {
+        return streamConversationResponse(chatId, prompt, model, documents, null, onToken);
+    }
 
-            if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
-                JsonNode jsonNode = objectMapper.readTree(response.getBody());
-                return jsonNode.get("response").asText();
-            }
+    /**
+     * Streams the answer to a new question about attached documents in a chat, with the
+     * earlier messages of the chat as context, failing with a DeadlineExceededException
+     * if it cannot be answered before the deadline.
+     * 
+     * @param chatId the chat the question belongs to
+     * @param prompt the new question
+     * @param model the model to use for generating the response
+     * @param documents text of the attached documents, each with its name in front
+     * @param deadline the latest time the answer is of use, or null for the learned default
+     * @param onToken callback invoked for every response chunk
+     * @return a future completed with the full generated response once the stream is finished
+     */
+    public CompletableFuture<String> streamConversationResponse(Long chatId, String prompt, String model, List<String> documents,
+                                                                Instant deadline, Consumer<String> onToken) {
+        OllamaRequest request = conversationService.createRequest(chatId, prompt, model != null ? model : "deepseek-r1:1.5b", documents);
+        request.setDeadline(deadline);
+        return generateService.stream(request, onToken);
+    }
 
-            return "No response generated";
-        } catch (Exception e) {
-            log.error("Error calling Ollama API with file attachment", e);
-            throw new RuntimeException("Error generating response with file: " + e.getMessage());
-        }
+    /**
+     * Generates a response using the specified model with a file attachment.
+     * The request goes through the same scheduling, cache and deadlines as
+     * {@link #generateResponse(String, String)}.
+     * 
+     * @param prompt the input prompt
+     * @param model the model to use for generating the response
+     * @param fileAttachment the file attachment information
+     * @return the generated response
+     */
+    public String generateResponseWithFile(String prompt, String model, Object fileAttachment) {
+        return generateResponse(createPromptWithFileInfo(prompt, fileAttachment), model);
     }
     
     /**
@@ -372,45 +462,4 @@ public class ChatService {
             return "unknown";
         }
     }
-
-    /**
-     * Generates a response using a specific server.
-     * 
-     * @param prompt the input prompt
-     * @param model the model to use
-     * @param serverId the ID of the server to use
-     * @return the generated response
-     */
-    public String generateResponseUsingServer(String prompt, String model, Long serverId) {
-        try {
-            // Get API endpoint for the specified server
-            String url = ollamaConnectionService.getApiUrl(serverId, "/api/generate");
-            
-            // Get a RestTemplate configured for the server
-            RestTemplate serverTemplate = ollamaConnectionService.getServerConnection(serverId);
-
-            // Create headers for this server
-            HttpHeaders headers = ollamaConnectionService.createHeaders(serverId);
-
-            OllamaRequest request = new OllamaRequest();
-            request.setModel(model != null ? model : "deepseek-r1:1.5b");
-            request.setPrompt(prompt);
-            request.setStream(false);
-
-            HttpEntity<OllamaRequest> entity = new HttpEntity<>(request, headers);
-
-            ResponseEntity<String> response = serverTemplate.exchange(
-                    url, HttpMethod.POST, entity, String.class);
-
-            if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
-                JsonNode jsonNode = objectMapper.readTree(response.getBody());
-                return jsonNode.get("response").asText();
-            }
-
-            return "No response generated";
-        } catch (Exception e) {
-            log.error("Error calling Ollama API on server {}: {}", serverId, e.getMessage());
-            throw new RuntimeException("Error generating response: " + e.getMessage());
-        }
-    }
 }
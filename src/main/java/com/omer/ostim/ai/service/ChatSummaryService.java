@@ -0,0 +1,160 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.config.ChatContextProperties;
+import com.omer.ostim.ai.dto.GenerationPriority;
+import com.omer.ostim.ai.dto.GenerationProfile;
+import com.omer.ostim.ai.dto.OllamaRequest;
+import com.omer.ostim.ai.model.ChatMessages;
+import com.omer.ostim.ai.model.ChatSummary;
+import com.omer.ostim.ai.repository.ChatMessagesRepository;
+import com.omer.ostim.ai.repository.ChatSummaryRepository;
+import com.omer.ostim.ai.util.ResponseProcessingUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Compacts the older turns of chats into a stored rolling summary.
+ * <p>
+ * Compaction runs in the background at the lowest priority, never on the path of a
+ * chat request: {@link ConversationService} asks for it when a chat has more turns
+ * after its summary than fit into the budget or than {@code summarize-after-turns}.
+ * Each compaction folds all turns but the last {@code keep-turns} into the summary in
+ * one step, so the history sent with the following turns keeps the same beginning
+ * until the next compaction.
+ */
+@Service
+public class ChatSummaryService {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatSummaryService.class);
+
+    // Tokens of the compaction instructions around the summary and the turns
+    private static final int INSTRUCTION_TOKENS = 150;
+
+    private final ChatSummaryRepository chatSummaryRepository;
+    private final ChatMessagesRepository messagesRepository;
+    private final GenerateService generateService;
+    private final ResponseProcessingUtil responseProcessingUtil;
+    private final ChatContextProperties contextProperties;
+    private final TokenCountingService tokenCountingService;
+    private final AsyncTaskExecutor generationExecutor;
+    // Chats with a compaction in progress
+    private final Set<Long> refreshing = ConcurrentHashMap.newKeySet();
+
+    public ChatSummaryService(ChatSummaryRepository chatSummaryRepository,
+                              ChatMessagesRepository messagesRepository,
+                              GenerateService generateService,
+                              ResponseProcessingUtil responseProcessingUtil,
+                              ChatContextProperties contextProperties,
+                              TokenCountingService tokenCountingService,
+                              @Qualifier("generationExecutor") AsyncTaskExecutor generationExecutor) {
+        this.chatSummaryRepository = chatSummaryRepository;
+        this.messagesRepository = messagesRepository;
+        this.generateService = generateService;
+        this.responseProcessingUtil = responseProcessingUtil;
+        this.contextProperties = contextProperties;
+        this.tokenCountingService = tokenCountingService;
+        this.generationExecutor = generationExecutor;
+    }
+
+    public Optional<ChatSummary> getSummary(Long chatId) {
+        return chatSummaryRepository.findById(chatId);
+    }
+
+    /**
+     * Starts compacting the older turns of a chat into its summary, unless a compaction
+     * of the chat is already running. Returns immediately.
+     *
+     * @param chatId the chat
+     * @param model the model that writes the summary
+     */
+    public void requestRefresh(Long chatId, String model) {
+        if (!refreshing.add(chatId)) {
+            return;
+        }
+        CompletableFuture.supplyAsync(() -> refresh(chatId, model), generationExecutor)
+                .thenCompose(Function.identity())
+                .whenComplete((ignored, error) -> {
+                    refreshing.remove(chatId);
+                    if (error != null) {
+                        log.warn("Could not summarize older turns of chat {}: {}", chatId, error.getMessage());
+                    }
+                });
+    }
+
+    private CompletableFuture<Void> refresh(Long chatId, String model) {
+        ChatSummary summary = chatSummaryRepository.findById(chatId).orElse(null);
+        long after = summary != null ? summary.getLastMessageId() : 0L;
+        List<ChatMessages> pending = messagesRepository.findByChatIdAndMessageIdGreaterThanOrderByMessageId(chatId, after);
+
+        String previous = summary != null ? summary.getSummary() : null;
+        int available = contextProperties.promptBudget(model) - INSTRUCTION_TOKENS
+                - tokenCountingService.count(previous, model);
+        int end = 0;
+        int compactable = pending.size() - contextProperties.getKeepTurns();
+        while (end < compactable) {
+            int tokens = tokenCountingService.count(pending.get(end).getMessageContent(), model) + 4;
+            // A backlog larger than one prompt is compacted over several rounds
+            if (tokens > available && end > 0) {
+                break;
+            }
+            available -= tokens;
+            end++;
+        }
+        if (end == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<ChatMessages> turns = pending.subList(0, end);
+        boolean more = end < compactable;
+        int summarized = (summary != null ? summary.getSummarizedMessages() : 0) + end;
+
+        log.debug("Summarizing {} older turns of chat {}", end, chatId);
+        String prompt = buildPrompt(previous, turns, contextProperties.promptBudget(model) / 2, model);
+        OllamaRequest request = GenerateService.createRequest(prompt, model, GenerationPriority.BACKGROUND);
+        request.setProfile(GenerationProfile.SUMMARY);
+        return generateService.generate(request)
+                .thenCompose(response -> {
+                    ChatSummary updated = summary != null ? summary : new ChatSummary();
+                    updated.setChatId(chatId);
+                    updated.setSummary(tokenCountingService.truncate(
+                            responseProcessingUtil.removeThinkTags(response), contextProperties.getSummaryTokens(), model));
+                    updated.setLastMessageId(turns.get(turns.size() - 1).getMessageId());
+                    updated.setSummarizedMessages(summarized);
+                    updated.setModel(model);
+                    chatSummaryRepository.save(updated);
+                    return more
+                            ? CompletableFuture.supplyAsync(() -> refresh(chatId, model), generationExecutor).thenCompose(Function.identity())
+                            : CompletableFuture.<Void>completedFuture(null);
+                });
+    }
+
+    private String buildPrompt(String previous, List<ChatMessages> turns, int maxTurnTokens, String model) {
+        StringBuilder promptBuilder = new StringBuilder();
+        promptBuilder.append("Summarize the following conversation between a user and an assistant, so that the ")
+                .append("conversation can be continued from the summary alone. Keep names, numbers, decisions, ")
+                .append("open questions and anything the user asked to remember. Write at most ")
+                .append(contextProperties.getSummaryTokens() * 3 / 4).append(" words and reply with the summary only.\n\n");
+        if (previous != null && !previous.isBlank()) {
+            promptBuilder.append("--- SUMMARY OF THE EARLIER CONVERSATION ---\n");
+            promptBuilder.append(previous);
+            promptBuilder.append("\n--- END SUMMARY ---\n\n");
+        }
+        promptBuilder.append("--- CONVERSATION ---\n");
+        for (ChatMessages turn : turns) {
+            promptBuilder.append(ConversationService.roleOf(turn.getMessageType()).equals("assistant") ? "Assistant: " : "User: ")
+                    .append(tokenCountingService.truncate(turn.getMessageContent(), maxTurnTokens, model))
+                    .append("\n\n");
+        }
+        promptBuilder.append("--- END CONVERSATION ---");
+        return promptBuilder.toString();
+    }
+}
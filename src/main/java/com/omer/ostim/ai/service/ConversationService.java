@@ -0,0 +1,194 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.config.ChatContextProperties;
+import com.omer.ostim.ai.dto.GenerationPriority;
+import com.omer.ostim.ai.dto.GenerationProfile;
+import com.omer.ostim.ai.dto.OllamaRequest;
+import com.omer.ostim.ai.model.ChatSummary;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Builds {@code /api/chat} requests from the stored messages of a chat, so follow-up
+ * questions are answered with the earlier turns in mind.
+ * <p>
+ * Every request is fitted into the context window of its model, less the tokens kept
+ * for the answer ({@link ChatContextProperties}). The system prompt, the rolling summary
+ * of older turns ({@link ChatSummaryService}) and the question are always sent; document
+ * excerpts attached to the question are cut to their share of the rest, and what is left
+ * is filled with the most recent turns after the summary, taken from the
+ * {@link ChatHistoryCache}. Turns that no longer fit, or too many turns after the summary,
+ * start a compaction in the background.
+ * <p>
+ * The history is sent in the same form every turn and the request carries the chat as
+ * its session, so the load balancer sends it back to the server that answered the
+ * previous turn. That server finds the earlier turns in its context cache and only
+ * evaluates the new question. Documents go with the question, after the history, so
+ * they do not change what the server has cached.
+ */
+@Service
+@RequiredArgsConstructor
+public class ConversationService {
+
+    // Role markers and separators the chat template adds around every message
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+    // Instructions and file name around a document put into a single prompt
+    private static final int DOCUMENT_PROMPT_OVERHEAD_TOKENS = 100;
+
+    private final ChatHistoryCache chatHistoryCache;
+    private final ChatSummaryService chatSummaryService;
+    private final ChatContextProperties contextProperties;
+    private final TokenCountingService tokenCountingService;
+
+    /**
+     * Creates a chat request with the history of a chat followed by a new question.
+     *
+     * @param chatId the chat whose messages form the history
+     * @param prompt the new question
+     * @param model the model to use
+     * @return the request
+     */
+    public OllamaRequest createRequest(Long chatId, String prompt, String model) {
+        return createRequest(chatId, prompt, model, List.of());
+    }
+
+    /**
+     * Creates a chat request with the history of a chat followed by a new question
+     * about the given documents.
+     *
+     * @param chatId the chat whose messages form the history
+     * @param prompt the new question
+     * @param model the model to use
+     * @param documents text of the documents the question is about, each with its name in front
+     * @return the request
+     */
+    public OllamaRequest createRequest(Long chatId, String prompt, String model, List<String> documents) {
+        int budget = contextProperties.promptBudget(model);
+        Optional<ChatSummary> summary = chatSummaryService.getSummary(chatId);
+        long summarizedUpTo = summary.map(ChatSummary::getLastMessageId).orElse(0L);
+
+        List<ChatHistoryCache.Turn> turns = new ArrayList<>();
+        for (ChatHistoryCache.Turn turn : chatHistoryCache.recentTurns(chatId)) {
+            if (turn.messageId() > summarizedUpTo) {
+                turns.add(turn);
+            }
+        }
+        // The client may have stored the question before asking for the answer
+        if (!turns.isEmpty()) {
+            ChatHistoryCache.Turn last = turns.get(turns.size() - 1);
+            if ("user".equals(roleOf(last.messageType())) && prompt.equals(last.content())) {
+                turns.remove(turns.size() - 1);
+            }
+        }
+
+        String system = systemMessage(summary.map(ChatSummary::getSummary).orElse(null));
+        String question = prompt;
+        int promptTokens = tokenCountingService.count(prompt, model);
+        int used = tokenCountingService.count(system, model) + promptTokens + 2 * MESSAGE_OVERHEAD_TOKENS;
+        if (!documents.isEmpty()) {
+            int documentBudget = (int) (Math.max(0, budget - used) * contextProperties.getDocumentShare());
+            question = withDocuments(documents, documentBudget, prompt, model);
+            used += tokenCountingService.count(question, model) - promptTokens;
+        }
+
+        // As many of the newest turns as fit, so the history stays an unbroken tail of the chat
+        int first = turns.size();
+        while (first > 0) {
+            int tokens = tokenCountingService.count(turns.get(first - 1).content(), model) + MESSAGE_OVERHEAD_TOKENS;
+            if (used + tokens > budget) {
+                break;
+            }
+            used += tokens;
+            first--;
+        }
+        if (first > 0 || turns.size() > contextProperties.getSummarizeAfterTurns()) {
+            chatSummaryService.requestRefresh(chatId, model);
+        }
+
+        List<OllamaRequest.Message> messages = new ArrayList<>(turns.size() - first + 2);
+        if (!system.isEmpty()) {
+            messages.add(new OllamaRequest.Message("system", system));
+        }
+        for (ChatHistoryCache.Turn turn : turns.subList(first, turns.size())) {
+            messages.add(new OllamaRequest.Message(roleOf(turn.messageType()), turn.content()));
+        }
+        messages.add(new OllamaRequest.Message("user", question));
+
+        OllamaRequest request = new OllamaRequest();
+        request.setModel(model);
+        request.setMessages(messages);
+        request.setPriority(GenerationPriority.INTERACTIVE);
+        request.setProfile(GenerationProfile.CHAT);
+        request.setSession("chat-" + chatId);
+        return request;
+    }
+
+    /**
+     * Cuts a document to the part of the budget of a model that is left by the rest of a
+     * single prompt, for prompts about a document outside a chat.
+     *
+     * @param document the document text
+     * @param model the model the prompt is for
+     * @param rest the rest of the prompt, e.g. the question and earlier context
+     * @return the document, or its start with a truncation marker
+     */
+    public String fitDocument(String document, String model, String rest) {
+        return tokenCountingService.truncate(document, documentBudget(model, rest), model);
+    }
+
+    /**
+     * Like {@link #fitDocument(String, String, String)}, for a document whose token count
+     * is already known, e.g. a stored count of an uploaded file. A document that fits is
+     * not scanned again.
+     */
+    public String fitDocument(String document, int documentTokens, String model, String rest) {
+        int available = documentBudget(model, rest);
+        return documentTokens <= available ? document : tokenCountingService.truncate(document, available, model);
+    }
+
+    /**
+     * Cuts earlier conversation passed along with a single prompt to its latest part, at
+     * most a quarter of the budget of the model.
+     */
+    public String fitContext(String context, String model) {
+        return tokenCountingService.keepLast(context, contextProperties.promptBudget(model) / 4, model);
+    }
+
+    /**
+     * Tokens a document may take in a single prompt for a model, next to the rest of
+     * the prompt.
+     */
+    public int documentBudget(String model, String rest) {
+        int available = contextProperties.promptBudget(model) - tokenCountingService.count(rest, model)
+                - DOCUMENT_PROMPT_OVERHEAD_TOKENS;
+        return Math.max(0, available);
+    }
+
+    private String systemMessage(String summary) {
+        String systemPrompt = contextProperties.getSystemPrompt() != null ? contextProperties.getSystemPrompt().trim() : "";
+        if (summary == null || summary.isBlank()) {
+            return systemPrompt;
+        }
+        String summaryPart = "Summary of the earlier conversation:\n" + summary;
+        return systemPrompt.isEmpty() ? summaryPart : systemPrompt + "\n\n" + summaryPart;
+    }
+
+    private String withDocuments(List<String> documents, int documentBudget, String prompt, String model) {
+        int perDocument = documentBudget / documents.size();
+        StringBuilder question = new StringBuilder("Based on the following document content, please answer the user's question.\n\n");
+        for (String document : documents) {
+            question.append(tokenCountingService.truncate(document, perDocument, model)).append("\n\n");
+        }
+        question.append("User's question: ").append(prompt);
+        return question.toString();
+    }
+
+    static String roleOf(String messageType) {
+        return "bot".equalsIgnoreCase(messageType) || "assistant".equalsIgnoreCase(messageType)
+                ? "assistant" : "user";
+    }
+}
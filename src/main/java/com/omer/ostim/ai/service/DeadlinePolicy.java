@@ -0,0 +1,337 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.config.OllamaSchedulerProperties;
+import com.omer.ostim.ai.dto.GenerationPriority;
+import com.omer.ostim.ai.dto.OllamaRequest;
+import com.omer.ostim.ai.exception.DeadlineExceededException;
+import com.omer.ostim.ai.model.ChatServer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Deadlines of generations, and the latency statistics they are based on.
+ * <p>
+ * Every finished generation is recorded by model, server and prompt size (in powers of two
+ * from 256 tokens): how long it took from sending to its last token, how much of that
+ * passed before the answer started and how fast answer tokens came. The most recent
+ * samples of each give a typical (median) and a high (configured percentile) duration.
+ * <p>
+ * A request without a deadline gets the queue timeout of its class plus {@code factor}
+ * times the high duration, between the min and max budget; until enough samples exist the
+ * initial budget is used instead. A request whose deadline leaves less than the typical
+ * duration after the expected wait for its turn is stopped up front: its answer is cut
+ * ({@code num_predict}) to what can still be generated in time if that leaves at least
+ * {@code min-answer-tokens}, otherwise it is rejected. Requests nothing has been learned
+ * about yet are never stopped. The same estimate is given to clients as the ETA of their
+ * answer.
+ * <p>
+ * Exported as {@code ollama.deadline.requests} with the outcome downgraded, rejected or expired.
+ */
+@Service
+public class DeadlinePolicy {
+
+    private static final Logger log = LoggerFactory.getLogger(DeadlinePolicy.class);
+    private static final int WINDOW_SIZE = 256;
+    private static final int RECOMPUTE_EVERY = 8;
+    private static final double SMALLEST_BUCKET_TOKENS = 256;
+    // Share of the time left that a cut answer may use, as the token rate varies
+    private static final double DOWNGRADE_MARGIN = 0.8;
+
+    private final OllamaLoadBalancer ollamaLoadBalancer;
+    private final OllamaConnectionService ollamaConnectionService;
+    private final OllamaSchedulerProperties schedulerProperties;
+    private final double percentile;
+    private final double factor;
+    private final Duration minBudget;
+    private final Duration maxBudget;
+    private final Duration initialBudget;
+    private final int minSamples;
+    private final int minAnswerTokens;
+    private final Map<WindowKey, LatencyWindow> windows = new ConcurrentHashMap<>();
+
+    private final Counter downgradedCounter;
+    private final Counter rejectedCounter;
+    private final Counter expiredCounter;
+
+    public DeadlinePolicy(OllamaLoadBalancer ollamaLoadBalancer,
+                          OllamaConnectionService ollamaConnectionService,
+                          OllamaSchedulerProperties schedulerProperties,
+                          MeterRegistry meterRegistry,
+                          @Value("${ollama.deadline.percentile:0.95}") double percentile,
+                          @Value("${ollama.deadline.factor:2}") double factor,
+                          @Value("${ollama.deadline.min-budget:30s}") Duration minBudget,
+                          @Value("${ollama.deadline.max-budget:10m}") Duration maxBudget,
+                          @Value("${ollama.deadline.initial-budget:5m}") Duration initialBudget,
+                          @Value("${ollama.deadline.min-samples:10}") int minSamples,
+                          @Value("${ollama.deadline.min-answer-tokens:64}") int minAnswerTokens) {
+        this.ollamaLoadBalancer = ollamaLoadBalancer;
+        this.ollamaConnectionService = ollamaConnectionService;
+        this.schedulerProperties = schedulerProperties;
+        this.percentile = percentile;
+        this.factor = factor;
+        this.minBudget = minBudget;
+        this.maxBudget = maxBudget;
+        this.initialBudget = initialBudget;
+        this.minSamples = Math.max(1, minSamples);
+        this.minAnswerTokens = minAnswerTokens;
+        this.downgradedCounter = deadlineCounter(meterRegistry, "downgraded", "Requests whose answer was cut to finish before their deadline");
+        this.rejectedCounter = deadlineCounter(meterRegistry, "rejected", "Requests rejected because they could not finish before their deadline");
+        this.expiredCounter = deadlineCounter(meterRegistry, "expired", "Requests stopped when their deadline passed");
+    }
+
+    private static Counter deadlineCounter(MeterRegistry meterRegistry, String outcome, String description) {
+        return Counter.builder("ollama.deadline.requests")
+                .tag("outcome", outcome)
+                .description(description)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Learned duration of a request on one server.
+     *
+     * @param typical median time from sending the request to its last token
+     * @param high the configured percentile of that time
+     * @param beforeAnswer median time until the answer started, mostly model load and prompt evaluation
+     * @param tokensPerSecond median rate of answer tokens, 0 if Ollama did not report it
+     */
+    public record Estimate(Duration typical, Duration high, Duration beforeAnswer, double tokensPerSecond) {
+    }
+
+    /**
+     * Where a request would run now and how long it would take there.
+     *
+     * @param estimate the learned duration, or null while there are too few samples
+     * @param queueWait the expected wait for a turn on the server
+     */
+    private record Target(ChatServer server, Estimate estimate, Duration queueWait) {
+    }
+
+    private record WindowKey(String model, Long serverId, int bucket) {
+    }
+
+    /**
+     * @param request a request without a deadline
+     * @return the deadline it gets: its queue timeout plus the learned budget of its model
+     */
+    public Instant defaultDeadline(OllamaRequest request) {
+        GenerationPriority priority = request.getPriority() != null ? request.getPriority() : GenerationPriority.INTERACTIVE;
+        Target target = target(request);
+        Duration budget = initialBudget;
+        if (target != null && target.estimate() != null) {
+            budget = Duration.ofNanos((long) (target.estimate().high().toNanos() * factor));
+            budget = budget.compareTo(minBudget) < 0 ? minBudget : budget.compareTo(maxBudget) > 0 ? maxBudget : budget;
+        }
+        return Instant.now().plus(schedulerProperties.queueTimeout(priority)).plus(budget);
+    }
+
+    /**
+     * Checks up front whether a request can finish before its deadline on the server it
+     * would go to, and cuts its answer or rejects it if not. While Ollama has not reported
+     * a token rate for that server the request is left as it is.
+     *
+     * @param request the request; a cut one gets options with a lower {@code num_predict}
+     * @throws DeadlineExceededException if even a cut answer would come too late
+     */
+    public void fitToDeadline(OllamaRequest request) {
+        if (request.getDeadline() == null) {
+            return;
+        }
+        Target target = target(request);
+        if (target == null || target.estimate() == null) {
+            return;
+        }
+        Estimate estimate = target.estimate();
+        Duration left = Duration.between(Instant.now(), request.getDeadline()).minus(target.queueWait());
+        if (left.compareTo(estimate.typical()) >= 0 || estimate.tokensPerSecond() == 0) {
+            return;
+        }
+
+        long answerTokens = (long) (left.minus(estimate.beforeAnswer()).toNanos() / 1e9
+                * estimate.tokensPerSecond() * DOWNGRADE_MARGIN);
+        if (answerTokens >= minAnswerTokens) {
+            Map<String, Object> options = request.getOptions() != null ? new HashMap<>(request.getOptions()) : new HashMap<>();
+            if (options.get("num_predict") instanceof Number limit && limit.longValue() > 0 && limit.longValue() <= answerTokens) {
+                return;
+            }
+            options.put("num_predict", (int) Math.min(answerTokens, Integer.MAX_VALUE));
+            request.setOptions(options);
+            downgradedCounter.increment();
+            log.debug("Cutting the answer of a {} request to {} tokens to finish before its deadline",
+                    request.getModel(), answerTokens);
+            return;
+        }
+        rejectedCounter.increment();
+        throw new DeadlineExceededException("Model " + request.getModel() + " needs about "
+                + estimate.typical().plus(target.queueWait()).toSeconds() + " s for this request, its deadline leaves "
+                + Math.max(0, Duration.between(Instant.now(), request.getDeadline()).toSeconds()) + " s");
+    }
+
+    /**
+     * Estimates how long until the answer to a prompt is complete, for showing to the user.
+     *
+     * @param model the model of the request
+     * @param prompt the prompt, or the new question of a conversation
+     * @return the expected wait for a turn plus the typical duration, or null while unknown
+     */
+    public Duration eta(String model, String prompt) {
+        Target target = target(GenerateService.createRequest(prompt, model));
+        if (target == null || target.estimate() == null) {
+            return null;
+        }
+        return target.queueWait().plus(target.estimate().typical());
+    }
+
+    /**
+     * @param request a request that reached the server
+     * @return the latest time it can be sent and still finish before its deadline, null if it has none
+     */
+    Instant latestStart(Long serverId, OllamaRequest request) {
+        if (request.getDeadline() == null) {
+            return null;
+        }
+        Estimate estimate = estimate(request.getModel(), serverId, OllamaAsyncClient.estimatedTokens(request));
+        return estimate != null ? request.getDeadline().minus(estimate.typical()) : request.getDeadline();
+    }
+
+    /**
+     * Counts a request that was stopped because its deadline passed.
+     */
+    void deadlineExpired() {
+        expiredCounter.increment();
+    }
+
+    /**
+     * Records a finished generation.
+     *
+     * @param promptTokens the estimated prompt size, as used for scheduling
+     * @param elapsedNanos time from sending the request to its last token
+     * @param answerTokens answer tokens Ollama reported ({@code eval_count}), 0 if unknown
+     * @param answerNanos time Ollama reported for generating them ({@code eval_duration})
+     */
+    void record(String model, Long serverId, double promptTokens, long elapsedNanos, long answerTokens, long answerNanos) {
+        windows.computeIfAbsent(new WindowKey(model, serverId, bucket(promptTokens)), key -> new LatencyWindow())
+                .record(elapsedNanos, answerTokens, answerNanos);
+    }
+
+    /**
+     * @return the learned duration on the server or, for a server new to the model, on the
+     *         server with the most samples; null while there are too few samples
+     */
+    Estimate estimate(String model, Long serverId, double promptTokens) {
+        if (model == null) {
+            return null;
+        }
+        int bucket = bucket(promptTokens);
+        LatencyWindow window = windows.get(new WindowKey(model, serverId, bucket));
+        if (window != null && window.estimate() != null) {
+            return window.estimate();
+        }
+        return windows.entrySet().stream()
+                .filter(entry -> entry.getKey().model().equals(model) && entry.getKey().bucket() == bucket)
+                .map(Map.Entry::getValue)
+                .filter(candidate -> candidate.estimate() != null)
+                .max(Comparator.comparingInt(LatencyWindow::samples))
+                .map(LatencyWindow::estimate)
+                .orElse(null);
+    }
+
+    /**
+     * @return the server the request would go to now, or null if no server is available
+     */
+    private Target target(OllamaRequest request) {
+        ChatServer server;
+        try {
+            server = ollamaLoadBalancer.chooseServer(request.getModel());
+        } catch (RuntimeException e) {
+            return null;
+        }
+        Estimate estimate = estimate(request.getModel(), server.getServerId(), OllamaAsyncClient.estimatedTokens(request));
+        if (estimate == null) {
+            return new Target(server, null, Duration.ZERO);
+        }
+        // A turn frees up every typical / num-parallel on average, and the request needs
+        // the one after those of everybody waiting before it
+        OllamaServerConnection connection = ollamaConnectionService.getConnection(server);
+        int numParallel = connection.getSettings().getNumParallel();
+        Duration wait = connection.activeCount() < numParallel
+                ? Duration.ZERO
+                : estimate.typical().multipliedBy(connection.pendingCount() + 1L).dividedBy(numParallel);
+        return new Target(server, estimate, wait);
+    }
+
+    /**
+     * Prompt size class: 0 up to 256 tokens, then one more for every doubling.
+     */
+    private static int bucket(double promptTokens) {
+        return promptTokens <= SMALLEST_BUCKET_TOKENS
+                ? 0
+                : 64 - Long.numberOfLeadingZeros((long) Math.ceil(promptTokens / SMALLEST_BUCKET_TOKENS) - 1);
+    }
+
+    /**
+     * The most recent samples of one model, server and prompt size in ring buffers. The
+     * estimate is recomputed every few samples rather than on every lookup.
+     */
+    private final class LatencyWindow {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] durations = new long[WINDOW_SIZE];
+        private final long[] beforeAnswer = new long[WINDOW_SIZE];
+        private final double[] tokenRates = new double[WINDOW_SIZE];
+        private int count;
+        private int next;
+        private volatile Estimate estimate;
+
+        void record(long elapsedNanos, long answerTokens, long answerNanos) {
+            lock.lock();
+            try {
+                durations[next] = elapsedNanos;
+                beforeAnswer[next] = Math.max(0, elapsedNanos - answerNanos);
+                tokenRates[next] = answerTokens > 0 && answerNanos > 0 ? answerTokens * 1e9 / answerNanos : 0;
+                next = (next + 1) % WINDOW_SIZE;
+                count = Math.min(count + 1, WINDOW_SIZE);
+                if (count >= minSamples && (estimate == null || next % RECOMPUTE_EVERY == 0)) {
+                    long[] sortedDurations = Arrays.copyOf(durations, count);
+                    long[] sortedBeforeAnswer = Arrays.copyOf(beforeAnswer, count);
+                    double[] sortedRates = Arrays.copyOf(tokenRates, count);
+                    Arrays.sort(sortedDurations);
+                    Arrays.sort(sortedBeforeAnswer);
+                    Arrays.sort(sortedRates);
+                    estimate = new Estimate(
+                            Duration.ofNanos(sortedDurations[count / 2]),
+                            Duration.ofNanos(sortedDurations[Math.min(count - 1, (int) Math.ceil(percentile * count) - 1)]),
+                            Duration.ofNanos(sortedBeforeAnswer[count / 2]),
+                            sortedRates[count / 2]);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int samples() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Estimate estimate() {
+            return estimate;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package com.omer.ostim.ai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.omer.ostim.ai.config.DocumentRetrievalProperties;
+import com.omer.ostim.ai.config.DocumentRetrievalProperties.Retrieval;
+import com.omer.ostim.ai.dto.GenerationPriority;
+import com.omer.ostim.ai.model.ChatFiles;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Answers questions about uploaded documents from their most relevant parts instead
+ * of their whole text ({@link DocumentRetrievalProperties}).
+ * <p>
+ * After upload the extracted text of a file is split into overlapping chunks, which
+ * are embedded in the background at the lowest priority and written to the
+ * {@link DocumentVectorStore}. A question about a large document is embedded and sent
+ * with the nearest chunks, in the order they have in the document, so the prompt stays
+ * small however long the document is.
+ * <p>
+ * The chunks of a document are compared with the question one by one, straight from
+ * the mapped vector file. Documents with more chunks than that handles well are also
+ * added to an in-process {@link HnswIndex}, in the background when the application
+ * starts; until their graph is complete they are searched exactly. Once too many nodes
+ * of the graph belong to deleted or re-indexed documents, it is built again from the
+ * stored vectors in the background.
+ * <p>
+ * Every indexed document also gets a {@link LexicalIndex}, kept in memory for the
+ * documents asked about recently and built again from the text when needed. It ranks
+ * the chunks by BM25 when there is no embedding model ({@code rag.retrieval: lexical}),
+ * while a document is still being embedded and when embedding the question fails.
+ * <p>
+ * Small documents, and documents none of whose words are in the question, are sent
+ * whole as before and cut to the context window by the caller.
+ */
+@Service
+public class DocumentIndexService {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentIndexService.class);
+
+    private static final String EXCERPT_SEPARATOR = "\n\n[...]\n\n";
+
+    private final DocumentVectorStore vectorStore;
+    private final EmbeddingService embeddingService;
+    private final TokenCountingService tokenCountingService;
+    private final DocumentRetrievalProperties properties;
+    private final AsyncTaskExecutor fileExtractionExecutor;
+    private volatile HnswIndex index;
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    // Files whose chunks are all in the graph
+    private final Set<Long> graphFiles = ConcurrentHashMap.newKeySet();
+    // Taken while the nodes of one file are added or removed, so the graph holds one version of each file
+    private final ReentrantLock graphLock = new ReentrantLock();
+    private final Map<Long, CompletableFuture<Void>> indexing = new ConcurrentHashMap<>();
+    private final Cache<Long, LexicalIndex> lexicalIndexes;
+
+    public DocumentIndexService(DocumentVectorStore vectorStore,
+                                EmbeddingService embeddingService,
+                                TokenCountingService tokenCountingService,
+                                DocumentRetrievalProperties properties,
+                                @Qualifier("fileExtractionExecutor") AsyncTaskExecutor fileExtractionExecutor) {
+        this.vectorStore = vectorStore;
+        this.embeddingService = embeddingService;
+        this.tokenCountingService = tokenCountingService;
+        this.properties = properties;
+        this.fileExtractionExecutor = fileExtractionExecutor;
+        this.index = newIndex();
+        this.lexicalIndexes = Caffeine.newBuilder()
+                .maximumWeight(properties.getLexical().getMaxIndexSize().toBytes())
+                .weigher((Long fileId, LexicalIndex lexicalIndex) -> lexicalIndex.estimatedBytes())
+                .build();
+    }
+
+    /**
+     * Adds the stored documents with many chunks to the graph in the background.
+     */
+    @PostConstruct
+    public void buildGraph() {
+        if (!properties.isEnabled() || properties.getRetrieval() != Retrieval.VECTOR) {
+            return;
+        }
+        fileExtractionExecutor.execute(() -> {
+            long startTime = System.nanoTime();
+            int added = 0;
+            for (DocumentVectorStore.StoredFile stored : vectorStore.files()) {
+                if (needsGraph(stored)) {
+                    addToGraph(stored);
+                    added++;
+                }
+            }
+            if (added > 0) {
+                log.info("Added {} documents with {} chunks to the vector graph in {} ms", added, index.size(),
+                        (System.nanoTime() - startTime) / 1_000_000);
+            }
+        });
+    }
+
+    /**
+     * Splits the extracted text of a file in the background, builds its BM25 index
+     * and, unless retrieval is lexical, embeds the chunks, replacing the earlier ones.
+     * Returns immediately; a file already being indexed is not indexed twice.
+     *
+     * @param file the file with its extracted text
+     * @return a future completed once the file is indexed, or skipped as too small
+     */
+    public CompletableFuture<Void> indexFile(ChatFiles file) {
+        if (!properties.isEnabled() || !hasText(file)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Long fileId = file.getFileId();
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        CompletableFuture<Void> running = indexing.putIfAbsent(fileId, started);
+        if (running != null) {
+            return running;
+        }
+        CompletableFuture.supplyAsync(() -> build(file), fileExtractionExecutor)
+                .thenCompose(Function.identity())
+                .whenComplete((ignored, error) -> {
+                    indexing.remove(fileId, started);
+                    if (error != null) {
+                        log.warn("Could not index file {}: {}", fileId, error.getMessage());
+                        started.completeExceptionally(error);
+                    } else {
+                        started.complete(null);
+                    }
+                });
+        return started;
+    }
+
+    /**
+     * Tombstones the vectors of a file and drops it from the graph and the BM25
+     * indexes, also when the file is still being indexed.
+     */
+    public void removeFile(Long fileId) {
+        CompletableFuture<Void> running = indexing.get(fileId);
+        if (running != null) {
+            running.whenComplete((ignored, error) -> remove(fileId));
+        }
+        remove(fileId);
+    }
+
+    private void remove(Long fileId) {
+        lexicalIndexes.invalidate(fileId);
+        vectorStore.delete(fileId);
+        if (graphFiles.remove(fileId)) {
+            fileExtractionExecutor.execute(() -> removeFromGraph(fileId));
+        }
+    }
+
+    /**
+     * The parts of a document most relevant to a question, within a token budget. A
+     * small document is returned whole. One not embedded yet, or embedded from an
+     * earlier extraction, is embedded in the background for the next question and
+     * answered from its best chunks by BM25 meanwhile.
+     *
+     * @param file the file with its extracted text
+     * @param question the question the document should answer
+     * @param model the model the prompt is for
+     * @param maxTokens the most tokens the excerpts may take
+     * @param priority the scheduling class of the question
+     * @return a future completed with the excerpts in document order, separated by
+     *         {@code [...]}, or with the whole text
+     */
+    public CompletableFuture<String> relevantText(ChatFiles file, String question, String model, int maxTokens,
+                                                  GenerationPriority priority) {
+        String text = file.getExtractedText();
+        if (!properties.isEnabled() || !hasText(file)
+                || tokenCountingService.countFile(file, model) <= properties.getMinDocumentTokens()) {
+            return CompletableFuture.completedFuture(text);
+        }
+        if (properties.getRetrieval() == Retrieval.LEXICAL) {
+            return CompletableFuture.completedFuture(lexicalText(file, question, maxTokens));
+        }
+        DocumentVectorStore.StoredFile stored = vectorStore.file(file.getFileId());
+        if (stored == null || !stored.model().equals(properties.getEmbeddingModel())
+                || stored.textLength() != text.length()) {
+            indexFile(file);
+            return CompletableFuture.completedFuture(lexicalText(file, question, maxTokens));
+        }
+
+        return embeddingService.embed(properties.getEmbeddingModel(), List.of(question), priority)
+                .thenApply(vectors -> {
+                    List<TokenCountingService.Span> chunks = nearest(stored, vectors.get(0)).stream()
+                            .map(hit -> stored.chunk(hit.chunkIndex()))
+                            .toList();
+                    return excerpts(file, text, chunks, stored.size(), maxTokens);
+                })
+                .exceptionally(e -> {
+                    log.warn("Could not search file {} by embedding, ranking its chunks by BM25: {}", file.getFileId(),
+                            e.getMessage());
+                    return lexicalText(file, question, maxTokens);
+                });
+    }
+
+    /**
+     * The chunks of a document with the best BM25 scores for a question, or the whole
+     * text when none of its words are in the question.
+     */
+    private String lexicalText(ChatFiles file, String question, int maxTokens) {
+        String text = file.getExtractedText();
+        LexicalIndex lexicalIndex = lexicalIndex(file);
+        DocumentRetrievalProperties.Lexical settings = properties.getLexical();
+        List<TokenCountingService.Span> chunks = lexicalIndex.search(question, properties.getTopK(), settings.getK1(),
+                        settings.getB()).stream()
+                .map(hit -> lexicalIndex.spans().get(hit.chunkIndex()))
+                .toList();
+        return excerpts(file, text, chunks, lexicalIndex.spans().size(), maxTokens);
+    }
+
+    /**
+     * The BM25 index of the current extraction of a file, built if it is not cached.
+     */
+    private LexicalIndex lexicalIndex(ChatFiles file) {
+        String text = file.getExtractedText();
+        LexicalIndex cached = lexicalIndexes.getIfPresent(file.getFileId());
+        if (cached != null && cached.textLength() == text.length()) {
+            return cached;
+        }
+        return buildLexicalIndex(file.getFileId(), text, split(text));
+    }
+
+    private LexicalIndex buildLexicalIndex(Long fileId, String text, List<TokenCountingService.Span> chunks) {
+        long startTime = System.nanoTime();
+        LexicalIndex lexicalIndex = LexicalIndex.build(fileId, text, chunks);
+        lexicalIndexes.put(fileId, lexicalIndex);
+        log.debug("Built the BM25 index of file {} over {} chunks in {} ms", fileId, chunks.size(),
+                (System.nanoTime() - startTime) / 1_000_000);
+        return lexicalIndex;
+    }
+
+    private List<TokenCountingService.Span> split(String text) {
+        return tokenCountingService.split(text, properties.getChunkTokens(), properties.getChunkOverlapTokens(),
+                properties.getEmbeddingModel());
+    }
+
+    /**
+     * Joins the found chunks that fit into the budget, best first, in document order.
+     * Chunks that overlap or touch are merged so no text is repeated.
+     */
+    private String excerpts(ChatFiles file, String text, List<TokenCountingService.Span> found, int chunkCount,
+                            int maxTokens) {
+        List<TokenCountingService.Span> selected = new ArrayList<>(found.size());
+        int tokens = 0;
+        for (TokenCountingService.Span chunk : found) {
+            if (!selected.isEmpty() && tokens + chunk.tokens() > maxTokens) {
+                break;
+            }
+            selected.add(chunk);
+            tokens += chunk.tokens();
+        }
+        if (selected.isEmpty()) {
+            return text;
+        }
+        selected.sort(Comparator.comparingInt(TokenCountingService.Span::start));
+
+        StringBuilder excerpts = new StringBuilder();
+        int start = selected.get(0).start();
+        int end = selected.get(0).end();
+        for (TokenCountingService.Span chunk : selected.subList(1, selected.size())) {
+            if (chunk.start() > end) {
+                excerpts.append(text, start, end).append(EXCERPT_SEPARATOR);
+                start = chunk.start();
+            }
+            end = Math.max(end, chunk.end());
+        }
+        excerpts.append(text, start, end);
+        log.debug("Answering about file {} from {} of {} chunks, about {} tokens", file.getFileId(), selected.size(),
+                chunkCount, tokens);
+        return excerpts.toString();
+    }
+
+    /**
+     * The chunks of a file nearest to a question, from the graph once the file is in
+     * it, otherwise by comparing every chunk.
+     */
+    private List<HnswIndex.Hit> nearest(DocumentVectorStore.StoredFile stored, float[] query) {
+        Long fileId = stored.fileId();
+        if (graphFiles.contains(fileId)) {
+            List<HnswIndex.Hit> hits = index.search(query, List.of(fileId), properties.getTopK());
+            // The graph may already hold a newer version of the file
+            if (hits.stream().allMatch(hit -> hit.chunkIndex() < stored.size())) {
+                return hits;
+            }
+        }
+        return stored.nearest(query, properties.getTopK());
+    }
+
+    private CompletableFuture<Void> build(ChatFiles file) {
+        String text = file.getExtractedText();
+        String model = properties.getEmbeddingModel();
+        if (tokenCountingService.count(text, model) <= properties.getMinDocumentTokens()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<TokenCountingService.Span> chunks = split(text);
+        buildLexicalIndex(file.getFileId(), text, chunks);
+        if (properties.getRetrieval() == Retrieval.LEXICAL) {
+            return CompletableFuture.completedFuture(null);
+        }
+        log.debug("Embedding {} chunks of file {}", chunks.size(), file.getFileId());
+        return embedBatches(text, chunks, 0, new ArrayList<>(chunks.size()))
+                .thenAcceptAsync(vectors -> store(file.getFileId(), text.length(), chunks, vectors), fileExtractionExecutor);
+    }
+
+    /**
+     * Embeds the chunks batch by batch, one request at a time, so a large document
+     * never takes all connections of a server.
+     */
+    private CompletableFuture<List<float[]>> embedBatches(String text, List<TokenCountingService.Span> chunks, int from,
+                                                          List<float[]> vectors) {
+        if (from >= chunks.size()) {
+            return CompletableFuture.completedFuture(vectors);
+        }
+        int to = Math.min(chunks.size(), from + Math.max(1, properties.getEmbedBatchSize()));
+        List<String> inputs = new ArrayList<>(to - from);
+        for (TokenCountingService.Span chunk : chunks.subList(from, to)) {
+            inputs.add(text.substring(chunk.start(), chunk.end()));
+        }
+        return embeddingService.embed(properties.getEmbeddingModel(), inputs, GenerationPriority.BACKGROUND)
+                .thenCompose(batch -> {
+                    vectors.addAll(batch);
+                    return embedBatches(text, chunks, to, vectors);
+                });
+    }
+
+    private void store(Long fileId, int textLength, List<TokenCountingService.Span> chunks, List<float[]> vectors) {
+        DocumentVectorStore.StoredFile stored;
+        try {
+            stored = vectorStore.append(fileId, textLength, properties.getEmbeddingModel(), chunks, vectors);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("Indexed {} chunks of file {}", chunks.size(), fileId);
+        if (needsGraph(stored)) {
+            addToGraph(stored);
+        } else if (graphFiles.remove(fileId)) {
+            removeFromGraph(fileId);
+        }
+    }
+
+    private boolean needsGraph(DocumentVectorStore.StoredFile stored) {
+        return stored.size() > HnswIndex.EXACT_SEARCH_LIMIT && stored.model().equals(properties.getEmbeddingModel());
+    }
+
+    /**
+     * Replaces the nodes of a file in the graph with its stored vectors, unless the
+     * file was indexed again or deleted before its turn.
+     */
+    private void addToGraph(DocumentVectorStore.StoredFile stored) {
+        Long fileId = stored.fileId();
+        graphLock.lock();
+        try {
+            graphFiles.remove(fileId);
+            index.removeFile(fileId);
+            if (isCurrent(stored)) {
+                for (int i = 0; i < stored.size(); i++) {
+                    index.add(fileId, i, stored.vector(i));
+                }
+                // Searched from the graph only if the file was not deleted meanwhile
+                if (isCurrent(stored)) {
+                    graphFiles.add(fileId);
+                } else {
+                    index.removeFile(fileId);
+                }
+            }
+        } finally {
+            graphLock.unlock();
+        }
+        rebuildGraphIfSparse();
+    }
+
+    private void removeFromGraph(Long fileId) {
+        graphLock.lock();
+        try {
+            graphFiles.remove(fileId);
+            index.removeFile(fileId);
+        } finally {
+            graphLock.unlock();
+        }
+        rebuildGraphIfSparse();
+    }
+
+    /**
+     * Builds the graph again in the background once more than {@code max-removed-share}
+     * of its nodes belong to removed files; they would otherwise be kept, and walked by
+     * searches, until a restart.
+     */
+    private void rebuildGraphIfSparse() {
+        HnswIndex graph = index;
+        int removed = graph.removedNodes();
+        if (removed == 0 || removed <= (removed + graph.size()) * properties.getIndex().getMaxRemovedShare()) {
+            return;
+        }
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        fileExtractionExecutor.execute(() -> {
+            try {
+                rebuildGraph();
+            } finally {
+                rebuilding.set(false);
+            }
+        });
+    }
+
+    /**
+     * Builds a graph of the current vectors of the files in the graph and puts it in place
+     * of the old one, which searches use meanwhile. Files are added to or removed from the
+     * graph once it is done.
+     */
+    private void rebuildGraph() {
+        graphLock.lock();
+        try {
+            long startTime = System.nanoTime();
+            HnswIndex rebuilt = newIndex();
+            Set<Long> rebuiltFiles = new HashSet<>();
+            for (Long fileId : List.copyOf(graphFiles)) {
+                DocumentVectorStore.StoredFile stored = vectorStore.file(fileId);
+                if (stored != null && needsGraph(stored)) {
+                    for (int i = 0; i < stored.size(); i++) {
+                        rebuilt.add(fileId, i, stored.vector(i));
+                    }
+                    rebuiltFiles.add(fileId);
+                }
+            }
+            int removed = index.removedNodes();
+            index = rebuilt;
+            // A file removed meanwhile stays out; removing it drops its nodes from the new graph
+            graphFiles.retainAll(rebuiltFiles);
+            log.info("Rebuilt the vector graph with {} documents and {} chunks, dropping {} removed chunks, in {} ms",
+                    rebuiltFiles.size(), rebuilt.size(), removed, (System.nanoTime() - startTime) / 1_000_000);
+        } finally {
+            graphLock.unlock();
+        }
+    }
+
+    private HnswIndex newIndex() {
+        DocumentRetrievalProperties.Index settings = properties.getIndex();
+        return new HnswIndex(settings.getM(), settings.getEfConstruction(), settings.getEfSearch());
+    }
+
+    // For tests
+    HnswIndex graph() {
+        return index;
+    }
+
+    private boolean isCurrent(DocumentVectorStore.StoredFile stored) {
+        DocumentVectorStore.StoredFile current = vectorStore.file(stored.fileId());
+        return current != null && current.sequence() == stored.sequence();
+    }
+
+    private static boolean hasText(ChatFiles file) {
+        return file.getFileId() != null && Boolean.TRUE.equals(file.getTextExtractionSuccessful())
+                && file.getExtractedText() != null && !file.getExtractedText().isBlank();
+    }
+}
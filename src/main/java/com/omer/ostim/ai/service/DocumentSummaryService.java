@@ -0,0 +1,337 @@
+package com.omer.ostim.ai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.omer.ostim.ai.dto.GenerationPriority;
+import com.omer.ostim.ai.dto.GenerationProfile;
+import com.omer.ostim.ai.dto.OllamaRequest;
+import com.omer.ostim.ai.model.ChatFiles;
+import com.omer.ostim.ai.util.ThinkTagFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Summarizes documents that do not fit into one prompt with a map-reduce over their chunks.
+ * <p>
+ * The text is split into chunks of {@code generation.summary.chunk-tokens} (at most what a
+ * prompt of the model leaves for a document) and every chunk is summarized on its own. The
+ * partial summaries are packed into prompts of the same budget and combined, level by
+ * level, until all of them fit into the final prompt, which the caller builds. The steps
+ * of a level run in parallel, as many at a time as the available Ollama servers can
+ * generate ({@link OllamaLoadBalancer#parallelCapacity()}), so the load balancer spreads
+ * them over all servers and a document takes less time the more servers there are.
+ * <p>
+ * The chunks and the prompts of every step depend only on the text and the settings, not
+ * on the servers, so finished steps are answered from the {@link GenerationCache} when a
+ * failed summary is retried; only the steps that did not finish run again. Progress is
+ * kept for an hour per file, model and task and is returned by {@link #progress(Long)}.
+ */
+@Service
+public class DocumentSummaryService {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentSummaryService.class);
+
+    public enum Phase {
+        MAP, REDUCE, FINAL, DONE, FAILED
+    }
+
+    /**
+     * State of a map-reduce summary.
+     *
+     * @param fileId the file being summarized
+     * @param model the model summarizing it
+     * @param task what the summary is for, e.g. summary or analysis
+     * @param phase the running phase
+     * @param level the reduce level, 0 while the chunks are summarized
+     * @param steps generations in the running phase
+     * @param completed generations of the running phase that are done
+     * @param chunks chunks of the document
+     * @param elapsed time since the summary started
+     */
+    public record Progress(Long fileId, String model, String task, Phase phase, int level, int steps, int completed,
+                           int chunks, Duration elapsed) {
+    }
+
+    private final GenerateService generateService;
+    private final ConversationService conversationService;
+    private final TokenCountingService tokenCountingService;
+    private final OllamaLoadBalancer ollamaLoadBalancer;
+    private final int chunkTokens;
+    private final int chunkOverlapTokens;
+    private final int partialWords;
+    private final Cache<String, Run> runs = Caffeine.newBuilder()
+            .expireAfterWrite(Duration.ofHours(1))
+            .build();
+
+    public DocumentSummaryService(GenerateService generateService,
+                                  ConversationService conversationService,
+                                  TokenCountingService tokenCountingService,
+                                  OllamaLoadBalancer ollamaLoadBalancer,
+                                  @Value("${generation.summary.chunk-tokens:2000}") int chunkTokens,
+                                  @Value("${generation.summary.chunk-overlap-tokens:64}") int chunkOverlapTokens,
+                                  @Value("${generation.summary.partial-words:200}") int partialWords) {
+        this.generateService = generateService;
+        this.conversationService = conversationService;
+        this.tokenCountingService = tokenCountingService;
+        this.ollamaLoadBalancer = ollamaLoadBalancer;
+        this.chunkTokens = chunkTokens;
+        this.chunkOverlapTokens = chunkOverlapTokens;
+        this.partialWords = partialWords;
+    }
+
+    /**
+     * Summarizes the chunks of a document, combines the partial summaries until they fit
+     * into the final prompt and generates the answer to that prompt.
+     *
+     * @param file the document
+     * @param text its extracted text
+     * @param model the model generating all steps
+     * @param task what the summary is for, e.g. summary or analysis, for the progress
+     * @param finalPrompt builds the final prompt from the combined partial summaries and their tokens
+     * @param priority the scheduling class of the generations
+     * @param user the user the generations are queued for, or null for the authenticated user
+     * @return future completed with the answer to the final prompt
+     */
+    public CompletableFuture<String> summarize(ChatFiles file, String text, String model, String task,
+                                               BiFunction<String, Integer, String> finalPrompt,
+                                               GenerationPriority priority, String user) {
+        int mapBudget = conversationService.documentBudget(model, mapPrompt("", file.getFileName()));
+        List<TokenCountingService.Span> spans = tokenCountingService.split(text,
+                Math.max(1, Math.min(chunkTokens, mapBudget)), Math.min(chunkOverlapTokens, chunkTokens / 4), model);
+        Run run = new Run(file.getFileId(), model, task, spans.size());
+        runs.put(key(file.getFileId(), model, task), run);
+        log.info("Summarizing file {} with {} in {} chunks", file.getFileId(), model, spans.size());
+
+        List<String> prompts = new ArrayList<>(spans.size());
+        for (TokenCountingService.Span span : spans) {
+            prompts.add(mapPrompt(text.substring(span.start(), span.end()), file.getFileName()));
+        }
+        run.start(Phase.MAP, 0, prompts.size());
+        return generateAll(prompts, model, priority, user, run)
+                .thenCompose(partials -> reduce(partials, 1, file, model, priority, user, run))
+                .thenCompose(combined -> {
+                    run.start(Phase.FINAL, run.level, 1);
+                    String prompt = finalPrompt.apply(combined, tokenCountingService.count(combined, model));
+                    return generate(prompt, model, priority, user);
+                })
+                .whenComplete((answer, e) -> {
+                    if (e != null) {
+                        run.phase = Phase.FAILED;
+                        log.warn("Summary of file {} failed after {}: {}", file.getFileId(), run.elapsed(), e.getMessage());
+                    } else {
+                        run.completed.incrementAndGet();
+                        run.phase = Phase.DONE;
+                        log.info("Summarized file {} ({} chunks, {} reduce levels) in {}", file.getFileId(),
+                                spans.size(), run.level - 1, run.elapsed());
+                    }
+                });
+    }
+
+    /**
+     * The summaries of a file that are running or finished within the last hour.
+     */
+    public List<Progress> progress(Long fileId) {
+        return runs.asMap().values().stream()
+                .filter(run -> run.fileId.equals(fileId))
+                .map(Run::snapshot)
+                .toList();
+    }
+
+    /**
+     * Combines partial summaries until they fit into the final prompt. Each is cut to
+     * half of a reduce prompt, so that every group holds at least two of them and a
+     * level roughly halves their number.
+     */
+    private CompletableFuture<String> reduce(List<String> partials, int level, ChatFiles file, String model,
+                                             GenerationPriority priority, String user, Run run) {
+        String joined = join(partials);
+        if (partials.size() == 1 || tokenCountingService.count(joined, model) <= conversationService.documentBudget(model, "")) {
+            run.level = level;
+            return CompletableFuture.completedFuture(joined);
+        }
+
+        int reduceBudget = conversationService.documentBudget(model, reducePrompt("", file.getFileName()));
+        List<String> prompts = new ArrayList<>();
+        List<String> group = new ArrayList<>();
+        int groupTokens = 0;
+        for (String partial : partials) {
+            String fitted = tokenCountingService.truncate(partial, reduceBudget / 2, model);
+            int tokens = tokenCountingService.count(fitted, model);
+            if (!group.isEmpty() && groupTokens + tokens > reduceBudget) {
+                prompts.add(reducePrompt(join(group), file.getFileName()));
+                group.clear();
+                groupTokens = 0;
+            }
+            group.add(fitted);
+            groupTokens += tokens;
+        }
+        prompts.add(reducePrompt(join(group), file.getFileName()));
+
+        log.debug("Combining {} partial summaries of file {} in {} prompts (level {})",
+                partials.size(), file.getFileId(), prompts.size(), level);
+        run.start(Phase.REDUCE, level, prompts.size());
+        return generateAll(prompts, model, priority, user, run)
+                .thenCompose(combined -> reduce(combined, level + 1, file, model, priority, user, run));
+    }
+
+    /**
+     * Generates the answers to all prompts, as many at a time as the available servers
+     * can run. Stops starting new ones after the first failure.
+     *
+     * @return future completed with the answers without their reasoning, in the order of the prompts
+     */
+    private CompletableFuture<List<String>> generateAll(List<String> prompts, String model,
+                                                        GenerationPriority priority, String user, Run run) {
+        Batch batch = new Batch(prompts, model, priority, user, run);
+        if (prompts.isEmpty()) {
+            batch.result.complete(List.of());
+            return batch.result;
+        }
+        int window = Math.max(1, Math.min(prompts.size(), ollamaLoadBalancer.parallelCapacity()));
+        for (int i = 0; i < window; i++) {
+            startNext(batch);
+        }
+        return batch.result;
+    }
+
+    /**
+     * Starts the next prompt of a batch. Answers from the cache complete at once, so the
+     * prompts after them are started in the loop rather than by recursion.
+     */
+    private void startNext(Batch batch) {
+        while (!batch.result.isDone()) {
+            int index = batch.next.getAndIncrement();
+            if (index >= batch.prompts.size()) {
+                return;
+            }
+            CompletableFuture<String> step = generate(batch.prompts.get(index), batch.model, batch.priority, batch.user);
+            if (step.isDone()) {
+                batch.finish(index, step);
+            } else {
+                step.whenComplete((answer, e) -> {
+                    batch.finish(index, step);
+                    startNext(batch);
+                });
+                return;
+            }
+        }
+    }
+
+    private CompletableFuture<String> generate(String prompt, String model, GenerationPriority priority, String user) {
+        OllamaRequest request = GenerateService.createRequest(prompt, model, priority);
+        request.setUser(user);
+        request.setProfile(GenerationProfile.SUMMARY);
+        return generateService.generate(request);
+    }
+
+    private String mapPrompt(String chunk, String fileName) {
+        return "Summarize the following part of the document \"" + fileName + "\". "
+                + "Keep every key point, name, number, date and conclusion, and add nothing that is not in the text. "
+                + "Answer with the summary only, in at most " + partialWords + " words.\n\n"
+                + "--- PART CONTENT ---\n" + chunk + "\n--- END PART CONTENT ---";
+    }
+
+    private String reducePrompt(String summaries, String fileName) {
+        return "Combine the following summaries of consecutive parts of the document \"" + fileName + "\" into one summary. "
+                + "Keep every key point, name, number, date and conclusion, and add nothing that is not in them. "
+                + "Answer with the summary only, in at most " + partialWords + " words.\n\n"
+                + "--- PART SUMMARIES ---\n" + summaries + "\n--- END PART SUMMARIES ---";
+    }
+
+    private static String join(List<String> summaries) {
+        return String.join("\n\n", summaries);
+    }
+
+    private static String key(Long fileId, String model, String task) {
+        return fileId + ":" + model + ":" + task;
+    }
+
+    /**
+     * The prompts of one phase and the answers collected so far.
+     */
+    private static final class Batch {
+
+        final List<String> prompts;
+        final String model;
+        final GenerationPriority priority;
+        final String user;
+        final Run run;
+        final String[] answers;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger remaining;
+        final CompletableFuture<List<String>> result = new CompletableFuture<>();
+
+        Batch(List<String> prompts, String model, GenerationPriority priority, String user, Run run) {
+            this.prompts = prompts;
+            this.model = model;
+            this.priority = priority;
+            this.user = user;
+            this.run = run;
+            this.answers = new String[prompts.size()];
+            this.remaining = new AtomicInteger(prompts.size());
+        }
+
+        void finish(int index, CompletableFuture<String> step) {
+            String answer;
+            try {
+                answer = step.join();
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+                return;
+            }
+            answers[index] = ThinkTagFilter.removeThinking(answer).strip();
+            run.completed.incrementAndGet();
+            if (remaining.decrementAndGet() == 0) {
+                result.complete(Arrays.asList(answers));
+            }
+        }
+    }
+
+    /**
+     * Progress of one summary.
+     */
+    private static final class Run {
+
+        final Long fileId;
+        final String model;
+        final String task;
+        final int chunks;
+        final long startedAt = System.nanoTime();
+        final AtomicInteger completed = new AtomicInteger();
+        volatile Phase phase = Phase.MAP;
+        volatile int level;
+        volatile int steps;
+
+        Run(Long fileId, String model, String task, int chunks) {
+            this.fileId = fileId;
+            this.model = model;
+            this.task = task;
+            this.chunks = chunks;
+        }
+
+        void start(Phase phase, int level, int steps) {
+            this.level = level;
+            this.steps = steps;
+            this.completed.set(0);
+            this.phase = phase;
+        }
+
+        Duration elapsed() {
+            return Duration.ofNanos(System.nanoTime() - startedAt);
+        }
+
+        Progress snapshot() {
+            return new Progress(fileId, model, task, phase, level, steps, completed.get(), chunks, elapsed());
+        }
+    }
+}
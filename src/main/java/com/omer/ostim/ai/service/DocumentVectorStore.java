@@ -0,0 +1,807 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.config.DocumentRetrievalProperties;
+import com.omer.ostim.ai.config.DocumentRetrievalProperties.VectorEncoding;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the chunk embeddings of uploaded documents on disk, so they survive restarts
+ * without embedding the documents again.
+ * <p>
+ * Vectors are written in immutable segment files ({@code segment-<n>.vec}): a header
+ * with the embedding model, the dimension and the encoding, a table of 40 byte rows
+ * (file, write sequence, chunk index, chunk offsets and tokens, text length, scale)
+ * and then the normalized vectors, contiguous and 64 byte aligned, either as float32
+ * or as int8 with a scale per vector. Every indexed upload is written as a segment of
+ * its own through a temporary file and an atomic move, so a crash never leaves half a
+ * segment behind. At startup the segments are only mapped and their row tables read;
+ * a search reads the vectors of one document straight from the page cache.
+ * <p>
+ * A file indexed again gets a new segment, which supersedes its older rows. A deleted
+ * file is tombstoned in {@code tombstones.log} with the sequence its rows are older
+ * than. Once there are more than {@code max-segments} segments, or one is mostly dead,
+ * the smallest are merged in the background and dead rows dropped. Rows keep their
+ * write sequence when merged, so tombstones stay valid; they take 16 bytes per deleted
+ * file and are kept. Like the generation store, superseded files are deleted once
+ * nothing maps them any more.
+ */
+@Service
+public class DocumentVectorStore {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentVectorStore.class);
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("segment-(\\d+)\\.vec");
+    private static final String TOMBSTONE_FILE = "tombstones.log";
+    // "OSVC"
+    private static final int MAGIC = 0x4F535643;
+    private static final short VERSION = 1;
+    private static final int HEADER_BYTES = 20;
+    private static final int ROW_BYTES = 40;
+    private static final int TOMBSTONE_BYTES = 2 * Long.BYTES;
+    private static final int VECTOR_ALIGNMENT = 64;
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+    private final DocumentRetrievalProperties properties;
+    private final Path directory;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Latest live rows of every stored file
+    private final Map<Long, StoredFile> files = new ConcurrentHashMap<>();
+    private volatile List<Segment> segments = List.of();
+    private volatile boolean open;
+    // Guarded by the write lock
+    private final Map<Long, Long> tombstones = new HashMap<>();
+    private final List<Path> superseded = new ArrayList<>();
+    private FileChannel tombstoneLog;
+    private long nextSequence = 1;
+
+    public DocumentVectorStore(DocumentRetrievalProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.directory = Path.of(properties.getStore().getDir());
+        Gauge.builder("rag.store.segments", this, s -> s.segments.size())
+                .description("Segment files of the document vector store")
+                .register(meterRegistry);
+        Gauge.builder("rag.store.documents", this, s -> s.files.size())
+                .description("Documents with vectors in the document vector store")
+                .register(meterRegistry);
+        Gauge.builder("rag.store.size", this, s -> s.segments.stream().mapToLong(Segment::size).sum())
+                .description("Size of the document vector segment files in bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * One document's vectors in a segment, with where its chunks are in its text.
+     * Stays readable after it is superseded, for searches already holding it.
+     */
+    public static final class StoredFile {
+
+        private final long fileId;
+        private final long sequence;
+        private final Segment segment;
+        private final int firstRow;
+        private final int rows;
+
+        private StoredFile(long fileId, long sequence, Segment segment, int firstRow, int rows) {
+            this.fileId = fileId;
+            this.sequence = sequence;
+            this.segment = segment;
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+
+        public long fileId() {
+            return fileId;
+        }
+
+        /**
+         * Write sequence of the vectors; changes only when the file is indexed again.
+         */
+        public long sequence() {
+            return sequence;
+        }
+
+        public String model() {
+            return segment.model;
+        }
+
+        public int size() {
+            return rows;
+        }
+
+        /**
+         * Length of the extracted text the chunks were split from.
+         */
+        public int textLength() {
+            return segment.textLength(firstRow);
+        }
+
+        public TokenCountingService.Span chunk(int chunkIndex) {
+            return segment.chunk(firstRow + chunkIndex);
+        }
+
+        /**
+         * The normalized vector of a chunk, copied out of the mapping.
+         */
+        public float[] vector(int chunkIndex) {
+            return segment.vector(firstRow + chunkIndex);
+        }
+
+        /**
+         * Compares a query with every chunk of the file.
+         *
+         * @param query the embedded question
+         * @param k the most chunks to return
+         * @return the nearest chunks, nearest first
+         */
+        public List<HnswIndex.Hit> nearest(float[] query, int k) {
+            if (query.length != segment.dimension) {
+                throw new IllegalArgumentException("Query has " + query.length + " dimensions, file " + fileId
+                        + " was embedded with " + segment.dimension);
+            }
+            float[] scores = segment.scores(HnswIndex.normalize(query), firstRow, rows);
+            PriorityQueue<HnswIndex.Hit> nearest = new PriorityQueue<>(Comparator.comparingDouble(HnswIndex.Hit::score));
+            for (int i = 0; i < rows; i++) {
+                float score = scores[i];
+                if (nearest.size() < k) {
+                    nearest.add(new HnswIndex.Hit(fileId, i, score));
+                } else if (score > nearest.peek().score()) {
+                    nearest.poll();
+                    nearest.add(new HnswIndex.Hit(fileId, i, score));
+                }
+            }
+            List<HnswIndex.Hit> hits = new ArrayList<>(nearest);
+            hits.sort(Comparator.comparingDouble(HnswIndex.Hit::score).reversed());
+            return hits;
+        }
+    }
+
+    /**
+     * The stored vectors of a file.
+     *
+     * @return the latest vectors, or null if the file has none or was deleted
+     */
+    public StoredFile file(long fileId) {
+        return files.get(fileId);
+    }
+
+    public Collection<StoredFile> files() {
+        return List.copyOf(files.values());
+    }
+
+    /**
+     * Maps the segment files and reads their row tables. Vectors are not read until a
+     * document is searched, so this takes milliseconds however many are stored.
+     */
+    @PostConstruct
+    public void load() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            long startTime = System.nanoTime();
+            Files.createDirectories(directory);
+            loadTombstones();
+
+            List<Segment> loaded = new ArrayList<>();
+            try (Stream<Path> paths = Files.list(directory)) {
+                for (Path path : paths.toList()) {
+                    String name = path.getFileName().toString();
+                    Matcher matcher = SEGMENT_PATTERN.matcher(name);
+                    if (matcher.matches()) {
+                        long number = Long.parseLong(matcher.group(1));
+                        nextSequence = Math.max(nextSequence, number + 1);
+                        try {
+                            loaded.add(Segment.open(path));
+                        } catch (IOException e) {
+                            log.warn("Skipping unreadable vector segment {}: {}", path, e.getMessage());
+                        }
+                    } else if (name.endsWith(".tmp")) {
+                        // Left behind by a crash during a write or merge
+                        Files.deleteIfExists(path);
+                    }
+                }
+            }
+            for (Segment segment : loaded) {
+                register(segment);
+            }
+            segments = List.copyOf(loaded);
+            open = true;
+            log.info("Mapped {} vector segments with {} documents from {} in {} ms", loaded.size(), files.size(),
+                    directory, Duration.ofNanos(System.nanoTime() - startTime).toMillis());
+        } catch (IOException e) {
+            log.error("Could not open the vector store in {}, documents are not indexed", directory, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the vectors of a file as a new segment, superseding its earlier ones.
+     *
+     * @param fileId the file the chunks belong to
+     * @param textLength length of the extracted text the chunks were split from
+     * @param model the embedding model of the vectors
+     * @param chunks the chunks, in document order
+     * @param vectors one vector per chunk
+     * @return the stored vectors
+     * @throws IOException if the segment could not be written
+     */
+    public StoredFile append(long fileId, int textLength, String model, List<TokenCountingService.Span> chunks,
+                             List<float[]> vectors) throws IOException {
+        if (chunks.isEmpty() || chunks.size() != vectors.size()) {
+            throw new IllegalArgumentException("Expected one vector per chunk, got " + vectors.size()
+                    + " for " + chunks.size());
+        }
+        long number;
+        writeLock.lock();
+        try {
+            if (!open) {
+                throw new IOException("Vector store in " + directory + " is not open");
+            }
+            number = nextSequence++;
+        } finally {
+            writeLock.unlock();
+        }
+
+        List<Row> rows = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            TokenCountingService.Span chunk = chunks.get(i);
+            rows.add(new Row(fileId, number, chunk.start(), chunk.end(), chunk.tokens(), textLength));
+        }
+        Segment segment = writeSegment(number, model, vectors.get(0).length, rows, vectors::get);
+        StoredFile stored = new StoredFile(fileId, number, segment, 0, rows.size());
+
+        writeLock.lock();
+        try {
+            List<Segment> next = new ArrayList<>(segments);
+            next.add(segment);
+            segments = List.copyOf(next);
+            // Unless the file was deleted while it was written
+            if (number >= tombstones.getOrDefault(fileId, 0L)) {
+                files.put(fileId, stored);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return stored;
+    }
+
+    /**
+     * Tombstones the vectors of a file. Vectors written for it afterwards are kept.
+     */
+    public void delete(long fileId) {
+        writeLock.lock();
+        try {
+            if (!open || files.remove(fileId) == null) {
+                return;
+            }
+            long sequence = nextSequence;
+            tombstones.put(fileId, sequence);
+            ByteBuffer record = ByteBuffer.allocate(TOMBSTONE_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+                    .putLong(fileId)
+                    .putLong(sequence)
+                    .flip();
+            writeFully(tombstoneLog, record, tombstoneLog.size());
+            tombstoneLog.force(false);
+        } catch (IOException e) {
+            log.warn("Could not tombstone the vectors of file {}: {}", fileId, e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Drops segments without live rows and merges the smallest ones once there are too
+     * many, or one that is mostly dead.
+     */
+    @Scheduled(initialDelay = 60000, fixedDelayString = "${rag.store.merge-interval:600000}")
+    public void maintain() {
+        if (!open) {
+            return;
+        }
+        try {
+            merge();
+            deleteSupersededFiles();
+        } catch (IOException e) {
+            log.error("Vector store maintenance failed", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        writeLock.lock();
+        try {
+            open = false;
+            if (tombstoneLog != null) {
+                tombstoneLog.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not close the vector store: {}", e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void loadTombstones() throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(TOMBSTONE_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        long complete = size - size % TOMBSTONE_BYTES;
+        if (complete < size) {
+            // Torn write from a crash
+            log.warn("Truncating vector tombstones at offset {} of {}", complete, size);
+            channel.truncate(complete);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) complete).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new IOException("Vector tombstones ended early");
+            }
+        }
+        buffer.flip();
+        while (buffer.remaining() >= TOMBSTONE_BYTES) {
+            long fileId = buffer.getLong();
+            long sequence = buffer.getLong();
+            tombstones.merge(fileId, sequence, Math::max);
+            nextSequence = Math.max(nextSequence, sequence);
+        }
+        tombstoneLog = channel;
+    }
+
+    /**
+     * Adds the rows of a segment that are neither tombstoned nor superseded by rows
+     * with a later sequence. The rows of a file are always next to each other.
+     */
+    private void register(Segment segment) {
+        int row = 0;
+        while (row < segment.rows) {
+            long fileId = segment.fileId(row);
+            long sequence = segment.sequence(row);
+            int first = row;
+            while (row < segment.rows && segment.fileId(row) == fileId && segment.sequence(row) == sequence) {
+                row++;
+            }
+            if (sequence >= tombstones.getOrDefault(fileId, 0L)) {
+                StoredFile stored = new StoredFile(fileId, sequence, segment, first, row - first);
+                files.merge(fileId, stored, (current, other) -> current.sequence >= other.sequence ? current : other);
+            }
+        }
+    }
+
+    private void merge() throws IOException {
+        List<Segment> inputs;
+        List<StoredFile> moved = new ArrayList<>();
+        long number;
+        writeLock.lock();
+        try {
+            Map<Segment, Integer> liveRows = new IdentityHashMap<>();
+            Map<Segment, List<StoredFile>> liveFiles = new IdentityHashMap<>();
+            for (StoredFile stored : files.values()) {
+                liveRows.merge(stored.segment, stored.rows, Integer::sum);
+                liveFiles.computeIfAbsent(stored.segment, segment -> new ArrayList<>()).add(stored);
+            }
+            List<Segment> live = new ArrayList<>();
+            for (Segment segment : segments) {
+                if (liveRows.containsKey(segment)) {
+                    live.add(segment);
+                } else {
+                    superseded.add(segment.path);
+                }
+            }
+            if (live.size() < segments.size()) {
+                log.debug("Dropping {} vector segments without live rows", segments.size() - live.size());
+                segments = List.copyOf(live);
+            }
+
+            inputs = mergeInputs(live, liveRows);
+            if (inputs.isEmpty()) {
+                return;
+            }
+            for (Segment segment : inputs) {
+                moved.addAll(liveFiles.get(segment));
+            }
+            moved.sort(Comparator.comparingLong(stored -> stored.fileId));
+            number = nextSequence++;
+        } finally {
+            writeLock.unlock();
+        }
+
+        // Segments are immutable, so the rows are copied without holding the lock
+        List<Row> rows = new ArrayList<>();
+        List<StoredFile> sources = new ArrayList<>();
+        for (StoredFile stored : moved) {
+            for (int i = 0; i < stored.rows; i++) {
+                TokenCountingService.Span chunk = stored.chunk(i);
+                rows.add(new Row(stored.fileId, stored.sequence, chunk.start(), chunk.end(), chunk.tokens(),
+                        stored.textLength()));
+                sources.add(stored);
+            }
+        }
+        int[] chunkIndexes = new int[rows.size()];
+        for (int row = 1; row < rows.size(); row++) {
+            chunkIndexes[row] = sources.get(row) == sources.get(row - 1) ? chunkIndexes[row - 1] + 1 : 0;
+        }
+        Segment merged = writeSegment(number, inputs.get(0).model, inputs.get(0).dimension, rows,
+                row -> sources.get(row).vector(chunkIndexes[row]));
+
+        writeLock.lock();
+        try {
+            int firstRow = 0;
+            for (StoredFile stored : moved) {
+                // Files indexed again or deleted meanwhile keep their dead rows until the next merge
+                files.replace(stored.fileId, stored,
+                        new StoredFile(stored.fileId, stored.sequence, merged, firstRow, stored.rows));
+                firstRow += stored.rows;
+            }
+            List<Segment> next = new ArrayList<>(segments);
+            next.removeAll(inputs);
+            next.add(merged);
+            segments = List.copyOf(next);
+            inputs.forEach(segment -> superseded.add(segment.path));
+        } finally {
+            writeLock.unlock();
+        }
+        log.info("Merged {} vector segments into {} with {} vectors", inputs.size(), merged.path, rows.size());
+    }
+
+    /**
+     * Picks segments of the current embedding model to merge, smallest first: as many
+     * as it takes to get back to half of {@code max-segments}, and any that are mostly
+     * dead, up to {@code max-segment-size}.
+     */
+    private List<Segment> mergeInputs(List<Segment> live, Map<Segment, Integer> liveRows) {
+        DocumentRetrievalProperties.Store settings = properties.getStore();
+        int maxSegments = Math.max(1, settings.getMaxSegments());
+        int excess = live.size() > maxSegments ? live.size() - maxSegments / 2 : 0;
+        long maxBytes = Math.min(settings.getMaxSegmentSize().toBytes(), Integer.MAX_VALUE);
+        List<Segment> candidates = live.stream()
+                .filter(segment -> segment.model.equals(properties.getEmbeddingModel()))
+                .sorted(Comparator.comparingInt(liveRows::get))
+                .toList();
+
+        List<Segment> inputs = new ArrayList<>();
+        long bytes = 0;
+        for (Segment segment : candidates) {
+            int rows = liveRows.get(segment);
+            boolean mostlyDead = rows * 2 < segment.rows;
+            if (!mostlyDead && inputs.size() > excess) {
+                continue;
+            }
+            if (!inputs.isEmpty() && segment.dimension != inputs.get(0).dimension) {
+                continue;
+            }
+            long size = (long) rows * (ROW_BYTES + (long) segment.dimension * bytesPerValue(settings.getEncoding()));
+            if (bytes + size > maxBytes) {
+                continue;
+            }
+            inputs.add(segment);
+            bytes += size;
+        }
+        // Rewriting a single segment only pays off when most of it is dead
+        if (inputs.size() == 1 && liveRows.get(inputs.get(0)) * 2 >= inputs.get(0).rows) {
+            return List.of();
+        }
+        return inputs;
+    }
+
+    private Segment writeSegment(long number, String model, int dimension, List<Row> rows,
+                                 IntFunction<float[]> vectors) throws IOException {
+        VectorEncoding encoding = properties.getStore().getEncoding();
+        byte[] modelName = model.getBytes(StandardCharsets.UTF_8);
+        Layout layout = Layout.of(modelName.length, rows.size(), dimension, encoding);
+        if (layout.size() > Integer.MAX_VALUE) {
+            throw new IOException("Vector segment of " + layout.size() + " bytes exceeds the 2 GB mapping limit");
+        }
+        Path temp = directory.resolve("segment-" + number + ".tmp");
+        Path path = directory.resolve("segment-" + number + ".vec");
+
+        ByteBuffer table = ByteBuffer.allocate((int) layout.vectorOffset()).order(ByteOrder.LITTLE_ENDIAN);
+        table.putInt(MAGIC)
+                .putShort(VERSION)
+                .put((byte) encoding.ordinal())
+                .put((byte) 0)
+                .putInt(dimension)
+                .putInt(rows.size())
+                .putInt(modelName.length)
+                .put(modelName);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int vectorBytes = dimension * bytesPerValue(encoding);
+            ByteBuffer block = ByteBuffer.allocate(Math.max(WRITE_BUFFER_BYTES, vectorBytes)).order(ByteOrder.LITTLE_ENDIAN);
+            long position = layout.vectorOffset();
+            int chunkIndex = 0;
+            for (int i = 0; i < rows.size(); i++) {
+                float[] vector = vectors.apply(i);
+                if (vector.length != dimension) {
+                    throw new IllegalArgumentException("Vector " + i + " has " + vector.length
+                            + " dimensions instead of " + dimension);
+                }
+                if (block.remaining() < vectorBytes) {
+                    position = flush(out, block, position);
+                }
+                float scale = encode(HnswIndex.normalize(vector), encoding, block);
+
+                Row row = rows.get(i);
+                chunkIndex = i > 0 && row.fileId() == rows.get(i - 1).fileId() ? chunkIndex + 1 : 0;
+                table.position((int) layout.tableOffset() + i * ROW_BYTES);
+                table.putLong(row.fileId())
+                        .putLong(row.sequence())
+                        .putInt(chunkIndex)
+                        .putInt(row.start())
+                        .putInt(row.end())
+                        .putInt(row.tokens())
+                        .putInt(row.textLength())
+                        .putFloat(scale);
+            }
+            flush(out, block, position);
+            writeFully(out, table.clear(), 0);
+            out.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        return Segment.open(path);
+    }
+
+    /**
+     * Removes merged and dropped segment files. On Windows a file stays locked until
+     * its mapping is garbage collected, so a failed delete is simply retried on the
+     * next run.
+     */
+    private void deleteSupersededFiles() {
+        writeLock.lock();
+        try {
+            superseded.removeIf(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                    return true;
+                } catch (IOException e) {
+                    log.debug("Superseded vector segment {} is still in use", path);
+                    return false;
+                }
+            });
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a normalized vector.
+     *
+     * @return the factor that turns the stored values back into the vector
+     */
+    private static float encode(float[] vector, VectorEncoding encoding, ByteBuffer out) {
+        if (encoding == VectorEncoding.FLOAT32) {
+            for (float value : vector) {
+                out.putFloat(value);
+            }
+            return 1;
+        }
+        float max = 0;
+        for (float value : vector) {
+            max = Math.max(max, Math.abs(value));
+        }
+        float scale = max == 0 ? 1 : max / 127;
+        for (float value : vector) {
+            out.put((byte) Math.max(-127, Math.min(127, Math.round(value / scale))));
+        }
+        return scale;
+    }
+
+    private static long flush(FileChannel out, ByteBuffer block, long position) throws IOException {
+        block.flip();
+        long end = position + block.remaining();
+        writeFully(out, block, position);
+        block.clear();
+        return end;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int bytesPerValue(VectorEncoding encoding) {
+        return encoding == VectorEncoding.FLOAT32 ? Float.BYTES : 1;
+    }
+
+    private record Row(long fileId, long sequence, int start, int end, int tokens, int textLength) {
+    }
+
+    /**
+     * Where the parts of a segment file start: header and model name, the row table
+     * aligned to 8 bytes and the vectors aligned to 64.
+     */
+    private record Layout(long tableOffset, long vectorOffset, long size) {
+
+        static Layout of(int modelLength, int rows, int dimension, VectorEncoding encoding) {
+            long tableOffset = align(HEADER_BYTES + (long) modelLength, Long.BYTES);
+            long vectorOffset = align(tableOffset + (long) rows * ROW_BYTES, VECTOR_ALIGNMENT);
+            return new Layout(tableOffset, vectorOffset, vectorOffset + (long) rows * dimension * bytesPerValue(encoding));
+        }
+
+        private static long align(long offset, int alignment) {
+            return (offset + alignment - 1) / alignment * alignment;
+        }
+    }
+
+    /**
+     * One mapped segment file. The mapping stays valid after its channel is closed and,
+     * on Linux, after the file is deleted.
+     */
+    private static final class Segment {
+
+        private final Path path;
+        private final String model;
+        private final int dimension;
+        private final int rows;
+        private final long size;
+        private final ByteBuffer table;
+        // One of the two views of the vectors, depending on the encoding
+        private final FloatBuffer floats;
+        private final ByteBuffer bytes;
+
+        private Segment(Path path, ByteBuffer mapping) throws IOException {
+            this.path = path;
+            this.size = mapping.capacity();
+            if (size < HEADER_BYTES || mapping.getInt(0) != MAGIC || mapping.getShort(4) != VERSION) {
+                throw new IOException("Not a version " + VERSION + " vector segment");
+            }
+            int encodingIndex = mapping.get(6);
+            this.dimension = mapping.getInt(8);
+            this.rows = mapping.getInt(12);
+            int modelLength = mapping.getInt(16);
+            if (encodingIndex < 0 || encodingIndex >= VectorEncoding.values().length || dimension <= 0 || rows < 0
+                    || modelLength < 0 || modelLength > size - HEADER_BYTES) {
+                throw new IOException("Corrupt vector segment header");
+            }
+            VectorEncoding encoding = VectorEncoding.values()[encodingIndex];
+            Layout layout = Layout.of(modelLength, rows, dimension, encoding);
+            if (layout.size() != size) {
+                throw new IOException("Vector segment has " + size + " bytes instead of " + layout.size());
+            }
+            byte[] modelName = new byte[modelLength];
+            mapping.get(HEADER_BYTES, modelName);
+            this.model = new String(modelName, StandardCharsets.UTF_8);
+
+            this.table = mapping.slice((int) layout.tableOffset(), rows * ROW_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer vectors = mapping.slice((int) layout.vectorOffset(), (int) (size - layout.vectorOffset()))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            this.floats = encoding == VectorEncoding.FLOAT32 ? vectors.asFloatBuffer() : null;
+            this.bytes = encoding == VectorEncoding.INT8 ? vectors : null;
+        }
+
+        static Segment open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Vector segment of " + size + " bytes exceeds the 2 GB mapping limit");
+                }
+                return new Segment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN));
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        long fileId(int row) {
+            return table.getLong(rowOffset(row));
+        }
+
+        long sequence(int row) {
+            return table.getLong(rowOffset(row) + 8);
+        }
+
+        TokenCountingService.Span chunk(int row) {
+            int offset = rowOffset(row);
+            return new TokenCountingService.Span(table.getInt(offset + 20), table.getInt(offset + 24),
+                    table.getInt(offset + 28));
+        }
+
+        int textLength(int row) {
+            return table.getInt(rowOffset(row) + 32);
+        }
+
+        float scale(int row) {
+            return table.getFloat(rowOffset(row) + 36);
+        }
+
+        float[] vector(int row) {
+            float[] vector = new float[dimension];
+            int base = row * dimension;
+            if (floats != null) {
+                floats.get(base, vector);
+                return vector;
+            }
+            float scale = scale(row);
+            for (int i = 0; i < dimension; i++) {
+                vector[i] = bytes.get(base + i) * scale;
+            }
+            return vector;
+        }
+
+        /**
+         * Dot products of a normalized query with the vectors of consecutive rows. Each
+         * vector is copied out of the mapping in one go, so the products run over plain
+         * arrays.
+         */
+        float[] scores(float[] query, int firstRow, int count) {
+            float[] scores = new float[count];
+            float[] vector = new float[dimension];
+            byte[] quantized = floats == null ? new byte[dimension] : null;
+            for (int row = 0; row < count; row++) {
+                int base = (firstRow + row) * dimension;
+                if (floats != null) {
+                    floats.get(base, vector);
+                    scores[row] = dot(query, vector);
+                } else {
+                    bytes.get(base, quantized);
+                    for (int i = 0; i < dimension; i++) {
+                        vector[i] = quantized[i];
+                    }
+                    scores[row] = dot(query, vector) * scale(firstRow + row);
+                }
+            }
+            return scores;
+        }
+
+        private static float dot(float[] query, float[] vector) {
+            // Four independent sums, so the additions do not wait for each other
+            float dot0 = 0;
+            float dot1 = 0;
+            float dot2 = 0;
+            float dot3 = 0;
+            int i = 0;
+            for (int end = vector.length - 3; i < end; i += 4) {
+                dot0 += query[i] * vector[i];
+                dot1 += query[i + 1] * vector[i + 1];
+                dot2 += query[i + 2] * vector[i + 2];
+                dot3 += query[i + 3] * vector[i + 3];
+            }
+            for (; i < vector.length; i++) {
+                dot0 += query[i] * vector[i];
+            }
+            return dot0 + dot1 + dot2 + dot3;
+        }
+
+        private static int rowOffset(int row) {
+            return row * ROW_BYTES;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.omer.ostim.ai.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.omer.ostim.ai.dto.GenerationPriority;
+import com.omer.ostim.ai.exception.OllamaServerException;
+import com.omer.ostim.ai.model.ChatServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Embeds text with the Ollama {@code /api/embed} API.
+ * <p>
+ * Embedding requests are routed like generations: the {@link OllamaLoadBalancer}
+ * picks the server and the request waits for a turn on that server's
+ * {@link OllamaServerConnection} in its priority class, so indexing a large upload
+ * in the background does not hold up chat answers.
+ */
+@Service
+public class EmbeddingService {
+
+    private static final Logger log = LoggerFactory.getLogger(EmbeddingService.class);
+
+    private final OllamaConnectionService ollamaConnectionService;
+    private final OllamaLoadBalancer ollamaLoadBalancer;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public EmbeddingService(OllamaConnectionService ollamaConnectionService, OllamaLoadBalancer ollamaLoadBalancer) {
+        this.ollamaConnectionService = ollamaConnectionService;
+        this.ollamaLoadBalancer = ollamaLoadBalancer;
+    }
+
+    /**
+     * Embeds texts in one request.
+     *
+     * @param model the embedding model, e.g. nomic-embed-text
+     * @param inputs the texts to embed
+     * @param priority the scheduling class of the request
+     * @return a future completed with one vector per input, in the order of the inputs
+     */
+    public CompletableFuture<List<float[]>> embed(String model, List<String> inputs, GenerationPriority priority) {
+        if (inputs.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        ServerLease lease;
+        try {
+            lease = ollamaLoadBalancer.acquire(model);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<List<float[]>> result;
+        try {
+            result = embedOn(lease, model, inputs, priority);
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return result.whenComplete((vectors, error) -> lease.release(error));
+    }
+
+    private CompletableFuture<List<float[]>> embedOn(ServerLease lease, String model, List<String> inputs,
+                                                     GenerationPriority priority) {
+        ChatServer server = lease.getServer();
+        OllamaServerConnection connection = ollamaConnectionService.getConnection(server);
+        HttpRequest httpRequest = buildHttpRequest(server, connection, model, inputs);
+        double cost = inputs.stream().mapToInt(String::length).sum() / 4.0;
+
+        return connection.acquire(priority, null, cost, null)
+                .thenCompose(permit -> {
+                    lease.markSent();
+                    return connection.getHttpClient()
+                            .sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
+                            .whenComplete((response, error) -> permit.release());
+                })
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        throw new CompletionException(new OllamaServerException(response.statusCode(),
+                                "Ollama could not embed with " + model + ": HTTP " + response.statusCode() + " " + response.body()));
+                    }
+                    try {
+                        return vectorsOf(objectMapper.readTree(response.body()), inputs.size());
+                    } catch (JsonProcessingException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    private HttpRequest buildHttpRequest(ChatServer server, OllamaServerConnection connection, String model,
+                                         List<String> inputs) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("model", model);
+        body.put("input", inputs);
+        // Cut inputs longer than the context of the embedding model instead of failing
+        body.put("truncate", true);
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder()
+                    .uri(URI.create(ollamaConnectionService.getApiUrl(server, "/api/embed")))
+                    .timeout(connection.getSettings().getReadTimeout())
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body)));
+            HttpHeaders headers = ollamaConnectionService.createHeaders(server);
+            headers.forEach((name, values) -> values.forEach(value -> builder.header(name, value)));
+
+            log.debug("Embedding {} texts with {} on Ollama server {}", inputs.size(), model, server.getServerId());
+            return builder.build();
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not serialize embedding request", e);
+        }
+    }
+
+    private static List<float[]> vectorsOf(JsonNode response, int expected) {
+        JsonNode embeddings = response.path("embeddings");
+        if (!embeddings.isArray() || embeddings.size() != expected) {
+            throw new IllegalStateException("Ollama returned " + embeddings.size() + " embeddings for " + expected + " inputs");
+        }
+        List<float[]> vectors = new ArrayList<>(expected);
+        for (JsonNode embedding : embeddings) {
+            float[] vector = new float[embedding.size()];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = embedding.get(i).floatValue();
+            }
+            vectors.add(vector);
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,31 @@
+package com.omer.ostim.ai.service;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Latency-weighted choice: the cost of a server is its latency average multiplied
+ * by the requests it already has in flight plus this one. A fast GPU box therefore
+ * takes more traffic than a slow one, until its queue makes it as slow.
+ * Servers without measurements yet count as 1 ms so they get probed early.
+ */
+public class EwmaLatencyStrategy implements LoadBalancingStrategy {
+
+    @Override
+    public ServerLoad choose(List<ServerLoad> candidates) {
+        ServerLoad best = null;
+        double bestCost = Double.MAX_VALUE;
+        int ties = 0;
+        for (ServerLoad candidate : candidates) {
+            double cost = Math.max(candidate.getLatencyEwmaMillis(), 1.0) * (candidate.getInFlight() + 1);
+            if (cost < bestCost) {
+                best = candidate;
+                bestCost = cost;
+                ties = 1;
+            } else if (cost == bestCost && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+}
@@ -8,6 +8,10 @@ import org.apache.tika.parser.ParseContext;
 import org.apache.tika.sax.BodyContentHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import org.xml.sax.SAXException;
@@ -20,12 +24,20 @@ import java.nio.file.Path;
 // import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Service
 public class FileProcessingService {
 
     private static final Logger log = LoggerFactory.getLogger(FileProcessingService.class);
     private final Tika tika;
+    private final AsyncTaskExecutor extractionExecutor;
+    
+    @Value("${file.extraction-timeout:120000}")
+    private long extractionTimeout;
     
     // Supported file types for text extraction
     private static final List<String> SUPPORTED_TEXT_TYPES = Arrays.asList(
@@ -46,8 +58,9 @@ public class FileProcessingService {
         "application/rtf"
     );
     
-    public FileProcessingService() {
+    public FileProcessingService(@Qualifier("fileExtractionExecutor") AsyncTaskExecutor extractionExecutor) {
         this.tika = new Tika();
+        this.extractionExecutor = extractionExecutor;
     }
     
     /**
@@ -60,12 +73,10 @@ public class FileProcessingService {
     public String extractTextFromFile(MultipartFile file) throws IOException, TikaException {
         log.info("Starting text extraction for file: {} ({})", file.getOriginalFilename(), file.getContentType());
         
-        try (InputStream inputStream = file.getInputStream()) {
-            String extractedText = extractTextFromInputStream(inputStream, file.getContentType());
-            log.info("Successfully extracted {} characters from file: {}", 
-                extractedText.length(), file.getOriginalFilename());
-            return extractedText;
-        }
+        String extractedText = extractText(file, file.getContentType());
+        log.info("Successfully extracted {} characters from file: {}", 
+            extractedText.length(), file.getOriginalFilename());
+        return extractedText;
     }
     
     /**
@@ -85,29 +96,64 @@ public class FileProcessingService {
         String contentType = tika.detect(filePath);
         log.debug("Detected content type: {} for file: {}", contentType, filePath);
         
-        try (InputStream inputStream = Files.newInputStream(filePath)) {
-            String extractedText = extractTextFromInputStream(inputStream, contentType);
-            log.info("Successfully extracted {} characters from file: {}", 
-                extractedText.length(), filePath.getFileName());
-            return extractedText;
-        }
+        String extractedText = extractText(() -> Files.newInputStream(filePath), contentType);
+        log.info("Successfully extracted {} characters from file: {}", 
+            extractedText.length(), filePath.getFileName());
+        return extractedText;
     }
     
     /**
-     * Extract text content from an InputStream
-     * @param inputStream The input stream containing the file data
+     * Extract text content from a file
+     * @param source Opens the file data; the extraction task opens and closes its own stream
      * @param contentType The MIME type of the file
      * @return Extracted text content
-     * @throws IOException If there's an error reading the stream
+     * @throws IOException If there's an error reading the file
      * @throws TikaException If there's an error parsing the content
      */
-    private String extractTextFromInputStream(InputStream inputStream, String contentType) 
+    private String extractText(InputStreamSource source, String contentType) 
             throws IOException, TikaException {
         
         if (!isTextExtractionSupported(contentType)) {
             throw new TikaException("Text extraction not supported for content type: " + contentType);
         }
         
+        // Parse on the extraction executor (virtual threads when enabled) so that a
+        // hanging parser can be abandoned after the configured timeout. Tika does not
+        // react to interrupts, so an abandoned parse keeps reading; it reads a stream
+        // of its own that nobody else closes or reuses.
+        Future<String> extraction = extractionExecutor.submit(() -> {
+            try (InputStream inputStream = source.getInputStream()) {
+                return parseInputStream(inputStream, contentType);
+            }
+        });
+        try {
+            return extraction.get(extractionTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            extraction.cancel(true);
+            throw new TikaException("Text extraction timed out after " + extractionTimeout + " ms");
+        } catch (InterruptedException e) {
+            extraction.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Text extraction was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TikaException tikaException) {
+                throw tikaException;
+            }
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new TikaException("Unexpected error during text extraction: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+    
+    /**
+     * Parse an InputStream with Tika's AutoDetectParser
+     * @param inputStream The input stream containing the file data
+     * @param contentType The MIME type of the file
+     * @return Extracted text content
+     * @throws TikaException If there's an error parsing the content
+     */
+    private String parseInputStream(InputStream inputStream, String contentType) throws TikaException {
         try {
             // Use Tika's AutoDetectParser for automatic format detection and parsing
             AutoDetectParser parser = new AutoDetectParser();
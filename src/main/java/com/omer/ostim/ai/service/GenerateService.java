@@ -1,50 +1,191 @@
 package com.omer.ostim.ai.service;
 
+import com.omer.ostim.ai.dto.GenerationPriority;
 import com.omer.ostim.ai.dto.OllamaRequest;
 import com.omer.ostim.ai.dto.OllamaResponse;
+import com.omer.ostim.ai.exception.DeadlineExceededException;
+import com.omer.ostim.ai.util.GenerationKeyUtil;
 
-import lombok.RequiredArgsConstructor;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+
+/**
+ * Entry point for every text generation in the application.
+ * <p>
+ * A request first gets the Ollama options of its profile from the
+ * {@link GenerationProfileService} and is then looked up in the {@link GenerationCache};
+ * on a miss it goes through the {@link GenerationCoalescer}, so identical concurrent
+ * requests share one inference, and the completed response is cached for the next caller.
+ * Requests without a user are attributed to the authenticated user of the calling
+ * thread, so busy servers are shared fairly between users.
+ * <p>
+ * Cancelling the future of a generation withdraws the caller from it; the inference is
+ * aborted once no other caller is waiting for it.
+ * <p>
+ * Every generation has a deadline, the learned default of the {@link DeadlinePolicy} unless
+ * the caller set one. A generation that cannot finish in time is cut short or rejected up
+ * front, and a caller still waiting when its deadline passes gets a
+ * {@link DeadlineExceededException} and is withdrawn like a cancelled one.
+ */
 @Service
-@RequiredArgsConstructor
 public class GenerateService {
 
-    private final RestTemplate restTemplate;
-    private static final String OLLAMA_ENDPOINT = "http://localhost:11434/api/generate";
+    private final GenerationCache generationCache;
+    private final GenerationCoalescer generationCoalescer;
+    private final DeadlinePolicy deadlinePolicy;
+    private final GenerationProfileService generationProfileService;
+    private final TaskScheduler deadlineScheduler;
+
+    public GenerateService(GenerationCache generationCache,
+                           GenerationCoalescer generationCoalescer,
+                           DeadlinePolicy deadlinePolicy,
+                           GenerationProfileService generationProfileService,
+                           @Qualifier("deadlineScheduler") TaskScheduler deadlineScheduler) {
+        this.generationCache = generationCache;
+        this.generationCoalescer = generationCoalescer;
+        this.deadlinePolicy = deadlinePolicy;
+        this.generationProfileService = generationProfileService;
+        this.deadlineScheduler = deadlineScheduler;
+    }
 
     public OllamaResponse generateResponse(String prompt, String model) {
         try {
-            
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-
-            OllamaRequest request = new OllamaRequest();
-            request.setModel(model);
-            request.setPrompt(prompt);
-            request.setStream(false);
-
-            HttpEntity<OllamaRequest> entity = new HttpEntity<>(request, headers);
-            ResponseEntity<OllamaResponse> response = restTemplate.postForEntity(
-                    OLLAMA_ENDPOINT,
-                    entity,
-                    OllamaResponse.class);
-
-            if (response.getBody() == null) {
-                // throw new AIGenerationException("No response received from Ollama");
-                throw new RuntimeException("No response received from Ollama");
+            OllamaResponse response = new OllamaResponse();
+            response.setModel(model);
+            response.setResponse(generate(createRequest(prompt, model)).join());
+            response.setDone(true);
+            return response;
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new RuntimeException("Failed to generate AI response: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Generates a complete response.
+     *
+     * @param request the model, prompt and generation options
+     * @return a future completed with the generated text
+     */
+    public CompletableFuture<String> generate(OllamaRequest request) {
+        return stream(request, null);
+    }
+
+    /**
+     * Streams a response. On a cache hit the whole cached text is delivered to
+     * {@code onToken} as a single chunk.
+     *
+     * @param request the model, prompt and generation options
+     * @param onToken callback for response chunks, or null when only the final text is needed
+     * @return a future completed with the full generated text
+     */
+    public CompletableFuture<String> stream(OllamaRequest request, Consumer<String> onToken) {
+        if (request.getUser() == null) {
+            Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+            if (authentication != null) {
+                request.setUser(authentication.getName());
+            }
+        }
+        // The caller's request may be used again, so options, deadline and a cut answer go on a copy
+        OllamaRequest scheduled = copyOf(request);
+        generationProfileService.apply(scheduled);
+        String key = GenerationKeyUtil.generationKey(scheduled);
+
+        String cached = generationCache.get(key);
+        if (cached != null) {
+            try {
+                if (onToken != null) {
+                    onToken.accept(cached);
+                }
+                return CompletableFuture.completedFuture(cached);
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
             }
+        }
 
-            return response.getBody();
-        } catch (Exception e) {
-            // throw new AIGenerationException("Failed to generate AI response: " +
-            // e.getMessage(), e);
-            throw new RuntimeException("Failed to generate AI response: " + e.getMessage(), e);
+        Map<String, Object> options = scheduled.getOptions();
+        if (scheduled.getDeadline() == null) {
+            scheduled.setDeadline(deadlinePolicy.defaultDeadline(scheduled));
         }
+        try {
+            deadlinePolicy.fitToDeadline(scheduled);
+        } catch (DeadlineExceededException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // A cut answer is cached apart from the full one
+        String scheduledKey = scheduled.getOptions() != options ? GenerationKeyUtil.generationKey(scheduled) : key;
+
+        CompletableFuture<String> generation = generationCoalescer.stream(scheduled, onToken);
+        CompletableFuture<String> result = generation.thenApply(response -> {
+            generationCache.put(scheduledKey, response);
+            return response;
+        });
+        ScheduledFuture<?> expiry = deadlineScheduler.schedule(() -> {
+            if (result.completeExceptionally(new DeadlineExceededException("No answer from model "
+                    + scheduled.getModel() + " before the deadline"))) {
+                deadlinePolicy.deadlineExpired();
+                generation.cancel(false);
+            }
+        }, scheduled.getDeadline());
+        result.whenComplete((response, error) -> {
+            // Drops the expiry task and with it the request and callback it holds
+            expiry.cancel(false);
+            if (result.isCancelled()) {
+                generation.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    private static OllamaRequest copyOf(OllamaRequest request) {
+        OllamaRequest copy = new OllamaRequest();
+        copy.setModel(request.getModel());
+        copy.setPrompt(request.getPrompt());
+        copy.setMessages(request.getMessages());
+        copy.setStream(request.getStream());
+        copy.setOptions(request.getOptions());
+        copy.setKeepAlive(request.getKeepAlive());
+        copy.setPriority(request.getPriority());
+        copy.setUser(request.getUser());
+        copy.setSession(request.getSession());
+        copy.setDeadline(request.getDeadline());
+        copy.setProfile(request.getProfile());
+        return copy;
+    }
+
+    /**
+     * Creates a generation request without explicit options.
+     *
+     * @param prompt the input prompt
+     * @param model the model to use
+     * @return the request
+     */
+    public static OllamaRequest createRequest(String prompt, String model) {
+        return createRequest(prompt, model, GenerationPriority.INTERACTIVE);
+    }
+
+    /**
+     * Creates a generation request without explicit options.
+     *
+     * @param prompt the input prompt
+     * @param model the model to use
+     * @param priority the scheduling class of the request
+     * @return the request
+     */
+    public static OllamaRequest createRequest(String prompt, String model, GenerationPriority priority) {
+        OllamaRequest request = new OllamaRequest();
+        request.setModel(model);
+        request.setPrompt(prompt);
+        request.setPriority(priority);
+        return request;
     }
-}
\ No newline at end of file
+}
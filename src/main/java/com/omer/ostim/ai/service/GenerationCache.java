@@ -0,0 +1,86 @@
+package com.omer.ostim.ai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+
+/**
+ * Bounded in-memory cache of completed generations, keyed by the generation key
+ * (model, options and prompt digest).
+ * <p>
+ * Caffeine evicts with W-TinyLFU, so a burst of one-off prompts cannot flush the
+ * frequently repeated ones (the same question about the same file, re-summarizing a
+ * document). The bound is on the total number of cached characters rather than on
+ * the entry count, because responses range from a few words to whole reports.
+ * Hit, miss and eviction counts are published as the {@code cache.*} metrics with
+ * {@code cache=generations}.
+ * <p>
+ * Below the in-heap tier sits the {@link PersistentGenerationStore}, so expensive
+ * results such as file summaries and analyses survive restarts. A response found only
+ * on disk is promoted back into memory.
+ */
+@Service
+public class GenerationCache {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationCache.class);
+
+    private final Cache<String, String> cache;
+    private final PersistentGenerationStore persistentStore;
+    private final boolean enabled;
+
+    public GenerationCache(MeterRegistry meterRegistry,
+                           PersistentGenerationStore persistentStore,
+                           @Value("${generation.cache.enabled:true}") boolean enabled,
+                           @Value("${generation.cache.max-characters:20000000}") long maxCharacters,
+                           @Value("${generation.cache.ttl:6h}") Duration ttl) {
+        this.persistentStore = persistentStore;
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxCharacters)
+                .weigher((String key, String value) -> key.length() + value.length())
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "generations");
+        log.info("Generation cache {} (max {} characters, ttl {})", enabled ? "enabled" : "disabled", maxCharacters, ttl);
+    }
+
+    /**
+     * @param key the generation key
+     * @return the cached response, or null if there is none
+     */
+    public String get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        String response = cache.getIfPresent(key);
+        if (response == null) {
+            response = persistentStore.get(key);
+            if (response != null) {
+                cache.put(key, response);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Stores a completed response. Blank responses are not cached so that a
+     * failed or empty generation is retried next time.
+     *
+     * @param key the generation key
+     * @param response the full generated text
+     */
+    public void put(String key, String response) {
+        if (enabled && response != null && !response.isBlank()) {
+            cache.put(key, response);
+            persistentStore.put(key, response);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.dto.OllamaRequest;
+import com.omer.ostim.ai.util.GenerationKeyUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Single-flight layer in front of the Ollama client.
+ * <p>
+ * Concurrent requests for the same (model, options, prompt) attach to one in-flight
+ * inference instead of starting a new one on the GPU. The upstream call is always
+ * streamed, so a streaming caller that joins mid-flight first receives the text
+ * generated so far and then the remaining tokens live. Once the inference is done
+ * the entry is removed; later identical requests start a fresh generation.
+ * <p>
+ * A caller that cancels its future, or whose token callback fails because its client went
+ * away, leaves the generation. When the last caller has left, the upstream request is
+ * cancelled so the server stops generating. Such generations are counted as
+ * {@code ollama.generation.aborted}, and the tokens they had produced for nobody as
+ * {@code ollama.generation.wasted.tokens}.
+ */
+@Service
+public class GenerationCoalescer {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationCoalescer.class);
+
+    private final OllamaAsyncClient ollamaAsyncClient;
+    private final Map<String, InFlightGeneration> inFlight = new ConcurrentHashMap<>();
+    private final Counter upstreamCounter;
+    private final Counter coalescedCounter;
+    private final Counter abortedCounter;
+    private final Counter wastedTokensCounter;
+
+    public GenerationCoalescer(OllamaAsyncClient ollamaAsyncClient, MeterRegistry meterRegistry) {
+        this.ollamaAsyncClient = ollamaAsyncClient;
+        this.upstreamCounter = Counter.builder("ollama.generation.upstream")
+                .description("Generations actually sent to an Ollama server")
+                .register(meterRegistry);
+        this.coalescedCounter = Counter.builder("ollama.generation.coalesced")
+                .description("Generation requests that joined an identical in-flight generation")
+                .register(meterRegistry);
+        this.abortedCounter = Counter.builder("ollama.generation.aborted")
+                .description("Generations cancelled on the Ollama server because every caller had left")
+                .register(meterRegistry);
+        this.wastedTokensCounter = Counter.builder("ollama.generation.wasted.tokens")
+                .description("Tokens generated by aborted generations before they were cancelled")
+                .baseUnit("tokens")
+                .register(meterRegistry);
+        Gauge.builder("ollama.generation.inflight", inFlight, Map::size)
+                .description("Distinct generations currently running")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Generates a complete response, sharing the inference with identical concurrent requests.
+     *
+     * @param request the model, prompt and generation options
+     * @return a future completed with the generated text
+     */
+    public CompletableFuture<String> generate(OllamaRequest request) {
+        return stream(request, null);
+    }
+
+    /**
+     * Streams a response, sharing the inference with identical concurrent requests.
+     *
+     * @param request the model, prompt and generation options
+     * @param onToken callback for response chunks, or null when only the final text is needed
+     * @return a future completed with the full generated text
+     */
+    public CompletableFuture<String> stream(OllamaRequest request, Consumer<String> onToken) {
+        String key = GenerationKeyUtil.generationKey(request);
+
+        InFlightGeneration created = new InFlightGeneration(key);
+        InFlightGeneration generation = inFlight.putIfAbsent(key, created);
+        if (generation != null) {
+            coalescedCounter.increment();
+            log.debug("Joining in-flight generation for model {} ({} subscribers)", request.getModel(), generation.subscriberCount() + 1);
+            return generation.subscribe(onToken);
+        }
+
+        CompletableFuture<String> result = created.subscribe(onToken);
+        upstreamCounter.increment();
+        try {
+            CompletableFuture<String> upstream = ollamaAsyncClient.stream(request, created::publish);
+            upstream.whenComplete((text, error) -> {
+                inFlight.remove(key, created);
+                created.complete(text, error);
+            });
+            created.attach(upstream);
+        } catch (RuntimeException e) {
+            // Failed before the request was even sent (e.g. no active server)
+            inFlight.remove(key, created);
+            created.complete(null, e);
+        }
+        return result;
+    }
+
+    /**
+     * One running inference and everybody waiting for it. A ReentrantLock is used
+     * instead of synchronized so virtual threads are not pinned while tokens are delivered.
+     */
+    private final class InFlightGeneration {
+
+        private final String key;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final StringBuilder buffer = new StringBuilder();
+        private final List<Subscriber> subscribers = new ArrayList<>();
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private CompletableFuture<String> upstream;
+        private int callers;
+        private int chunks;
+        private boolean aborted;
+
+        InFlightGeneration(String key) {
+            this.key = key;
+        }
+
+        CompletableFuture<String> subscribe(Consumer<String> onToken) {
+            // Each caller gets its own future so one caller cannot cancel the shared inference
+            CompletableFuture<String> callerResult = result.copy();
+            Subscriber subscriber = new Subscriber(onToken, callerResult);
+            lock.lock();
+            try {
+                callers++;
+                if (onToken != null) {
+                    // Replay what has been generated so far, then receive live tokens
+                    boolean alive = buffer.isEmpty() || deliver(subscriber, buffer.toString());
+                    if (alive && !result.isDone()) {
+                        subscribers.add(subscriber);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            callerResult.whenComplete((text, error) -> {
+                if (callerResult.isCancelled()) {
+                    leave(subscriber);
+                }
+            });
+            return callerResult;
+        }
+
+        /**
+         * Registers the upstream request, or cancels it if every caller left before it was sent.
+         */
+        void attach(CompletableFuture<String> upstream) {
+            boolean abandoned;
+            lock.lock();
+            try {
+                this.upstream = upstream;
+                abandoned = aborted;
+            } finally {
+                lock.unlock();
+            }
+            if (abandoned) {
+                upstream.cancel(false);
+            }
+        }
+
+        void publish(String token) {
+            lock.lock();
+            try {
+                buffer.append(token);
+                chunks++;
+                // Tokens only reach the subscribers still listening
+                for (Subscriber subscriber : List.copyOf(subscribers)) {
+                    if (!deliver(subscriber, token)) {
+                        subscribers.remove(subscriber);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void complete(String text, Throwable error) {
+            lock.lock();
+            try {
+                subscribers.clear();
+            } finally {
+                lock.unlock();
+            }
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(text);
+            }
+        }
+
+        /**
+         * A caller gave up. After the last one the generation is taken out of the
+         * in-flight map, so nobody joins it any more, and cancelled upstream.
+         */
+        private void leave(Subscriber subscriber) {
+            boolean last;
+            CompletableFuture<String> toCancel;
+            int wastedChunks;
+            lock.lock();
+            try {
+                subscribers.remove(subscriber);
+                callers--;
+                last = callers == 0 && !result.isDone() && !aborted;
+                aborted |= last;
+                toCancel = upstream;
+                wastedChunks = chunks;
+            } finally {
+                lock.unlock();
+            }
+            if (!last) {
+                return;
+            }
+            inFlight.remove(key, this);
+            if (toCancel != null) {
+                toCancel.cancel(false);
+            }
+            abortedCounter.increment();
+            // Ollama streams one token per chunk
+            wastedTokensCounter.increment(wastedChunks);
+            log.debug("Every caller left, cancelled the generation after {} tokens", wastedChunks);
+        }
+
+        int subscriberCount() {
+            lock.lock();
+            try {
+                return subscribers.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Hands a token to a subscriber. A subscriber whose callback fails is gone (e.g.
+         * browser closed): its future is cancelled, so it leaves the generation, and the
+         * others keep receiving tokens.
+         */
+        private boolean deliver(Subscriber subscriber, String token) {
+            try {
+                subscriber.onToken().accept(token);
+                return true;
+            } catch (RuntimeException e) {
+                log.debug("Dropping generation subscriber: {}", e.getMessage());
+                subscriber.result().cancel(false);
+                return false;
+            }
+        }
+    }
+
+    private record Subscriber(Consumer<String> onToken, CompletableFuture<String> result) {
+    }
+}
@@ -0,0 +1,368 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.dto.GenerationJobRequest;
+import com.omer.ostim.ai.dto.GenerationPriority;
+import com.omer.ostim.ai.dto.OllamaRequest;
+import com.omer.ostim.ai.model.ChatFiles;
+import com.omer.ostim.ai.model.GenerationJob;
+import com.omer.ostim.ai.model.GenerationJobItem;
+import com.omer.ostim.ai.model.GenerationJobStatus;
+import com.omer.ostim.ai.model.User;
+import com.omer.ostim.ai.repository.GenerationJobItemRepository;
+import com.omer.ostim.ai.repository.GenerationJobRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Runs batch generation jobs: many prompts or file summaries and analyses submitted
+ * at once, executed in the background and polled or subscribed to for progress.
+ * <p>
+ * Jobs and their items are stored in the database, so a job survives a restart;
+ * items that were running when the application stopped are queued again on startup.
+ * A scheduled worker takes queued items and hands them to the generation pipeline
+ * with {@link GenerationPriority#BACKGROUND} priority, keeping at most
+ * {@code generation.jobs.concurrency-per-server} items in flight per active Ollama
+ * server. Items are taken by position, so several jobs progress side by side
+ * instead of one after the other. Failed items are retried up to
+ * {@code generation.jobs.max-attempts} times.
+ */
+@Service
+public class GenerationJobService {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationJobService.class);
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    private final GenerationJobRepository generationJobRepository;
+    private final GenerationJobItemRepository generationJobItemRepository;
+    private final GenerateService generateService;
+    private final AIFileProcessingService aiFileProcessingService;
+    private final ChatFileService chatFileService;
+    private final ChatServerService chatServerService;
+    private final int concurrencyPerServer;
+    private final int maxAttempts;
+    private final int maxItems;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Serializes the read-modify-write of job counters
+    private final ReentrantLock jobLock = new ReentrantLock();
+    private final Map<Long, List<Consumer<GenerationJob>>> listeners = new ConcurrentHashMap<>();
+
+    public GenerationJobService(GenerationJobRepository generationJobRepository,
+                                GenerationJobItemRepository generationJobItemRepository,
+                                GenerateService generateService,
+                                AIFileProcessingService aiFileProcessingService,
+                                ChatFileService chatFileService,
+                                ChatServerService chatServerService,
+                                MeterRegistry meterRegistry,
+                                @Value("${generation.jobs.concurrency-per-server:1}") int concurrencyPerServer,
+                                @Value("${generation.jobs.max-attempts:3}") int maxAttempts,
+                                @Value("${generation.jobs.max-items:1000}") int maxItems) {
+        this.generationJobRepository = generationJobRepository;
+        this.generationJobItemRepository = generationJobItemRepository;
+        this.generateService = generateService;
+        this.aiFileProcessingService = aiFileProcessingService;
+        this.chatFileService = chatFileService;
+        this.chatServerService = chatServerService;
+        this.concurrencyPerServer = concurrencyPerServer;
+        this.maxAttempts = maxAttempts;
+        this.maxItems = maxItems;
+        Gauge.builder("generation.jobs.items.running", inFlight, AtomicInteger::get)
+                .description("Batch job items currently being generated")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queues items again that were running when the application stopped.
+     */
+    @PostConstruct
+    public void requeueInterruptedItems() {
+        int requeued = generationJobItemRepository.updateStatus(GenerationJobStatus.RUNNING, GenerationJobStatus.QUEUED);
+        if (requeued > 0) {
+            log.info("Requeued {} batch job items interrupted by the last shutdown", requeued);
+        }
+    }
+
+    /**
+     * Stores a new job with its items in one transaction. The items are picked up by the
+     * worker in the background.
+     *
+     * @param request the model and the items to generate
+     * @param user the owner of the job
+     * @return the stored job
+     * @throws IllegalArgumentException if the request is empty, too large or refers to a file of another user
+     */
+    @Transactional
+    public GenerationJob submit(GenerationJobRequest request, User user) {
+        List<GenerationJobRequest.Item> requestItems = request.getItems();
+        if (requestItems == null || requestItems.isEmpty()) {
+            throw new IllegalArgumentException("A job needs at least one item");
+        }
+        if (requestItems.size() > maxItems) {
+            throw new IllegalArgumentException("A job may have at most " + maxItems + " items");
+        }
+        for (GenerationJobRequest.Item item : requestItems) {
+            validate(item, user);
+        }
+
+        GenerationJob job = new GenerationJob();
+        job.setUserId(user.getId());
+        job.setUsername(user.getUsername());
+        job.setModel(request.getModel() != null && !request.getModel().isBlank() ? request.getModel() : "deepseek-r1:1.5b");
+        job.setStatus(GenerationJobStatus.QUEUED);
+        job.setTotalItems(requestItems.size());
+        job = generationJobRepository.save(job);
+
+        List<GenerationJobItem> items = new ArrayList<>(requestItems.size());
+        for (int i = 0; i < requestItems.size(); i++) {
+            GenerationJobRequest.Item requestItem = requestItems.get(i);
+            GenerationJobItem item = new GenerationJobItem();
+            item.setJobId(job.getJobId());
+            item.setItemIndex(i);
+            item.setOperation(requestItem.getOperation());
+            item.setPrompt(requestItem.getPrompt());
+            item.setFileId(requestItem.getFileId());
+            item.setStatus(GenerationJobStatus.QUEUED);
+            items.add(item);
+        }
+        generationJobItemRepository.saveAll(items);
+
+        log.info("User {} submitted batch job {} with {} items", user.getUsername(), job.getJobId(), items.size());
+        return job;
+    }
+
+    private void validate(GenerationJobRequest.Item item, User user) {
+        if (item.getOperation() == null) {
+            throw new IllegalArgumentException("Every item needs an operation");
+        }
+        if (item.getOperation() == GenerationJobItem.Operation.PROMPT) {
+            if (item.getPrompt() == null || item.getPrompt().isBlank()) {
+                throw new IllegalArgumentException("Prompt items need a prompt");
+            }
+            return;
+        }
+        if (item.getFileId() == null) {
+            throw new IllegalArgumentException(item.getOperation() + " items need a file ID");
+        }
+        ChatFiles file;
+        try {
+            file = chatFileService.getFileById(item.getFileId());
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("File not found with ID: " + item.getFileId());
+        }
+        if (!file.getUserId().equals(user.getId())) {
+            throw new IllegalArgumentException("Unauthorized access to file " + item.getFileId());
+        }
+    }
+
+    public GenerationJob getJob(Long jobId) {
+        return generationJobRepository.findById(jobId).orElse(null);
+    }
+
+    public List<GenerationJob> getJobsByUserId(Long userId) {
+        return generationJobRepository.findByUserIdOrderByCreatedTimeDesc(userId);
+    }
+
+    public List<GenerationJobItem> getItems(Long jobId) {
+        return generationJobItemRepository.findByJobIdOrderByItemIndex(jobId);
+    }
+
+    /**
+     * Cancels the items of a job that have not started yet. Items already running finish normally.
+     *
+     * @param jobId the job ID
+     * @return the updated job, or null if it does not exist
+     */
+    public GenerationJob cancel(Long jobId) {
+        jobLock.lock();
+        try {
+            GenerationJob job = getJob(jobId);
+            if (job == null || job.getStatus().isFinished()) {
+                return job;
+            }
+            int cancelled = generationJobItemRepository.updateStatusOfJob(jobId, GenerationJobStatus.QUEUED,
+                    GenerationJobStatus.CANCELLED, LocalDateTime.now());
+            job.setStatus(GenerationJobStatus.CANCELLED);
+            job.setFinishedTime(LocalDateTime.now());
+            job = generationJobRepository.save(job);
+            log.info("Cancelled batch job {}, {} items were still queued", jobId, cancelled);
+            notifyListeners(job);
+            return job;
+        } finally {
+            jobLock.unlock();
+        }
+    }
+
+    /**
+     * Registers a listener that is called with the job whenever one of its items finishes
+     * or the job is cancelled.
+     *
+     * @param jobId the job ID
+     * @param listener called on the thread that finished the item
+     * @return removes the listener again
+     */
+    public Runnable subscribe(Long jobId, Consumer<GenerationJob> listener) {
+        listeners.computeIfAbsent(jobId, id -> new CopyOnWriteArrayList<>()).add(listener);
+        return () -> listeners.computeIfPresent(jobId, (id, list) -> {
+            list.remove(listener);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    /**
+     * Starts queued items while there is capacity. The capacity follows the number of
+     * active servers, so the queue drains faster when servers are added and pauses
+     * while none is reachable.
+     */
+    @Scheduled(initialDelay = 10000, fixedDelayString = "${generation.jobs.poll-interval:2000}")
+    public void dispatch() {
+        int capacity = capacity() - inFlight.get();
+        if (capacity <= 0) {
+            return;
+        }
+
+        List<GenerationJobItem> items = generationJobItemRepository.findByStatusOrderByItemIndexAscItemIdAsc(
+                GenerationJobStatus.QUEUED, PageRequest.of(0, capacity));
+        Map<Long, GenerationJob> jobs = new HashMap<>();
+        for (GenerationJobItem item : items) {
+            GenerationJob job = jobs.computeIfAbsent(item.getJobId(), this::getJob);
+            if (job == null || generationJobItemRepository.claim(item.getItemId(), LocalDateTime.now()) == 0) {
+                continue;
+            }
+            if (job.getStatus() == GenerationJobStatus.QUEUED) {
+                markRunning(job.getJobId());
+            }
+
+            inFlight.incrementAndGet();
+            run(item, job).whenComplete((result, error) -> {
+                inFlight.decrementAndGet();
+                try {
+                    finish(item.getItemId(), result, error);
+                } catch (RuntimeException e) {
+                    log.error("Could not record the result of batch job item {}", item.getItemId(), e);
+                }
+            });
+        }
+    }
+
+    private int capacity() {
+        long activeServers = chatServerService.getAllChatServers().stream()
+                .filter(server -> "active".equals(server.getStatus()))
+                .count();
+        return (int) activeServers * concurrencyPerServer;
+    }
+
+    private CompletableFuture<String> run(GenerationJobItem item, GenerationJob job) {
+        try {
+            return switch (item.getOperation()) {
+                case PROMPT -> {
+                    OllamaRequest request = GenerateService.createRequest(item.getPrompt(), job.getModel(),
+                            GenerationPriority.BACKGROUND);
+                    request.setUser(job.getUsername());
+                    yield generateService.generate(request);
+                }
+                case SUMMARIZE_FILE -> aiFileProcessingService.summarizeFile(item.getFileId(), job.getModel(),
+                        GenerationPriority.BACKGROUND, job.getUsername());
+                case ANALYZE_FILE -> aiFileProcessingService.analyzeFile(item.getFileId(), job.getModel(),
+                        GenerationPriority.BACKGROUND, job.getUsername());
+            };
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void markRunning(Long jobId) {
+        jobLock.lock();
+        try {
+            GenerationJob job = getJob(jobId);
+            if (job != null && job.getStatus() == GenerationJobStatus.QUEUED) {
+                job.setStatus(GenerationJobStatus.RUNNING);
+                notifyListeners(generationJobRepository.save(job));
+            }
+        } finally {
+            jobLock.unlock();
+        }
+    }
+
+    private void finish(Long itemId, String result, Throwable error) {
+        GenerationJobItem item = generationJobItemRepository.findById(itemId).orElse(null);
+        if (item == null) {
+            return;
+        }
+
+        if (error == null) {
+            item.setStatus(GenerationJobStatus.COMPLETED);
+            item.setResult(result);
+            item.setError(null);
+        } else {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            String message = String.valueOf(cause.getMessage());
+            item.setError(message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) : message);
+            GenerationJob job = getJob(item.getJobId());
+            if (item.getAttempts() < maxAttempts && job != null && job.getStatus() != GenerationJobStatus.CANCELLED) {
+                log.warn("Batch job item {} failed on attempt {}, queuing it again: {}", itemId, item.getAttempts(), message);
+                item.setStatus(GenerationJobStatus.QUEUED);
+                generationJobItemRepository.save(item);
+                return;
+            }
+            log.error("Batch job item {} failed after {} attempts: {}", itemId, item.getAttempts(), message);
+            item.setStatus(GenerationJobStatus.FAILED);
+        }
+        item.setFinishedTime(LocalDateTime.now());
+        generationJobItemRepository.save(item);
+        updateProgress(item.getJobId());
+    }
+
+    private void updateProgress(Long jobId) {
+        jobLock.lock();
+        try {
+            GenerationJob job = getJob(jobId);
+            if (job == null) {
+                return;
+            }
+            job.setCompletedItems((int) generationJobItemRepository.countByJobIdAndStatus(jobId, GenerationJobStatus.COMPLETED));
+            job.setFailedItems((int) generationJobItemRepository.countByJobIdAndStatus(jobId, GenerationJobStatus.FAILED));
+            if (!job.getStatus().isFinished() && job.getCompletedItems() + job.getFailedItems() >= job.getTotalItems()) {
+                job.setStatus(job.getCompletedItems() > 0 ? GenerationJobStatus.COMPLETED : GenerationJobStatus.FAILED);
+                job.setFinishedTime(LocalDateTime.now());
+                log.info("Batch job {} finished: {} completed, {} failed", jobId, job.getCompletedItems(), job.getFailedItems());
+            }
+            notifyListeners(generationJobRepository.save(job));
+        } finally {
+            jobLock.unlock();
+        }
+    }
+
+    private void notifyListeners(GenerationJob job) {
+        List<Consumer<GenerationJob>> jobListeners = listeners.get(job.getJobId());
+        if (jobListeners == null) {
+            return;
+        }
+        for (Consumer<GenerationJob> listener : jobListeners) {
+            try {
+                listener.accept(job);
+            } catch (RuntimeException e) {
+                log.debug("Batch job listener failed: {}", e.getMessage());
+            }
+        }
+    }
+}
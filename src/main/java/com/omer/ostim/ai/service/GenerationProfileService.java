@@ -0,0 +1,121 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.config.ChatContextProperties;
+import com.omer.ostim.ai.config.GenerationProfileProperties;
+import com.omer.ostim.ai.dto.GenerationProfile;
+import com.omer.ostim.ai.dto.OllamaRequest;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Service;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fills in the Ollama options of a request from its {@link GenerationProfile}, with
+ * {@code num_ctx} sized to its prompt as described in {@link GenerationProfileProperties}.
+ * The num_ctx sent per profile is exported as {@code ollama.request.context.tokens}.
+ * <p>
+ * Ollama reloads a model whenever num_ctx changes, so the size of a model only grows:
+ * every request gets the largest size any request for the model has needed so far, on
+ * whichever server it runs. Preloads use the same size through {@link #contextSize(String)}.
+ */
+@Service
+public class GenerationProfileService {
+
+    // Role and delimiters Ollama adds around every chat message
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
+    private final GenerationProfileProperties profileProperties;
+    private final ChatContextProperties contextProperties;
+    private final TokenCountingService tokenCountingService;
+    private final Map<GenerationProfile, DistributionSummary> contextSummaries = new EnumMap<>(GenerationProfile.class);
+    // Largest num_ctx sent per model
+    private final Map<String, Integer> contextSizes = new ConcurrentHashMap<>();
+
+    public GenerationProfileService(GenerationProfileProperties profileProperties,
+                                    ChatContextProperties contextProperties,
+                                    TokenCountingService tokenCountingService,
+                                    MeterRegistry meterRegistry) {
+        this.profileProperties = profileProperties;
+        this.contextProperties = contextProperties;
+        this.tokenCountingService = tokenCountingService;
+        for (GenerationProfile profile : GenerationProfile.values()) {
+            contextSummaries.put(profile, DistributionSummary.builder("ollama.request.context.tokens")
+                    .tag("profile", profile.name().toLowerCase())
+                    .description("Context size (num_ctx) requested from Ollama per generation")
+                    .baseUnit("tokens")
+                    .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Sets the options of the request's profile that the request does not set itself.
+     *
+     * @param request the request; it gets a new options map
+     */
+    public void apply(OllamaRequest request) {
+        GenerationProfile profile = request.getProfile() != null ? request.getProfile() : GenerationProfile.CHAT;
+        GenerationProfileProperties.Profile settings = profileProperties.profile(profile);
+
+        Map<String, Object> options = request.getOptions() != null ? new HashMap<>(request.getOptions()) : new HashMap<>();
+        if (settings.getNumPredict() != null) {
+            options.putIfAbsent("num_predict", settings.getNumPredict());
+        }
+        if (settings.getTemperature() != null) {
+            options.putIfAbsent("temperature", settings.getTemperature());
+        }
+        if (!options.containsKey("num_ctx")) {
+            // An unbounded answer gets the room the chat context keeps free for answers
+            int answerTokens = options.get("num_predict") instanceof Number limit && limit.intValue() > 0
+                    ? limit.intValue() : contextProperties.getAnswerTokens();
+            int contextTokens = contextSizes.merge(key(request.getModel()),
+                    contextSize(promptTokens(request) + answerTokens, request.getModel()), Math::max);
+            options.put("num_ctx", contextTokens);
+            contextSummaries.get(profile).record(contextTokens);
+        }
+        request.setOptions(options);
+        if (request.getKeepAlive() == null) {
+            request.setKeepAlive(settings.getKeepAlive());
+        }
+    }
+
+    /**
+     * @param model the model
+     * @return the num_ctx requests for the model currently get, to load it with
+     */
+    public int contextSize(String model) {
+        Integer size = contextSizes.get(key(model));
+        return size != null ? size : contextSize(0, model);
+    }
+
+    /**
+     * @return the smallest power of two from the minimum context size that holds the
+     *         tokens, at most the context window of the model
+     */
+    int contextSize(int tokens, String model) {
+        int window = contextProperties.contextTokens(model);
+        int size = Math.max(1, profileProperties.getMinContextTokens());
+        while (size < tokens && size < window) {
+            size *= 2;
+        }
+        return Math.min(size, window);
+    }
+
+    private static String key(String model) {
+        return model != null ? OllamaModelRegistry.normalize(model) : "";
+    }
+
+    private int promptTokens(OllamaRequest request) {
+        if (request.getMessages() == null) {
+            return tokenCountingService.count(request.getPrompt(), request.getModel());
+        }
+        int tokens = 0;
+        for (OllamaRequest.Message message : request.getMessages()) {
+            tokens += tokenCountingService.count(message.getContent(), request.getModel()) + MESSAGE_OVERHEAD_TOKENS;
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,103 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.dto.GenerationPriority;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Generations waiting for one Ollama server, in the order they should run.
+ * <p>
+ * Priority classes are served strictly in order. Within a class, users share the
+ * server by start-time fair queuing: every request gets a virtual start time after
+ * the previous request of the same user, advanced by that request's cost (its
+ * estimated prompt tokens). A user who queues ten large documents therefore gets
+ * them run one at a time between the requests of everybody else, instead of ahead of them.
+ * <p>
+ * Not thread-safe; the owning connection guards it with its lock.
+ *
+ * @param <T> the waiting item
+ */
+class GenerationQueue<T> {
+
+    private final Map<GenerationPriority, ClassQueue> classes = new EnumMap<>(GenerationPriority.class);
+    private long sequence;
+
+    GenerationQueue() {
+        for (GenerationPriority priority : GenerationPriority.values()) {
+            classes.put(priority, new ClassQueue());
+        }
+    }
+
+    void add(T item, GenerationPriority priority, String user, double cost) {
+        classes.get(priority).add(item, user, cost, sequence++);
+    }
+
+    /**
+     * @return the next item to run, or null if nothing is waiting
+     */
+    T poll() {
+        for (ClassQueue queue : classes.values()) {
+            T item = queue.poll();
+            if (item != null) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    boolean remove(T item) {
+        for (ClassQueue queue : classes.values()) {
+            if (queue.remove(item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size(GenerationPriority priority) {
+        return classes.get(priority).entries.size();
+    }
+
+    int size() {
+        return classes.values().stream().mapToInt(queue -> queue.entries.size()).sum();
+    }
+
+    private final class ClassQueue {
+
+        private final PriorityQueue<Entry<T>> entries = new PriorityQueue<>(
+                Comparator.<Entry<T>>comparingDouble(Entry::start).thenComparingLong(Entry::sequence));
+        private final Map<String, Double> lastFinish = new HashMap<>();
+        private double virtualTime;
+
+        void add(T item, String user, double cost, long sequence) {
+            double start = Math.max(virtualTime, lastFinish.getOrDefault(user, 0.0));
+            lastFinish.put(user, start + cost);
+            entries.add(new Entry<>(item, start, sequence));
+        }
+
+        T poll() {
+            Entry<T> entry = entries.poll();
+            if (entry == null) {
+                return null;
+            }
+            virtualTime = entry.start();
+            if (entries.isEmpty()) {
+                // Nobody is behind anybody any more; start over so the map stays small
+                lastFinish.clear();
+                virtualTime = 0;
+            }
+            return entry.item();
+        }
+
+        boolean remove(T item) {
+            return entries.removeIf(entry -> entry.item() == item);
+        }
+    }
+
+    private record Entry<T>(T item, double start, long sequence) {
+    }
+}
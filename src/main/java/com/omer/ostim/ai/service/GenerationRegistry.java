@@ -0,0 +1,186 @@
+package com.omer.ostim.ai.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Generations requested by clients that are still running, by request ID, so that a
+ * client can stop one ({@code DELETE /api/chat/generate/{requestId}}) and a stream whose
+ * client went away is stopped as well.
+ * <p>
+ * Stopping a generation cancels the futures tracked for it. Through the
+ * {@link GenerateService} that withdraws the client from the inference, which is aborted
+ * on the Ollama server unless an identical request still waits for it, and frees its place
+ * in the server's queue. Stops that ended a running generation are counted as
+ * {@code ollama.generation.cancelled}, tagged with the reason.
+ */
+@Service
+public class GenerationRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationRegistry.class);
+    private static final Pattern REQUEST_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    public enum Reason {
+        // The client asked to stop it
+        REQUEST,
+        // The client disconnected or its stream timed out
+        DISCONNECT
+    }
+
+    private final Map<String, Generation> generations = new ConcurrentHashMap<>();
+    private final Map<Reason, Counter> cancelledCounters = new EnumMap<>(Reason.class);
+
+    public GenerationRegistry(MeterRegistry meterRegistry) {
+        for (Reason reason : Reason.values()) {
+            cancelledCounters.put(reason, Counter.builder("ollama.generation.cancelled")
+                    .tag("reason", reason.name().toLowerCase())
+                    .description("Client generations stopped before they were done")
+                    .register(meterRegistry));
+        }
+        Gauge.builder("ollama.generation.client.active", generations, Map::size)
+                .description("Client generations that can be stopped by their request ID")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Registers a generation that is about to start.
+     *
+     * @param requestId the ID chosen by the client, or null to assign a new one
+     * @param user the user the generation runs for; only they can stop it
+     * @return the generation; it has to be closed when the response is finished
+     * @throws IllegalArgumentException if the ID is malformed or a generation with it is running
+     */
+    public Generation register(String requestId, String user) {
+        String id = requestId != null && !requestId.isBlank() ? requestId : UUID.randomUUID().toString();
+        if (!REQUEST_ID.matcher(id).matches()) {
+            throw new IllegalArgumentException("Request ID must be 1 to 64 letters, digits, '-' or '_'");
+        }
+        Generation generation = new Generation(id, user);
+        if (generations.putIfAbsent(id, generation) != null) {
+            throw new IllegalArgumentException("A generation with request ID " + id + " is already running");
+        }
+        return generation;
+    }
+
+    /**
+     * Stops a running generation of a user.
+     *
+     * @param requestId the request ID of the generation
+     * @param user the user asking; generations of other users are not found
+     * @return false if the user has no running generation with this ID
+     */
+    public boolean cancel(String requestId, String user) {
+        Generation generation = generations.get(requestId);
+        if (generation == null || !generation.user.equals(user)) {
+            return false;
+        }
+        generation.cancel(Reason.REQUEST);
+        return true;
+    }
+
+    /**
+     * A running client generation and the futures doing its work.
+     */
+    public final class Generation {
+
+        private final String requestId;
+        private final String user;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<CompletableFuture<?>> futures = new ArrayList<>();
+        private Reason cancelReason;
+
+        private Generation(String requestId, String user) {
+            this.requestId = requestId;
+            this.user = user;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * Tracks a future doing work for the generation, e.g. the generation itself once
+         * its prompt is ready. A future tracked after the generation was stopped is
+         * cancelled right away.
+         *
+         * @return the future
+         */
+        public <T> CompletableFuture<T> track(CompletableFuture<T> future) {
+            boolean stopped;
+            lock.lock();
+            try {
+                stopped = cancelReason != null;
+                if (!stopped) {
+                    futures.removeIf(CompletableFuture::isDone);
+                    futures.add(future);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (stopped) {
+                future.cancel(false);
+            }
+            return future;
+        }
+
+        /**
+         * Stops the generation. Only the first stop of a generation that is still running
+         * is counted.
+         */
+        public void cancel(Reason reason) {
+            List<CompletableFuture<?>> running;
+            lock.lock();
+            try {
+                if (cancelReason != null) {
+                    return;
+                }
+                cancelReason = reason;
+                running = List.copyOf(futures);
+                futures.clear();
+            } finally {
+                lock.unlock();
+            }
+            boolean stopped = false;
+            for (CompletableFuture<?> future : running) {
+                stopped |= future.cancel(false);
+            }
+            if (stopped) {
+                cancelledCounters.get(reason).increment();
+                log.debug("Stopped generation {} of user {} ({})", requestId, user, reason);
+            }
+        }
+
+        /**
+         * @return why the generation was stopped, or null if it was not
+         */
+        public Reason getCancelReason() {
+            lock.lock();
+            try {
+                return cancelReason;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Forgets the generation once its response is finished.
+         */
+        public void close() {
+            generations.remove(requestId, this);
+        }
+    }
+}
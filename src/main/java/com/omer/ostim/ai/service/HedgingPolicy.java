@@ -0,0 +1,176 @@
+package com.omer.ostim.ai.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides when a streamed generation gets a hedge: a duplicate request on a second
+ * server, sent when the first one has not produced a token for longer than usual.
+ * <p>
+ * "Usual" is the configured percentile of the recent time to first token of the
+ * same model; until enough samples exist the initial delay is used. Hedges are paid
+ * from a budget that every request tops up by {@code max-percent / 100}, so they
+ * can never exceed that share of the traffic, also not in bursts when a whole
+ * server slows down.
+ * <p>
+ * Disabled unless {@code ollama.hedging.enabled} is set. Exported as
+ * {@code ollama.hedging.requests} with the result fired, won, lost or rejected.
+ */
+@Service
+public class HedgingPolicy {
+
+    private static final int WINDOW_SIZE = 512;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_EVERY = 16;
+    // Hedges that may be saved up while traffic is quiet
+    private static final double MAX_CREDITS = 10;
+
+    private final boolean enabled;
+    private final double percentile;
+    private final long initialDelayNanos;
+    private final long minDelayNanos;
+    private final double creditPerRequest;
+    private final Map<String, FirstOutputWindow> windows = new ConcurrentHashMap<>();
+    private final ReentrantLock budgetLock = new ReentrantLock();
+    private double credits;
+
+    private final Counter firedCounter;
+    private final Counter wonCounter;
+    private final Counter lostCounter;
+    private final Counter rejectedCounter;
+
+    public HedgingPolicy(MeterRegistry meterRegistry,
+                         @Value("${ollama.hedging.enabled:false}") boolean enabled,
+                         @Value("${ollama.hedging.percentile:0.95}") double percentile,
+                         @Value("${ollama.hedging.initial-delay:5s}") Duration initialDelay,
+                         @Value("${ollama.hedging.min-delay:500ms}") Duration minDelay,
+                         @Value("${ollama.hedging.max-percent:5}") double maxPercent) {
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.initialDelayNanos = initialDelay.toNanos();
+        this.minDelayNanos = minDelay.toNanos();
+        this.creditPerRequest = maxPercent / 100.0;
+        this.firedCounter = hedgeCounter(meterRegistry, "fired", "Hedge requests sent");
+        this.wonCounter = hedgeCounter(meterRegistry, "won", "Hedge requests that answered first");
+        this.lostCounter = hedgeCounter(meterRegistry, "lost", "Hedge requests cancelled because the original answered first");
+        this.rejectedCounter = hedgeCounter(meterRegistry, "rejected", "Hedges not sent because the budget was used up");
+    }
+
+    private static Counter hedgeCounter(MeterRegistry meterRegistry, String result, String description) {
+        return Counter.builder("ollama.hedging.requests")
+                .tag("result", result)
+                .description(description)
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Counts a streamed request towards the hedging budget.
+     */
+    void requestStarted() {
+        budgetLock.lock();
+        try {
+            credits = Math.min(MAX_CREDITS, credits + creditPerRequest);
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    /**
+     * Takes one hedge from the budget.
+     *
+     * @return false if the budget is used up
+     */
+    boolean tryAcquireHedge() {
+        budgetLock.lock();
+        try {
+            if (credits >= 1) {
+                credits -= 1;
+                firedCounter.increment();
+                return true;
+            }
+        } finally {
+            budgetLock.unlock();
+        }
+        rejectedCounter.increment();
+        return false;
+    }
+
+    /**
+     * Returns a hedge that could not be sent after all, e.g. because no other server was available.
+     */
+    void refundHedge() {
+        budgetLock.lock();
+        try {
+            credits = Math.min(MAX_CREDITS, credits + 1);
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    void hedgeFinished(boolean won) {
+        (won ? wonCounter : lostCounter).increment();
+    }
+
+    /**
+     * @param model the model of the request
+     * @return how long to wait for the first token before sending a hedge
+     */
+    Duration hedgeDelay(String model) {
+        FirstOutputWindow window = windows.get(model);
+        long delay = window != null ? window.threshold() : -1;
+        return Duration.ofNanos(Math.max(minDelayNanos, delay >= 0 ? delay : initialDelayNanos));
+    }
+
+    /**
+     * @param model the model of the request
+     * @param nanos time from sending a request to its first token
+     */
+    void recordFirstOutput(String model, long nanos) {
+        windows.computeIfAbsent(model, key -> new FirstOutputWindow()).record(nanos);
+    }
+
+    /**
+     * The most recent first-token times of one model in a ring buffer. The percentile
+     * is recomputed every few samples rather than on every lookup.
+     */
+    private final class FirstOutputWindow {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+        private volatile long threshold = -1;
+
+        void record(long nanos) {
+            lock.lock();
+            try {
+                samples[next] = nanos;
+                next = (next + 1) % WINDOW_SIZE;
+                count = Math.min(count + 1, WINDOW_SIZE);
+                if (count >= MIN_SAMPLES && next % RECOMPUTE_EVERY == 0) {
+                    long[] sorted = Arrays.copyOf(samples, count);
+                    Arrays.sort(sorted);
+                    threshold = sorted[Math.min(count - 1, (int) Math.ceil(percentile * count) - 1)];
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long threshold() {
+            return threshold;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package com.omer.ostim.ai.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory approximate nearest neighbour index over the embeddings of document
+ * chunks: a hierarchical navigable small world graph (HNSW, Malkov and Yashunin).
+ * <p>
+ * Vectors are normalized when added, so the similarity of two chunks is their dot
+ * product (cosine similarity). Every node is linked to its nearest neighbours on the
+ * layers up to its random level; a search descends greedily from the sparse top layer
+ * and explores the bottom layer with a candidate list of {@code efSearch} nodes, which
+ * costs a few hundred dot products instead of one per chunk.
+ * <p>
+ * Searches are limited to the chunks of given files. When those files have few chunks
+ * they are compared one by one, which is exact and as fast; otherwise the graph is
+ * searched, walking through the chunks of other files without returning them.
+ * Removed files are only marked: their nodes still guide searches through the graph
+ * and keep their memory. {@link #removedNodes()} tells the owner when building a new
+ * index without them pays off.
+ * <p>
+ * Searches run in parallel; adding and removing takes the index exclusively.
+ */
+public final class HnswIndex {
+
+    // Files with at most this many chunks are searched exactly
+    static final int EXACT_SEARCH_LIMIT = 1024;
+
+    /**
+     * A chunk found by a search.
+     *
+     * @param fileId the file of the chunk
+     * @param chunkIndex position of the chunk in the file
+     * @param score cosine similarity to the query, higher is closer
+     */
+    public record Hit(long fileId, int chunkIndex, float score) {
+    }
+
+    private record Candidate(int node, float distance) {
+    }
+
+    private static final Comparator<Candidate> NEAREST_FIRST = Comparator.comparingDouble(Candidate::distance);
+    private static final Comparator<Candidate> FARTHEST_FIRST = NEAREST_FIRST.reversed();
+
+    private final int m;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelFactor;
+    private final SplittableRandom random = new SplittableRandom(42);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int dimension = -1;
+    private int size;
+    private float[][] vectors = new float[1024][];
+    private long[] fileIds = new long[1024];
+    private int[] chunkIndexes = new int[1024];
+    // Neighbours of every node per layer, nearest first after a node was linked
+    private int[][][] links = new int[1024][][];
+    private final BitSet removed = new BitSet();
+    private final Map<Long, List<Integer>> nodesByFile = new HashMap<>();
+    private int entryPoint = -1;
+    private int topLevel = -1;
+
+    /**
+     * @param m neighbours per node on the upper layers, twice as many on the bottom layer
+     * @param efConstruction candidates considered when a node is linked
+     * @param efSearch candidates considered per search
+     */
+    public HnswIndex(int m, int efConstruction, int efSearch) {
+        if (m < 2) {
+            throw new IllegalArgumentException("m must be at least 2");
+        }
+        this.m = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        this.levelFactor = 1 / Math.log(m);
+    }
+
+    /**
+     * Adds the embedding of a chunk.
+     *
+     * @param fileId the file of the chunk
+     * @param chunkIndex position of the chunk in the file
+     * @param vector the embedding; all vectors of an index have the same dimension
+     * @throws IllegalArgumentException if the dimension differs from earlier vectors
+     */
+    public void add(long fileId, int chunkIndex, float[] vector) {
+        float[] normalized = normalize(vector);
+        lock.writeLock().lock();
+        try {
+            if (dimension < 0) {
+                dimension = normalized.length;
+            } else if (dimension != normalized.length) {
+                throw new IllegalArgumentException("Vector has " + normalized.length + " dimensions, the index " + dimension);
+            }
+            int node = size++;
+            ensureCapacity(size);
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+            vectors[node] = normalized;
+            fileIds[node] = fileId;
+            chunkIndexes[node] = chunkIndex;
+            links[node] = new int[level + 1][];
+            Arrays.fill(links[node], new int[0]);
+            nodesByFile.computeIfAbsent(fileId, id -> new ArrayList<>()).add(node);
+
+            if (entryPoint < 0) {
+                entryPoint = node;
+                topLevel = level;
+                return;
+            }
+            int nearest = entryPoint;
+            for (int layer = topLevel; layer > level; layer--) {
+                nearest = greedyClosest(normalized, nearest, layer);
+            }
+            for (int layer = Math.min(level, topLevel); layer >= 0; layer--) {
+                List<Candidate> candidates = searchLayer(normalized, nearest, efConstruction, layer, null);
+                int[] neighbours = selectNeighbours(candidates, maxLinks(layer));
+                links[node][layer] = neighbours;
+                for (int neighbour : neighbours) {
+                    link(neighbour, node, layer);
+                }
+                nearest = candidates.get(0).node();
+            }
+            if (level > topLevel) {
+                entryPoint = node;
+                topLevel = level;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all chunks of a file from the results of later searches.
+     *
+     * @return whether the index had chunks of the file
+     */
+    public boolean removeFile(long fileId) {
+        lock.writeLock().lock();
+        try {
+            List<Integer> nodes = nodesByFile.remove(fileId);
+            if (nodes == null) {
+                return false;
+            }
+            nodes.forEach(removed::set);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return chunks in the index, without those of removed files
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size - removed.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return nodes of removed files still in the graph
+     */
+    public int removedNodes() {
+        lock.readLock().lock();
+        try {
+            return removed.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the chunks of the given files nearest to a query vector.
+     *
+     * @param query the embedding of the query
+     * @param files the files to search in
+     * @param k the most chunks to return
+     * @return the nearest chunks, nearest first
+     */
+    public List<Hit> search(float[] query, Collection<Long> files, int k) {
+        float[] normalized = normalize(query);
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0 || k <= 0) {
+                return List.of();
+            }
+            if (normalized.length != dimension) {
+                throw new IllegalArgumentException("Query has " + normalized.length + " dimensions, the index " + dimension);
+            }
+            int candidates = 0;
+            for (Long fileId : files) {
+                candidates += nodesByFile.getOrDefault(fileId, List.of()).size();
+            }
+            if (candidates == 0) {
+                return List.of();
+            }
+            List<Candidate> nearest = candidates <= EXACT_SEARCH_LIMIT
+                    ? exactSearch(normalized, files, k)
+                    : graphSearch(normalized, files, k);
+            List<Hit> hits = new ArrayList<>(Math.min(k, nearest.size()));
+            for (Candidate candidate : nearest.subList(0, Math.min(k, nearest.size()))) {
+                hits.add(new Hit(fileIds[candidate.node()], chunkIndexes[candidate.node()], 1 - candidate.distance()));
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Candidate> exactSearch(float[] query, Collection<Long> files, int k) {
+        PriorityQueue<Candidate> nearest = new PriorityQueue<>(k + 1, FARTHEST_FIRST);
+        for (Long fileId : files) {
+            for (int node : nodesByFile.getOrDefault(fileId, List.of())) {
+                nearest.add(new Candidate(node, distance(query, node)));
+                if (nearest.size() > k) {
+                    nearest.poll();
+                }
+            }
+        }
+        List<Candidate> sorted = new ArrayList<>(nearest);
+        sorted.sort(NEAREST_FIRST);
+        return sorted;
+    }
+
+    private List<Candidate> graphSearch(float[] query, Collection<Long> files, int k) {
+        BitSet accepted = new BitSet(size);
+        for (Long fileId : files) {
+            nodesByFile.getOrDefault(fileId, List.of()).forEach(accepted::set);
+        }
+        int nearest = entryPoint;
+        for (int layer = topLevel; layer > 0; layer--) {
+            nearest = greedyClosest(query, nearest, layer);
+        }
+        return searchLayer(query, nearest, Math.max(efSearch, k), 0, accepted);
+    }
+
+    /**
+     * Walks a layer from a node to the neighbour nearest to the query, as long as one
+     * is nearer.
+     */
+    private int greedyClosest(float[] query, int start, int layer) {
+        int current = start;
+        float currentDistance = distance(query, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int neighbour : links[current][layer]) {
+                float d = distance(query, neighbour);
+                if (d < currentDistance) {
+                    current = neighbour;
+                    currentDistance = d;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search on one layer, keeping the ef nearest nodes found.
+     *
+     * @param accepted the nodes that may be returned, or null for all; the others are
+     *                 still walked through
+     * @return up to ef nodes, nearest first
+     */
+    private List<Candidate> searchLayer(float[] query, int start, int ef, int layer, BitSet accepted) {
+        BitSet visited = new BitSet(size);
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(NEAREST_FIRST);
+        PriorityQueue<Candidate> results = new PriorityQueue<>(ef + 1, FARTHEST_FIRST);
+        Candidate first = new Candidate(start, distance(query, start));
+        visited.set(start);
+        candidates.add(first);
+        if (accepted == null || accepted.get(start)) {
+            results.add(first);
+        }
+        while (!candidates.isEmpty()) {
+            Candidate current = candidates.poll();
+            if (results.size() >= ef && current.distance() > results.peek().distance()) {
+                break;
+            }
+            for (int neighbour : links[current.node()][layer]) {
+                if (visited.get(neighbour)) {
+                    continue;
+                }
+                visited.set(neighbour);
+                float d = distance(query, neighbour);
+                if (results.size() < ef || d < results.peek().distance()) {
+                    Candidate candidate = new Candidate(neighbour, d);
+                    candidates.add(candidate);
+                    if (accepted == null || accepted.get(neighbour)) {
+                        results.add(candidate);
+                        if (results.size() > ef) {
+                            results.poll();
+                        }
+                    }
+                }
+            }
+        }
+        List<Candidate> sorted = new ArrayList<>(results);
+        sorted.sort(NEAREST_FIRST);
+        return sorted;
+    }
+
+    /**
+     * Picks neighbours from candidates sorted nearest first, skipping a candidate that
+     * is nearer to an already picked neighbour than to the node, so the links point in
+     * different directions. Skipped candidates fill up the remaining places.
+     */
+    private int[] selectNeighbours(List<Candidate> candidates, int max) {
+        int[] selected = new int[Math.min(max, candidates.size())];
+        int count = 0;
+        List<Candidate> skipped = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (count == selected.length) {
+                break;
+            }
+            boolean diverse = true;
+            for (int i = 0; i < count; i++) {
+                if (distance(vectors[candidate.node()], selected[i]) < candidate.distance()) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected[count++] = candidate.node();
+            } else {
+                skipped.add(candidate);
+            }
+        }
+        for (int i = 0; count < selected.length && i < skipped.size(); i++) {
+            selected[count++] = skipped.get(i).node();
+        }
+        return selected;
+    }
+
+    /**
+     * Links a node back from a new neighbour. A node may collect half again as many
+     * neighbours as it keeps before they are chosen again, so the choice, which
+     * compares the neighbours with each other, is not made on every link.
+     */
+    private void link(int node, int neighbour, int layer) {
+        int[] current = links[node][layer];
+        int[] extended = Arrays.copyOf(current, current.length + 1);
+        extended[current.length] = neighbour;
+        if (extended.length <= maxLinks(layer) * 3 / 2) {
+            links[node][layer] = extended;
+            return;
+        }
+        List<Candidate> candidates = new ArrayList<>(extended.length);
+        for (int other : extended) {
+            candidates.add(new Candidate(other, distance(vectors[node], other)));
+        }
+        candidates.sort(NEAREST_FIRST);
+        links[node][layer] = selectNeighbours(candidates, maxLinks(layer));
+    }
+
+    private int maxLinks(int layer) {
+        return layer == 0 ? 2 * m : m;
+    }
+
+    private float distance(float[] query, int node) {
+        float[] vector = vectors[node];
+        // Four independent sums, so the additions do not wait for each other
+        float dot0 = 0;
+        float dot1 = 0;
+        float dot2 = 0;
+        float dot3 = 0;
+        int i = 0;
+        for (int end = vector.length - 3; i < end; i += 4) {
+            dot0 += query[i] * vector[i];
+            dot1 += query[i + 1] * vector[i + 1];
+            dot2 += query[i + 2] * vector[i + 2];
+            dot3 += query[i + 3] * vector[i + 3];
+        }
+        for (; i < vector.length; i++) {
+            dot0 += query[i] * vector[i];
+        }
+        return 1 - (dot0 + dot1 + dot2 + dot3);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= vectors.length) {
+            return;
+        }
+        int grown = Math.max(capacity, vectors.length * 2);
+        vectors = Arrays.copyOf(vectors, grown);
+        fileIds = Arrays.copyOf(fileIds, grown);
+        chunkIndexes = Arrays.copyOf(chunkIndexes, grown);
+        links = Arrays.copyOf(links, grown);
+    }
+
+    static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        float[] normalized = new float[vector.length];
+        if (norm == 0) {
+            return normalized;
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = vector[i] * scale;
+        }
+        return normalized;
+    }
+}
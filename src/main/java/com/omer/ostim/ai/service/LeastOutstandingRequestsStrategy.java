@@ -0,0 +1,27 @@
+package com.omer.ostim.ai.service;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sends the request to the server with the fewest requests in flight.
+ * Ties are broken randomly so idle servers share the load evenly.
+ */
+public class LeastOutstandingRequestsStrategy implements LoadBalancingStrategy {
+
+    @Override
+    public ServerLoad choose(List<ServerLoad> candidates) {
+        ServerLoad best = null;
+        int ties = 0;
+        for (ServerLoad candidate : candidates) {
+            int inFlight = candidate.getInFlight();
+            if (best == null || inFlight < best.getInFlight()) {
+                best = candidate;
+                ties = 1;
+            } else if (inFlight == best.getInFlight() && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+}
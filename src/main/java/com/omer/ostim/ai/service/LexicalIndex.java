@@ -0,0 +1,210 @@
+package com.omer.ostim.ai.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Inverted index over the chunks of one document, ranked with BM25.
+ * <p>
+ * Terms come from the {@link TextAnalyzer} for the language of the document, and
+ * questions are analyzed the same way. The postings of all terms share three int
+ * arrays: {@code offsets[t]} to {@code offsets[t + 1]} are the positions of term
+ * {@code t} in {@code chunks} (ascending chunk numbers) and {@code frequencies}. A
+ * search touches only the postings of the question's terms.
+ * <p>
+ * An index is built from one extraction of a document and never changes; a document
+ * extracted again gets a new index.
+ */
+public final class LexicalIndex {
+
+    private final long fileId;
+    private final int textLength;
+    private final TextAnalyzer.Language language;
+    private final List<TokenCountingService.Span> spans;
+    private final Map<String, Integer> termIds;
+    private final int[] offsets;
+    private final int[] chunks;
+    private final int[] frequencies;
+    private final int[] chunkLengths;
+    private final float averageChunkLength;
+
+    private LexicalIndex(long fileId, int textLength, TextAnalyzer.Language language,
+                         List<TokenCountingService.Span> spans, Map<String, Integer> termIds, int[] offsets,
+                         int[] chunks, int[] frequencies, int[] chunkLengths) {
+        this.fileId = fileId;
+        this.textLength = textLength;
+        this.language = language;
+        this.spans = spans;
+        this.termIds = termIds;
+        this.offsets = offsets;
+        this.chunks = chunks;
+        this.frequencies = frequencies;
+        this.chunkLengths = chunkLengths;
+        long total = 0;
+        for (int length : chunkLengths) {
+            total += length;
+        }
+        this.averageChunkLength = chunkLengths.length == 0 ? 0 : (float) total / chunkLengths.length;
+    }
+
+    /**
+     * Indexes the chunks of a document.
+     *
+     * @param fileId the file the text was extracted from
+     * @param text the extracted text
+     * @param spans the chunks, in document order
+     */
+    public static LexicalIndex build(long fileId, String text, List<TokenCountingService.Span> spans) {
+        TextAnalyzer.Language language = TextAnalyzer.detect(text);
+        Map<String, Integer> termIds = new HashMap<>();
+        int[] chunkLengths = new int[spans.size()];
+        // (term, chunk, frequency) of every distinct term of every chunk, in chunk order
+        IntList pairTerms = new IntList();
+        IntList pairChunks = new IntList();
+        IntList pairFrequencies = new IntList();
+
+        for (int chunk = 0; chunk < spans.size(); chunk++) {
+            TokenCountingService.Span span = spans.get(chunk);
+            List<String> terms = TextAnalyzer.terms(text.subSequence(span.start(), span.end()), language);
+            chunkLengths[chunk] = terms.size();
+            int[] ids = new int[terms.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = termIds.computeIfAbsent(terms.get(i), term -> termIds.size());
+            }
+            Arrays.sort(ids);
+            for (int i = 0; i < ids.length; ) {
+                int run = i;
+                while (run < ids.length && ids[run] == ids[i]) {
+                    run++;
+                }
+                pairTerms.add(ids[i]);
+                pairChunks.add(chunk);
+                pairFrequencies.add(run - i);
+                i = run;
+            }
+        }
+
+        // Counting sort of the pairs by term keeps the chunks of each term ascending
+        int[] offsets = new int[termIds.size() + 1];
+        for (int i = 0; i < pairTerms.size(); i++) {
+            offsets[pairTerms.get(i) + 1]++;
+        }
+        for (int term = 0; term < termIds.size(); term++) {
+            offsets[term + 1] += offsets[term];
+        }
+        int[] next = Arrays.copyOf(offsets, termIds.size());
+        int[] chunks = new int[pairTerms.size()];
+        int[] frequencies = new int[pairTerms.size()];
+        for (int i = 0; i < pairTerms.size(); i++) {
+            int position = next[pairTerms.get(i)]++;
+            chunks[position] = pairChunks.get(i);
+            frequencies[position] = pairFrequencies.get(i);
+        }
+        return new LexicalIndex(fileId, text.length(), language, List.copyOf(spans), termIds, offsets, chunks,
+                frequencies, chunkLengths);
+    }
+
+    /**
+     * Ranks the chunks by BM25 for a question.
+     *
+     * @param question the question, analyzed like the document
+     * @param k the most chunks to return
+     * @param k1 how quickly repeating a term stops adding to the score
+     * @param b how much long chunks are penalized, 0 to 1
+     * @return the best chunks that contain at least one term of the question, best first
+     */
+    public List<HnswIndex.Hit> search(String question, int k, float k1, float b) {
+        Set<Integer> queryTerms = new HashSet<>();
+        for (String term : TextAnalyzer.terms(question, language)) {
+            Integer id = termIds.get(term);
+            if (id != null) {
+                queryTerms.add(id);
+            }
+        }
+        if (queryTerms.isEmpty()) {
+            return List.of();
+        }
+        int chunkCount = chunkLengths.length;
+        float[] scores = new float[chunkCount];
+        for (int term : queryTerms) {
+            int documentFrequency = offsets[term + 1] - offsets[term];
+            double idf = Math.log(1 + (chunkCount - documentFrequency + 0.5) / (documentFrequency + 0.5));
+            for (int i = offsets[term]; i < offsets[term + 1]; i++) {
+                int chunk = chunks[i];
+                float frequency = frequencies[i];
+                float norm = k1 * (1 - b + b * chunkLengths[chunk] / averageChunkLength);
+                scores[chunk] += (float) (idf * frequency * (k1 + 1) / (frequency + norm));
+            }
+        }
+
+        PriorityQueue<HnswIndex.Hit> best = new PriorityQueue<>(Comparator.comparingDouble(HnswIndex.Hit::score));
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            if (scores[chunk] <= 0) {
+                continue;
+            }
+            if (best.size() < k) {
+                best.add(new HnswIndex.Hit(fileId, chunk, scores[chunk]));
+            } else if (scores[chunk] > best.peek().score()) {
+                best.poll();
+                best.add(new HnswIndex.Hit(fileId, chunk, scores[chunk]));
+            }
+        }
+        List<HnswIndex.Hit> hits = new ArrayList<>(best);
+        hits.sort(Comparator.comparingDouble(HnswIndex.Hit::score).reversed());
+        return hits;
+    }
+
+    /**
+     * Length of the extracted text the index was built from.
+     */
+    public int textLength() {
+        return textLength;
+    }
+
+    public List<TokenCountingService.Span> spans() {
+        return spans;
+    }
+
+    /**
+     * Rough size of the index in memory, for bounding the cache of indexes.
+     */
+    public int estimatedBytes() {
+        long bytes = (long) Integer.BYTES * (offsets.length + 2L * chunks.length + chunkLengths.length)
+                + 48L * spans.size() + 72L * termIds.size();
+        for (String term : termIds.keySet()) {
+            bytes += term.length();
+        }
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Growable int array, so building the postings does not box every entry.
+     */
+    private static final class IntList {
+
+        private int[] values = new int[1024];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.omer.ostim.ai.service;
+
+import java.util.List;
+
+/**
+ * Picks the Ollama server for the next request.
+ */
+public interface LoadBalancingStrategy {
+
+    /**
+     * @param candidates load of every server that may take the request, never empty
+     * @return the chosen server
+     */
+    ServerLoad choose(List<ServerLoad> candidates);
+}
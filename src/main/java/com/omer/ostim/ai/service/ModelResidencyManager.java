@@ -0,0 +1,239 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.model.ChatServer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps models in memory on the Ollama servers so that requests do not pay the model
+ * load time.
+ * <p>
+ * The configured models are preloaded on every server that becomes active, including
+ * at startup, and loaded again when the {@link OllamaModelRegistry} shows that a server
+ * has dropped them. Real requests carry a {@code keep_alive} that grows with the recent
+ * traffic of their model: a model asked for all the time stays loaded for the maximum
+ * time, one asked for once in a while only for the minimum. When the loaded models of
+ * a server exceed the configured memory budget, the models with the least recent
+ * traffic are unloaded; preloaded models are never unloaded.
+ */
+@Service
+public class ModelResidencyManager {
+
+    private static final Logger log = LoggerFactory.getLogger(ModelResidencyManager.class);
+
+    private final OllamaConnectionService ollamaConnectionService;
+    private final ChatServerService chatServerService;
+    private final OllamaModelRegistry ollamaModelRegistry;
+    private final GenerationProfileService generationProfileService;
+    private final Set<String> preloadModels;
+    private final Duration minKeepAlive;
+    private final Duration maxKeepAlive;
+    private final long trafficWindowNanos;
+    private final double hotRequests;
+    private final long vramBudget;
+    private final Map<String, ModelTraffic> traffic = new ConcurrentHashMap<>();
+    // Servers seen active at the last check, to notice servers that come (back) online
+    private final Set<Long> activeServers = ConcurrentHashMap.newKeySet();
+    // "serverId/model" of loads and unloads still in progress
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Counter preloadCounter;
+    private final Counter unloadCounter;
+
+    public ModelResidencyManager(OllamaConnectionService ollamaConnectionService,
+                                 ChatServerService chatServerService,
+                                 OllamaModelRegistry ollamaModelRegistry,
+                                 GenerationProfileService generationProfileService,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${ollama.residency.preload-models:deepseek-r1:1.5b}") List<String> preloadModels,
+                                 @Value("${ollama.residency.min-keep-alive:5m}") Duration minKeepAlive,
+                                 @Value("${ollama.residency.max-keep-alive:1h}") Duration maxKeepAlive,
+                                 @Value("${ollama.residency.traffic-window:15m}") Duration trafficWindow,
+                                 @Value("${ollama.residency.hot-requests:20}") double hotRequests,
+                                 @Value("${ollama.residency.vram-budget:0B}") DataSize vramBudget) {
+        this.ollamaConnectionService = ollamaConnectionService;
+        this.chatServerService = chatServerService;
+        this.ollamaModelRegistry = ollamaModelRegistry;
+        this.generationProfileService = generationProfileService;
+        Set<String> models = new HashSet<>();
+        preloadModels.stream()
+                .map(String::trim)
+                .filter(model -> !model.isEmpty())
+                .forEach(model -> models.add(OllamaModelRegistry.normalize(model)));
+        this.preloadModels = Set.copyOf(models);
+        this.minKeepAlive = minKeepAlive;
+        this.maxKeepAlive = maxKeepAlive;
+        this.trafficWindowNanos = trafficWindow.toNanos();
+        this.hotRequests = hotRequests;
+        this.vramBudget = vramBudget.toBytes();
+        this.preloadCounter = Counter.builder("ollama.residency.changes")
+                .tag("change", "preload")
+                .description("Models loaded or unloaded on Ollama servers by the residency manager")
+                .register(meterRegistry);
+        this.unloadCounter = Counter.builder("ollama.residency.changes")
+                .tag("change", "unload")
+                .description("Models loaded or unloaded on Ollama servers by the residency manager")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Counts a request for a model and returns the keep_alive it should be sent with.
+     *
+     * @param model the model of the request
+     * @return Ollama keep_alive value, e.g. "600s"
+     */
+    public String keepAliveFor(String model) {
+        String name = OllamaModelRegistry.normalize(model);
+        double rate = traffic.computeIfAbsent(name, key -> new ModelTraffic()).record();
+        if (preloadModels.contains(name)) {
+            return format(maxKeepAlive);
+        }
+        double heat = Math.min(1.0, rate / hotRequests);
+        long seconds = minKeepAlive.toSeconds()
+                + Math.round((maxKeepAlive.toSeconds() - minKeepAlive.toSeconds()) * heat);
+        return format(Duration.ofSeconds(seconds));
+    }
+
+    /**
+     * Preloads the configured models on servers that became active or lost them, and
+     * unloads cold models from servers over their memory budget, based on what the model
+     * registry saw at its last refresh.
+     */
+    @Scheduled(initialDelay = 10000, fixedDelayString = "${ollama.residency.check-interval:30000}")
+    public void manageResidency() {
+        try {
+            List<ChatServer> active = chatServerService.getAllChatServers().stream()
+                    .filter(server -> "active".equals(server.getStatus()))
+                    .toList();
+            Set<Long> activeIds = new HashSet<>();
+            for (ChatServer server : active) {
+                activeIds.add(server.getServerId());
+                boolean cameOnline = activeServers.add(server.getServerId());
+                preload(server, cameOnline);
+                if (vramBudget > 0) {
+                    unloadColdModels(server);
+                }
+            }
+            activeServers.retainAll(activeIds);
+        } catch (Exception e) {
+            log.error("Error managing Ollama model residency: {}", e.getMessage(), e);
+        }
+    }
+
+    private void preload(ChatServer server, boolean cameOnline) {
+        Long serverId = server.getServerId();
+        boolean known = ollamaModelRegistry.isKnown(serverId);
+        for (String model : preloadModels) {
+            if (known && !ollamaModelRegistry.isInstalled(serverId, model)) {
+                continue;
+            }
+            // A server that just came online is preloaded even if the registry still shows the
+            // models of before it went away; otherwise only models it is known to have dropped
+            if (!cameOnline && (!known || ollamaModelRegistry.isLoaded(serverId, model))) {
+                continue;
+            }
+            if (cameOnline) {
+                log.info("Preloading model {} on Ollama server {}", model, serverId);
+            }
+            change(server, model, format(maxKeepAlive), generationProfileService.contextSize(model), preloadCounter);
+        }
+    }
+
+    private void unloadColdModels(ChatServer server) {
+        Long serverId = server.getServerId();
+        List<OllamaModelRegistry.LoadedModel> loaded = ollamaModelRegistry.loadedModels(serverId).stream()
+                .sorted(Comparator.comparingDouble(model -> rateOf(model.name())))
+                .toList();
+        long used = loaded.stream().mapToLong(OllamaModelRegistry.LoadedModel::sizeVram).sum();
+        for (OllamaModelRegistry.LoadedModel model : loaded) {
+            if (used <= vramBudget) {
+                return;
+            }
+            if (preloadModels.contains(OllamaModelRegistry.normalize(model.name()))) {
+                continue;
+            }
+            log.info("Unloading model {} from Ollama server {}: {} MB loaded, budget is {} MB", model.name(), serverId,
+                    used / (1024 * 1024), vramBudget / (1024 * 1024));
+            change(server, model.name(), "0s", null, unloadCounter);
+            used -= model.sizeVram();
+        }
+    }
+
+    private void change(ChatServer server, String model, String keepAlive, Integer contextTokens, Counter counter) {
+        String key = server.getServerId() + "/" + model;
+        if (!pending.add(key)) {
+            return;
+        }
+        counter.increment();
+        ollamaConnectionService.setModelKeepAlive(server, model, keepAlive, contextTokens)
+                .whenComplete((ignored, error) -> {
+                    pending.remove(key);
+                    if (error != null) {
+                        log.warn("Could not set keep_alive {} for model {} on Ollama server {}: {}",
+                                keepAlive, model, server.getServerId(), error.getMessage());
+                    }
+                });
+    }
+
+    private double rateOf(String model) {
+        ModelTraffic modelTraffic = traffic.get(OllamaModelRegistry.normalize(model));
+        return modelTraffic != null ? modelTraffic.rate() : 0;
+    }
+
+    private static String format(Duration keepAlive) {
+        return keepAlive.toSeconds() + "s";
+    }
+
+    /**
+     * Exponentially decaying request count of one model: every request adds one, and
+     * the count decays with the traffic window as time constant, so it approximates the
+     * number of requests in the last window.
+     */
+    private final class ModelTraffic {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private double count;
+        private long updatedAt = System.nanoTime();
+
+        double record() {
+            lock.lock();
+            try {
+                decay();
+                count += 1;
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        double rate() {
+            lock.lock();
+            try {
+                decay();
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void decay() {
+            long now = System.nanoTime();
+            count *= Math.exp(-(double) (now - updatedAt) / trafficWindowNanos);
+            updatedAt = now;
+        }
+    }
+}
@@ -0,0 +1,745 @@
+package com.omer.ostim.ai.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.omer.ostim.ai.dto.OllamaRequest;
+import com.omer.ostim.ai.exception.OllamaServerException;
+import com.omer.ostim.ai.model.ChatServer;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking client for the Ollama generate API built on the JDK HttpClient.
+ * Calls return immediately with a CompletableFuture, so no thread is parked
+ * while the model is producing its answer. WebClient is on the classpath through the
+ * Spring AI Ollama starter, but without Reactor Netty it would run on the JDK HttpClient
+ * as well; using that directly keeps Reactor types out of the services.
+ * <p>
+ * Each request goes to the server chosen by the {@link OllamaLoadBalancer} and
+ * through that server's {@link OllamaServerConnection}, which caps the
+ * number of connections. A streamed request must start answering within the first
+ * byte timeout and may then stay silent for at most the read timeout between chunks.
+ * A request whose server fails before any output arrived is retried on another
+ * server, up to {@code ollama.failover.max-attempts} servers in total. Unless the
+ * caller set one, requests carry the {@code keep_alive} chosen by the
+ * {@link ModelResidencyManager} from the recent traffic of their model.
+ * <p>
+ * Requests with messages go to {@code /api/chat}, all others to {@code /api/generate}.
+ * The prompt tokens Ollama had to evaluate are exported as {@code ollama.prompt.eval.tokens}.
+ * <p>
+ * With {@link HedgingPolicy hedging} enabled, a stream that has not produced its first
+ * token within the hedging delay is also sent to a second server; whichever starts
+ * answering first is streamed and the other is cancelled.
+ * <p>
+ * Requests that have a deadline leave the server's queue once they could no longer finish
+ * in time, and every finished request is recorded with the {@link DeadlinePolicy}.
+ * <p>
+ * Cancelling the future of a request aborts it wherever it is: a request waiting for its
+ * turn leaves the server's queue, a running one has its HTTP exchange cancelled, which
+ * closes the connection and makes Ollama stop generating, and it is not failed over.
+ */
+@Service
+public class OllamaAsyncClient {
+
+    private static final Logger log = LoggerFactory.getLogger(OllamaAsyncClient.class);
+    private static final String DEFAULT_MODEL = "deepseek-r1:1.5b";
+    private static final int PRIMARY = 0;
+    private static final int HEDGE = 1;
+
+    private final OllamaConnectionService ollamaConnectionService;
+    private final OllamaLoadBalancer ollamaLoadBalancer;
+    private final HedgingPolicy hedgingPolicy;
+    private final ModelResidencyManager modelResidencyManager;
+    private final DeadlinePolicy deadlinePolicy;
+    private final AsyncTaskExecutor generationExecutor;
+    private final ObjectMapper objectMapper;
+    private final DistributionSummary generatePromptEvalSummary;
+    private final DistributionSummary chatPromptEvalSummary;
+    private final int maxAttempts;
+
+    public OllamaAsyncClient(OllamaConnectionService ollamaConnectionService,
+                             OllamaLoadBalancer ollamaLoadBalancer,
+                             HedgingPolicy hedgingPolicy,
+                             ModelResidencyManager modelResidencyManager,
+                             DeadlinePolicy deadlinePolicy,
+                             @Qualifier("generationExecutor") AsyncTaskExecutor generationExecutor,
+                             MeterRegistry meterRegistry,
+                             @Value("${ollama.failover.max-attempts:2}") int maxAttempts) {
+        this.ollamaConnectionService = ollamaConnectionService;
+        this.ollamaLoadBalancer = ollamaLoadBalancer;
+        this.hedgingPolicy = hedgingPolicy;
+        this.modelResidencyManager = modelResidencyManager;
+        this.deadlinePolicy = deadlinePolicy;
+        this.generationExecutor = generationExecutor;
+        this.objectMapper = new ObjectMapper();
+        this.generatePromptEvalSummary = promptEvalSummary(meterRegistry, "generate");
+        this.chatPromptEvalSummary = promptEvalSummary(meterRegistry, "chat");
+        this.maxAttempts = maxAttempts;
+    }
+
+    private static DistributionSummary promptEvalSummary(MeterRegistry meterRegistry, String api) {
+        return DistributionSummary.builder("ollama.prompt.eval.tokens")
+                .tag("api", api)
+                .description("Prompt tokens Ollama evaluated per request, without those reused from its context cache")
+                .baseUnit("tokens")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Generates a complete (non-streamed) response on the server chosen by the load balancer.
+     *
+     * @param generationRequest the model, prompt and generation options
+     * @return a future completed with the generated text
+     */
+    public CompletableFuture<String> generate(OllamaRequest generationRequest) {
+        OllamaRequest request = createRequest(generationRequest, false);
+        CurrentAttempt current = new CurrentAttempt();
+        return current.cancelledWith(withFailover(request.getModel(), request.getSession(), new HashSet<>(), 1,
+                lease -> current.track(generateOn(lease.getServer(), request, lease::markSent))));
+    }
+
+    /**
+     * Generates a streamed response on the server chosen by the load balancer. Every
+     * chunk is handed to {@code onToken} as soon as Ollama emits it.
+     *
+     * @param generationRequest the model, prompt and generation options
+     * @param onToken callback invoked for every response chunk
+     * @return a future completed with the full generated text once the stream ends
+     */
+    public CompletableFuture<String> stream(OllamaRequest generationRequest, Consumer<String> onToken) {
+        OllamaRequest request = createRequest(generationRequest, true);
+        if (hedgingPolicy.isEnabled()) {
+            return hedgedStream(request, onToken);
+        }
+        CurrentAttempt current = new CurrentAttempt();
+        return current.cancelledWith(withFailover(request.getModel(), request.getSession(), new HashSet<>(), 1,
+                lease -> current.track(streamOn(lease, request, onToken))));
+    }
+
+    /**
+     * Streams on the primary server and, if no token arrived within the hedging delay
+     * and the budget allows, also on a second server.
+     */
+    private CompletableFuture<String> hedgedStream(OllamaRequest request, Consumer<String> onToken) {
+        hedgingPolicy.requestStarted();
+        // Shared by both lanes, so neither fails over to the server the other one is using
+        Set<Long> excluded = ConcurrentHashMap.newKeySet();
+        HedgedStream race = new HedgedStream(onToken);
+        race.start(PRIMARY, withFailover(request.getModel(), request.getSession(), excluded, 1,
+                lease -> race.track(PRIMARY, lease, streamOn(lease, request, token -> race.deliver(PRIMARY, token)))));
+
+        Duration delay = hedgingPolicy.hedgeDelay(request.getModel());
+        CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS, generationExecutor)
+                .execute(() -> hedge(race, request, excluded));
+        return race.result();
+    }
+
+    private void hedge(HedgedStream race, OllamaRequest request, Set<Long> excluded) {
+        if (!race.awaitingFirstToken() || !hedgingPolicy.tryAcquireHedge()) {
+            return;
+        }
+        Long primaryServer = race.server(PRIMARY);
+        if (primaryServer != null) {
+            excluded.add(primaryServer);
+        }
+        try {
+            race.start(HEDGE, withFailover(request.getModel(), null, excluded, 1,
+                    lease -> race.track(HEDGE, lease, streamOn(lease, request, token -> race.deliver(HEDGE, token)))));
+            log.debug("No token from Ollama server {} yet, hedging the request on another server", primaryServer);
+        } catch (RuntimeException e) {
+            // No other server available
+            hedgingPolicy.refundHedge();
+        }
+    }
+
+    /**
+     * Streams on a leased server, marking the first output on the lease and recording
+     * the time to first token for the hedging delay.
+     */
+    private CompletableFuture<String> streamOn(ServerLease lease, OllamaRequest request, Consumer<String> onToken) {
+        long start = System.nanoTime();
+        return streamOn(lease.getServer(), request, lease::markSent, token -> {
+            if (!lease.hasOutput()) {
+                lease.markFirstOutput();
+                hedgingPolicy.recordFirstOutput(request.getModel(), System.nanoTime() - start);
+            }
+            onToken.accept(token);
+        });
+    }
+
+    /**
+     * Runs a request on a server chosen by the load balancer. If that server fails
+     * before producing any output, the request moves to a server not tried yet; once
+     * output has reached the caller a retry would repeat it, so the failure is final.
+     *
+     * @param session the session of the request, so it goes back to its server; null for none
+     * @param excluded servers not to use; servers that fail this request are added
+     * @param attempt number of this attempt, starting at 1
+     */
+    private CompletableFuture<String> withFailover(String model, String session, Set<Long> excluded, int attempt,
+                                                   Function<ServerLease, CompletableFuture<String>> call) {
+        ServerLease lease = ollamaLoadBalancer.acquire(model, excluded, session);
+        return withLease(lease, () -> call.apply(lease))
+                .handle((text, error) -> {
+                    if (error == null) {
+                        return CompletableFuture.completedFuture(text);
+                    }
+                    Long serverId = lease.getServer().getServerId();
+                    excluded.add(serverId);
+                    // Cancellations are not server failures, so they are never retried
+                    if (lease.hasOutput() || !ServerCircuitBreaker.isServerFailure(error) || attempt >= maxAttempts) {
+                        return CompletableFuture.<String>failedFuture(error);
+                    }
+                    try {
+                        CompletableFuture<String> retry = withFailover(model, session, excluded, attempt + 1, call);
+                        log.warn("Ollama server {} failed before answering, retrying on another server: {}",
+                                serverId, error.getMessage());
+                        return retry;
+                    } catch (RuntimeException e) {
+                        // No other server to try
+                        return CompletableFuture.<String>failedFuture(error);
+                    }
+                })
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * Runs a request under a lease and releases the lease with the outcome when the
+     * request ends, also when it fails before it was even sent.
+     */
+    private CompletableFuture<String> withLease(ServerLease lease, Supplier<CompletableFuture<String>> request) {
+        CompletableFuture<String> result;
+        try {
+            result = request.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return result.whenComplete((text, error) -> lease.release(error));
+    }
+
+    /**
+     * @param onSent called when the request got its turn on the server and is sent
+     */
+    private CompletableFuture<String> generateOn(ChatServer server, OllamaRequest request, Runnable onSent) {
+        OllamaServerConnection connection = ollamaConnectionService.getConnection(server);
+        // The whole answer arrives at once, so there is no first byte before the end
+        HttpRequest httpRequest = buildHttpRequest(server, request, connection.getSettings().getReadTimeout());
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+        CompletableFuture<OllamaServerConnection.Permit> turn = connection.acquire(request.getPriority(),
+                request.getUser(), estimatedTokens(request), deadlinePolicy.latestStart(server.getServerId(), request));
+        result.whenComplete((text, error) -> turn.cancel(false));
+        turn.whenComplete((permit, acquireError) -> {
+            if (acquireError != null) {
+                result.completeExceptionally(acquireError);
+                return;
+            }
+            if (result.isDone()) {
+                // Cancelled while waiting for a connection
+                permit.release();
+                return;
+            }
+            onSent.run();
+            long sentAt = System.nanoTime();
+            CompletableFuture<HttpResponse<String>> exchange = connection.getHttpClient()
+                    .sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString());
+            // Aborts the exchange when the result is cancelled; a no-op once the response is in
+            result.whenComplete((text, error) -> exchange.cancel(true));
+            exchange.whenComplete((response, error) -> {
+                permit.release();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                    return;
+                }
+                if (response.statusCode() != 200) {
+                    result.completeExceptionally(new OllamaServerException(response.statusCode(),
+                            "Ollama returned HTTP " + response.statusCode() + ": " + response.body()));
+                    return;
+                }
+                try {
+                    JsonNode jsonNode = objectMapper.readTree(response.body());
+                    recordCompletion(request, server, sentAt, jsonNode);
+                    String text = textOf(jsonNode);
+                    result.complete(text.isEmpty() ? "No response generated" : text);
+                } catch (JsonProcessingException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        });
+        return result;
+    }
+
+    /**
+     * @param onSent called when the request got its turn on the server and is sent
+     */
+    private CompletableFuture<String> streamOn(ChatServer server, OllamaRequest request, Runnable onSent,
+                                               Consumer<String> onToken) {
+        OllamaServerConnection connection = ollamaConnectionService.getConnection(server);
+        HttpRequest httpRequest = buildHttpRequest(server, request, connection.getSettings().getFirstByteTimeout());
+
+        NdjsonSubscriber subscriber = new NdjsonSubscriber(server, request, onToken, connection.getSettings().getReadTimeout());
+        CompletableFuture<OllamaServerConnection.Permit> turn = connection.acquire(request.getPriority(),
+                request.getUser(), estimatedTokens(request), deadlinePolicy.latestStart(server.getServerId(), request));
+        subscriber.result().whenComplete((text, error) -> turn.cancel(false));
+        turn.whenComplete((permit, acquireError) -> {
+            if (acquireError != null) {
+                subscriber.fail(acquireError);
+                return;
+            }
+            if (subscriber.result().isDone()) {
+                // Cancelled while waiting for a connection
+                permit.release();
+                return;
+            }
+            // A cancelled stream may never complete the HTTP exchange, so release on either end
+            subscriber.result().whenComplete((text, error) -> permit.release());
+            onSent.run();
+            subscriber.sent();
+            CompletableFuture<HttpResponse<Void>> exchange = connection.getHttpClient()
+                    .sendAsync(httpRequest, responseInfo -> {
+                        // Fail on the status before the body is read; an empty error body
+                        // would otherwise end the stream as an empty answer
+                        if (responseInfo.statusCode() != 200) {
+                            subscriber.fail(new OllamaServerException(responseInfo.statusCode(),
+                                    "Ollama returned HTTP " + responseInfo.statusCode()));
+                            return HttpResponse.BodySubscribers.discarding();
+                        }
+                        return HttpResponse.BodyHandlers.fromLineSubscriber(subscriber).apply(responseInfo);
+                    });
+            // A stream that failed or was cancelled before the response headers arrived
+            // has no subscription to cancel yet; aborting the exchange closes the connection
+            subscriber.result().whenComplete((text, error) -> {
+                if (error != null) {
+                    exchange.cancel(true);
+                }
+            });
+            exchange.whenComplete((response, error) -> {
+                permit.release();
+                if (error != null) {
+                    subscriber.fail(error);
+                }
+            });
+        });
+        return subscriber.result();
+    }
+
+    /**
+     * Copies the caller's request so the shared instance is never mutated while
+     * other coalesced callers still hold it.
+     */
+    private OllamaRequest createRequest(OllamaRequest generationRequest, boolean stream) {
+        OllamaRequest request = new OllamaRequest();
+        request.setModel(generationRequest.getModel() != null ? generationRequest.getModel() : DEFAULT_MODEL);
+        request.setPrompt(generationRequest.getPrompt());
+        request.setMessages(generationRequest.getMessages());
+        request.setOptions(generationRequest.getOptions());
+        request.setStream(stream);
+        request.setKeepAlive(generationRequest.getKeepAlive() != null
+                ? generationRequest.getKeepAlive() : modelResidencyManager.keepAliveFor(request.getModel()));
+        request.setPriority(generationRequest.getPriority());
+        request.setUser(generationRequest.getUser());
+        request.setSession(generationRequest.getSession());
+        request.setDeadline(generationRequest.getDeadline());
+        return request;
+    }
+
+    /**
+     * Rough prompt size in tokens, used to share servers fairly between users. For a
+     * conversation only the new turn counts, since its server normally still holds the rest.
+     */
+    static double estimatedTokens(OllamaRequest request) {
+        String text = isChat(request) && !request.getMessages().isEmpty()
+                ? request.getMessages().get(request.getMessages().size() - 1).getContent()
+                : request.getPrompt();
+        return text != null ? text.length() / 4.0 : 1;
+    }
+
+    private static boolean isChat(OllamaRequest request) {
+        return request.getMessages() != null;
+    }
+
+    /**
+     * The generated text of a response or chunk: {@code response} for /api/generate,
+     * {@code message.content} for /api/chat.
+     */
+    private static String textOf(JsonNode chunk) {
+        JsonNode message = chunk.get("message");
+        return message != null ? message.path("content").asText("") : chunk.path("response").asText("");
+    }
+
+    /**
+     * Records how many prompt tokens Ollama had to evaluate, reported on the final chunk,
+     * and how long the request took for the {@link DeadlinePolicy}. Tokens still in the
+     * server's context cache are not counted by Ollama.
+     *
+     * @param sentAt {@link System#nanoTime()} when the request was sent
+     */
+    private void recordCompletion(OllamaRequest request, ChatServer server, long sentAt, JsonNode chunk) {
+        if (chunk.has("prompt_eval_count")) {
+            (isChat(request) ? chatPromptEvalSummary : generatePromptEvalSummary).record(chunk.get("prompt_eval_count").asLong());
+        }
+        deadlinePolicy.record(request.getModel(), server.getServerId(), estimatedTokens(request), System.nanoTime() - sentAt,
+                chunk.path("eval_count").asLong(0), chunk.path("eval_duration").asLong(0));
+    }
+
+    /**
+     * @param responseTimeout how long to wait for the response headers
+     */
+    private HttpRequest buildHttpRequest(ChatServer server, OllamaRequest request, Duration responseTimeout) {
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder()
+                    .uri(URI.create(ollamaConnectionService.getApiUrl(server, isChat(request) ? "/api/chat" : "/api/generate")))
+                    .timeout(responseTimeout)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(request)));
+
+            HttpHeaders headers = ollamaConnectionService.createHeaders(server);
+            headers.forEach((name, values) -> values.forEach(value -> builder.header(name, value)));
+            if (Boolean.TRUE.equals(request.getStream())) {
+                builder.setHeader(HttpHeaders.ACCEPT, "application/x-ndjson");
+            }
+
+            log.debug("Sending async request to Ollama server {} for model {}", server.getServerId(), request.getModel());
+            return builder.build();
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not serialize Ollama request", e);
+        }
+    }
+
+    /**
+     * Consumes an Ollama NDJSON body line by line. Each line is a JSON object with
+     * the next piece of the response; the last one carries {@code "done": true}.
+     * The stream fails when no line arrives within the read timeout.
+     */
+    private class NdjsonSubscriber implements Flow.Subscriber<String> {
+
+        private final ChatServer server;
+        private final OllamaRequest request;
+        private final Consumer<String> onToken;
+        private final Duration readTimeout;
+        private final StringBuilder fullResponse = new StringBuilder();
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private volatile Flow.Subscription subscription;
+        private volatile long lastActivity;
+        private volatile long sentAt;
+
+        NdjsonSubscriber(ChatServer server, OllamaRequest request, Consumer<String> onToken, Duration readTimeout) {
+            this.server = server;
+            this.request = request;
+            this.onToken = onToken;
+            this.readTimeout = readTimeout;
+            // Stop reading once the result failed, also when it was cancelled from outside
+            result.whenComplete((text, error) -> {
+                Flow.Subscription current = subscription;
+                if (error != null && current != null) {
+                    current.cancel();
+                }
+            });
+        }
+
+        CompletableFuture<String> result() {
+            return result;
+        }
+
+        void fail(Throwable error) {
+            result.completeExceptionally(error);
+        }
+
+        /**
+         * Marks the moment the request goes out, which the request's duration is measured from.
+         */
+        void sent() {
+            sentAt = System.nanoTime();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (result.isCompletedExceptionally()) {
+                subscription.cancel();
+                return;
+            }
+            lastActivity = System.nanoTime();
+            watchReads(readTimeout.toNanos());
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        /**
+         * Checks for read silence once per read timeout instead of re-arming a timer
+         * on every chunk.
+         */
+        private void watchReads(long delayNanos) {
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS).execute(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                long idle = System.nanoTime() - lastActivity;
+                if (idle >= readTimeout.toNanos()) {
+                    fail(new HttpTimeoutException("No data from Ollama for " + readTimeout.toSeconds() + " seconds"));
+                } else {
+                    watchReads(readTimeout.toNanos() - idle);
+                }
+            });
+        }
+
+        @Override
+        public void onNext(String line) {
+            lastActivity = System.nanoTime();
+            if (result.isDone() || line.isBlank()) {
+                return;
+            }
+            try {
+                JsonNode chunk = objectMapper.readTree(line);
+                if (chunk.hasNonNull("error")) {
+                    fail(new IllegalStateException("Ollama returned an error: " + chunk.get("error").asText()));
+                    return;
+                }
+
+                String token = textOf(chunk);
+                if (!token.isEmpty()) {
+                    fullResponse.append(token);
+                    onToken.accept(token);
+                }
+
+                if (chunk.path("done").asBoolean(false)) {
+                    recordCompletion(request, server, sentAt, chunk);
+                    result.complete(fullResponse.toString());
+                }
+            } catch (Exception e) {
+                // Either the chunk was malformed or the consumer gave up (e.g. client disconnected)
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            // Complete answers end with a done message and have completed the result by
+            // now; a body that ends without one was cut off, e.g. by a dropped connection
+            // or a restart of Ollama, and must not be cached as an answer
+            result.completeExceptionally(new IOException("Ollama stream ended before the done message"));
+        }
+    }
+
+    /**
+     * The attempt a request is running, so that cancelling the request reaches whichever
+     * server it has failed over to. An attempt started after the cancellation is
+     * cancelled right away.
+     */
+    private static final class CurrentAttempt {
+
+        private volatile CompletableFuture<String> attempt;
+        private volatile boolean cancelled;
+
+        CompletableFuture<String> track(CompletableFuture<String> attempt) {
+            this.attempt = attempt;
+            if (cancelled) {
+                attempt.cancel(false);
+            }
+            return attempt;
+        }
+
+        /**
+         * @return the result, which cancels the current attempt when it is cancelled
+         */
+        CompletableFuture<String> cancelledWith(CompletableFuture<String> result) {
+            result.whenComplete((text, error) -> {
+                if (result.isCancelled()) {
+                    cancelled = true;
+                    CompletableFuture<String> current = attempt;
+                    if (current != null) {
+                        current.cancel(false);
+                    }
+                }
+            });
+            return result;
+        }
+    }
+
+    /**
+     * The race between the original request and its hedge. The first of them to
+     * deliver a token wins: its tokens go to the caller and the other one is
+     * cancelled. The result only fails when the winner fails, or when both failed
+     * before either produced a token.
+     */
+    private final class HedgedStream {
+
+        private final Consumer<String> onToken;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final CompletableFuture<?>[] attempts = new CompletableFuture<?>[2];
+        private final Long[] servers = new Long[2];
+        private int winner = -1;
+        private int running;
+        private boolean hedged;
+        private Throwable firstError;
+
+        HedgedStream(Consumer<String> onToken) {
+            this.onToken = onToken;
+            // Cancelling the request cancels both lanes
+            result.whenComplete((text, error) -> {
+                if (result.isCancelled()) {
+                    cancelAttempts();
+                }
+            });
+        }
+
+        private void cancelAttempts() {
+            CompletableFuture<?>[] running;
+            lock.lock();
+            try {
+                running = attempts.clone();
+            } finally {
+                lock.unlock();
+            }
+            for (CompletableFuture<?> attempt : running) {
+                if (attempt != null) {
+                    attempt.cancel(false);
+                }
+            }
+        }
+
+        CompletableFuture<String> result() {
+            return result;
+        }
+
+        boolean awaitingFirstToken() {
+            lock.lock();
+            try {
+                return winner == -1 && !hedged && !result.isDone();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Long server(int lane) {
+            lock.lock();
+            try {
+                return servers[lane];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void start(int lane, CompletableFuture<String> laneResult) {
+            lock.lock();
+            try {
+                running++;
+                hedged |= lane == HEDGE;
+            } finally {
+                lock.unlock();
+            }
+            laneResult.whenComplete((text, error) -> finish(lane, text, error));
+        }
+
+        /**
+         * Registers the stream a lane is currently running (a new one after failover).
+         * A lane that has already lost is cancelled right away.
+         */
+        CompletableFuture<String> track(int lane, ServerLease lease, CompletableFuture<String> attempt) {
+            boolean lost;
+            lock.lock();
+            try {
+                servers[lane] = lease.getServer().getServerId();
+                attempts[lane] = attempt;
+                lost = (winner != -1 && winner != lane) || result.isCancelled();
+            } finally {
+                lock.unlock();
+            }
+            if (lost) {
+                attempt.cancel(false);
+            }
+            return attempt;
+        }
+
+        void deliver(int lane, String token) {
+            CompletableFuture<?> loser = null;
+            boolean won;
+            lock.lock();
+            try {
+                if (winner == -1) {
+                    winner = lane;
+                    loser = attempts[1 - lane];
+                }
+                won = winner == lane;
+            } finally {
+                lock.unlock();
+            }
+            if (loser != null) {
+                loser.cancel(false);
+            }
+            if (!won) {
+                // Ends the losing stream; cancellations do not count against the server
+                throw new CancellationException("Hedged request answered on another server first");
+            }
+            onToken.accept(token);
+        }
+
+        private void finish(int lane, String text, Throwable error) {
+            CompletableFuture<?> loser = null;
+            boolean complete = false;
+            Throwable failure = null;
+            boolean hedgeWon;
+            lock.lock();
+            try {
+                running--;
+                if (error == null && (winner == -1 || winner == lane)) {
+                    winner = lane;
+                    loser = attempts[1 - lane];
+                    complete = true;
+                } else if (error != null && winner == lane) {
+                    failure = error;
+                } else if (error != null && winner == -1) {
+                    firstError = firstError != null ? firstError : error;
+                    if (running == 0) {
+                        failure = firstError;
+                    }
+                }
+                hedgeWon = winner == HEDGE;
+            } finally {
+                lock.unlock();
+            }
+
+            if (lane == HEDGE) {
+                hedgingPolicy.hedgeFinished(hedgeWon);
+            }
+            if (loser != null) {
+                loser.cancel(false);
+            }
+            if (complete) {
+                result.complete(text);
+            } else if (failure != null) {
+                result.completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -1,19 +1,51 @@
 package com.omer.ostim.ai.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.omer.ostim.ai.config.OllamaHttpClientFactory;
+import com.omer.ostim.ai.config.OllamaHttpProperties;
+import com.omer.ostim.ai.config.OllamaSchedulerProperties;
+import com.omer.ostim.ai.dto.OllamaRequest;
+import com.omer.ostim.ai.exception.OllamaServerException;
 import com.omer.ostim.ai.model.ChatServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.ai.ollama.OllamaChatModel;
+import org.springframework.ai.ollama.api.OllamaApi;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClient;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
 
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class OllamaConnectionService {
@@ -21,59 +53,174 @@ public class OllamaConnectionService {
     private static final Logger log = LoggerFactory.getLogger(OllamaConnectionService.class);
     private final RestTemplate restTemplate;
     private final ChatServerService chatServerService;
+    private final OllamaLoadBalancer ollamaLoadBalancer;
+    private final OllamaModelRegistry ollamaModelRegistry;
+    private final OllamaHttpClientFactory ollamaHttpClientFactory;
+    private final OllamaHttpProperties ollamaHttpProperties;
+    private final OllamaSchedulerProperties ollamaSchedulerProperties;
+    private final AsyncTaskExecutor generationExecutor;
+    private final AsyncTaskExecutor monitoringExecutor;
+    private final MeterRegistry meterRegistry;
+    private final CloseableHttpClient probeClient;
+    private final RestTemplate probeTemplate;
+    private final ObjectMapper objectMapper = new ObjectMapper();
     
-    // Cache for RestTemplate instances by server ID
-    private final Map<Long, RestTemplate> serverConnections = new HashMap<>();
+    // Pooled connections by server ID. Lock-free on purpose: a synchronized
+    // section here would pin virtual threads while a connection is being created.
+    private final Map<Long, OllamaServerConnection> serverConnections = new ConcurrentHashMap<>();
     
-    public OllamaConnectionService(RestTemplate restTemplate, ChatServerService chatServerService) {
+    public OllamaConnectionService(RestTemplate restTemplate, 
+                                   ChatServerService chatServerService,
+                                   OllamaLoadBalancer ollamaLoadBalancer,
+                                   OllamaModelRegistry ollamaModelRegistry,
+                                   OllamaHttpClientFactory ollamaHttpClientFactory,
+                                   OllamaHttpProperties ollamaHttpProperties,
+                                   OllamaSchedulerProperties ollamaSchedulerProperties,
+                                   @Qualifier("generationExecutor") AsyncTaskExecutor generationExecutor,
+                                   @Qualifier("monitoringExecutor") AsyncTaskExecutor monitoringExecutor,
+                                   MeterRegistry meterRegistry) {
         this.restTemplate = restTemplate;
         this.chatServerService = chatServerService;
+        this.ollamaLoadBalancer = ollamaLoadBalancer;
+        this.ollamaModelRegistry = ollamaModelRegistry;
+        this.ollamaHttpClientFactory = ollamaHttpClientFactory;
+        this.ollamaHttpProperties = ollamaHttpProperties;
+        this.ollamaSchedulerProperties = ollamaSchedulerProperties;
+        this.generationExecutor = generationExecutor;
+        this.monitoringExecutor = monitoringExecutor;
+        this.meterRegistry = meterRegistry;
+        
+        // Reachability checks and model registry refreshes get their own small pool with short
+        // timeouts, so a hanging server is reported offline quickly instead of after the
+        // generation read timeout
+        OllamaHttpProperties.ConnectionSettings probeSettings = new OllamaHttpProperties.ConnectionSettings();
+        probeSettings.setMaxConnections(4);
+        probeSettings.setConnectTimeout(Duration.ofSeconds(3));
+        probeSettings.setFirstByteTimeout(Duration.ofSeconds(5));
+        probeSettings.setReadTimeout(Duration.ofSeconds(5));
+        probeSettings.setIdleTimeout(Duration.ofSeconds(30));
+        probeSettings.setAcquireTimeout(Duration.ofSeconds(5));
+        this.probeClient = ollamaHttpClientFactory.createPooledClient("ollama-probe", probeSettings);
+        this.probeTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(probeClient));
     }
     
     /**
      * Gets a connection to a specific Ollama server by ID.
      * 
      * @param serverId The ID of the server to connect to
-     * @return RestTemplate configured for the specified server
+     * @return RestTemplate backed by the connection pool of the specified server
      */
     public RestTemplate getServerConnection(Long serverId) {
-        // Return cached connection if available
-        if (serverConnections.containsKey(serverId)) {
-            return serverConnections.get(serverId);
-        }
-        
-        // Get server details
-        ChatServer server = chatServerService.getChatServerById(serverId);
+        return getConnection(serverId).getRestTemplate();
+    }
+    
+    /**
+     * Gets the pooled connections to a specific Ollama server by ID.
+     * 
+     * @param serverId The ID of the server to connect to
+     * @return the server's connections
+     */
+    public OllamaServerConnection getConnection(Long serverId) {
+        // Return cached connection if available, otherwise create and cache it
+        return serverConnections.computeIfAbsent(serverId, id -> createConnection(chatServerService.getChatServerById(id)));
+    }
+    
+    /**
+     * Gets the pooled connections to the given Ollama server.
+     * 
+     * @param server The server to connect to
+     * @return the server's connections
+     */
+    public OllamaServerConnection getConnection(ChatServer server) {
+        return serverConnections.computeIfAbsent(server.getServerId(), id -> createConnection(server));
+    }
+    
+    private OllamaServerConnection createConnection(ChatServer server) {
+        OllamaHttpProperties.ConnectionSettings settings = ollamaHttpProperties.forServer(server.getServerId());
+        log.info("Creating connection pool to Ollama server: {} (max {} connections, {} parallel generations)", 
+                formatServerUrl(server), settings.getMaxConnections(), settings.getNumParallel());
         
-        // Generate base URL for the server
-        String baseUrl = formatServerUrl(server);
-        log.info("Creating connection to Ollama server: {}", baseUrl);
+        CloseableHttpClient pooledClient = ollamaHttpClientFactory.createPooledClient(poolName(server.getServerId()), settings);
+        RestTemplate serverTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(pooledClient));
+        serverTemplate.setMessageConverters(restTemplate.getMessageConverters());
         
-        // Create a RestTemplate with the server-specific settings
-        RestTemplate serverTemplate = new RestTemplate(restTemplate.getRequestFactory());
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(settings.getConnectTimeout())
+                .executor(generationExecutor)
+                .build();
         
-        // Cache the connection
-        serverConnections.put(serverId, serverTemplate);
+        // Spring AI client for this server, on the same connection pool
+        RestClient.Builder restClientBuilder = RestClient.builder()
+                .requestFactory(new HttpComponentsClientHttpRequestFactory(pooledClient));
+        WebClient.Builder webClientBuilder = WebClient.builder();
+        if (server.getToken() != null && !server.getToken().isEmpty()) {
+            restClientBuilder.defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + server.getToken());
+            webClientBuilder.defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + server.getToken());
+        }
+        OllamaChatModel chatModel = OllamaChatModel.builder()
+                .ollamaApi(new OllamaApi(formatServerUrl(server), restClientBuilder, webClientBuilder))
+                .build();
         
-        return serverTemplate;
+        return new OllamaServerConnection(server.getServerId(), settings, ollamaSchedulerProperties, pooledClient,
+                serverTemplate, httpClient, chatModel, meterRegistry);
     }
     
     /**
-     * Gets a connection to the default Ollama server (first active one).
+     * Closes the connections to a server, e.g. after it has been deleted or its
+     * token has changed. The next request opens new ones.
      * 
-     * @return RestTemplate configured for the default server
+     * @param serverId The ID of the server
+     */
+    public void closeServerConnection(Long serverId) {
+        OllamaServerConnection connection = serverConnections.remove(serverId);
+        if (connection != null) {
+            closeQuietly(connection);
+        }
+    }
+    
+    @PreDestroy
+    public void closeAllConnections() {
+        serverConnections.values().forEach(this::closeQuietly);
+        serverConnections.clear();
+        try {
+            probeClient.close();
+        } catch (IOException e) {
+            log.debug("Error closing probe connection pool: {}", e.getMessage());
+        }
+    }
+    
+    private void closeQuietly(OllamaServerConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            log.debug("Error closing connection pool for server {}: {}", connection.getServerId(), e.getMessage());
+        }
+        ollamaHttpClientFactory.removeMetrics(poolName(connection.getServerId()));
+    }
+    
+    private static String poolName(Long serverId) {
+        return "ollama-server-" + serverId;
+    }
+    
+    /**
+     * Gets a connection to the server the load balancer would pick next.
+     * 
+     * @return RestTemplate configured for the chosen server
      */
     public RestTemplate getDefaultServerConnection() {
-        // Get all servers
-        var servers = chatServerService.getAllChatServers();
-        
-        // Find the first active server
-        ChatServer defaultServer = servers.stream()
-            .filter(s -> "active".equals(s.getStatus()))
-            .findFirst()
-            .orElseThrow(() -> new RuntimeException("No active Ollama server found"));
-        
-        return getServerConnection(defaultServer.getServerId());
+        return getServerConnection(getDefaultServer().getServerId());
+    }
+    
+    /**
+     * Gets the active Ollama server the load balancer would pick next. Callers that
+     * send a request should take a lease from the {@link OllamaLoadBalancer} instead,
+     * so the request is counted against the server.
+     * 
+     * @return the chosen server
+     */
+    public ChatServer getDefaultServer() {
+        return ollamaLoadBalancer.chooseServer();
     }
     
     /**
@@ -83,7 +230,16 @@ public class OllamaConnectionService {
      * @return HttpHeaders configured for the server
      */
     public HttpHeaders createHeaders(Long serverId) {
-        ChatServer server = chatServerService.getChatServerById(serverId);
+        return createHeaders(chatServerService.getChatServerById(serverId));
+    }
+    
+    /**
+     * Creates HTTP headers for an Ollama API request on the given server.
+     * 
+     * @param server The server to create headers for
+     * @return HttpHeaders configured for the server
+     */
+    public HttpHeaders createHeaders(ChatServer server) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
         headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
@@ -104,26 +260,28 @@ public class OllamaConnectionService {
      * @return The full URL
      */
     public String getApiUrl(Long serverId, String endpoint) {
-        ChatServer server = chatServerService.getChatServerById(serverId);
+        return getApiUrl(chatServerService.getChatServerById(serverId), endpoint);
+    }
+    
+    /**
+     * Get the full URL for a specific API endpoint on the given server.
+     * 
+     * @param server The server
+     * @param endpoint The API endpoint (e.g., "/api/generate")
+     * @return The full URL
+     */
+    public String getApiUrl(ChatServer server, String endpoint) {
         return formatServerUrl(server) + endpoint;
     }
     
     /**
-     * Get the full URL for a specific API endpoint on the default server.
+     * Get the full URL for a specific API endpoint on the server the load balancer would pick next.
      * 
      * @param endpoint The API endpoint (e.g., "/api/generate")
      * @return The full URL
      */
     public String getDefaultApiUrl(String endpoint) {
-        var servers = chatServerService.getAllChatServers();
-        
-        // Find the first active server
-        ChatServer defaultServer = servers.stream()
-            .filter(s -> "active".equals(s.getStatus()))
-            .findFirst()
-            .orElseThrow(() -> new RuntimeException("No active Ollama server found"));
-        
-        return formatServerUrl(defaultServer) + endpoint;
+        return getApiUrl(getDefaultServer(), endpoint);
     }
     
     /**
@@ -133,6 +291,96 @@ public class OllamaConnectionService {
         return "http://" + server.getEndpointUrl() + ":" + server.getEndpointPort();
     }
     
+    /**
+     * Refreshes the {@link OllamaModelRegistry} with the installed ({@code /api/tags}) and
+     * loaded ({@code /api/ps}) models of every active server. Servers are queried in
+     * parallel on the short-timeout probe pool.
+     */
+    @Scheduled(initialDelay = 5000, fixedDelayString = "${ollama.model-registry.refresh-interval:30000}")
+    public void refreshModelRegistry() {
+        try {
+            List<ChatServer> servers = chatServerService.getAllChatServers();
+            ollamaModelRegistry.retain(servers.stream().map(ChatServer::getServerId).toList());
+            
+            CompletableFuture.allOf(servers.stream()
+                    .filter(server -> "active".equals(server.getStatus()))
+                    .map(server -> CompletableFuture.runAsync(() -> refreshModels(server), monitoringExecutor))
+                    .toArray(CompletableFuture[]::new))
+                .join();
+        } catch (Exception e) {
+            log.error("Error refreshing Ollama model registry: {}", e.getMessage(), e);
+        }
+    }
+    
+    private void refreshModels(ChatServer server) {
+        try {
+            HttpEntity<Void> entity = new HttpEntity<>(createHeaders(server));
+            JsonNode tags = probeTemplate.exchange(formatServerUrl(server) + "/api/tags", HttpMethod.GET, entity, JsonNode.class).getBody();
+            JsonNode ps = probeTemplate.exchange(formatServerUrl(server) + "/api/ps", HttpMethod.GET, entity, JsonNode.class).getBody();
+            
+            Set<String> installed = new HashSet<>();
+            if (tags != null) {
+                tags.path("models").forEach(model -> installed.add(model.path("name").asText()));
+            }
+            Map<String, OllamaModelRegistry.LoadedModel> loaded = new HashMap<>();
+            if (ps != null) {
+                ps.path("models").forEach(model -> {
+                    String name = model.path("name").asText();
+                    loaded.put(name, new OllamaModelRegistry.LoadedModel(
+                            name, model.path("size_vram").asLong(), model.path("expires_at").asText(null)));
+                });
+            }
+            ollamaModelRegistry.update(server.getServerId(), installed, loaded);
+            log.debug("Ollama server {} has {} models installed, {} loaded", server.getServerId(), installed.size(), loaded.size());
+        } catch (RestClientException e) {
+            log.debug("Failed to refresh models of Ollama server {}: {}", server.getServerId(), e.getMessage());
+            ollamaModelRegistry.updateFailed(server.getServerId(), e.getMessage());
+        }
+    }
+    
+    /**
+     * Loads a model on a server and keeps it in memory for the given time, or unloads it
+     * when the time is zero. A {@code /api/generate} request without a prompt only
+     * changes the residency of the model and generates nothing. It has to carry the
+     * num_ctx of the requests for the model, or Ollama loads the model again for them.
+     * 
+     * @param server The server
+     * @param model The model to load or unload
+     * @param keepAlive Ollama keep_alive value, e.g. "600s", or "0s" to unload
+     * @param contextTokens num_ctx to load the model with, or null when unloading
+     * @return future completed once the server has loaded or unloaded the model
+     */
+    public CompletableFuture<Void> setModelKeepAlive(ChatServer server, String model, String keepAlive,
+                                                     Integer contextTokens) {
+        OllamaRequest request = new OllamaRequest();
+        request.setModel(model);
+        request.setStream(false);
+        request.setKeepAlive(keepAlive);
+        if (contextTokens != null) {
+            request.setOptions(Map.of("num_ctx", contextTokens));
+        }
+        
+        OllamaServerConnection connection = getConnection(server);
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder()
+                    .uri(URI.create(getApiUrl(server, "/api/generate")))
+                    // Loading a large model from disk can take as long as a generation
+                    .timeout(connection.getSettings().getReadTimeout())
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(request)));
+            createHeaders(server).forEach((name, values) -> values.forEach(value -> builder.header(name, value)));
+            
+            return connection.getHttpClient().sendAsync(builder.build(), HttpResponse.BodyHandlers.discarding())
+                    .thenAccept(response -> {
+                        if (response.statusCode() != 200) {
+                            throw new OllamaServerException(response.statusCode(), "Ollama server " + server.getServerId()
+                                    + " could not set keep_alive " + keepAlive + " for model " + model);
+                        }
+                    });
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
     /**
      * Checks if a server is reachable by sending a test request to the Ollama API.
      * Uses the /api/tags endpoint which lists available models.
@@ -147,11 +395,8 @@ public class OllamaConnectionService {
             
             log.debug("Testing connection to Ollama server at: {}", url);
             
-            // Set a shorter timeout for these connection tests
-            RestTemplate testTemplate = new RestTemplate();
-            
-            // Make the request to the Ollama API
-            ResponseEntity<String> response = testTemplate.getForEntity(url, String.class);
+            // Make the request to the Ollama API using the short-timeout probe pool
+            ResponseEntity<String> response = probeTemplate.getForEntity(url, String.class);
             
             // Check if response is successful
             boolean isSuccess = response.getStatusCode().is2xxSuccessful();
@@ -0,0 +1,357 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.config.OllamaHttpProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.omer.ostim.ai.model.ChatServer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Spreads requests over all active Ollama servers.
+ * <p>
+ * Servers whose {@link ServerCircuitBreaker} is open are skipped. A breaker that opens
+ * marks its server offline in the database and one that closes again marks it active,
+ * so the server list and the monitoring show what routing does; a server taken offline
+ * by its breaker still receives the half-open trial requests.
+ * <p>
+ * When the model is known, the candidates are narrowed with the {@link OllamaModelRegistry}:
+ * servers that already hold the model in memory come first, unless all of them are running
+ * as many generations as they can in parallel; otherwise servers that have it installed (or have not been refreshed
+ * yet). Only when no active server has the model are all of them tried.
+ * <p>
+ * Requests of a session (e.g. the turns of one chat) stick to the server that served the
+ * session before, as long as it is still a candidate and not saturated while another one
+ * is free. That server still holds the conversation in its context cache, so Ollama only
+ * evaluates the new turn. Sessions are forgotten after {@code ollama.session-affinity.ttl}
+ * without requests; hits and misses are exported as {@code ollama.session.affinity}.
+ * <p>
+ * Every generation takes a {@link ServerLease} for the server chosen by the configured
+ * strategy ({@code ollama.load-balancing.strategy}): {@code least-outstanding} picks the
+ * server with the fewest requests in flight, {@code ewma} weighs that by each server's
+ * recent latency. Per-server load is exported as {@code ollama.server.requests.inflight}
+ * and {@code ollama.server.latency.ewma}, breaker states as {@code ollama.server.circuit.state}
+ * (0 closed, 1 half-open, 2 open).
+ */
+@Service
+public class OllamaLoadBalancer {
+
+    private static final Logger log = LoggerFactory.getLogger(OllamaLoadBalancer.class);
+
+    private final ChatServerService chatServerService;
+    private final OllamaModelRegistry ollamaModelRegistry;
+    private final OllamaHttpProperties ollamaHttpProperties;
+    private final MeterRegistry meterRegistry;
+    private final AsyncTaskExecutor monitoringExecutor;
+    private final LoadBalancingStrategy strategy;
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private final Map<Long, ServerLoad> loads = new ConcurrentHashMap<>();
+    private final Map<Long, ServerCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    // Session to the server that served it last
+    private final Cache<String, Long> sessions;
+    private final Counter affinityHitCounter;
+    private final Counter affinityMissCounter;
+
+    public OllamaLoadBalancer(ChatServerService chatServerService,
+                              OllamaModelRegistry ollamaModelRegistry,
+                              OllamaHttpProperties ollamaHttpProperties,
+                              MeterRegistry meterRegistry,
+                              @Qualifier("monitoringExecutor") AsyncTaskExecutor monitoringExecutor,
+                              @Value("${ollama.load-balancing.strategy:least-outstanding}") String strategyName,
+                              @Value("${ollama.circuit-breaker.failure-threshold:3}") int failureThreshold,
+                              @Value("${ollama.circuit-breaker.open-duration:10s}") Duration openDuration,
+                              @Value("${ollama.session-affinity.ttl:30m}") Duration sessionTtl,
+                              @Value("${ollama.session-affinity.max-sessions:10000}") long maxSessions) {
+        this.chatServerService = chatServerService;
+        this.ollamaModelRegistry = ollamaModelRegistry;
+        this.ollamaHttpProperties = ollamaHttpProperties;
+        this.meterRegistry = meterRegistry;
+        this.monitoringExecutor = monitoringExecutor;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.strategy = switch (strategyName) {
+            case "least-outstanding" -> new LeastOutstandingRequestsStrategy();
+            case "ewma" -> new EwmaLatencyStrategy();
+            default -> throw new IllegalArgumentException("Unknown load balancing strategy: " + strategyName);
+        };
+        this.sessions = Caffeine.newBuilder()
+                .expireAfterAccess(sessionTtl)
+                .maximumSize(maxSessions)
+                .build();
+        this.affinityHitCounter = Counter.builder("ollama.session.affinity")
+                .tag("result", "hit")
+                .description("Session requests sent to the server that served the session before")
+                .register(meterRegistry);
+        this.affinityMissCounter = Counter.builder("ollama.session.affinity")
+                .tag("result", "miss")
+                .description("Session requests that had to go to another server")
+                .register(meterRegistry);
+        log.info("Load balancing Ollama requests with strategy {}", strategyName);
+    }
+
+    /**
+     * Chooses a server and counts the request as in flight on it.
+     *
+     * @return the lease; it must be released when the request ends
+     * @throws RuntimeException if no server is active
+     */
+    public ServerLease acquire() {
+        return acquire(null);
+    }
+
+    /**
+     * Chooses a server for the given model and counts the request as in flight on it.
+     *
+     * @param model the model the request runs on, or null if any server will do
+     * @return the lease; it must be released when the request ends
+     * @throws RuntimeException if no server is active
+     */
+    public ServerLease acquire(String model) {
+        return acquire(model, Set.of());
+    }
+
+    /**
+     * Chooses a server for the given model, other than the excluded ones (e.g. servers
+     * that already failed the request), and counts the request as in flight on it.
+     *
+     * @param model the model the request runs on, or null if any server will do
+     * @param excludedServerIds servers not to choose
+     * @return the lease; it must be released when the request ends
+     * @throws RuntimeException if no other server is available
+     */
+    public ServerLease acquire(String model, Set<Long> excludedServerIds) {
+        return acquire(model, excludedServerIds, null);
+    }
+
+    /**
+     * Chooses a server for the given model and session, other than the excluded ones,
+     * and counts the request as in flight on it.
+     *
+     * @param model the model the request runs on, or null if any server will do
+     * @param excludedServerIds servers not to choose
+     * @param session the session of the request, or null if it has none
+     * @return the lease; it must be released when the request ends
+     * @throws RuntimeException if no other server is available
+     */
+    public ServerLease acquire(String model, Set<Long> excludedServerIds, String session) {
+        Set<Long> excluded = new HashSet<>(excludedServerIds);
+        while (true) {
+            ChatServer server = chooseServer(model, excluded, session);
+            ServerCircuitBreaker circuitBreaker = circuitBreakerOf(server.getServerId());
+            if (circuitBreaker.tryAcquire()) {
+                return new ServerLease(server, loadOf(server.getServerId()), circuitBreaker);
+            }
+            // Another request took the half-open trial since the server was chosen
+            excluded.add(server.getServerId());
+        }
+    }
+
+    /**
+     * Chooses a server without counting a request on it.
+     *
+     * @return the server the next request would go to
+     * @throws RuntimeException if no server is active
+     */
+    public ChatServer chooseServer() {
+        return chooseServer(null);
+    }
+
+    /**
+     * Chooses a server for the given model without counting a request on it.
+     *
+     * @param model the model the request runs on, or null if any server will do
+     * @return the server the next request would go to
+     * @throws RuntimeException if no server is active
+     */
+    public ChatServer chooseServer(String model) {
+        return chooseServer(model, Set.of(), null);
+    }
+
+    /**
+     * Generations the available servers can run at the same time, for callers that
+     * spread many requests over all of them.
+     *
+     * @return the sum of {@code num-parallel} over the available servers, 0 if there are none
+     */
+    public int parallelCapacity() {
+        return chatServerService.getAllChatServers().stream()
+                .filter(this::isAvailable)
+                .mapToInt(server -> ollamaHttpProperties.forServer(server.getServerId()).getNumParallel())
+                .sum();
+    }
+
+    private ChatServer chooseServer(String model, Set<Long> excludedServerIds, String session) {
+        List<ChatServer> servers = chatServerService.getAllChatServers().stream()
+                .filter(server -> !excludedServerIds.contains(server.getServerId()))
+                .filter(this::isAvailable)
+                .toList();
+        if (servers.isEmpty()) {
+            throw new RuntimeException("No active Ollama server found");
+        }
+        if (model != null && !model.isBlank()) {
+            servers = serversFor(model, servers);
+        }
+        if (session == null) {
+            return choose(servers);
+        }
+
+        ChatServer pinned = pinnedServer(session, servers);
+        if (pinned != null) {
+            affinityHitCounter.increment();
+            return pinned;
+        }
+        ChatServer chosen = choose(servers);
+        if (sessions.getIfPresent(session) != null) {
+            affinityMissCounter.increment();
+        }
+        sessions.put(session, chosen.getServerId());
+        return chosen;
+    }
+
+    private ChatServer choose(List<ChatServer> servers) {
+        if (servers.size() == 1) {
+            return servers.get(0);
+        }
+
+        ServerLoad chosen = strategy.choose(servers.stream()
+                .map(server -> loadOf(server.getServerId()))
+                .toList());
+        return servers.stream()
+                .filter(server -> server.getServerId().equals(chosen.getServerId()))
+                .findFirst()
+                .orElseThrow();
+    }
+
+    /**
+     * @return the server that served the session before, if it is among the candidates
+     *         and not saturated while another candidate has room
+     */
+    private ChatServer pinnedServer(String session, List<ChatServer> servers) {
+        Long serverId = sessions.getIfPresent(session);
+        if (serverId == null) {
+            return null;
+        }
+        ChatServer pinned = servers.stream()
+                .filter(server -> server.getServerId().equals(serverId))
+                .findFirst()
+                .orElse(null);
+        if (pinned == null || (isSaturated(pinned) && !servers.stream().allMatch(this::isSaturated))) {
+            return null;
+        }
+        return pinned;
+    }
+
+    private List<ChatServer> serversFor(String model, List<ChatServer> servers) {
+        List<ChatServer> hot = servers.stream()
+                .filter(server -> ollamaModelRegistry.isLoaded(server.getServerId(), model))
+                .toList();
+        if (hot.stream().anyMatch(server -> !isSaturated(server))) {
+            return hot;
+        }
+
+        // Hot servers are busy or missing: widen to every server that can load the model
+        List<ChatServer> installed = servers.stream()
+                .filter(server -> ollamaModelRegistry.isInstalled(server.getServerId(), model)
+                        || !ollamaModelRegistry.isKnown(server.getServerId()))
+                .toList();
+        if (!installed.isEmpty()) {
+            return installed;
+        }
+
+        log.warn("Model {} is not installed on any active Ollama server, trying all of them", model);
+        return servers;
+    }
+
+    /**
+     * Active servers are available while their breaker lets requests through. Servers
+     * the breaker itself took offline are available for the half-open trial.
+     */
+    private boolean isAvailable(ChatServer server) {
+        ServerCircuitBreaker circuitBreaker = circuitBreakerOf(server.getServerId());
+        if ("active".equals(server.getStatus())) {
+            return circuitBreaker.allowsRequest();
+        }
+        return circuitBreaker.getState() != ServerCircuitBreaker.State.CLOSED && circuitBreaker.allowsRequest();
+    }
+
+    private boolean isSaturated(ChatServer server) {
+        return loadOf(server.getServerId()).getInFlight()
+                >= ollamaHttpProperties.forServer(server.getServerId()).getNumParallel();
+    }
+
+    /**
+     * @param serverId the server ID
+     * @return the live load of the server
+     */
+    public ServerLoad loadOf(Long serverId) {
+        return loads.computeIfAbsent(serverId, id -> {
+            ServerLoad load = new ServerLoad(id);
+            Gauge.builder("ollama.server.requests.inflight", load, ServerLoad::getInFlight)
+                    .tag("server", String.valueOf(id))
+                    .description("Requests in flight on the Ollama server")
+                    .register(meterRegistry);
+            Gauge.builder("ollama.server.latency.ewma", load, ServerLoad::getLatencyEwmaMillis)
+                    .tag("server", String.valueOf(id))
+                    .description("Moving average of the Ollama server latency")
+                    .baseUnit("milliseconds")
+                    .register(meterRegistry);
+            return load;
+        });
+    }
+
+    /**
+     * @param serverId the server ID
+     * @return the circuit breaker of the server
+     */
+    public ServerCircuitBreaker circuitBreakerOf(Long serverId) {
+        return circuitBreakers.computeIfAbsent(serverId, id -> {
+            ServerCircuitBreaker circuitBreaker = new ServerCircuitBreaker(id, failureThreshold, openDuration,
+                    state -> onCircuitStateChange(id, state));
+            Gauge.builder("ollama.server.circuit.state", circuitBreaker, breaker -> breaker.getState().ordinal())
+                    .tag("server", String.valueOf(id))
+                    .description("Circuit breaker state of the Ollama server: 0 closed, 1 half-open, 2 open")
+                    .register(meterRegistry);
+            return circuitBreaker;
+        });
+    }
+
+    private void onCircuitStateChange(Long serverId, ServerCircuitBreaker.State state) {
+        String status = switch (state) {
+            case OPEN -> "offline";
+            case CLOSED -> "active";
+            case HALF_OPEN -> null;
+        };
+        if (status == null) {
+            log.info("Circuit breaker of Ollama server {} is half-open, sending a trial request", serverId);
+            return;
+        }
+        if (state == ServerCircuitBreaker.State.OPEN) {
+            log.warn("Circuit breaker of Ollama server {} opened, no requests for {}", serverId, openDuration);
+        } else {
+            log.info("Circuit breaker of Ollama server {} closed", serverId);
+        }
+        // Outcomes are reported from response callbacks; keep the database write off that path
+        monitoringExecutor.execute(() -> {
+            try {
+                chatServerService.updateServerStatus(serverId, status);
+            } catch (Exception e) {
+                log.warn("Could not update status of Ollama server {}: {}", serverId, e.getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,124 @@
+package com.omer.ostim.ai.service;
+
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which models each Ollama server has installed ({@code /api/tags}) and currently
+ * loaded in memory ({@code /api/ps}). Kept up to date by
+ * {@link OllamaConnectionService#refreshModelRegistry()} and used by the
+ * {@link OllamaLoadBalancer} to send requests where the model is already hot.
+ */
+@Service
+public class OllamaModelRegistry {
+
+    private final Map<Long, ServerModels> servers = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the server has been refreshed successfully at least once.
+     *
+     * @param serverId the server ID
+     * @return true if installed and loaded models of the server are known
+     */
+    public boolean isKnown(Long serverId) {
+        ServerModels models = servers.get(serverId);
+        return models != null && models.error() == null;
+    }
+
+    public boolean isInstalled(Long serverId, String model) {
+        ServerModels models = servers.get(serverId);
+        return models != null && models.installed().contains(normalize(model));
+    }
+
+    public boolean isLoaded(Long serverId, String model) {
+        ServerModels models = servers.get(serverId);
+        return models != null && models.loaded().containsKey(normalize(model));
+    }
+
+    /**
+     * @param serverId the server ID
+     * @return the models the server had in memory at the last refresh
+     */
+    public Collection<LoadedModel> loadedModels(Long serverId) {
+        ServerModels models = servers.get(serverId);
+        return models != null ? models.loaded().values() : List.of();
+    }
+
+    void update(Long serverId, Set<String> installed, Map<String, LoadedModel> loaded) {
+        servers.put(serverId, new ServerModels(serverId, Set.copyOf(installed), Map.copyOf(loaded), Instant.now(), null));
+    }
+
+    /**
+     * Records a failed refresh. The last known models are kept, since a server that
+     * missed one refresh most likely still has them.
+     */
+    void updateFailed(Long serverId, String error) {
+        servers.compute(serverId, (id, previous) -> previous == null
+                ? new ServerModels(id, Set.of(), Map.of(), Instant.now(), error)
+                : new ServerModels(id, previous.installed(), previous.loaded(), previous.refreshedAt(), error));
+    }
+
+    /**
+     * Drops servers that no longer exist.
+     */
+    void retain(Collection<Long> serverIds) {
+        servers.keySet().retainAll(serverIds);
+    }
+
+    /**
+     * Snapshot for operators: the models of every server and, per model, the
+     * servers that have it installed and loaded.
+     *
+     * @return registry contents keyed by "servers" and "models"
+     */
+    public Map<String, Object> snapshot() {
+        List<ServerModels> all = servers.values().stream()
+                .sorted((a, b) -> Long.compare(a.serverId(), b.serverId()))
+                .toList();
+
+        Map<String, Map<String, Set<Long>>> byModel = new TreeMap<>();
+        for (ServerModels models : all) {
+            for (String model : models.installed()) {
+                byModel.computeIfAbsent(model, key -> newPlacement()).get("installedOn").add(models.serverId());
+            }
+            for (String model : models.loaded().keySet()) {
+                byModel.computeIfAbsent(model, key -> newPlacement()).get("loadedOn").add(models.serverId());
+            }
+        }
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("servers", all);
+        snapshot.put("models", byModel);
+        return snapshot;
+    }
+
+    private static Map<String, Set<Long>> newPlacement() {
+        Map<String, Set<Long>> placement = new LinkedHashMap<>();
+        placement.put("installedOn", new TreeSet<>());
+        placement.put("loadedOn", new TreeSet<>());
+        return placement;
+    }
+
+    /**
+     * Ollama treats a model name without a tag as {@code :latest}.
+     */
+    static String normalize(String model) {
+        return model.contains(":") ? model : model + ":latest";
+    }
+
+    public record ServerModels(Long serverId, Set<String> installed, Map<String, LoadedModel> loaded,
+                               Instant refreshedAt, String error) {
+    }
+
+    public record LoadedModel(String name, long sizeVram, String expiresAt) {
+    }
+}
@@ -0,0 +1,263 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.config.OllamaHttpProperties.ConnectionSettings;
+import com.omer.ostim.ai.config.OllamaSchedulerProperties;
+import com.omer.ostim.ai.dto.GenerationPriority;
+import com.omer.ostim.ai.exception.DeadlineExceededException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.springframework.ai.ollama.OllamaChatModel;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pooled HTTP connections to one Ollama server.
+ * <p>
+ * Blocking calls go through a RestTemplate backed by an Apache HttpClient pool;
+ * the Spring AI chat model of the server shares that pool.
+ * Async and streamed generations use a JDK HttpClient of their own and run only
+ * with a permit, of which there are {@code num-parallel}. A request that finds the
+ * server busy waits in a {@link GenerationQueue} without holding a thread, ordered by
+ * priority class and fairly across users, for at most the queue timeout of its class,
+ * and never past the time it has to start to finish before its deadline.
+ * Queue depth and wait time per class are exported as {@code ollama.scheduler.queue.depth}
+ * and {@code ollama.scheduler.wait}.
+ */
+public class OllamaServerConnection {
+
+    private final Long serverId;
+    private final ConnectionSettings settings;
+    private final OllamaSchedulerProperties schedulerProperties;
+    private final CloseableHttpClient pooledClient;
+    private final RestTemplate restTemplate;
+    private final HttpClient httpClient;
+    private final OllamaChatModel chatModel;
+    private final MeterRegistry meterRegistry;
+    private final List<Meter> meters = new ArrayList<>();
+    private final Map<GenerationPriority, Timer> waitTimers = new EnumMap<>(GenerationPriority.class);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final GenerationQueue<Waiter> queue = new GenerationQueue<>();
+    private int active;
+
+    OllamaServerConnection(Long serverId, ConnectionSettings settings, OllamaSchedulerProperties schedulerProperties,
+                           CloseableHttpClient pooledClient, RestTemplate restTemplate, HttpClient httpClient,
+                           OllamaChatModel chatModel, MeterRegistry meterRegistry) {
+        this.serverId = serverId;
+        this.settings = settings;
+        this.schedulerProperties = schedulerProperties;
+        this.pooledClient = pooledClient;
+        this.restTemplate = restTemplate;
+        this.httpClient = httpClient;
+        this.chatModel = chatModel;
+        this.meterRegistry = meterRegistry;
+        String server = String.valueOf(serverId);
+        meters.add(Gauge.builder("ollama.http.async.connections.active", this, OllamaServerConnection::activeCount)
+                .tag("server", server)
+                .description("Async requests currently running on the server")
+                .register(meterRegistry));
+        meters.add(Gauge.builder("ollama.http.async.connections.pending", this, OllamaServerConnection::pendingCount)
+                .tag("server", server)
+                .description("Async requests waiting for their turn on the server")
+                .register(meterRegistry));
+        for (GenerationPriority priority : GenerationPriority.values()) {
+            String priorityTag = priority.name().toLowerCase();
+            meters.add(Gauge.builder("ollama.scheduler.queue.depth", this, connection -> connection.pendingCount(priority))
+                    .tag("server", server)
+                    .tag("priority", priorityTag)
+                    .description("Generations waiting for their turn on the server")
+                    .register(meterRegistry));
+            Timer waitTimer = Timer.builder("ollama.scheduler.wait")
+                    .tag("server", server)
+                    .tag("priority", priorityTag)
+                    .description("Time generations waited for their turn on the server")
+                    .register(meterRegistry);
+            waitTimers.put(priority, waitTimer);
+            meters.add(waitTimer);
+        }
+    }
+
+    public Long getServerId() {
+        return serverId;
+    }
+
+    public ConnectionSettings getSettings() {
+        return settings;
+    }
+
+    public RestTemplate getRestTemplate() {
+        return restTemplate;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public OllamaChatModel getChatModel() {
+        return chatModel;
+    }
+
+    /**
+     * Reserves a turn on the server for an async request.
+     *
+     * @param priority the scheduling class of the request, INTERACTIVE if null
+     * @param user the user the request is fairly shared for, or null for anonymous work
+     * @param cost the estimated size of the request, e.g. its prompt tokens
+     * @param latestStart the latest time the request can start and still finish before its
+     *                    deadline, or null if it has none
+     * @return a future completed with the permit once it is the request's turn, or
+     *         exceptionally with a TimeoutException after the queue timeout of its class
+     *         or a DeadlineExceededException once it can no longer start in time;
+     *         cancelling it takes the request out of the queue
+     */
+    public CompletableFuture<Permit> acquire(GenerationPriority priority, String user, double cost, Instant latestStart) {
+        GenerationPriority requestPriority = priority != null ? priority : GenerationPriority.INTERACTIVE;
+        Duration timeout = schedulerProperties.queueTimeout(requestPriority);
+        boolean deadlineFirst = latestStart != null && Instant.now().plus(timeout).isAfter(latestStart);
+        if (deadlineFirst) {
+            timeout = Duration.between(Instant.now(), latestStart);
+            if (timeout.isNegative() || timeout.isZero()) {
+                return CompletableFuture.failedFuture(new DeadlineExceededException("Too late to start on Ollama server "
+                        + serverId + " and finish before the deadline"));
+            }
+        }
+        lock.lock();
+        try {
+            if (active < settings.getNumParallel()) {
+                active++;
+                waitTimers.get(requestPriority).record(0, TimeUnit.NANOSECONDS);
+                return CompletableFuture.completedFuture(new Permit());
+            }
+            Waiter waiter = new Waiter(requestPriority);
+            queue.add(waiter, requestPriority, user != null ? user : "", Math.max(1, cost));
+            Duration waited = timeout;
+            CompletableFuture.delayedExecutor(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .execute(() -> {
+                        Exception error = deadlineFirst
+                                ? new DeadlineExceededException("No turn on Ollama server " + serverId
+                                        + " in time to finish before the deadline")
+                                : new TimeoutException("No turn on Ollama server " + serverId + " within " + waited);
+                        if (waiter.future.completeExceptionally(error)) {
+                            removeWaiter(waiter);
+                        }
+                    });
+            // A request cancelled while waiting gives up its place at once
+            waiter.future.whenComplete((permit, error) -> {
+                if (waiter.future.isCancelled()) {
+                    removeWaiter(waiter);
+                }
+            });
+            return waiter.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the turn to the next live waiter, or frees it.
+     * Waiters that timed out or were cancelled are skipped.
+     */
+    private void release() {
+        while (true) {
+            Waiter next;
+            lock.lock();
+            try {
+                next = queue.poll();
+                if (next == null) {
+                    active--;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (next.future.complete(new Permit())) {
+                waitTimers.get(next.priority).record(System.nanoTime() - next.enqueuedAt, TimeUnit.NANOSECONDS);
+                return;
+            }
+        }
+    }
+
+    private void removeWaiter(Waiter waiter) {
+        lock.lock();
+        try {
+            queue.remove(waiter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int activeCount() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int pendingCount() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int pendingCount(GenerationPriority priority) {
+        lock.lock();
+        try {
+            return queue.size(priority);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() throws IOException {
+        meters.forEach(meterRegistry::remove);
+        httpClient.shutdownNow();
+        pooledClient.close();
+    }
+
+    private static final class Waiter {
+
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+        private final GenerationPriority priority;
+        private final long enqueuedAt = System.nanoTime();
+
+        Waiter(GenerationPriority priority) {
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * One reserved turn. Releasing is idempotent, so it is safe to release
+     * both when the response ends and when the caller gives up.
+     */
+    public final class Permit {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                OllamaServerConnection.this.release();
+            }
+        }
+    }
+}
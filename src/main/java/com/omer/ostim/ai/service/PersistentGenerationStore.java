@@ -0,0 +1,418 @@
+package com.omer.ostim.ai.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Second tier of the generation cache: an append-only file of
+ * (generation key, response) records that survives restarts.
+ * <p>
+ * Each record is a 32 byte key digest, the write time, the response length and a
+ * CRC32 of the response, followed by the UTF-8 response. Records are appended through
+ * the file channel and read through a read-only memory mapping of the same file, so a
+ * lookup is an index probe plus a copy out of the page cache. The index (key to file
+ * offset) lives in memory and is rebuilt by scanning the file on the scheduler thread
+ * shortly after startup; until then the tier simply misses and ignores writes.
+ * <p>
+ * Replaced and expired records are reclaimed by compaction, which copies the live
+ * records into the next numbered file ({@code generations-<n>.dat}). Files are never
+ * renamed over while mapped, which Windows does not allow; superseded files are
+ * deleted once their mapping is gone.
+ */
+@Service
+public class PersistentGenerationStore {
+
+    private static final Logger log = LoggerFactory.getLogger(PersistentGenerationStore.class);
+    private static final Pattern FILE_PATTERN = Pattern.compile("generations-(\\d+)\\.dat");
+    private static final int KEY_BYTES = 32;
+    private static final int HEADER_BYTES = KEY_BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private final boolean enabled;
+    private final Path directory;
+    private final long maxFileSize;
+    private final Duration ttl;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Counter hitCounter;
+    private final Counter missCounter;
+    private volatile StoreFile store;
+
+    public PersistentGenerationStore(MeterRegistry meterRegistry,
+                                     @Value("${generation.cache.persistent.enabled:true}") boolean enabled,
+                                     @Value("${generation.cache.persistent.dir:./cache}") String directory,
+                                     @Value("${generation.cache.persistent.max-file-size:512MB}") DataSize maxFileSize,
+                                     @Value("${generation.cache.persistent.ttl:7d}") Duration ttl) {
+        this.enabled = enabled;
+        this.directory = Path.of(directory);
+        // A single mapping cannot exceed 2 GB
+        this.maxFileSize = Math.min(maxFileSize.toBytes(), Integer.MAX_VALUE);
+        this.ttl = ttl;
+        this.hitCounter = Counter.builder("generation.store.gets")
+                .tag("result", "hit")
+                .description("Persistent generation store lookups")
+                .register(meterRegistry);
+        this.missCounter = Counter.builder("generation.store.gets")
+                .tag("result", "miss")
+                .description("Persistent generation store lookups")
+                .register(meterRegistry);
+        Gauge.builder("generation.store.entries", this, s -> s.store != null ? s.store.index.size() : 0)
+                .description("Responses held by the persistent generation store")
+                .register(meterRegistry);
+        Gauge.builder("generation.store.file.size", this, s -> s.store != null ? s.store.size : 0)
+                .description("Size of the persistent generation store file in bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Looks up a response.
+     *
+     * @param key the generation key
+     * @return the stored response, or null if it is missing, expired or the store is still loading
+     */
+    public String get(String key) {
+        StoreFile file = store;
+        if (file == null) {
+            return null;
+        }
+        Long offset = file.index.get(key);
+        if (offset == null) {
+            missCounter.increment();
+            return null;
+        }
+        try {
+            StoredRecord record = file.read(offset);
+            if (record == null || isExpired(record.writtenAt())) {
+                missCounter.increment();
+                return null;
+            }
+            hitCounter.increment();
+            return new String(record.value(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warn("Could not read generation {} from the persistent store: {}", key, e.getMessage());
+            missCounter.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Appends a response. Writes are skipped while the store is loading or when the
+     * file has reached its maximum size; the next compaction makes room again.
+     *
+     * @param key the generation key
+     * @param response the full generated text
+     */
+    public void put(String key, String response) {
+        if (store == null) {
+            return;
+        }
+        byte[] value = response.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = encode(key, System.currentTimeMillis(), value);
+
+        writeLock.lock();
+        try {
+            StoreFile file = store;
+            long offset = file.size;
+            if (offset + record.remaining() > maxFileSize) {
+                log.debug("Persistent generation store is full ({} bytes), skipping write", offset);
+                return;
+            }
+            while (record.hasRemaining()) {
+                file.channel.write(record, offset + record.position());
+            }
+            file.size += record.limit();
+
+            Long previous = file.index.put(key, offset);
+            if (previous != null) {
+                file.deadBytes += file.recordSize(previous);
+            }
+        } catch (IOException e) {
+            log.warn("Could not write generation {} to the persistent store: {}", key, e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Loads the store on the first run, afterwards compacts it once more than half of
+     * the file is dead or it is close to its size limit.
+     */
+    @Scheduled(initialDelay = 5000, fixedDelayString = "${generation.cache.persistent.compaction-interval:600000}")
+    public void maintain() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            if (store == null) {
+                load();
+            } else {
+                compactIfNeeded();
+            }
+            deleteSupersededFiles();
+        } catch (IOException e) {
+            log.error("Persistent generation store maintenance failed", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        writeLock.lock();
+        try {
+            if (store != null) {
+                store.channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not close persistent generation store: {}", e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(directory);
+        long number = latestFileNumber();
+        Path path = directory.resolve("generations-" + number + ".dat");
+
+        writeLock.lock();
+        try {
+            long startTime = System.nanoTime();
+            StoreFile file = new StoreFile(number, FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            long end = file.channel.size();
+            long offset = 0;
+            while (offset < end) {
+                StoredRecord record = file.read(offset);
+                if (record == null) {
+                    // Torn write from a crash; everything after it is unusable
+                    log.warn("Truncating persistent generation store at offset {} of {}", offset, end);
+                    file.channel.truncate(offset);
+                    break;
+                }
+                long recordSize = HEADER_BYTES + record.value().length;
+                if (isExpired(record.writtenAt())) {
+                    file.deadBytes += recordSize;
+                } else {
+                    Long previous = file.index.put(record.key(), offset);
+                    if (previous != null) {
+                        file.deadBytes += file.recordSize(previous);
+                    }
+                }
+                offset += recordSize;
+            }
+            file.size = offset;
+            store = file;
+            log.info("Loaded {} generations from {} in {} ms", file.index.size(), path,
+                    Duration.ofNanos(System.nanoTime() - startTime).toMillis());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        writeLock.lock();
+        try {
+            StoreFile current = store;
+            if (current.deadBytes * 2 <= current.size && current.size <= maxFileSize * 9 / 10) {
+                return;
+            }
+            long number = current.number + 1;
+            Path temp = directory.resolve("generations-" + number + ".tmp");
+            Path path = directory.resolve("generations-" + number + ".dat");
+            Map<String, Long> index = new ConcurrentHashMap<>();
+            long written = 0;
+
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Map.Entry<String, Long> entry : current.index.entrySet()) {
+                    StoredRecord record = current.read(entry.getValue());
+                    if (record != null && !isExpired(record.writtenAt())) {
+                        ByteBuffer buffer = encode(record.key(), record.writtenAt(), record.value());
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer);
+                        }
+                        index.put(record.key(), written);
+                        written += buffer.limit();
+                    }
+                }
+                out.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+
+            StoreFile compacted = new StoreFile(number, FileChannel.open(path,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+            compacted.index.putAll(index);
+            compacted.size = written;
+
+            store = compacted;
+            current.channel.close();
+            log.info("Compacted persistent generation store from {} to {} bytes", current.size, written);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes older store files. On Windows a file stays locked until its mapping is
+     * garbage collected, so a failed delete is simply retried on the next run.
+     */
+    private void deleteSupersededFiles() throws IOException {
+        StoreFile current = store;
+        if (current == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : files.toList()) {
+                Matcher matcher = FILE_PATTERN.matcher(path.getFileName().toString());
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) < current.number) {
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException e) {
+                        log.debug("Superseded store file {} is still in use", path);
+                    }
+                }
+            }
+        }
+    }
+
+    private long latestFileNumber() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .map(path -> FILE_PATTERN.matcher(path.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(matcher -> Long.parseLong(matcher.group(1)))
+                    .max(Long::compare)
+                    .orElse(0L);
+        }
+    }
+
+    private boolean isExpired(long writtenAt) {
+        return System.currentTimeMillis() - writtenAt > ttl.toMillis();
+    }
+
+    private static ByteBuffer encode(String key, long writtenAt, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(value);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + value.length);
+        buffer.put(HexFormat.of().parseHex(key));
+        buffer.putLong(writtenAt);
+        buffer.putInt(value.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(value);
+        return buffer.flip();
+    }
+
+    private record StoredRecord(String key, long writtenAt, byte[] value) {
+    }
+
+    /**
+     * One open store file with its index. Readers take a snapshot of {@link #store}
+     * and use it throughout, so the index always matches the file it points into.
+     */
+    private static final class StoreFile {
+
+        private final long number;
+        private final FileChannel channel;
+        private final Map<String, Long> index = new ConcurrentHashMap<>();
+        private final ReentrantLock mapLock = new ReentrantLock();
+        private volatile MappedByteBuffer mapping;
+        // Guarded by the store's write lock
+        private long size;
+        private long deadBytes;
+
+        StoreFile(long number, FileChannel channel) {
+            this.number = number;
+            this.channel = channel;
+        }
+
+        /**
+         * Reads and verifies the record at the given offset.
+         *
+         * @return the record, or null if it is truncated or corrupt
+         */
+        StoredRecord read(long offset) throws IOException {
+            ByteBuffer buffer = view(offset + HEADER_BYTES);
+            if (buffer == null) {
+                return null;
+            }
+            int position = (int) offset;
+            long writtenAt = buffer.getLong(position + KEY_BYTES);
+            int length = buffer.getInt(position + KEY_BYTES + Long.BYTES);
+            int checksum = buffer.getInt(position + KEY_BYTES + Long.BYTES + Integer.BYTES);
+            if (length < 0) {
+                return null;
+            }
+            buffer = view(offset + HEADER_BYTES + length);
+            if (buffer == null) {
+                return null;
+            }
+
+            byte[] key = new byte[KEY_BYTES];
+            byte[] value = new byte[length];
+            buffer.get(position, key);
+            buffer.get(position + HEADER_BYTES, value);
+            CRC32 crc = new CRC32();
+            crc.update(value);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            return new StoredRecord(HexFormat.of().formatHex(key), writtenAt, value);
+        }
+
+        long recordSize(long offset) throws IOException {
+            ByteBuffer buffer = view(offset + HEADER_BYTES);
+            return buffer == null ? 0 : HEADER_BYTES + buffer.getInt((int) offset + KEY_BYTES + Long.BYTES);
+        }
+
+        /**
+         * Returns a mapping covering at least {@code end} bytes, remapping after the
+         * file has grown, or null if the file is shorter than that.
+         */
+        private ByteBuffer view(long end) throws IOException {
+            MappedByteBuffer current = mapping;
+            if (current != null && current.capacity() >= end) {
+                return current;
+            }
+            mapLock.lock();
+            try {
+                current = mapping;
+                if (current == null || current.capacity() < end) {
+                    long fileSize = channel.size();
+                    if (fileSize < end || end > Integer.MAX_VALUE) {
+                        return null;
+                    }
+                    current = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                    mapping = current;
+                }
+                return current;
+            } finally {
+                mapLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.omer.ostim.ai.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.omer.ostim.ai.exception.OllamaServerException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Circuit breaker of one Ollama server, driven by the outcome of real requests.
+ * <p>
+ * While closed, every request may go to the server. After the configured number of
+ * consecutive server failures (connection errors, timeouts, HTTP 5xx) it opens and
+ * the server gets no requests for the open duration. Then it is half-open: a single
+ * trial request is let through, which closes the breaker on success and opens it
+ * again on failure. Failures that say nothing about the server's health, such as a
+ * rejected prompt or a cancelled request, are not counted.
+ */
+public class ServerCircuitBreaker {
+
+    /**
+     * Breaker states, ordered by severity; the ordinal is exported as a gauge.
+     */
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final Long serverId;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Consumer<State> onStateChange;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    /**
+     * @param onStateChange called with the new state after every transition, outside the lock
+     */
+    public ServerCircuitBreaker(Long serverId, int failureThreshold, Duration openDuration, Consumer<State> onStateChange) {
+        this.serverId = serverId;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.onStateChange = onStateChange;
+    }
+
+    public Long getServerId() {
+        return serverId;
+    }
+
+    public State getState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether a request may be sent to the server now. Nothing is reserved, so this
+     * only narrows down the candidates; the request itself takes its place with
+     * {@link #tryAcquire()}.
+     */
+    public boolean allowsRequest() {
+        lock.lock();
+        try {
+            return isAllowed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decides whether a request may be sent to the server and, if so, registers it in
+     * the same step. On an open breaker whose wait is over, or a half-open one without
+     * a trial, the request becomes the single half-open trial; concurrent requests
+     * find the trial taken.
+     *
+     * @return false if the server must not get the request now
+     */
+    boolean tryAcquire() {
+        State changed = null;
+        lock.lock();
+        try {
+            if (!isAllowed()) {
+                return false;
+            }
+            if (state == State.OPEN) {
+                state = State.HALF_OPEN;
+                changed = state;
+            }
+            if (state == State.HALF_OPEN) {
+                trialInFlight = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        notifyChange(changed);
+        return true;
+    }
+
+    private boolean isAllowed() {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> System.nanoTime() - openedAt >= openNanos;
+            case HALF_OPEN -> !trialInFlight;
+        };
+    }
+
+    void recordSuccess() {
+        State changed = null;
+        lock.lock();
+        try {
+            consecutiveFailures = 0;
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                trialInFlight = false;
+                changed = state;
+            }
+        } finally {
+            lock.unlock();
+        }
+        notifyChange(changed);
+    }
+
+    void recordFailure() {
+        State changed = null;
+        lock.lock();
+        try {
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                state = State.OPEN;
+                openedAt = System.nanoTime();
+                trialInFlight = false;
+                changed = state;
+            }
+        } finally {
+            lock.unlock();
+        }
+        notifyChange(changed);
+    }
+
+    /**
+     * Records a request that ended without telling anything about the server. If it
+     * was the half-open trial, the next request may try instead.
+     */
+    void recordIgnored() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                trialInFlight = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void notifyChange(State changed) {
+        if (changed != null) {
+            onStateChange.accept(changed);
+        }
+    }
+
+    /**
+     * Whether a request failure means the server itself is unhealthy, as opposed to
+     * the request being rejected, cancelled or waiting too long for a local connection.
+     *
+     * @param error the failure, possibly wrapped by a CompletableFuture
+     * @return true for connection errors, timeouts on the server and HTTP 5xx
+     */
+    public static boolean isServerFailure(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof OllamaServerException serverException) {
+            return serverException.getStatusCode() >= 500;
+        }
+        if (cause instanceof JsonProcessingException) {
+            return false;
+        }
+        return cause instanceof IOException
+                || cause instanceof ResourceAccessException
+                || cause instanceof HttpServerErrorException;
+    }
+}
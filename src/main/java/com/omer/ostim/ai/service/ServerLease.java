@@ -0,0 +1,85 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.model.ChatServer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One request assigned to a server by the {@link OllamaLoadBalancer}. The request
+ * counts as in flight on that server until the lease is released, also while it waits
+ * in the server's queue, and its outcome feeds the server's {@link ServerCircuitBreaker},
+ * which admitted it before the lease was created.
+ * Its latency is measured from the moment it is sent, so the time it spent queued
+ * behind other requests does not count against the server.
+ */
+public class ServerLease {
+
+    private final ChatServer server;
+    private final ServerLoad load;
+    private final ServerCircuitBreaker circuitBreaker;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile long sentTime;
+    private volatile long firstOutputTime;
+
+    ServerLease(ChatServer server, ServerLoad load, ServerCircuitBreaker circuitBreaker) {
+        this.server = server;
+        this.load = load;
+        this.circuitBreaker = circuitBreaker;
+        load.requestStarted();
+    }
+
+    public ChatServer getServer() {
+        return server;
+    }
+
+    /**
+     * Marks the moment the request got its turn on the server and was sent.
+     */
+    public void markSent() {
+        if (sentTime == 0) {
+            sentTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Marks the arrival of the first streamed output. For streams the latency
+     * average uses the time to first output, which does not depend on answer length.
+     */
+    public void markFirstOutput() {
+        if (firstOutputTime == 0) {
+            firstOutputTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return whether any streamed output has arrived
+     */
+    public boolean hasOutput() {
+        return firstOutputTime != 0;
+    }
+
+    /**
+     * Ends the request. Only successful requests that were sent feed the latency
+     * average, only server failures count against the circuit breaker.
+     * Releasing more than once has no effect.
+     *
+     * @param error the failure of the request, or null if the server answered successfully
+     */
+    public void release(Throwable error) {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        load.requestFinished();
+        if (error == null) {
+            if (sentTime != 0) {
+                long end = firstOutputTime != 0 ? firstOutputTime : System.nanoTime();
+                load.recordLatency(end - sentTime);
+            }
+            circuitBreaker.recordSuccess();
+        } else if (ServerCircuitBreaker.isServerFailure(error)) {
+            circuitBreaker.recordFailure();
+        } else {
+            circuitBreaker.recordIgnored();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.omer.ostim.ai.service;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Live load of one Ollama server as seen by this application: the number of
+ * requests in flight and an exponentially weighted moving average of its latency.
+ * <p>
+ * The average decays with time rather than with the number of samples, so a server
+ * that was slow a minute ago but has been fast since is trusted again quickly.
+ */
+public class ServerLoad {
+
+    private static final double DECAY_NANOS = Duration.ofSeconds(10).toNanos();
+
+    private final Long serverId;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile double latencyEwmaNanos;
+    private long lastSample;
+
+    public ServerLoad(Long serverId) {
+        this.serverId = serverId;
+    }
+
+    public Long getServerId() {
+        return serverId;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the latency average in milliseconds, 0 while nothing has been measured
+     */
+    public double getLatencyEwmaMillis() {
+        return latencyEwmaNanos / 1_000_000.0;
+    }
+
+    void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    void requestFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    void recordLatency(long latencyNanos) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (lastSample == 0) {
+                latencyEwmaNanos = latencyNanos;
+            } else {
+                double weight = Math.exp(-(now - lastSample) / DECAY_NANOS);
+                latencyEwmaNanos = latencyEwmaNanos * weight + latencyNanos * (1 - weight);
+            }
+            lastSample = now;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
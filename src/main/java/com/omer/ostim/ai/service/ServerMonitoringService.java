@@ -3,11 +3,14 @@ package com.omer.ostim.ai.service;
 import com.omer.ostim.ai.model.ChatServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @EnableScheduling
@@ -17,10 +20,17 @@ public class ServerMonitoringService {
     
     private final ChatServerService chatServerService;
     private final OllamaConnectionService ollamaConnectionService;
+    private final OllamaLoadBalancer ollamaLoadBalancer;
+    private final AsyncTaskExecutor monitoringExecutor;
     
-    public ServerMonitoringService(ChatServerService chatServerService, OllamaConnectionService ollamaConnectionService) {
+    public ServerMonitoringService(ChatServerService chatServerService, 
+                                   OllamaConnectionService ollamaConnectionService,
+                                   OllamaLoadBalancer ollamaLoadBalancer,
+                                   @Qualifier("monitoringExecutor") AsyncTaskExecutor monitoringExecutor) {
         this.chatServerService = chatServerService;
         this.ollamaConnectionService = ollamaConnectionService;
+        this.ollamaLoadBalancer = ollamaLoadBalancer;
+        this.monitoringExecutor = monitoringExecutor;
     }
     
     /**
@@ -38,10 +48,21 @@ public class ServerMonitoringService {
                 return;
             }
             
-            for (ChatServer server : servers) {
-                boolean isReachable = ollamaConnectionService.isServerReachable(server.getServerId());
+            // Probe all servers in parallel so one slow server does not delay the others
+            List<CompletableFuture<Boolean>> probes = servers.stream()
+                .map(server -> CompletableFuture.supplyAsync(
+                    () -> ollamaConnectionService.isServerReachable(server.getServerId()), monitoringExecutor))
+                .toList();
+            
+            for (int i = 0; i < servers.size(); i++) {
+                ChatServer server = servers.get(i);
+                boolean isReachable = probes.get(i).join();
                 String currentStatus = server.getStatus();
-                String newStatus = isReachable ? "active" : "offline";
+                // A server that answers probes but fails real requests stays offline until
+                // its circuit breaker closes again
+                boolean circuitOpen = ollamaLoadBalancer.circuitBreakerOf(server.getServerId()).getState()
+                        == ServerCircuitBreaker.State.OPEN;
+                String newStatus = isReachable && !circuitOpen ? "active" : "offline";
                 
                 // Only update if the status has changed
                 if (!newStatus.equals(currentStatus)) {
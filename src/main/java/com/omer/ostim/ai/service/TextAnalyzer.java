@@ -0,0 +1,192 @@
+package com.omer.ostim.ai.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Turns Turkish or English text into search terms for the {@link LexicalIndex}.
+ * <p>
+ * Words are lower-cased and folded to ASCII ({@code ı, İ, I -> i}, {@code ş -> s},
+ * {@code ğ -> g}, {@code ç -> c}, {@code ö -> o}, {@code ü -> u}), so a question typed
+ * without Turkish letters still matches. Suffixes after an apostrophe
+ * ({@code Ankara'da}, {@code don't}) are dropped, stop words are skipped and the rest is
+ * stemmed by stripping common suffixes: case, plural and possessive endings for
+ * Turkish, plural, {@code -ing}, {@code -ed} and {@code -ly} for English. This is much
+ * lighter than a full morphological analysis and sometimes strips too much, but a
+ * question and a document stemmed the same way meet on the same stem.
+ */
+public final class TextAnalyzer {
+
+    public enum Language {
+        TURKISH, ENGLISH
+    }
+
+    // Stems are never cut shorter than this
+    private static final int MIN_STEM = 3;
+    // Suffixes stripped from one Turkish word at most
+    private static final int MAX_TURKISH_SUFFIXES = 3;
+    // Characters of a document looked at to tell its language
+    private static final int DETECTION_SAMPLE = 20000;
+
+    private static final Set<String> TURKISH_STOP_WORDS = Set.of(
+            "acaba", "ama", "ancak", "bana", "bazi", "belki", "ben", "beni", "benim", "bir", "biri", "birkac", "bize",
+            "biz", "bu", "buna", "bunda", "bundan", "bunu", "bunun", "da", "daha", "de", "defa", "diye", "en", "gibi",
+            "hem", "hep", "her", "hic", "icin", "ile", "ise", "kez", "ki", "kim", "mi", "mu", "nasil", "ne", "neden",
+            "nerede", "nereye", "niye", "o", "ona", "ondan", "onlar", "onu", "onun", "sen", "siz", "su", "sey", "tum",
+            "ve", "veya", "ya", "yani");
+
+    private static final Set<String> ENGLISH_STOP_WORDS = Set.of(
+            "a", "about", "an", "and", "are", "as", "at", "be", "been", "but", "by", "can", "could", "did", "do",
+            "does", "for", "from", "had", "has", "have", "how", "i", "if", "in", "into", "is", "it", "its", "me",
+            "my", "no", "not", "of", "on", "or", "our", "so", "than", "that", "the", "their", "them", "then",
+            "there", "these", "they", "this", "to", "was", "we", "were", "what", "when", "where", "which", "who",
+            "why", "will", "with", "would", "you", "your");
+
+    // Longest first; combined endings come before their parts
+    private static final String[] TURKISH_SUFFIXES = {
+            "lerinden", "larindan", "lerinde", "larinda", "lerine", "larina", "lerini", "larini", "leriyle",
+            "lariyla", "lerin", "larin", "leri", "lari", "ler", "lar",
+            "sinden", "sindan", "sinde", "sinda", "sine", "sina", "sini", "sinin",
+            "ndan", "nden", "nda", "nde", "nin", "nun", "yla", "yle", "dan", "den", "tan", "ten",
+            "miz", "niz", "mak", "mek", "dir", "tir", "dur", "tur",
+            "da", "de", "ta", "te", "ya", "ye", "yi", "yu", "in", "un", "si", "su", "im", "um",
+            "a", "e", "i", "u"};
+
+    private TextAnalyzer() {
+    }
+
+    /**
+     * Guesses the language of a text from its Turkish letters and most common words.
+     */
+    public static Language detect(String text) {
+        int end = Math.min(text.length(), DETECTION_SAMPLE);
+        int turkish = 0;
+        int english = 0;
+        for (int i = 0; i < end; i++) {
+            char c = text.charAt(i);
+            if ("çğıöşüÇĞİÖŞÜ".indexOf(c) >= 0) {
+                turkish++;
+            }
+        }
+        for (String word : words(text.substring(0, end))) {
+            if (word.equals("the") || word.equals("and") || word.equals("of") || word.equals("is")) {
+                english++;
+            } else if (word.equals("ve") || word.equals("bir") || word.equals("bu") || word.equals("icin")) {
+                turkish++;
+            }
+        }
+        return turkish > english ? Language.TURKISH : Language.ENGLISH;
+    }
+
+    /**
+     * The search terms of a text, in order, repeated as often as they occur.
+     */
+    public static List<String> terms(CharSequence text, Language language) {
+        Set<String> stopWords = language == Language.TURKISH ? TURKISH_STOP_WORDS : ENGLISH_STOP_WORDS;
+        List<String> terms = new ArrayList<>();
+        for (String word : words(text)) {
+            if (!stopWords.contains(word)) {
+                terms.add(language == Language.TURKISH ? stemTurkish(word) : stemEnglish(word));
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Lower-cased, folded words and numbers; letters after an apostrophe are dropped.
+     */
+    private static List<String> words(CharSequence text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean suffix = false;
+        for (int i = 0, length = text.length(); i <= length; i++) {
+            char c = i < length ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (!suffix) {
+                    word.append(fold(c));
+                }
+            } else if ((c == '\'' || c == '’') && !word.isEmpty()) {
+                suffix = true;
+            } else {
+                if (!word.isEmpty()) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+                suffix = false;
+            }
+        }
+        return words;
+    }
+
+    private static char fold(char c) {
+        return switch (c) {
+            case 'ı', 'İ', 'I', 'î', 'Î' -> 'i';
+            case 'ş', 'Ş' -> 's';
+            case 'ğ', 'Ğ' -> 'g';
+            case 'ç', 'Ç' -> 'c';
+            case 'ö', 'Ö' -> 'o';
+            case 'ü', 'Ü', 'û', 'Û' -> 'u';
+            case 'â', 'Â' -> 'a';
+            default -> Character.toLowerCase(c);
+        };
+    }
+
+    private static String stemTurkish(String word) {
+        for (int stripped = 0; stripped < MAX_TURKISH_SUFFIXES; stripped++) {
+            String suffix = longestSuffix(word);
+            if (suffix == null) {
+                break;
+            }
+            word = word.substring(0, word.length() - suffix.length());
+        }
+        return word;
+    }
+
+    private static String longestSuffix(String word) {
+        for (String suffix : TURKISH_SUFFIXES) {
+            if (word.length() - suffix.length() >= MIN_STEM && word.endsWith(suffix)) {
+                return suffix;
+            }
+        }
+        return null;
+    }
+
+    private static String stemEnglish(String word) {
+        if (word.length() <= MIN_STEM) {
+            return word;
+        }
+        if (word.endsWith("ies") && word.length() > MIN_STEM + 2) {
+            return word.substring(0, word.length() - 3) + "y";
+        }
+        if (word.endsWith("sses") || word.endsWith("xes") || word.endsWith("ches") || word.endsWith("shes")) {
+            return word.substring(0, word.length() - 2);
+        }
+        if (word.endsWith("s") && !word.endsWith("ss") && !word.endsWith("us") && !word.endsWith("is")) {
+            word = word.substring(0, word.length() - 1);
+        }
+        for (String suffix : new String[] {"ing", "ed", "ly"}) {
+            if (word.endsWith(suffix) && word.length() - suffix.length() >= MIN_STEM
+                    && hasVowel(word, word.length() - suffix.length())) {
+                word = word.substring(0, word.length() - suffix.length());
+                // running -> run, stopped -> stop
+                int length = word.length();
+                if (length > MIN_STEM && word.charAt(length - 1) == word.charAt(length - 2)
+                        && "lsz".indexOf(word.charAt(length - 1)) < 0) {
+                    word = word.substring(0, length - 1);
+                }
+                break;
+            }
+        }
+        return word;
+    }
+
+    private static boolean hasVowel(String word, int end) {
+        for (int i = 0; i < end; i++) {
+            if ("aeiouy".indexOf(word.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,385 @@
+package com.omer.ostim.ai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.omer.ostim.ai.model.ChatFileTokenCount;
+import com.omer.ostim.ai.model.ChatFiles;
+import com.omer.ostim.ai.model.TokenizerFamily;
+import com.omer.ostim.ai.repository.ChatFileTokenCountRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Counts and cuts text in tokens of the model it is sent to.
+ * <p>
+ * Counting follows the pre-tokenization of BPE tokenizers: text is split into runs of
+ * letters, digits, whitespace and symbols, and each run is priced with the measured
+ * averages of the {@link TokenizerFamily} of the model. This needs no vocabulary and
+ * no allocation per run, so it is cheap enough to run on every request: a single
+ * pass over the text, stopping early when only a limit has to be checked.
+ * {@code TokenCountingBenchmark} under src/test measures it.
+ * <p>
+ * Counts of uploaded files are stored per tokenizer family next to the file
+ * ({@link ChatFileTokenCount}) and kept in memory, so a document is counted once.
+ */
+@Service
+public class TokenCountingService {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenCountingService.class);
+
+    public static final String TRUNCATION_MARKER = "\n\n[Content truncated due to length...]";
+
+    // A cut at a sentence end is preferred while it keeps at least this share of the limit
+    private static final double SENTENCE_CUT_MIN_SHARE = 0.75;
+
+    private final ChatFileTokenCountRepository tokenCountRepository;
+    // Token count of the extracted text; a new extraction has another length and misses
+    private final Cache<FileKey, Integer> fileCounts = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .build();
+
+    public TokenCountingService(ChatFileTokenCountRepository tokenCountRepository) {
+        this.tokenCountRepository = tokenCountRepository;
+    }
+
+    /**
+     * @param text any text, may be null
+     * @param model the model the text is sent to
+     * @return the tokens of the text for the model
+     */
+    public int count(String text, String model) {
+        return count(text, TokenizerFamily.of(model));
+    }
+
+    public int count(String text, TokenizerFamily family) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        Scanner scanner = new Scanner(text, family);
+        while (scanner.next()) {
+            // Counting only
+        }
+        return scanner.tokens;
+    }
+
+    /**
+     * Counts the extracted text of an uploaded file, from the stored count if the text
+     * was counted before.
+     *
+     * @param file the file
+     * @param model the model the text is sent to
+     * @return the tokens of the extracted text for the model
+     */
+    public int countFile(ChatFiles file, String model) {
+        String text = file.getExtractedText();
+        if (file.getFileId() == null || text == null) {
+            return count(text, model);
+        }
+        TokenizerFamily family = TokenizerFamily.of(model);
+        FileKey key = new FileKey(file.getFileId(), family, text.length());
+        Integer cached = fileCounts.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        ChatFileTokenCount stored = tokenCountRepository.findByFileIdAndTokenizerFamily(file.getFileId(), family).orElse(null);
+        // The text changes when a file is extracted again
+        if (stored == null || stored.getTextLength() != text.length()) {
+            int tokens = count(text, family);
+            if (stored == null) {
+                stored = new ChatFileTokenCount();
+                stored.setFileId(file.getFileId());
+                stored.setTokenizerFamily(family);
+            }
+            stored.setTokenCount(tokens);
+            stored.setTextLength(text.length());
+            try {
+                tokenCountRepository.save(stored);
+            } catch (DataIntegrityViolationException e) {
+                // Counted and stored at the same time by another request
+                log.debug("Token count of file {} for {} was stored concurrently", file.getFileId(), family);
+            }
+        }
+        fileCounts.put(key, stored.getTokenCount());
+        return stored.getTokenCount();
+    }
+
+    /**
+     * Forgets the stored counts of a deleted file.
+     */
+    public void deleteFile(Long fileId) {
+        tokenCountRepository.deleteByFileId(fileId);
+        fileCounts.asMap().keySet().removeIf(key -> key.fileId() == fileId);
+    }
+
+    private record FileKey(long fileId, TokenizerFamily family, int textLength) {
+    }
+
+    /**
+     * Cuts a text to at most the given number of tokens, marker included, at the end of
+     * a sentence where that keeps most of the limit and otherwise between words. Texts
+     * that fit are returned unchanged; only the part up to the limit is scanned.
+     *
+     * @param text the text to cut
+     * @param maxTokens the most tokens the result may take
+     * @param model the model the text is sent to
+     * @return the text, or its start followed by {@link #TRUNCATION_MARKER}
+     */
+    public String truncate(String text, int maxTokens, String model) {
+        if (text == null || text.isEmpty()) {
+            return text;
+        }
+        TokenizerFamily family = TokenizerFamily.of(model);
+        int limit = maxTokens - count(TRUNCATION_MARKER, family);
+        int sentenceCut = 0;
+        int sentenceTokens = 0;
+        int wordCut = 0;
+        Scanner scanner = new Scanner(text, family);
+        while (scanner.next()) {
+            if (scanner.tokens > maxTokens) {
+                if (limit <= 0) {
+                    return "";
+                }
+                int cut = sentenceTokens >= limit * SENTENCE_CUT_MIN_SHARE ? sentenceCut : wordCut;
+                return text.substring(0, cut).stripTrailing() + TRUNCATION_MARKER;
+            }
+            if (scanner.tokens <= limit) {
+                wordCut = scanner.wordEnd;
+                if (scanner.sentenceEnd >= 0) {
+                    sentenceCut = scanner.sentenceEnd;
+                    sentenceTokens = scanner.tokensAtSentenceEnd;
+                }
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Keeps at most the given number of tokens from the end of a text, for context where
+     * the latest part matters most. Starts after the end of a sentence where that keeps
+     * most of the limit, otherwise between words. Texts that fit are returned unchanged.
+     *
+     * @param text the text to cut
+     * @param maxTokens the most tokens the result may take
+     * @param model the model the text is sent to
+     * @return the text, or its end
+     */
+    public String keepLast(String text, int maxTokens, String model) {
+        TokenizerFamily family = TokenizerFamily.of(model);
+        int total = count(text, family);
+        if (total <= maxTokens) {
+            return text;
+        }
+        if (maxTokens <= 0) {
+            return "";
+        }
+        int skip = total - maxTokens;
+        int wordStart = -1;
+        Scanner scanner = new Scanner(text, family);
+        while (scanner.next()) {
+            if (wordStart < 0 && scanner.tokens >= skip) {
+                wordStart = scanner.wordEnd;
+            }
+            if (scanner.sentenceEnd >= 0 && scanner.tokensAtSentenceEnd >= skip) {
+                if (total - scanner.tokensAtSentenceEnd >= maxTokens * SENTENCE_CUT_MIN_SHARE) {
+                    return text.substring(scanner.sentenceEnd).stripLeading();
+                }
+                break;
+            }
+        }
+        return wordStart >= 0 ? text.substring(wordStart).stripLeading() : "";
+    }
+
+    /**
+     * A part of a text, as returned by {@link #split}.
+     *
+     * @param start index of the first character of the part
+     * @param end index after its last character
+     * @param tokens tokens of the part
+     */
+    public record Span(int start, int end, int tokens) {
+    }
+
+    /**
+     * Splits a text into parts of at most the given number of tokens, e.g. to embed
+     * them one by one. A part ends at the end of a sentence where that keeps most of the
+     * limit, otherwise between words, and starts about {@code overlapTokens} before the
+     * end of the part in front of it, so text at a boundary is whole in one of them.
+     * Parts neither start nor end with whitespace. A single word longer than the limit
+     * becomes a part of its own.
+     *
+     * @param text the text to split
+     * @param maxTokens the most tokens a part may take
+     * @param overlapTokens tokens a part repeats from the one before, less than maxTokens
+     * @param model the model the parts are sent to
+     * @return the parts in the order of the text, none for a blank text
+     */
+    public List<Span> split(String text, int maxTokens, int overlapTokens, String model) {
+        List<Span> spans = new ArrayList<>();
+        if (text == null || text.isBlank()) {
+            return spans;
+        }
+        // Places between words where a part may start or end, with the tokens before them
+        int[] positions = new int[256];
+        int[] tokens = new int[256];
+        BitSet sentenceEnds = new BitSet();
+        int boundaries = 1;
+        Scanner scanner = new Scanner(text, TokenizerFamily.of(model));
+        while (scanner.next()) {
+            if (Character.isWhitespace(text.charAt(scanner.pos - 1))) {
+                if (scanner.sentenceEnd >= 0) {
+                    sentenceEnds.set(boundaries - 1);
+                }
+                continue;
+            }
+            if (boundaries == positions.length) {
+                positions = Arrays.copyOf(positions, boundaries * 2);
+                tokens = Arrays.copyOf(tokens, boundaries * 2);
+            }
+            positions[boundaries] = scanner.pos;
+            tokens[boundaries] = scanner.tokens;
+            if (scanner.sentenceEnd >= 0) {
+                sentenceEnds.set(boundaries);
+            }
+            boundaries++;
+        }
+
+        int last = boundaries - 1;
+        int from = 0;
+        while (from < last) {
+            int end = from + 1;
+            int sentenceEnd = -1;
+            for (int i = from + 1; i <= last && tokens[i] - tokens[from] <= maxTokens; i++) {
+                end = i;
+                if (sentenceEnds.get(i)) {
+                    sentenceEnd = i;
+                }
+            }
+            if (end < last && sentenceEnd > from && tokens[sentenceEnd] - tokens[from] >= maxTokens * SENTENCE_CUT_MIN_SHARE) {
+                end = sentenceEnd;
+            }
+            int start = positions[from];
+            while (Character.isWhitespace(text.charAt(start))) {
+                start++;
+            }
+            spans.add(new Span(start, positions[end], tokens[end] - tokens[from]));
+            if (end == last) {
+                break;
+            }
+            // The overlap starts with a sentence where one starts within it
+            int next = end;
+            int sentenceStart = -1;
+            while (next - 1 > from && tokens[end] - tokens[next - 1] <= overlapTokens) {
+                next--;
+                if (sentenceEnds.get(next)) {
+                    sentenceStart = next;
+                }
+            }
+            from = sentenceStart > 0 ? sentenceStart : next;
+        }
+        return spans;
+    }
+
+    /**
+     * Walks a text run by run, keeping the running token count and the positions where
+     * the text may be cut.
+     */
+    private static final class Scanner {
+
+        private final String text;
+        private final TokenizerFamily family;
+        private int pos;
+        int tokens;
+        // End of the last run that is not whitespace
+        int wordEnd;
+        // Where the run just read ended a sentence or paragraph, or -1
+        int sentenceEnd = -1;
+        int tokensAtSentenceEnd;
+
+        Scanner(String text, TokenizerFamily family) {
+            this.text = text;
+            this.family = family;
+        }
+
+        boolean next() {
+            int length = text.length();
+            if (pos >= length) {
+                return false;
+            }
+            sentenceEnd = -1;
+            int start = pos;
+            char c = text.charAt(pos);
+
+            if (Character.isLetter(c)) {
+                int ascii = 0;
+                int otherBytes = 0;
+                while (pos < length && Character.isLetter(c = text.charAt(pos))) {
+                    if (c < 128) {
+                        ascii++;
+                    } else {
+                        otherBytes += c < 0x800 ? 2 : 3;
+                    }
+                    pos++;
+                }
+                tokens += family.wordTokens(ascii, otherBytes);
+                wordEnd = pos;
+            } else if (c >= '0' && c <= '9') {
+                while (pos < length && (c = text.charAt(pos)) >= '0' && c <= '9') {
+                    pos++;
+                }
+                tokens += family.numberTokens(pos - start);
+                wordEnd = pos;
+            } else if (Character.isWhitespace(c)) {
+                boolean newline = false;
+                while (pos < length && Character.isWhitespace(c = text.charAt(pos))) {
+                    newline |= c == '\n';
+                    pos++;
+                }
+                // A single space is part of the word after it
+                if (pos - start > 1 || text.charAt(start) != ' ' || pos == length) {
+                    tokens++;
+                }
+                if (newline) {
+                    sentenceEnd = start;
+                    tokensAtSentenceEnd = tokens - 1;
+                }
+            } else if (c < 128) {
+                while (pos < length && text.charAt(pos) == c) {
+                    pos++;
+                }
+                int run = pos - start;
+                // An apostrophe before letters is part of a contraction such as 's or 't
+                boolean contraction = c == '\'' && run == 1 && pos < length && Character.isLetter(text.charAt(pos));
+                if (!contraction) {
+                    tokens += 1 + (run - 1) / 4;
+                }
+                wordEnd = pos;
+                if ((c == '.' || c == '!' || c == '?') && (pos == length || Character.isWhitespace(text.charAt(pos)))) {
+                    sentenceEnd = pos;
+                    tokensAtSentenceEnd = tokens;
+                }
+            } else {
+                // Symbols outside ASCII, e.g. emoji and typographic quotes
+                int bytes = 0;
+                while (pos < length) {
+                    c = text.charAt(pos);
+                    if (c < 128 || Character.isLetter(c) || Character.isWhitespace(c)) {
+                        break;
+                    }
+                    bytes += Character.isSurrogate(c) ? 2 : c < 0x800 ? 2 : 3;
+                    pos++;
+                }
+                tokens += family.symbolTokens(bytes);
+                wordEnd = pos;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.omer.ostim.ai.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Detects virtual threads that get pinned to their carrier thread, which happens
+ * when a virtual thread blocks inside a {@code synchronized} block or a native frame.
+ * Pinned threads silently turn the virtual thread mode back into a small platform
+ * thread pool, so every pinning event is counted and the offending stack is kept.
+ * <p>
+ * Listens to the JFR {@code jdk.VirtualThreadPinned} event and exposes the result as
+ * the {@code jvm.threads.virtual.pinned} metric and the {@code /actuator/virtualthreads} endpoint.
+ */
+@Service
+@Endpoint(id = "virtualthreads")
+public class VirtualThreadPinningMonitor {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadPinningMonitor.class);
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final int MAX_RECENT_EVENTS = 20;
+    private static final int MAX_STACK_FRAMES = 12;
+
+    private final LongAdder pinnedEvents = new LongAdder();
+    private final Map<String, LongAdder> pinnedBySite = new ConcurrentHashMap<>();
+    private final Deque<Map<String, Object>> recentEvents = new ArrayDeque<>();
+    private final ReentrantLock recentEventsLock = new ReentrantLock();
+    private RecordingStream recordingStream;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    @Value("${diagnostics.virtual-threads.pinned-threshold:20ms}")
+    private Duration pinnedThreshold;
+
+    public VirtualThreadPinningMonitor(MeterRegistry meterRegistry) {
+        FunctionCounter.builder("jvm.threads.virtual.pinned", pinnedEvents, LongAdder::sum)
+                .description("Virtual threads pinned to their carrier thread longer than the threshold")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!virtualThreads) {
+            log.debug("Virtual threads are disabled, pinning detection is not started");
+            return;
+        }
+
+        try {
+            recordingStream = new RecordingStream();
+            recordingStream.enable(PINNED_EVENT).withThreshold(pinnedThreshold).withStackTrace();
+            recordingStream.onEvent(PINNED_EVENT, this::recordPinning);
+            recordingStream.startAsync();
+            log.info("Virtual thread pinning detection started (threshold {})", pinnedThreshold);
+        } catch (Exception e) {
+            // JFR may be unavailable on some runtimes; the application works without it
+            log.warn("Could not start virtual thread pinning detection: {}", e.getMessage());
+            recordingStream = null;
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (recordingStream != null) {
+            recordingStream.close();
+        }
+    }
+
+    private void recordPinning(RecordedEvent event) {
+        pinnedEvents.increment();
+
+        List<String> frames = event.getStackTrace() == null ? List.of() : event.getStackTrace().getFrames().stream()
+                .limit(MAX_STACK_FRAMES)
+                .map(VirtualThreadPinningMonitor::formatFrame)
+                .toList();
+
+        // Attribute the pinning to the first application frame, falling back to the top frame
+        String site = frames.stream()
+                .filter(frame -> frame.startsWith("com.omer."))
+                .findFirst()
+                .orElse(frames.isEmpty() ? "unknown" : frames.get(0));
+        pinnedBySite.computeIfAbsent(site, key -> new LongAdder()).increment();
+
+        Map<String, Object> details = new LinkedHashMap<>();
+        details.put("time", event.getStartTime());
+        details.put("durationMs", event.getDuration().toMillis());
+        details.put("thread", event.getThread() != null ? event.getThread().getJavaName() : "unknown");
+        details.put("site", site);
+        details.put("stackTrace", frames);
+
+        recentEventsLock.lock();
+        try {
+            recentEvents.addFirst(details);
+            if (recentEvents.size() > MAX_RECENT_EVENTS) {
+                recentEvents.removeLast();
+            }
+        } finally {
+            recentEventsLock.unlock();
+        }
+
+        log.warn("Virtual thread pinned for {} ms at {}", event.getDuration().toMillis(), site);
+    }
+
+    private static String formatFrame(RecordedFrame frame) {
+        return frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+    }
+
+    /**
+     * Diagnostics snapshot for {@code GET /actuator/virtualthreads}.
+     */
+    @ReadOperation
+    public Map<String, Object> pinningReport() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("virtualThreadsEnabled", virtualThreads);
+        report.put("pinningDetectionActive", recordingStream != null);
+        report.put("thresholdMs", pinnedThreshold.toMillis());
+        report.put("pinnedEvents", pinnedEvents.sum());
+
+        Map<String, Long> bySite = new LinkedHashMap<>();
+        pinnedBySite.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                .forEach(entry -> bySite.put(entry.getKey(), entry.getValue().sum()));
+        report.put("pinnedBySite", bySite);
+
+        recentEventsLock.lock();
+        try {
+            report.put("recentEvents", List.copyOf(recentEvents));
+        } finally {
+            recentEventsLock.unlock();
+        }
+        report.put("timestamp", Instant.now());
+        return report;
+    }
+}
@@ -0,0 +1,56 @@
+package com.omer.ostim.ai.util;
+
+import com.omer.ostim.ai.dto.OllamaRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds the identity of a generation request, shared by the response cache and the
+ * single-flight layer. Two requests with the same key produce the same model output.
+ */
+public final class GenerationKeyUtil {
+
+    private GenerationKeyUtil() {
+    }
+
+    /**
+     * Builds the key for a generation request. Prompts can be tens of kilobytes long,
+     * so the key is a SHA-256 digest of the model, the generation options and the full
+     * prompt or conversation rather than the text itself. Options are sorted so that
+     * the same settings always hash the same way regardless of map order.
+     *
+     * @param request the generation request
+     * @return hex encoded SHA-256 digest identifying the request
+     */
+    public static String generationKey(OllamaRequest request) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, request.getModel());
+            update(digest, canonicalOptions(request.getOptions()));
+            update(digest, request.getPrompt());
+            if (request.getMessages() != null) {
+                for (OllamaRequest.Message message : request.getMessages()) {
+                    update(digest, message.getRole());
+                    update(digest, message.getContent());
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String canonicalOptions(Map<String, Object> options) {
+        return options == null || options.isEmpty() ? "" : new TreeMap<>(options).toString();
+    }
+}
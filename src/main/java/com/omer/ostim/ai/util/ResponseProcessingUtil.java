@@ -1,7 +1,6 @@
 package com.omer.ostim.ai.util;
 
 import org.springframework.stereotype.Component;
-import java.util.regex.Pattern;
 
 /**
  * Utility class for processing AI responses before storing them in the database
@@ -9,15 +8,10 @@ import java.util.regex.Pattern;
 @Component
 public class ResponseProcessingUtil {
 
-    // Pattern to match <think>...</think> tags (including nested tags and multiline content)
-    private static final Pattern THINK_TAG_PATTERN = Pattern.compile(
-        "<think>.*?</think>", 
-        Pattern.DOTALL | Pattern.CASE_INSENSITIVE
-    );
-
     /**
      * Removes <think>...</think> tags from the response content
-     * This method handles multiline content and nested tags
+     * The response is scanned once with a {@link ThinkTagFilter}, which also cleans up
+     * the whitespace left after removing the tags
      * 
      * @param responseContent The original response content from the AI
      * @return The cleaned response content without <think> tags
@@ -27,14 +21,7 @@ public class ResponseProcessingUtil {
             return responseContent;
         }
 
-        // Remove all <think>...</think> blocks
-        String cleaned = THINK_TAG_PATTERN.matcher(responseContent).replaceAll("");
-        
-        // Clean up any excessive whitespace left after removing think tags
-        cleaned = cleaned.replaceAll("\\n\\s*\\n\\s*\\n", "\n\n"); // Replace 3+ newlines with just 2
-        cleaned = cleaned.trim(); // Remove leading/trailing whitespace
-        
-        return cleaned;
+        return ThinkTagFilter.removeThinking(responseContent);
     }
 
     /**
@@ -0,0 +1,171 @@
+package com.omer.ostim.ai.util;
+
+import java.util.function.Consumer;
+
+/**
+ * Separates the {@code <think>...</think>} reasoning of models such as DeepSeek-R1 from
+ * the answer while the response is streamed.
+ * <p>
+ * Chunks are consumed one by one and each character is looked at once. Only what cannot
+ * be decided yet is held back: the start of what may be a tag split over two chunks, and
+ * whitespace of the answer until it is known not to be trailing. The answer is cleaned
+ * like a stored bot message: leading and trailing whitespace is dropped, and in whitespace
+ * with three or more line breaks everything from the first to the last line break becomes
+ * a blank line, keeping the indentation after it. Reasoning goes to a separate
+ * consumer, or is dropped. A reasoning block that is never closed, e.g. because the model
+ * ran out of tokens, stays reasoning.
+ * <p>
+ * A filter belongs to one response and is not thread-safe; chunks of a stream arrive one
+ * after the other.
+ */
+public final class ThinkTagFilter implements Consumer<String> {
+
+    private static final String OPEN_TAG = "<think>";
+    private static final String CLOSE_TAG = "</think>";
+
+    private final Consumer<String> answer;
+    private final Consumer<String> thinking;
+    private final StringBuilder answerOut;
+    private final StringBuilder thinkingOut = new StringBuilder();
+    // Start of a tag that may continue in the next chunk
+    private final StringBuilder tag = new StringBuilder(CLOSE_TAG.length());
+    // Whitespace of the answer not yet known to be followed by more text
+    private final StringBuilder whitespace = new StringBuilder();
+    private boolean inThink;
+    private boolean answerStarted;
+    private int whitespaceNewlines;
+
+    /**
+     * @param answer receives the answer without reasoning, at most once per chunk
+     * @param thinking receives the reasoning, or null to drop it
+     */
+    public ThinkTagFilter(Consumer<String> answer, Consumer<String> thinking) {
+        this(answer, thinking, new StringBuilder());
+    }
+
+    private ThinkTagFilter(Consumer<String> answer, Consumer<String> thinking, StringBuilder answerOut) {
+        this.answer = answer;
+        this.thinking = thinking;
+        this.answerOut = answerOut;
+    }
+
+    /**
+     * Removes the reasoning from a complete response, writing the answer straight into
+     * the result instead of passing it on in chunks.
+     *
+     * @param response the complete response
+     * @return the cleaned answer
+     */
+    public static String removeThinking(String response) {
+        StringBuilder cleaned = new StringBuilder(response.length());
+        ThinkTagFilter filter = new ThinkTagFilter(null, null, cleaned);
+        for (int i = 0; i < response.length(); i++) {
+            filter.next(response.charAt(i));
+        }
+        filter.finish();
+        return cleaned.toString();
+    }
+
+    /**
+     * Consumes the next chunk of the response.
+     */
+    @Override
+    public void accept(String chunk) {
+        for (int i = 0; i < chunk.length(); i++) {
+            next(chunk.charAt(i));
+        }
+        flush();
+    }
+
+    /**
+     * Ends the response: an unfinished tag is text after all, and trailing whitespace of
+     * the answer is dropped.
+     */
+    public void finish() {
+        String unfinished = tag.toString();
+        tag.setLength(0);
+        for (int i = 0; i < unfinished.length(); i++) {
+            text(unfinished.charAt(i));
+        }
+        flush();
+    }
+
+    private void next(char c) {
+        if (tag.isEmpty() && c != '<') {
+            text(c);
+            return;
+        }
+        tag.append(c);
+        String expected = inThink ? CLOSE_TAG : OPEN_TAG;
+        int length = tag.length();
+        if (matches(c, expected.charAt(length - 1))) {
+            if (length == expected.length()) {
+                inThink = !inThink;
+                tag.setLength(0);
+            }
+            return;
+        }
+        // Not a tag: all but a last '<' is text, '<' may start the tag
+        boolean restart = c == '<';
+        int end = restart ? length - 1 : length;
+        for (int i = 0; i < end; i++) {
+            text(tag.charAt(i));
+        }
+        tag.setLength(0);
+        if (restart) {
+            tag.append('<');
+        }
+    }
+
+    private void text(char c) {
+        if (inThink) {
+            if (thinking != null) {
+                thinkingOut.append(c);
+            }
+            return;
+        }
+        if (isWhitespace(c)) {
+            if (answerStarted) {
+                whitespace.append(c);
+                if (c == '\n') {
+                    whitespaceNewlines++;
+                }
+            }
+            return;
+        }
+        if (!whitespace.isEmpty()) {
+            if (whitespaceNewlines >= 3) {
+                answerOut.append(whitespace, 0, whitespace.indexOf("\n"))
+                        .append("\n\n")
+                        .append(whitespace, whitespace.lastIndexOf("\n") + 1, whitespace.length());
+            } else {
+                answerOut.append(whitespace);
+            }
+            whitespace.setLength(0);
+            whitespaceNewlines = 0;
+        }
+        answerStarted = true;
+        answerOut.append(c);
+    }
+
+    // Tags are matched ignoring ASCII case only, as a case-insensitive regular expression does
+    private static boolean matches(char c, char expected) {
+        return c == expected || (c >= 'A' && c <= 'Z' && c + ('a' - 'A') == expected);
+    }
+
+    // The whitespace of \s in a regular expression
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+
+    private void flush() {
+        if (answer != null && !answerOut.isEmpty()) {
+            answer.accept(answerOut.toString());
+            answerOut.setLength(0);
+        }
+        if (!thinkingOut.isEmpty()) {
+            thinking.accept(thinkingOut.toString());
+            thinkingOut.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.omer.ostim.ai.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenizerFamilyTest {
+
+    @Test
+    void mapsModelNamesToFamilies() {
+        assertThat(TokenizerFamily.of("deepseek-r1:1.5b")).isEqualTo(TokenizerFamily.QWEN2);
+        assertThat(TokenizerFamily.of("deepseek-r1:14b")).isEqualTo(TokenizerFamily.QWEN2);
+        assertThat(TokenizerFamily.of("deepseek-r1:8b")).isEqualTo(TokenizerFamily.LLAMA3);
+        assertThat(TokenizerFamily.of("DeepSeek-R1:70B")).isEqualTo(TokenizerFamily.LLAMA3);
+        assertThat(TokenizerFamily.of("qwen2.5:7b")).isEqualTo(TokenizerFamily.QWEN2);
+        assertThat(TokenizerFamily.of("gemma2:9b")).isEqualTo(TokenizerFamily.GEMMA);
+        assertThat(TokenizerFamily.of("mistral")).isEqualTo(TokenizerFamily.SENTENCEPIECE_32K);
+        assertThat(TokenizerFamily.of("llama2:13b")).isEqualTo(TokenizerFamily.SENTENCEPIECE_32K);
+        assertThat(TokenizerFamily.of("phi3")).isEqualTo(TokenizerFamily.SENTENCEPIECE_32K);
+        assertThat(TokenizerFamily.of("llama3.2")).isEqualTo(TokenizerFamily.LLAMA3);
+        assertThat(TokenizerFamily.of("unknown-model")).isEqualTo(TokenizerFamily.LLAMA3);
+        assertThat(TokenizerFamily.of(null)).isEqualTo(TokenizerFamily.LLAMA3);
+    }
+
+    @Test
+    void pricesShortAsciiWordsAsOneToken() {
+        assertThat(TokenizerFamily.LLAMA3.wordTokens(1, 0)).isEqualTo(1);
+        assertThat(TokenizerFamily.LLAMA3.wordTokens(8, 0)).isEqualTo(1);
+        assertThat(TokenizerFamily.SENTENCEPIECE_32K.wordTokens(6, 0)).isEqualTo(1);
+    }
+
+    @Test
+    void splitsLongAsciiWordsIntoSubwords() {
+        // 8 letters whole, the remaining 8 in pieces of 4
+        assertThat(TokenizerFamily.LLAMA3.wordTokens(16, 0)).isEqualTo(3);
+        assertThat(TokenizerFamily.LLAMA3.wordTokens(9, 0)).isEqualTo(2);
+        // Smaller vocabularies split sooner
+        assertThat(TokenizerFamily.SENTENCEPIECE_32K.wordTokens(16, 0))
+                .isGreaterThan(TokenizerFamily.LLAMA3.wordTokens(16, 0));
+    }
+
+    @Test
+    void pricesNonAsciiWordsByTheirBytes() {
+        // "çalışıyor": 6 ASCII letters and 3 letters of 2 bytes
+        assertThat(TokenizerFamily.QWEN2.wordTokens(6, 6)).isEqualTo(5);
+        assertThat(TokenizerFamily.SENTENCEPIECE_32K.wordTokens(6, 6)).isEqualTo(8);
+        assertThat(TokenizerFamily.QWEN2.wordTokens(0, 2)).isEqualTo(1);
+        // Turkish words cost more than ASCII words of the same length
+        assertThat(TokenizerFamily.QWEN2.wordTokens(6, 6)).isGreaterThan(TokenizerFamily.QWEN2.wordTokens(9, 0));
+    }
+
+    @Test
+    void groupsDigitsPerFamily() {
+        assertThat(TokenizerFamily.LLAMA3.numberTokens(1)).isEqualTo(1);
+        assertThat(TokenizerFamily.LLAMA3.numberTokens(3)).isEqualTo(1);
+        assertThat(TokenizerFamily.LLAMA3.numberTokens(4)).isEqualTo(2);
+        assertThat(TokenizerFamily.QWEN2.numberTokens(4)).isEqualTo(4);
+    }
+
+    @Test
+    void pricesSymbolsByTheirBytes() {
+        assertThat(TokenizerFamily.LLAMA3.symbolTokens(1)).isEqualTo(1);
+        // An emoji is 4 UTF-8 bytes
+        assertThat(TokenizerFamily.LLAMA3.symbolTokens(4)).isEqualTo(2);
+        assertThat(TokenizerFamily.SENTENCEPIECE_32K.symbolTokens(4)).isEqualTo(3);
+    }
+}
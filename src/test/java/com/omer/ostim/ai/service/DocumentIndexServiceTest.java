@@ -0,0 +1,121 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.config.DocumentRetrievalProperties;
+import com.omer.ostim.ai.dto.GenerationPriority;
+import com.omer.ostim.ai.model.ChatFiles;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DocumentIndexServiceTest {
+
+    private static final int DIMENSION = 16;
+
+    @TempDir
+    Path directory;
+
+    private final Random random = new Random(3);
+    private DocumentVectorStore vectorStore;
+    private DocumentIndexService documentIndexService;
+
+    @BeforeEach
+    void setUp() {
+        DocumentRetrievalProperties properties = new DocumentRetrievalProperties();
+        properties.getStore().setDir(directory.toString());
+        // Small chunks, so a test document has enough of them to go into the graph
+        properties.setChunkTokens(8);
+        properties.setChunkOverlapTokens(0);
+        properties.setMinDocumentTokens(100);
+        properties.getIndex().setEfConstruction(32);
+        properties.getIndex().setMaxRemovedShare(0.4);
+        vectorStore = new DocumentVectorStore(properties, new SimpleMeterRegistry());
+        vectorStore.load();
+
+        EmbeddingService embeddingService = mock(EmbeddingService.class);
+        when(embeddingService.embed(anyString(), anyList(), any(GenerationPriority.class))).thenAnswer(invocation -> {
+            List<float[]> vectors = new ArrayList<>();
+            for (int i = 0; i < invocation.<List<String>>getArgument(1).size(); i++) {
+                vectors.add(vector());
+            }
+            return CompletableFuture.completedFuture(vectors);
+        });
+        // Runs the background work in the calling thread
+        documentIndexService = new DocumentIndexService(vectorStore, embeddingService, new TokenCountingService(null),
+                properties, new TaskExecutorAdapter(Runnable::run));
+    }
+
+    @AfterEach
+    void closeStore() {
+        vectorStore.close();
+    }
+
+    @Test
+    void addsLargeDocumentsToTheGraph() {
+        documentIndexService.indexFile(file(1L, 1100)).join();
+
+        assertThat(vectorStore.file(1L).size()).isGreaterThan(HnswIndex.EXACT_SEARCH_LIMIT);
+        assertThat(documentIndexService.graph().size()).isEqualTo(vectorStore.file(1L).size());
+        assertThat(documentIndexService.graph().removedNodes()).isZero();
+    }
+
+    @Test
+    void rebuildsTheGraphOnceMostOfItWasReplaced() {
+        ChatFiles first = file(1L, 1100);
+        ChatFiles second = file(2L, 1100);
+        documentIndexService.indexFile(first).join();
+        documentIndexService.indexFile(second).join();
+        HnswIndex graph = documentIndexService.graph();
+
+        // Re-indexing replaces all nodes of the file: a third removed stays below the share
+        documentIndexService.indexFile(first).join();
+        assertThat(documentIndexService.graph()).isSameAs(graph);
+        assertThat(graph.removedNodes()).isEqualTo(vectorStore.file(1L).size());
+
+        // Deleting the other file takes the removed nodes to half
+        documentIndexService.removeFile(2L);
+
+        HnswIndex rebuilt = documentIndexService.graph();
+        assertThat(rebuilt).isNotSameAs(graph);
+        assertThat(rebuilt.removedNodes()).isZero();
+        assertThat(rebuilt.size()).isEqualTo(vectorStore.file(1L).size());
+        float[] query = vectorStore.file(1L).vector(7);
+        assertThat(rebuilt.search(query, List.of(1L), 1).get(0).chunkIndex()).isEqualTo(7);
+        assertThat(rebuilt.search(query, List.of(2L), 1)).isEmpty();
+    }
+
+    private static ChatFiles file(Long fileId, int sentences) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < sentences; i++) {
+            text.append("Sentence number ").append(i).append(" of file ").append(fileId).append(" says little. ");
+        }
+        ChatFiles file = new ChatFiles();
+        file.setFileId(fileId);
+        file.setTextExtractionSuccessful(true);
+        file.setExtractedText(text.toString());
+        return file;
+    }
+
+    private float[] vector() {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,237 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.config.DocumentRetrievalProperties;
+import com.omer.ostim.ai.config.DocumentRetrievalProperties.VectorEncoding;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class DocumentVectorStoreTest {
+
+    private static final String MODEL = "nomic-embed-text";
+    private static final int DIMENSION = 24;
+
+    @TempDir
+    Path directory;
+
+    private final Random random = new Random(11);
+    private final List<DocumentVectorStore> stores = new ArrayList<>();
+
+    @AfterEach
+    void closeStores() {
+        stores.forEach(DocumentVectorStore::close);
+    }
+
+    @Test
+    void rejectsWritesUntilLoaded() {
+        DocumentVectorStore store = store(VectorEncoding.FLOAT32);
+
+        assertThatThrownBy(() -> store.append(1, 100, MODEL, chunks(2), vectors(2))).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void returnsAppendedVectorsAndChunks() throws IOException {
+        DocumentVectorStore store = loadedStore(VectorEncoding.FLOAT32);
+        List<float[]> vectors = vectors(3);
+
+        store.append(7, 900, MODEL, chunks(3), vectors);
+
+        DocumentVectorStore.StoredFile stored = store.file(7);
+        assertThat(stored.model()).isEqualTo(MODEL);
+        assertThat(stored.size()).isEqualTo(3);
+        assertThat(stored.textLength()).isEqualTo(900);
+        assertThat(stored.chunk(1)).isEqualTo(new TokenCountingService.Span(100, 220, 30));
+        for (int i = 0; i < 3; i++) {
+            assertThat(stored.vector(i)).containsExactly(HnswIndex.normalize(vectors.get(i)), within(1e-6f));
+        }
+        assertThat(store.file(8)).isNull();
+    }
+
+    @Test
+    void storesInt8VectorsWithinRounding() throws IOException {
+        DocumentVectorStore store = loadedStore(VectorEncoding.INT8);
+        List<float[]> vectors = vectors(4);
+
+        store.append(1, 100, MODEL, chunks(4), vectors);
+
+        for (int i = 0; i < 4; i++) {
+            float[] expected = HnswIndex.normalize(vectors.get(i));
+            assertThat(store.file(1).vector(i)).containsExactly(expected, within(0.01f));
+        }
+    }
+
+    @Test
+    void ranksChunksByCosineSimilarity() throws IOException {
+        DocumentVectorStore store = loadedStore(VectorEncoding.FLOAT32);
+        List<float[]> vectors = vectors(5);
+        store.append(1, 100, MODEL, chunks(5), vectors);
+
+        List<HnswIndex.Hit> hits = store.file(1).nearest(vectors.get(3), 2);
+
+        assertThat(hits).hasSize(2);
+        assertThat(hits.get(0).chunkIndex()).isEqualTo(3);
+        assertThat(hits.get(0).score()).isCloseTo(1f, within(1e-5f));
+        assertThat(hits.get(1).score()).isLessThan(hits.get(0).score());
+        assertThatThrownBy(() -> store.file(1).nearest(new float[3], 2)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void keepsVectorsAcrossRestarts() throws IOException {
+        DocumentVectorStore store = loadedStore(VectorEncoding.FLOAT32);
+        List<float[]> first = vectors(2);
+        List<float[]> second = vectors(3);
+        store.append(1, 100, MODEL, chunks(2), first);
+        store.append(2, 200, MODEL, chunks(3), second);
+        store.close();
+
+        DocumentVectorStore reopened = loadedStore(VectorEncoding.FLOAT32);
+
+        assertThat(reopened.files()).hasSize(2);
+        assertThat(reopened.file(1).vector(1)).containsExactly(HnswIndex.normalize(first.get(1)), within(1e-6f));
+        assertThat(reopened.file(2).chunk(2)).isEqualTo(new TokenCountingService.Span(200, 320, 30));
+        assertThat(reopened.file(2).textLength()).isEqualTo(200);
+    }
+
+    @Test
+    void reindexedFileSupersedesItsOlderVectors() throws IOException {
+        DocumentVectorStore store = loadedStore(VectorEncoding.FLOAT32);
+        store.append(1, 100, MODEL, chunks(2), vectors(2));
+        List<float[]> reindexed = vectors(4);
+        long sequence = store.append(1, 400, MODEL, chunks(4), reindexed).sequence();
+        store.close();
+
+        DocumentVectorStore reopened = loadedStore(VectorEncoding.FLOAT32);
+
+        assertThat(reopened.file(1).sequence()).isEqualTo(sequence);
+        assertThat(reopened.file(1).size()).isEqualTo(4);
+        assertThat(reopened.file(1).vector(3)).containsExactly(HnswIndex.normalize(reindexed.get(3)), within(1e-6f));
+    }
+
+    @Test
+    void deletedFilesStayDeletedUntilIndexedAgain() throws IOException {
+        DocumentVectorStore store = loadedStore(VectorEncoding.FLOAT32);
+        store.append(1, 100, MODEL, chunks(2), vectors(2));
+        store.append(2, 100, MODEL, chunks(2), vectors(2));
+
+        store.delete(1);
+        assertThat(store.file(1)).isNull();
+        store.close();
+
+        DocumentVectorStore reopened = loadedStore(VectorEncoding.FLOAT32);
+        assertThat(reopened.file(1)).isNull();
+        assertThat(reopened.file(2)).isNotNull();
+
+        reopened.append(1, 300, MODEL, chunks(3), vectors(3));
+        reopened.close();
+        assertThat(loadedStore(VectorEncoding.FLOAT32).file(1).size()).isEqualTo(3);
+    }
+
+    @Test
+    void mergesSegmentsAndDropsDeadRows() throws IOException {
+        DocumentRetrievalProperties properties = properties(VectorEncoding.FLOAT32);
+        properties.getStore().setMaxSegments(2);
+        DocumentVectorStore store = loadedStore(properties);
+        List<List<float[]>> vectors = new ArrayList<>();
+        for (int file = 0; file < 4; file++) {
+            vectors.add(vectors(file + 1));
+            store.append(file, 100, MODEL, chunks(file + 1), vectors.get(file));
+        }
+        store.delete(0);
+        store.append(3, 100, MODEL, chunks(4), vectors.get(3));
+
+        store.maintain();
+
+        assertThat(segmentFiles()).hasSize(1);
+        for (int file = 1; file < 4; file++) {
+            for (int i = 0; i <= file; i++) {
+                assertThat(store.file(file).vector(i)).containsExactly(HnswIndex.normalize(vectors.get(file).get(i)), within(1e-6f));
+            }
+        }
+        store.close();
+
+        DocumentVectorStore reopened = loadedStore(properties);
+        assertThat(reopened.file(0)).isNull();
+        assertThat(reopened.files()).hasSize(3);
+        assertThat(reopened.file(2).chunk(2)).isEqualTo(new TokenCountingService.Span(200, 320, 30));
+        assertThat(reopened.file(3).size()).isEqualTo(4);
+    }
+
+    @Test
+    void skipsUnreadableSegmentsAndLeftoverTemporaryFiles() throws IOException {
+        DocumentVectorStore store = loadedStore(VectorEncoding.FLOAT32);
+        store.append(1, 100, MODEL, chunks(2), vectors(2));
+        store.close();
+        Files.write(directory.resolve("segment-99.vec"), new byte[10]);
+        Files.write(directory.resolve("segment-100.tmp"), new byte[10]);
+
+        DocumentVectorStore reopened = loadedStore(VectorEncoding.FLOAT32);
+
+        assertThat(reopened.file(1).size()).isEqualTo(2);
+        assertThat(directory.resolve("segment-100.tmp")).doesNotExist();
+        // Numbers of unreadable segments are not reused
+        assertThat(reopened.append(2, 100, MODEL, chunks(1), vectors(1)).sequence()).isGreaterThan(99);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(".vec")).toList();
+        }
+    }
+
+    private static List<TokenCountingService.Span> chunks(int count) {
+        List<TokenCountingService.Span> chunks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            chunks.add(new TokenCountingService.Span(i * 100, i * 100 + 120, 30));
+        }
+        return chunks;
+    }
+
+    private List<float[]> vectors(int count) {
+        List<float[]> vectors = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            float[] vector = new float[DIMENSION];
+            for (int d = 0; d < DIMENSION; d++) {
+                vector[d] = (float) random.nextGaussian();
+            }
+            vectors.add(vector);
+        }
+        return vectors;
+    }
+
+    private DocumentVectorStore loadedStore(VectorEncoding encoding) {
+        return loadedStore(properties(encoding));
+    }
+
+    private DocumentVectorStore loadedStore(DocumentRetrievalProperties properties) {
+        DocumentVectorStore store = new DocumentVectorStore(properties, new SimpleMeterRegistry());
+        stores.add(store);
+        store.load();
+        return store;
+    }
+
+    private DocumentVectorStore store(VectorEncoding encoding) {
+        DocumentVectorStore store = new DocumentVectorStore(properties(encoding), new SimpleMeterRegistry());
+        stores.add(store);
+        return store;
+    }
+
+    private DocumentRetrievalProperties properties(VectorEncoding encoding) {
+        DocumentRetrievalProperties properties = new DocumentRetrievalProperties();
+        properties.getStore().setDir(directory.toString());
+        properties.getStore().setEncoding(encoding);
+        return properties;
+    }
+}
@@ -0,0 +1,67 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.config.ChatContextProperties;
+import com.omer.ostim.ai.config.GenerationProfileProperties;
+import com.omer.ostim.ai.dto.OllamaRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GenerationProfileServiceTest {
+
+    private static final String MODEL = "llama3.2";
+
+    private final GenerationProfileService generationProfileService = newService();
+
+    @Test
+    void sizesContextToThePrompt() {
+        assertThat(contextOf(apply("kısa bir soru"))).isEqualTo(2048);
+    }
+
+    @Test
+    void keepsTheLargestContextOfAModel() {
+        assertThat(contextOf(apply("kelime ".repeat(6000)))).isEqualTo(8192);
+
+        assertThat(contextOf(apply("kısa bir soru"))).isEqualTo(8192);
+        assertThat(generationProfileService.contextSize(MODEL)).isEqualTo(8192);
+        assertThat(generationProfileService.contextSize(MODEL + ":latest")).isEqualTo(8192);
+        assertThat(generationProfileService.contextSize("gemma2")).isEqualTo(2048);
+    }
+
+    @Test
+    void leavesAContextSetByTheCaller() {
+        OllamaRequest request = request("kelime ".repeat(6000));
+        request.setOptions(Map.of("num_ctx", 4096));
+        generationProfileService.apply(request);
+
+        assertThat(contextOf(request)).isEqualTo(4096);
+        assertThat(generationProfileService.contextSize(MODEL)).isEqualTo(2048);
+    }
+
+    private OllamaRequest apply(String prompt) {
+        OllamaRequest request = request(prompt);
+        generationProfileService.apply(request);
+        return request;
+    }
+
+    private static OllamaRequest request(String prompt) {
+        OllamaRequest request = new OllamaRequest();
+        request.setModel(MODEL);
+        request.setPrompt(prompt);
+        return request;
+    }
+
+    private static Object contextOf(OllamaRequest request) {
+        return request.getOptions().get("num_ctx");
+    }
+
+    private static GenerationProfileService newService() {
+        ChatContextProperties contextProperties = new ChatContextProperties();
+        contextProperties.setDefaultContextTokens(32768);
+        return new GenerationProfileService(new GenerationProfileProperties(), contextProperties,
+                new TokenCountingService(null), new SimpleMeterRegistry());
+    }
+}
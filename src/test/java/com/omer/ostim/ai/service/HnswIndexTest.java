@@ -0,0 +1,154 @@
+package com.omer.ostim.ai.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.offset;
+
+class HnswIndexTest {
+
+    private static final int DIMENSION = 64;
+    private static final int CHUNKS_PER_FILE = 500;
+
+    private final Random random = new Random(7);
+    // Embeddings of related chunks lie close together, so the vectors are drawn around a few topics
+    private final List<float[]> topics = new ArrayList<>();
+
+    HnswIndexTest() {
+        for (int i = 0; i < 20; i++) {
+            topics.add(gaussian(1));
+        }
+    }
+
+    @Test
+    void graphSearchFindsNearlyAllExactNeighbours() {
+        HnswIndex index = new HnswIndex(16, 100, 64);
+        List<float[]> vectors = new ArrayList<>();
+        for (int file = 0; file < 4; file++) {
+            for (int chunk = 0; chunk < CHUNKS_PER_FILE; chunk++) {
+                float[] vector = embedding();
+                vectors.add(vector);
+                index.add(file, chunk, vector);
+            }
+        }
+        List<Long> files = List.of(0L, 1L, 2L, 3L);
+        assertThat(vectors.size()).isGreaterThan(HnswIndex.EXACT_SEARCH_LIMIT);
+
+        int found = 0;
+        int queries = 200;
+        for (int q = 0; q < queries; q++) {
+            float[] query = embedding();
+            Set<Integer> exact = new HashSet<>(bruteForce(vectors, query, 10));
+            for (HnswIndex.Hit hit : index.search(query, files, 10)) {
+                if (exact.contains((int) hit.fileId() * CHUNKS_PER_FILE + hit.chunkIndex())) {
+                    found++;
+                }
+            }
+        }
+        assertThat(found / (queries * 10.0)).isGreaterThanOrEqualTo(0.95);
+    }
+
+    @Test
+    void graphSearchReturnsOnlyTheRequestedFiles() {
+        HnswIndex index = new HnswIndex(16, 100, 64);
+        for (int file = 0; file < 4; file++) {
+            for (int chunk = 0; chunk < CHUNKS_PER_FILE; chunk++) {
+                index.add(file, chunk, embedding());
+            }
+        }
+
+        List<HnswIndex.Hit> hits = index.search(embedding(), List.of(0L, 2L, 3L), 20);
+
+        assertThat(hits).hasSize(20);
+        assertThat(hits).extracting(HnswIndex.Hit::fileId).doesNotContain(1L);
+        assertThat(hits).isSortedAccordingTo(Comparator.comparingDouble(HnswIndex.Hit::score).reversed());
+    }
+
+    @Test
+    void smallFilesAreSearchedExactly() {
+        HnswIndex index = new HnswIndex(16, 100, 64);
+        List<float[]> vectors = new ArrayList<>();
+        for (int chunk = 0; chunk < 300; chunk++) {
+            float[] vector = embedding();
+            vectors.add(vector);
+            index.add(1, chunk, vector);
+        }
+        float[] query = embedding();
+
+        List<HnswIndex.Hit> hits = index.search(query, List.of(1L), 10);
+
+        assertThat(hits).extracting(HnswIndex.Hit::chunkIndex).containsExactlyElementsOf(bruteForce(vectors, query, 10));
+        assertThat(hits.get(0).score()).isCloseTo(cosine(query, vectors.get(hits.get(0).chunkIndex())), offset(1e-5f));
+    }
+
+    @Test
+    void removedFilesAreNotFound() {
+        HnswIndex index = new HnswIndex(16, 100, 64);
+        for (int chunk = 0; chunk < 10; chunk++) {
+            index.add(1, chunk, embedding());
+            index.add(2, chunk, embedding());
+        }
+
+        assertThat(index.removeFile(1)).isTrue();
+        assertThat(index.removeFile(1)).isFalse();
+        assertThat(index.size()).isEqualTo(10);
+        assertThat(index.removedNodes()).isEqualTo(10);
+        assertThat(index.search(embedding(), List.of(1L), 5)).isEmpty();
+        assertThat(index.search(embedding(), List.of(1L, 2L), 5)).extracting(HnswIndex.Hit::fileId).containsOnly(2L);
+    }
+
+    @Test
+    void vectorsOfAnotherDimensionAreRejected() {
+        HnswIndex index = new HnswIndex(16, 100, 64);
+        index.add(1, 0, embedding());
+
+        assertThatThrownBy(() -> index.add(1, 1, new float[DIMENSION + 1])).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> index.search(new float[3], List.of(1L), 1)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private float[] embedding() {
+        float[] topic = topics.get(random.nextInt(topics.size()));
+        float[] noise = gaussian(1);
+        for (int i = 0; i < DIMENSION; i++) {
+            noise[i] += topic[i];
+        }
+        return noise;
+    }
+
+    private float[] gaussian(double sigma) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) (random.nextGaussian() * sigma);
+        }
+        return vector;
+    }
+
+    private static List<Integer> bruteForce(List<float[]> vectors, float[] query, int k) {
+        List<Integer> order = new ArrayList<>();
+        float[] scores = new float[vectors.size()];
+        for (int i = 0; i < vectors.size(); i++) {
+            order.add(i);
+            scores[i] = cosine(query, vectors.get(i));
+        }
+        order.sort(Comparator.comparingDouble((Integer i) -> scores[i]).reversed());
+        return order.subList(0, k);
+    }
+
+    private static float cosine(float[] a, float[] b) {
+        float[] x = HnswIndex.normalize(a);
+        float[] y = HnswIndex.normalize(b);
+        float dot = 0;
+        for (int i = 0; i < x.length; i++) {
+            dot += x[i] * y[i];
+        }
+        return dot;
+    }
+}
@@ -0,0 +1,91 @@
+package com.omer.ostim.ai.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class LexicalIndexTest {
+
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    // Chunk lengths 2, 3, 2 and 3 terms, 2.5 on average
+    private static final List<String> CORPUS = List.of(
+            "apple banana",
+            "apple apple cherry",
+            "cherry date",
+            "elderberry fig grape");
+
+    @Test
+    void ranksChunksByBm25() {
+        LexicalIndex index = index(CORPUS);
+
+        // idf(apple) = ln(1 + 2.5 / 2.5); chunk 1 has it twice in three terms
+        List<HnswIndex.Hit> hits = index.search("apple", 10, K1, B);
+
+        assertThat(hits).extracting(HnswIndex.Hit::chunkIndex).containsExactly(1, 0);
+        assertThat(hits.get(0).score()).isCloseTo(0.902322f, within(1e-4f));
+        assertThat(hits.get(1).score()).isCloseTo(0.754913f, within(1e-4f));
+    }
+
+    @Test
+    void addsTheScoresOfAllQuestionTerms() {
+        LexicalIndex index = index(CORPUS);
+
+        // The rarer term weighs more: idf(date) = ln(1 + 3.5 / 1.5)
+        List<HnswIndex.Hit> hits = index.search("Which cherry dates?", 10, K1, B);
+
+        assertThat(hits).extracting(HnswIndex.Hit::chunkIndex).containsExactly(2, 1);
+        assertThat(hits.get(0).score()).isCloseTo(0.754913f + 1.311258f, within(1e-4f));
+        assertThat(hits.get(1).score()).isCloseTo(0.640724f, within(1e-4f));
+    }
+
+    @Test
+    void returnsAtMostKBestChunks() {
+        LexicalIndex index = index(CORPUS);
+
+        List<HnswIndex.Hit> hits = index.search("apple cherry", 1, K1, B);
+
+        assertThat(hits).hasSize(1);
+        assertThat(hits.get(0).chunkIndex()).isEqualTo(1);
+        assertThat(hits.get(0).score()).isCloseTo(0.902322f + 0.640724f, within(1e-4f));
+        assertThat(hits.get(0).fileId()).isEqualTo(42);
+    }
+
+    @Test
+    void findsNothingForUnknownTermsOrStopWords() {
+        LexicalIndex index = index(CORPUS);
+
+        assertThat(index.search("kiwi", 10, K1, B)).isEmpty();
+        assertThat(index.search("what is the", 10, K1, B)).isEmpty();
+    }
+
+    @Test
+    void matchesTurkishQuestionsTypedWithoutTurkishLetters() {
+        LexicalIndex index = index(List.of(
+                "Şirketin İstanbul ofisleri geçen yıl kapandı.",
+                "Ankara'da yeni bir fabrika açıldı ve üretim başladı.",
+                "Fabrikanın üretimi arttı."));
+
+        assertThat(index.search("istanbul ofisleri ne zaman kapandi", 10, K1, B))
+                .extracting(HnswIndex.Hit::chunkIndex).containsExactly(0);
+        assertThat(index.search("FABRİKA", 10, K1, B))
+                .extracting(HnswIndex.Hit::chunkIndex).containsExactlyInAnyOrder(1, 2);
+    }
+
+    private static LexicalIndex index(List<String> chunks) {
+        StringBuilder text = new StringBuilder();
+        List<TokenCountingService.Span> spans = new ArrayList<>();
+        for (String chunk : chunks) {
+            int start = text.length();
+            text.append(chunk);
+            spans.add(new TokenCountingService.Span(start, text.length(), chunk.length() / 4));
+            text.append('\n');
+        }
+        return LexicalIndex.build(42, text.toString(), spans);
+    }
+}
@@ -0,0 +1,148 @@
+package com.omer.ostim.ai.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PersistentGenerationStoreTest {
+
+    private static final String KEY = "a".repeat(64);
+    private static final String OTHER_KEY = "0123456789abcdef".repeat(4);
+
+    @TempDir
+    Path directory;
+
+    private final List<PersistentGenerationStore> stores = new ArrayList<>();
+
+    @AfterEach
+    void closeStores() {
+        stores.forEach(PersistentGenerationStore::close);
+    }
+
+    @Test
+    void ignoresWritesUntilLoaded() {
+        PersistentGenerationStore store = store();
+
+        store.put(KEY, "early");
+        store.maintain();
+
+        assertThat(store.get(KEY)).isNull();
+    }
+
+    @Test
+    void returnsStoredResponses() {
+        PersistentGenerationStore store = loadedStore();
+
+        store.put(KEY, "Merhaba dünya, İstanbul'dan selamlar");
+        store.put(OTHER_KEY, "");
+
+        assertThat(store.get(KEY)).isEqualTo("Merhaba dünya, İstanbul'dan selamlar");
+        assertThat(store.get(OTHER_KEY)).isEmpty();
+        assertThat(store.get("f".repeat(64))).isNull();
+    }
+
+    @Test
+    void keepsResponsesAcrossRestarts() {
+        PersistentGenerationStore store = loadedStore();
+        store.put(KEY, "first");
+        store.put(KEY, "second");
+        store.put(OTHER_KEY, "other");
+        store.close();
+
+        PersistentGenerationStore reopened = loadedStore();
+
+        assertThat(reopened.get(KEY)).isEqualTo("second");
+        assertThat(reopened.get(OTHER_KEY)).isEqualTo("other");
+    }
+
+    @Test
+    void dropsTornRecordAtTheEndOnLoad() throws IOException {
+        PersistentGenerationStore store = loadedStore();
+        store.put(KEY, "complete");
+        store.close();
+        Path file = directory.resolve("generations-0.dat");
+        long complete = Files.size(file);
+        // Start of a record whose header and value never made it to disk
+        Files.write(file, new byte[20], StandardOpenOption.APPEND);
+
+        PersistentGenerationStore reopened = loadedStore();
+
+        assertThat(Files.size(file)).isEqualTo(complete);
+        assertThat(reopened.get(KEY)).isEqualTo("complete");
+        reopened.put(OTHER_KEY, "after restart");
+        assertThat(reopened.get(OTHER_KEY)).isEqualTo("after restart");
+    }
+
+    @Test
+    void compactsReplacedRecordsIntoNextFile() {
+        PersistentGenerationStore store = loadedStore();
+        for (int i = 0; i < 5; i++) {
+            store.put(KEY, "version " + i);
+        }
+        store.put(OTHER_KEY, "kept");
+
+        store.maintain();
+
+        assertThat(directory.resolve("generations-1.dat")).exists();
+        assertThat(directory.resolve("generations-0.dat")).doesNotExist();
+        assertThat(store.get(KEY)).isEqualTo("version 4");
+        assertThat(store.get(OTHER_KEY)).isEqualTo("kept");
+
+        store.put(KEY, "after compaction");
+        store.close();
+        assertThat(loadedStore().get(KEY)).isEqualTo("after compaction");
+    }
+
+    @Test
+    void skipsWritesBeyondMaximumSize() {
+        PersistentGenerationStore store = store(DataSize.ofBytes(200));
+        store.maintain();
+
+        store.put(KEY, "fits");
+        store.put(OTHER_KEY, "x".repeat(200));
+
+        assertThat(store.get(KEY)).isEqualTo("fits");
+        assertThat(store.get(OTHER_KEY)).isNull();
+    }
+
+    @Test
+    void missesExpiredResponses() {
+        PersistentGenerationStore store = new PersistentGenerationStore(new SimpleMeterRegistry(), true,
+                directory.toString(), DataSize.ofMegabytes(1), Duration.ofMillis(-1));
+        stores.add(store);
+        store.maintain();
+
+        store.put(KEY, "stale");
+
+        assertThat(store.get(KEY)).isNull();
+    }
+
+    private PersistentGenerationStore loadedStore() {
+        PersistentGenerationStore store = store();
+        store.maintain();
+        return store;
+    }
+
+    private PersistentGenerationStore store() {
+        return store(DataSize.ofMegabytes(1));
+    }
+
+    private PersistentGenerationStore store(DataSize maxFileSize) {
+        PersistentGenerationStore store = new PersistentGenerationStore(new SimpleMeterRegistry(), true,
+                directory.toString(), maxFileSize, Duration.ofDays(7));
+        stores.add(store);
+        return store;
+    }
+}
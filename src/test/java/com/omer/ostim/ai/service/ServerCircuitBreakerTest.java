@@ -0,0 +1,77 @@
+package com.omer.ostim.ai.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ServerCircuitBreakerTest {
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        ServerCircuitBreaker breaker = breaker(Duration.ofMinutes(1));
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        breaker.recordFailure();
+        assertThat(breaker.getState()).isEqualTo(ServerCircuitBreaker.State.CLOSED);
+        breaker.recordFailure();
+
+        assertThat(breaker.getState()).isEqualTo(ServerCircuitBreaker.State.OPEN);
+        assertThat(breaker.allowsRequest()).isFalse();
+        assertThat(breaker.tryAcquire()).isFalse();
+    }
+
+    @Test
+    void letsExactlyOneConcurrentTrialThrough() throws Exception {
+        ServerCircuitBreaker breaker = breaker(Duration.ZERO);
+        breaker.recordFailure();
+        breaker.recordFailure();
+
+        int threads = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> attempts = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            for (int i = 0; i < threads; i++) {
+                attempts.add(executor.submit(() -> {
+                    start.await();
+                    return breaker.allowsRequest() && breaker.tryAcquire();
+                }));
+            }
+            start.countDown();
+            int admitted = 0;
+            for (Future<Boolean> attempt : attempts) {
+                admitted += attempt.get() ? 1 : 0;
+            }
+            assertThat(admitted).isEqualTo(1);
+        }
+        assertThat(breaker.getState()).isEqualTo(ServerCircuitBreaker.State.HALF_OPEN);
+    }
+
+    @Test
+    void trialOutcomeDecidesTheState() {
+        ServerCircuitBreaker breaker = breaker(Duration.ZERO);
+        breaker.recordFailure();
+        breaker.recordFailure();
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        breaker.recordFailure();
+        assertThat(breaker.getState()).isEqualTo(ServerCircuitBreaker.State.OPEN);
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        breaker.recordIgnored();
+        assertThat(breaker.tryAcquire()).isTrue();
+        breaker.recordSuccess();
+        assertThat(breaker.getState()).isEqualTo(ServerCircuitBreaker.State.CLOSED);
+    }
+
+    private static ServerCircuitBreaker breaker(Duration openDuration) {
+        return new ServerCircuitBreaker(1L, 2, openDuration, state -> { });
+    }
+}
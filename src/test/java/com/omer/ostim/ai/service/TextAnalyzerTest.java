@@ -0,0 +1,60 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.service.TextAnalyzer.Language;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TextAnalyzerTest {
+
+    @Test
+    void foldsTurkishLettersAndDottedAndDotlessI() {
+        assertThat(TextAnalyzer.terms("İSTANBUL Istanbul istanbul ıstanbul", Language.TURKISH))
+                .containsExactly("istanbul", "istanbul", "istanbul", "istanbul");
+        assertThat(TextAnalyzer.terms("Göçük üzüm Kâğıt", Language.TURKISH))
+                .containsExactly("gocuk", "uzum", "kagit");
+        assertThat(TextAnalyzer.terms("ÇAĞRI çağrı cagri", Language.TURKISH))
+                .containsExactly("cagr", "cagr", "cagr");
+    }
+
+    @Test
+    void dropsSuffixesAfterAnApostrophe() {
+        assertThat(TextAnalyzer.terms("ISTANBUL'da Şırnak’ta", Language.TURKISH))
+                .containsExactly("istanbul", "sirnak");
+        assertThat(TextAnalyzer.terms("don't John's", Language.ENGLISH))
+                .containsExactly("don", "john");
+    }
+
+    @Test
+    void skipsStopWords() {
+        assertThat(TextAnalyzer.terms("bu ve bir için kitap", Language.TURKISH)).containsExactly("kitap");
+        assertThat(TextAnalyzer.terms("what is the report about", Language.ENGLISH)).containsExactly("report");
+    }
+
+    @Test
+    void stemsTurkishCasePluralAndPossessiveEndings() {
+        assertThat(TextAnalyzer.terms("kitapların okullarda arabalar", Language.TURKISH))
+                .containsExactly("kitap", "okul", "arab");
+        // A question typed without Turkish letters meets the document on the same stem
+        assertThat(TextAnalyzer.terms("İstanbul ofisleri kapandı", Language.TURKISH))
+                .isEqualTo(TextAnalyzer.terms("istanbul ofisleri kapandi", Language.TURKISH));
+    }
+
+    @Test
+    void stemsEnglishPluralsAndEndings() {
+        assertThat(TextAnalyzer.terms("running dogs stopped quickly studies boxes classes bus analysis",
+                Language.ENGLISH))
+                .containsExactly("run", "dog", "stop", "quick", "study", "box", "class", "bus", "analysis");
+    }
+
+    @Test
+    void keepsNumbersAsTerms() {
+        assertThat(TextAnalyzer.terms("Raporun 2023 bütçesi", Language.TURKISH)).containsExactly("rapor", "2023", "butc");
+    }
+
+    @Test
+    void detectsTheLanguage() {
+        assertThat(TextAnalyzer.detect("Bu belge şirket için hazırlandı")).isEqualTo(Language.TURKISH);
+        assertThat(TextAnalyzer.detect("This is the report of the company and its results")).isEqualTo(Language.ENGLISH);
+    }
+}
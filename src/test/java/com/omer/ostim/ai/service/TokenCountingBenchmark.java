@@ -0,0 +1,66 @@
+package com.omer.ostim.ai.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of counting and cutting prompts with {@link TokenCountingService}: a whole
+ * extracted document of about 95k characters of English and Turkish, and a single chat
+ * turn. Run with {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=TokenCounting}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenCountingBenchmark {
+
+    private static final String MODEL = "deepseek-r1:1.5b";
+
+    private TokenCountingService tokenCountingService;
+    private String document;
+    private String turn;
+
+    @Setup
+    public void setUp() throws IOException {
+        tokenCountingService = new TokenCountingService(null);
+        String sample = sample();
+        document = sample.repeat(95_000 / sample.length() + 1).substring(0, 95_000);
+        turn = sample.substring(sample.indexOf("Sırada"), sample.indexOf("Sırada") + 240);
+    }
+
+    @Benchmark
+    public int countDocument() {
+        return tokenCountingService.count(document, MODEL);
+    }
+
+    @Benchmark
+    public String truncateDocument() {
+        return tokenCountingService.truncate(document, 3000, MODEL);
+    }
+
+    @Benchmark
+    public int countTurn() {
+        return tokenCountingService.count(turn, MODEL);
+    }
+
+    static String sample() throws IOException {
+        try (InputStream in = TokenCountingBenchmark.class.getResourceAsStream("/samples/english-turkish.txt")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.omer.ostim.ai.service;
+
+import com.omer.ostim.ai.model.ChatFileTokenCount;
+import com.omer.ostim.ai.model.ChatFiles;
+import com.omer.ostim.ai.model.TokenizerFamily;
+import com.omer.ostim.ai.repository.ChatFileTokenCountRepository;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TokenCountingServiceTest {
+
+    private static final List<String> MODELS = List.of("deepseek-r1:1.5b", "llama3.2", "gemma2", "mistral");
+
+    private static String sample;
+
+    private final TokenCountingService tokenCountingService = new TokenCountingService(null);
+
+    @BeforeAll
+    static void loadSample() throws IOException {
+        sample = TokenCountingBenchmark.sample();
+    }
+
+    @Test
+    void countsNothingForEmptyText() {
+        assertThat(tokenCountingService.count(null, "llama3.2")).isZero();
+        assertThat(tokenCountingService.count("", "llama3.2")).isZero();
+    }
+
+    @Test
+    void countsWordsWithTheirLeadingSpace() {
+        assertThat(tokenCountingService.count("Hello world", "llama3.2")).isEqualTo(2);
+        assertThat(tokenCountingService.count("Hello, world!", "llama3.2")).isEqualTo(4);
+        assertThat(tokenCountingService.count("it's", "llama3.2")).isEqualTo(2);
+    }
+
+    @Test
+    void countsTurkishTextHigherThanEnglishOfTheSameLength() {
+        int english = sample.indexOf("Üçüncü");
+        String englishPart = sample.substring(0, english);
+        String turkishPart = sample.substring(english, english + englishPart.length());
+
+        assertThat(tokenCountingService.count(turkishPart, "deepseek-r1:1.5b"))
+                .isGreaterThan(tokenCountingService.count(englishPart, "deepseek-r1:1.5b"));
+    }
+
+    @Test
+    void returnsTextsThatFitUnchanged() {
+        int tokens = tokenCountingService.count(sample, "llama3.2");
+
+        assertThat(tokenCountingService.truncate(sample, tokens, "llama3.2")).isSameAs(sample);
+        assertThat(tokenCountingService.keepLast(sample, tokens, "llama3.2")).isSameAs(sample);
+    }
+
+    @Test
+    void truncatedTextNeverExceedsTheLimitIncludingTheMarker() {
+        for (String model : MODELS) {
+            int total = tokenCountingService.count(sample, model);
+            for (int maxTokens = 0; maxTokens < total; maxTokens++) {
+                String truncated = tokenCountingService.truncate(sample, maxTokens, model);
+
+                assertThat(tokenCountingService.count(truncated, model))
+                        .as("%s cut to %d tokens", model, maxTokens)
+                        .isLessThanOrEqualTo(maxTokens);
+                if (!truncated.isEmpty()) {
+                    assertThat(truncated).endsWith(TokenCountingService.TRUNCATION_MARKER);
+                    String kept = truncated.substring(0, truncated.length() - TokenCountingService.TRUNCATION_MARKER.length());
+                    assertThat(sample).startsWith(kept);
+                }
+            }
+        }
+    }
+
+    @Test
+    void truncatesAtSentenceEndWhenItKeepsMostOfTheLimit() {
+        String tail = " and goes on for a while longer, much longer than the marker that replaces it would be.";
+        String text = "The first sentence is here. The second sentence follows it" + tail;
+        int limit = tokenCountingService.count("The first sentence is here. The second sentence follows", "llama3.2")
+                + tokenCountingService.count(TokenCountingService.TRUNCATION_MARKER, "llama3.2");
+
+        String truncated = tokenCountingService.truncate(text, limit, "llama3.2");
+
+        // The sentence end keeps less than 75% of the limit, so the cut is between words
+        assertThat(truncated).isEqualTo("The first sentence is here. The second sentence follows"
+                + TokenCountingService.TRUNCATION_MARKER);
+
+        String longFirst = "The first sentence is quite a bit longer than the rest of it. Then a short one follows" + tail;
+        int longLimit = tokenCountingService.count("The first sentence is quite a bit longer than the rest of it. Then a",
+                "llama3.2") + tokenCountingService.count(TokenCountingService.TRUNCATION_MARKER, "llama3.2");
+
+        assertThat(tokenCountingService.truncate(longFirst, longLimit, "llama3.2"))
+                .isEqualTo("The first sentence is quite a bit longer than the rest of it."
+                        + TokenCountingService.TRUNCATION_MARKER);
+    }
+
+    @Test
+    void keptEndNeverExceedsTheLimit() {
+        for (String model : MODELS) {
+            int total = tokenCountingService.count(sample, model);
+            for (int maxTokens = 0; maxTokens < total; maxTokens += 7) {
+                String kept = tokenCountingService.keepLast(sample, maxTokens, model);
+
+                assertThat(tokenCountingService.count(kept, model))
+                        .as("%s, last %d tokens", model, maxTokens)
+                        .isLessThanOrEqualTo(maxTokens);
+                assertThat(sample).endsWith(kept);
+            }
+        }
+    }
+
+    @Test
+    void splitsIntoOverlappingPartsWithinTheLimit() {
+        List<TokenCountingService.Span> spans = tokenCountingService.split(sample, 120, 20, "deepseek-r1:1.5b");
+
+        assertThat(spans).hasSizeGreaterThan(2);
+        assertThat(spans.get(0).start()).isZero();
+        assertThat(spans.get(spans.size() - 1).end()).isEqualTo(sample.stripTrailing().length());
+        for (int i = 0; i < spans.size(); i++) {
+            TokenCountingService.Span span = spans.get(i);
+            String part = sample.substring(span.start(), span.end());
+            assertThat(span.tokens()).isLessThanOrEqualTo(120);
+            assertThat(part).isEqualTo(part.strip());
+            if (i > 0) {
+                // Each part starts before the previous one ended, so no text is lost
+                assertThat(span.start()).isLessThanOrEqualTo(spans.get(i - 1).end());
+                assertThat(span.start()).isGreaterThan(spans.get(i - 1).start());
+            }
+        }
+    }
+
+    @Test
+    void usesTheStoredCountOfTheSameExtraction() {
+        ChatFileTokenCountRepository repository = mock(ChatFileTokenCountRepository.class);
+        ChatFiles file = file(1L, "Hello world");
+        when(repository.findByFileIdAndTokenizerFamily(1L, TokenizerFamily.LLAMA3))
+                .thenReturn(Optional.of(storedCount(1L, 999, file.getExtractedText().length())));
+        TokenCountingService service = new TokenCountingService(repository);
+
+        assertThat(service.countFile(file, "llama3.2")).isEqualTo(999);
+        assertThat(service.countFile(file, "llama3.2")).isEqualTo(999);
+        verify(repository, times(1)).findByFileIdAndTokenizerFamily(1L, TokenizerFamily.LLAMA3);
+        verify(repository, never()).save(any());
+    }
+
+    @Test
+    void countsAFileAgainAfterItWasExtractedAgain() {
+        ChatFileTokenCountRepository repository = mock(ChatFileTokenCountRepository.class);
+        when(repository.findByFileIdAndTokenizerFamily(any(), any())).thenReturn(Optional.empty());
+        TokenCountingService service = new TokenCountingService(repository);
+        ChatFiles file = file(1L, "Hello world");
+        assertThat(service.countFile(file, "llama3.2")).isEqualTo(2);
+
+        file.setExtractedText(sample);
+
+        assertThat(service.countFile(file, "llama3.2")).isEqualTo(service.count(sample, "llama3.2"));
+    }
+
+    @Test
+    void forgetsTheCountsOfADeletedFile() {
+        ChatFileTokenCountRepository repository = mock(ChatFileTokenCountRepository.class);
+        when(repository.findByFileIdAndTokenizerFamily(any(), any())).thenReturn(Optional.empty());
+        TokenCountingService service = new TokenCountingService(repository);
+        ChatFiles file = file(1L, "Hello world");
+        service.countFile(file, "llama3.2");
+
+        service.deleteFile(1L);
+        service.countFile(file, "llama3.2");
+
+        verify(repository).deleteByFileId(1L);
+        verify(repository, times(2)).findByFileIdAndTokenizerFamily(1L, TokenizerFamily.LLAMA3);
+    }
+
+    private static ChatFiles file(Long fileId, String text) {
+        ChatFiles file = new ChatFiles();
+        file.setFileId(fileId);
+        file.setExtractedText(text);
+        return file;
+    }
+
+    private static ChatFileTokenCount storedCount(Long fileId, int tokens, int textLength) {
+        ChatFileTokenCount count = new ChatFileTokenCount();
+        count.setFileId(fileId);
+        count.setTokenizerFamily(TokenizerFamily.LLAMA3);
+        count.setTokenCount(tokens);
+        count.setTextLength(textLength);
+        return count;
+    }
+}
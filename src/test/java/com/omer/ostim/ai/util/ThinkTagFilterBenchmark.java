@@ -0,0 +1,74 @@
+package com.omer.ostim.ai.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of removing the reasoning from a DeepSeek-R1 style response of about 3k characters:
+ * the regular expressions used before, {@link ThinkTagFilter#removeThinking} on the whole
+ * response, and the filter fed the response in streamed chunks of a few characters. Run with
+ * {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=ThinkTag}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThinkTagFilterBenchmark {
+
+    private String response;
+    private List<String> chunks;
+
+    @Setup
+    public void setUp() throws IOException {
+        response = sample();
+        // Ollama streams about a token per chunk
+        chunks = new ArrayList<>();
+        for (int i = 0; i < response.length(); i += 4) {
+            chunks.add(response.substring(i, Math.min(i + 4, response.length())));
+        }
+    }
+
+    @Benchmark
+    public String regex() {
+        return ThinkTagFilterTest.regex(response);
+    }
+
+    @Benchmark
+    public String removeThinking() {
+        return ThinkTagFilter.removeThinking(response);
+    }
+
+    @Benchmark
+    public int streamed() {
+        int[] length = new int[1];
+        ThinkTagFilter filter = new ThinkTagFilter(answer -> length[0] += answer.length(), null);
+        for (String chunk : chunks) {
+            filter.accept(chunk);
+        }
+        filter.finish();
+        return length[0];
+    }
+
+    static String sample() throws IOException {
+        try (InputStream in = ThinkTagFilterBenchmark.class.getResourceAsStream("/samples/deepseek-response.txt")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.omer.ostim.ai.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ThinkTagFilterTest {
+
+    private static final List<String> RESPONSES = List.of(
+            "<think>\nThe user greets me.\n</think>\n\nHello! How can I help?",
+            "Before <THINK>upper case</Think> after",
+            "a\n\n\n\nb",
+            "  indented\n \t\n\n    code\n",
+            "a <b> c < d </think> e",
+            "<<think>x</think>y<thin",
+            "<think>outer <think>inner</think> tail</think>\r\n\r\n\r\nanswer\r\n",
+            "no reasoning at all");
+
+    @Test
+    void tagsSplitAtEveryOffsetGiveTheSameAnswer() {
+        for (String response : RESPONSES) {
+            String expected = ThinkTagFilter.removeThinking(response);
+            for (int i = 0; i <= response.length(); i++) {
+                for (int j = i; j <= response.length(); j++) {
+                    Collected collected = stream(response.substring(0, i), response.substring(i, j), response.substring(j));
+                    assertThat(collected.answer()).as("%s split at %d and %d", response, i, j).isEqualTo(expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    void reasoningGoesToTheThinkingConsumer() {
+        Collected collected = stream("<thi", "nk>weighing", " options</th", "ink>\n\nAnswer");
+
+        assertThat(collected.answer()).isEqualTo("Answer");
+        assertThat(collected.thinking()).isEqualTo("weighing options");
+    }
+
+    @Test
+    void unclosedThinkStaysReasoning() {
+        Collected collected = stream("Partial answer <think>still reason", "ing when the tokens ran out");
+
+        assertThat(collected.answer()).isEqualTo("Partial answer");
+        assertThat(collected.thinking()).isEqualTo("still reasoning when the tokens ran out");
+        // The regex needed a closing tag and left the reasoning in the answer
+        assertThat(regex("Partial answer <think>still reasoning")).isEqualTo("Partial answer <think>still reasoning");
+    }
+
+    @Test
+    void unfinishedTagAtTheEndIsText() {
+        assertThat(stream("answer <thi").answer()).isEqualTo("answer <thi");
+        assertThat(stream("answer <").answer()).isEqualTo("answer <");
+    }
+
+    @Test
+    void trailingWhitespaceIsHeldBackUntilMoreTextFollows() {
+        List<String> chunks = new ArrayList<>();
+        ThinkTagFilter filter = new ThinkTagFilter(chunks::add, null);
+
+        filter.accept("Hello ");
+        filter.accept(" \n");
+        assertThat(chunks).containsExactly("Hello");
+
+        filter.accept("world\n\n");
+        filter.finish();
+        assertThat(chunks).containsExactly("Hello", "  \nworld");
+    }
+
+    @Test
+    void threeOrMoreLineBreaksCollapseToABlankLine() {
+        assertThat(ThinkTagFilter.removeThinking("a\n\n\nb")).isEqualTo("a\n\nb");
+        assertThat(ThinkTagFilter.removeThinking("a\n\n\n\n\n\nb")).isEqualTo("a\n\nb");
+        assertThat(ThinkTagFilter.removeThinking("a \n\t\n \n  b")).isEqualTo("a \n\n  b");
+        assertThat(ThinkTagFilter.removeThinking("a\n\nb")).isEqualTo("a\n\nb");
+        assertThat(stream("a\n", "\n", "\n", "  b").answer()).isEqualTo("a\n\n  b");
+    }
+
+    @Test
+    void matchesTheRegexOnSamples() throws IOException {
+        String response = ThinkTagFilterBenchmark.sample();
+
+        assertThat(ThinkTagFilter.removeThinking(response)).isEqualTo(regex(response));
+        for (String sample : RESPONSES) {
+            assertThat(ThinkTagFilter.removeThinking(sample)).as(sample).isEqualTo(regex(sample));
+        }
+    }
+
+    @Test
+    void matchesTheRegexOnRandomResponses() {
+        String[] pieces = {"<think>", "</think>", "<THINK>", "</Think>", "<thi", "<", ">", "/", "a", "b",
+                " ", "\n", "\t", "\r", "\f"};
+        Random random = new Random(42);
+        for (int n = 0; n < 20_000; n++) {
+            StringBuilder response = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int i = 0; i < length; i++) {
+                response.append(pieces[random.nextInt(pieces.length)]);
+            }
+            String expected = regex(response.toString());
+            // Only an unclosed reasoning block is cleaned differently
+            if (expected.toLowerCase().contains("<think>")) {
+                continue;
+            }
+            assertThat(ThinkTagFilter.removeThinking(response.toString())).as(response.toString()).isEqualTo(expected);
+        }
+    }
+
+    private static Collected stream(String... chunks) {
+        StringBuilder answer = new StringBuilder();
+        StringBuilder thinking = new StringBuilder();
+        ThinkTagFilter filter = new ThinkTagFilter(answer::append, thinking::append);
+        for (String chunk : chunks) {
+            filter.accept(chunk);
+        }
+        filter.finish();
+        return new Collected(answer.toString(), thinking.toString());
+    }
+
+    private record Collected(String answer, String thinking) {
+    }
+
+    private static final Pattern THINK_TAG_PATTERN = Pattern.compile("<think>.*?</think>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+
+    // The cleaning ResponseProcessingUtil did before the filter
+    static String regex(String response) {
+        String cleaned = THINK_TAG_PATTERN.matcher(response).replaceAll("");
+        cleaned = cleaned.replaceAll("\\n\\s*\\n\\s*\\n", "\n\n");
+        return cleaned.trim();
+    }
+}